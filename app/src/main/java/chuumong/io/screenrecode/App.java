@@ -3,6 +3,8 @@ package chuumong.io.screenrecode;
 import android.app.Application;
 import android.content.Context;
 
+import chuumong.io.screenrecode.media.CodecCapabilityStore;
+
 /**
  * Created by LeeJongHun on 2016-05-02.
  */
@@ -14,6 +16,9 @@ public class App extends Application {
     public void onCreate() {
         super.onCreate();
         context = getApplicationContext();
+
+        // 첫 녹화 전에 코덱 목록 조회가 끝나도록 미리 로드
+        CodecCapabilityStore.preload(this);
     }
 
     public static Context getContext() {
@@ -42,6 +42,11 @@ public class MainActivity extends AppCompatActivity implements CompoundButton.On
     }
 
     private void recodeStart() {
+        // 권한 확인 창이 떠 있는 동안 인코더를 미리 준비
+        final Intent prepareIntent = new Intent(this, ScreenRecorderService.class);
+        prepareIntent.setAction(ScreenRecorderService.RecodeType.ACTION_PREPARE);
+        startService(prepareIntent);
+
         // 퍼미션 체크용
         final MediaProjectionManager manager = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
         final Intent intent = manager.createScreenCaptureIntent();
@@ -54,6 +59,12 @@ public class MainActivity extends AppCompatActivity implements CompoundButton.On
         startService(intent);
     }
 
+    private void recodeCancel() {
+        final Intent intent = new Intent(this, ScreenRecorderService.class);
+        intent.setAction(ScreenRecorderService.RecodeType.ACTION_CANCEL);
+        startService(intent);
+    }
+
     private void recodePause() {
         final Intent intent = new Intent(MainActivity.this, ScreenRecorderService.class);
         intent.setAction(ScreenRecorderService.RecodeType.ACTION_PAUSE);
@@ -78,6 +89,10 @@ public class MainActivity extends AppCompatActivity implements CompoundButton.On
             }
         }
         else {
+            if (requestCode == REQUEST_CODE_SCREEN_CAPTURE) {
+                recodeCancel();
+            }
+
             Toast.makeText(this, getString(R.string.permission_denied), Toast.LENGTH_SHORT).show();
         }
 
@@ -0,0 +1,265 @@
+package chuumong.io.screenrecode.media;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import chuumong.io.mediacore.codec.CodecCapabilityCache;
+
+/**
+ * 녹화에 사용할 인코더와 그 기능을 OS 빌드별로 파일에 저장해두고 prepare 에서 바로 사용
+ * <br/>
+ * App.onCreate 에서 preload 로 백그라운드 로드를 시작하고, 저장된 파일이 없거나 빌드가 바뀌었으면 그때 코덱 목록을 한 번 조회
+ */
+public final class CodecCapabilityStore {
+
+    private static final String TAG = CodecCapabilityStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "codec_capabilities.bin";
+
+    static final String MIME_VIDEO_AVC = "video/avc";
+    static final String MIME_AUDIO_AAC = "audio/mp4a-latm";
+
+    // 녹화에 사용하는 MIME 타입, 캐시가 없으면 preload 에서 미리 조회
+    private static final String[] RECORDING_MIMES = {MIME_VIDEO_AVC, MIME_AUDIO_AAC};
+
+    private static File cacheFile;
+    private static FutureTask<CodecCapabilityCache> loadTask;
+
+    private CodecCapabilityStore() {
+    }
+
+    /**
+     * 저장된 캐시를 백그라운드 스레드에서 읽기 시작, 여러 번 호출해도 한 번만 읽음
+     */
+    public static synchronized void preload(@NonNull Context context) {
+        if (loadTask != null) {
+            return;
+        }
+
+        cacheFile = new File(context.getFilesDir(), FILE_NAME);
+        loadTask = new FutureTask<>(new Callable<CodecCapabilityCache>() {
+            @Override
+            public CodecCapabilityCache call() throws Exception {
+                return load();
+            }
+        });
+
+        new Thread(loadTask, TAG).start();
+    }
+
+    /**
+     * @return mime 을 인코딩 할 수 있는 인코더, 영상은 Surface 입력을 지원하는 인코더만 선택, 없으면 null
+     */
+    @Nullable
+    public static CodecCapabilityCache.Entry getEncoder(@NonNull String mime) {
+        final CodecCapabilityCache cache = awaitCache();
+        CodecCapabilityCache.Entry entry = cache.get(mime);
+
+        if (entry == null) {
+            synchronized (CodecCapabilityStore.class) {
+                entry = cache.get(mime);
+
+                if (entry == null) {
+                    entry = scanEncoder(mime);
+
+                    if (entry != null) {
+                        cache.put(entry);
+                        save(cache);
+                    }
+                }
+            }
+        }
+
+        return entry;
+    }
+
+    private static CodecCapabilityCache awaitCache() {
+        final FutureTask<CodecCapabilityCache> task;
+
+        synchronized (CodecCapabilityStore.class) {
+            if (loadTask == null) {
+                // preload 없이 호출된 경우, 파일 없이 현재 스레드에서 조회
+                loadTask = new FutureTask<>(new Callable<CodecCapabilityCache>() {
+                    @Override
+                    public CodecCapabilityCache call() throws Exception {
+                        return new CodecCapabilityCache(Build.FINGERPRINT);
+                    }
+                });
+                loadTask.run();
+            }
+
+            task = loadTask;
+        }
+
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            Log.e(TAG, "awaitCache", e);
+        }
+
+        return new CodecCapabilityCache(Build.FINGERPRINT);
+    }
+
+    private static CodecCapabilityCache load() {
+        final long start = SystemClock.elapsedRealtime();
+
+        if (cacheFile.exists()) {
+            InputStream in = null;
+
+            try {
+                in = new BufferedInputStream(new FileInputStream(cacheFile));
+                final CodecCapabilityCache cache = CodecCapabilityCache.readFrom(in);
+
+                if (Build.FINGERPRINT.equals(cache.getFingerprint())) {
+                    Log.d(TAG, "load cache hit " + cache.getEntries() + " " + (SystemClock.elapsedRealtime() - start) + "ms");
+                    return cache;
+                }
+
+                Log.d(TAG, "load build changed, rescan codecs");
+            }
+            catch (IOException e) {
+                Log.w(TAG, "load failed, rescan codecs", e);
+            }
+            finally {
+                closeQuietly(in);
+            }
+        }
+
+        final CodecCapabilityCache cache = new CodecCapabilityCache(Build.FINGERPRINT);
+
+        for (String mime : RECORDING_MIMES) {
+            final CodecCapabilityCache.Entry entry = scanEncoder(mime);
+
+            if (entry != null) {
+                cache.put(entry);
+            }
+        }
+
+        save(cache);
+
+        Log.d(TAG, "load scanned " + cache.getEntries() + " " + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        return cache;
+    }
+
+    private static void save(CodecCapabilityCache cache) {
+        if (cacheFile == null) {
+            return;
+        }
+
+        final File tempFile = new File(cacheFile.getPath() + ".tmp");
+        OutputStream out = null;
+
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            cache.writeTo(out);
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(cacheFile)) {
+                Log.w(TAG, "save rename failed");
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "save", e);
+        }
+        finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * 코덱 목록에서 mime 을 지원하는 첫 번째 인코더를 찾아 기능을 기록
+     */
+    @Nullable
+    private static CodecCapabilityCache.Entry scanEncoder(String mime) {
+        final boolean video = mime.startsWith("video/");
+        final MediaCodecInfo[] codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+
+        for (MediaCodecInfo codecInfo : codecInfos) {
+            if (!codecInfo.isEncoder() || !supportsType(codecInfo, mime)) {
+                continue;
+            }
+
+            final MediaCodecInfo.CodecCapabilities caps = codecInfo.getCapabilitiesForType(mime);
+            final CodecCapabilityCache.Entry entry = new CodecCapabilityCache.Entry(mime, codecInfo.getName());
+            entry.setColorFormats(caps.colorFormats);
+
+            if (video && !entry.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)) {
+                continue;
+            }
+
+            final int[] profiles = new int[caps.profileLevels.length];
+            final int[] levels = new int[caps.profileLevels.length];
+
+            for (int i = 0; i < profiles.length; i++) {
+                profiles[i] = caps.profileLevels[i].profile;
+                levels[i] = caps.profileLevels[i].level;
+            }
+            entry.setProfileLevels(profiles, levels);
+
+            if (video) {
+                final MediaCodecInfo.VideoCapabilities videoCaps = caps.getVideoCapabilities();
+                final Range<Integer> widths = videoCaps.getSupportedWidths();
+                final Range<Integer> heights = videoCaps.getSupportedHeights();
+                final Range<Integer> bitRates = videoCaps.getBitrateRange();
+
+                entry.setSizeRange(widths.getLower(), widths.getUpper(), heights.getLower(), heights.getUpper());
+                entry.setAlignment(videoCaps.getWidthAlignment(), videoCaps.getHeightAlignment());
+                entry.setBitRateRange(bitRates.getLower(), bitRates.getUpper());
+            }
+            else if (caps.getAudioCapabilities() != null) {
+                final Range<Integer> bitRates = caps.getAudioCapabilities().getBitrateRange();
+                entry.setBitRateRange(bitRates.getLower(), bitRates.getUpper());
+            }
+
+            return entry;
+        }
+
+        return null;
+    }
+
+    private static boolean supportsType(MediaCodecInfo codecInfo, String mime) {
+        for (String type : codecInfo.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
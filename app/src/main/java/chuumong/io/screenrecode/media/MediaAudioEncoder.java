@@ -2,9 +2,7 @@ package chuumong.io.screenrecode.media;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Process;
@@ -14,6 +12,8 @@ import android.util.Log;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import chuumong.io.mediacore.codec.CodecCapabilityCache;
+
 /**
  * Created by LeeJongHun on 2016-05-04.
  */
@@ -23,7 +23,7 @@ public class MediaAudioEncoder extends MediaEncoder {
     private static final String MIME_TYPE = "audio/mp4a-latm";
 
     private static final int SAMPLE_RATE = 44100;
-    private static final int BIT_RATE = 64000;
+    public static final int BIT_RATE = 64000;
     private static final int SAMPLES_PER_FRAME = 1024;
     private static final int FRAMES_PER_BUFFER = 25;
 
@@ -40,7 +40,7 @@ public class MediaAudioEncoder extends MediaEncoder {
         trackIndex = -1;
         muxerStarted = isEOS = false;
 
-        final MediaCodecInfo codecInfo = selectAudioCodec();
+        final CodecCapabilityCache.Entry codecInfo = CodecCapabilityStore.getEncoder(MIME_TYPE);
         if (codecInfo == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
@@ -56,9 +56,10 @@ public class MediaAudioEncoder extends MediaEncoder {
 
         Log.d(TAG, "prepare format : " + format);
 
-        mediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mediaCodec.start();
+        final MediaCodecBackend backend = createMediaCodecBackend(MIME_TYPE, codecInfo.getName());
+        backend.configure(format);
+        codec = backend;
+        codec.start();
 
         Log.d(TAG, "prepare finishing");
 
@@ -82,32 +83,6 @@ public class MediaAudioEncoder extends MediaEncoder {
         super.release();
     }
 
-    /**
-     * 특정 MIME 타입과 일치하는 코덱을 선택
-     */
-    @SuppressWarnings("deprecation")
-    private static MediaCodecInfo selectAudioCodec() {
-        Log.d(TAG, "selectAudioCodec");
-
-        final int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            final MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
-
-            if (!info.isEncoder()) {
-                continue;
-            }
-
-            final String[] types = info.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(MIME_TYPE)) {
-                    return info;
-                }
-            }
-        }
-
-        return null;
-    }
-
     private static final int[] AUDIO_SOURCES = new int[]{MediaRecorder.AudioSource.MIC, MediaRecorder.AudioSource.DEFAULT,
                                                          MediaRecorder.AudioSource.CAMCORDER, MediaRecorder.AudioSource.VOICE_COMMUNICATION,
                                                          MediaRecorder.AudioSource.VOICE_RECOGNITION,};
@@ -147,7 +122,8 @@ public class MediaAudioEncoder extends MediaEncoder {
             }
 
             if (audioRecord != null) {
-                for (; isCapturing; ) {
+                // stop 을 요청하면 EOS 를 기다리지 않고 바로 끝냄, 비동기 드레인에서는 isCapturing 이 늦게 내려가서 계속 돌게 됨
+                for (; isCapturing && !requestStop; ) {
                     synchronized (sync) {
                         if (isCapturing && !requestStop && requestPause) {
                             try {
@@ -0,0 +1,270 @@
+package chuumong.io.screenrecode.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * android.media.MediaCodec 을 사용하는 EncoderBackend
+ */
+public final class MediaCodecBackend implements EncoderBackend {
+
+    private static final String TAG = MediaCodecBackend.class.getSimpleName();
+
+    private final MediaCodec mediaCodec;
+    private final Handler callbackHandler;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private final SampleInfo callbackInfo = new SampleInfo();
+
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+    private boolean async;
+
+    /**
+     * @param callbackHandler 비동기 모드에서 콜백을 받을 Handler
+     */
+    public MediaCodecBackend(@NonNull String mime, @Nullable Handler callbackHandler) throws IOException {
+        this(MediaCodec.createEncoderByType(mime), callbackHandler);
+    }
+
+    private MediaCodecBackend(@NonNull MediaCodec mediaCodec, @Nullable Handler callbackHandler) {
+        this.mediaCodec = mediaCodec;
+        this.callbackHandler = callbackHandler;
+    }
+
+    /**
+     * CodecCapabilityStore 에서 선택한 인코더를 이름으로 생성
+     */
+    public static MediaCodecBackend createByCodecName(@NonNull String codecName, @Nullable Handler callbackHandler) throws IOException {
+        return new MediaCodecBackend(MediaCodec.createByCodecName(codecName), callbackHandler);
+    }
+
+    public void configure(@NonNull MediaFormat format) {
+        mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    /**
+     * configure 이후, start 전에 호출
+     */
+    public Surface createInputSurface() {
+        return mediaCodec.createInputSurface();
+    }
+
+    public String getName() {
+        return mediaCodec.getName();
+    }
+
+    /**
+     * 콜백과 Handler 를 함께 받는 MediaCodec.setCallback 은 API 23 부터 사용 가능
+     */
+    public static boolean isAsyncSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * API 23 미만에서는 콜백을 등록하지 않고 동기 모드로 남음, 호출하는 쪽은 isAsyncSupported 로 폴링 드레인을 선택해야 함
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public void setCallback(final Callback callback) {
+        if (!isAsyncSupported()) {
+            Log.w(TAG, "async drain requires API 23, staying in sync mode");
+            return;
+        }
+
+        async = true;
+
+        mediaCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(MediaCodecBackend.this, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+                callbackInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                callback.onOutputBufferAvailable(MediaCodecBackend.this, index, callbackInfo);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                callback.onError(MediaCodecBackend.this, e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                callback.onOutputFormatChanged(MediaCodecBackend.this, toTrackFormat(format));
+            }
+        }, callbackHandler);
+    }
+
+    @Override
+    public void start() {
+        mediaCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mediaCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mediaCodec.release();
+        inputBuffers = outputBuffers = null;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ByteBuffer getInputBuffer(int index) {
+        if (async) {
+            return mediaCodec.getInputBuffer(index);
+        }
+
+        // 동기 모드는 매번 ByteBuffer 를 만들지 않도록 배열을 캐시
+        if (inputBuffers == null) {
+            inputBuffers = mediaCodec.getInputBuffers();
+        }
+
+        return inputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mediaCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        final int status = mediaCodec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+
+        if (status >= 0) {
+            info.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+        else if (status == INFO_OUTPUT_BUFFERS_CHANGED) {
+            outputBuffers = null;
+        }
+
+        return status;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ByteBuffer getOutputBuffer(int index) {
+        if (async) {
+            return mediaCodec.getOutputBuffer(index);
+        }
+
+        if (outputBuffers == null) {
+            outputBuffers = mediaCodec.getOutputBuffers();
+        }
+
+        return outputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return toTrackFormat(mediaCodec.getOutputFormat());
+    }
+
+    @Override
+    public void setVideoBitrate(int bitRate) {
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        mediaCodec.setParameters(params);
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mediaCodec.setParameters(params);
+    }
+
+    static TrackFormat toTrackFormat(MediaFormat mediaFormat) {
+        final String mime = mediaFormat.getString(MediaFormat.KEY_MIME);
+        final TrackFormat format;
+
+        if (mime.startsWith("video/")) {
+            format = TrackFormat.createVideoFormat(mime,
+                    mediaFormat.getInteger(MediaFormat.KEY_WIDTH),
+                    mediaFormat.getInteger(MediaFormat.KEY_HEIGHT));
+
+            if (mediaFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                format.setFrameRate(mediaFormat.getInteger(MediaFormat.KEY_FRAME_RATE));
+            }
+        }
+        else {
+            format = TrackFormat.createAudioFormat(mime,
+                    mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        }
+
+        if (mediaFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            format.setBitRate(mediaFormat.getInteger(MediaFormat.KEY_BIT_RATE));
+        }
+
+        format.setCsd0(mediaFormat.getByteBuffer("csd-0"));
+        format.setCsd1(mediaFormat.getByteBuffer("csd-1"));
+        format.setPlatformFormat(mediaFormat);
+
+        return format;
+    }
+
+    /**
+     * 코덱이 만든 MediaFormat 이 있으면 그대로 사용하고, 없으면 TrackFormat 으로부터 생성
+     */
+    static MediaFormat toMediaFormat(TrackFormat format) {
+        if (format.getPlatformFormat() instanceof MediaFormat) {
+            return (MediaFormat) format.getPlatformFormat();
+        }
+
+        final MediaFormat mediaFormat;
+
+        if (format.isVideo()) {
+            mediaFormat = MediaFormat.createVideoFormat(format.getMime(), format.getWidth(), format.getHeight());
+        }
+        else {
+            mediaFormat = MediaFormat.createAudioFormat(format.getMime(), format.getSampleRate(), format.getChannelCount());
+        }
+
+        if (format.getCsd0() != null) {
+            mediaFormat.setByteBuffer("csd-0", format.getCsd0());
+        }
+
+        if (format.getCsd1() != null) {
+            mediaFormat.setByteBuffer("csd-1", format.getCsd1());
+        }
+
+        return mediaFormat;
+    }
+}
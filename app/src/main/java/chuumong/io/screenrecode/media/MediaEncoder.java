@@ -1,54 +1,66 @@
 package chuumong.io.screenrecode.media;
 
-import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.clock.MediaClock;
+import chuumong.io.mediacore.codec.BaseEncoder;
+import chuumong.io.mediacore.codec.CodecCapabilityCache;
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.mux.SampleSink;
 
 /**
  * Created by LeeJongHun on 2016-05-04.
  */
-public abstract class MediaEncoder implements Runnable {
+public abstract class MediaEncoder extends BaseEncoder implements Runnable {
 
     private static final String TAG = MediaEncoder.class.getSimpleName();
 
-    private static final long TIMEOUT_USEC = 10000;
-
+    private static final long EOS_TIMEOUT_MS = 1000;
 
     protected final WeakReference<MediaMuxerWrapper> weakMuxer;
     protected final MediaEncoderListener listener;
+    // 이 인코더의 트랙만 기록하는 대상, 다른 인코더와 상관없이 시작 / 종료
+    private final SampleSink sink;
 
     protected final Object sync = new Object();
-    private MediaCodec.BufferInfo bufferInfo;
-
-    protected MediaCodec mediaCodec;
-
-    protected int trackIndex;
-    protected boolean isCapturing;
-    protected boolean muxerStarted;
-
-    protected boolean isEOS;
+    protected final MediaClock clock;
+    private final MediaClock.Track clockTrack;
 
     private int requestDrain = 0;
     protected volatile boolean requestPause;
     protected volatile boolean requestStop;
-    private long lastPausedTimeUs;
-    private long prevOutputPTSUs;
-    private long offsetPTUs;
+    // 스트리밍처럼 지연이 중요한 출력에서 짧은 GOP, B 프레임 없는 프로파일을 사용
+    protected boolean lowLatency;
+    // 녹화를 시작하지 않고 준비한 코덱만 해제
+    private volatile boolean requestCancel;
 
+    private Handler codecHandler;
+
+    /**
+     * MediaCodec.setCallback 으로 출력 버퍼가 준비되는 즉시 Muxer 에 전달하는 비동기 드레인 모드는
+     * 콜백을 인코더 스레드의 Handler 로 받아야 하므로 API 23 이상에서만 사용하고, 그 이하는 기존 폴링 드레인을 사용
+     */
     public MediaEncoder(@NonNull MediaMuxerWrapper muxer, @NonNull MediaEncoderListener listener) {
+        super(MediaCodecBackend.isAsyncSupported());
+
         this.weakMuxer = new WeakReference<>(muxer);
         this.listener = listener;
+        this.clock = muxer.getClock();
+        this.clockTrack = clock.newTrack();
 
-        muxer.addEncoder(this);
+        this.sink = muxer.addEncoder(this);
 
         synchronized (sync) {
-            bufferInfo = new MediaCodec.BufferInfo();
-
             new Thread(this, getClass().getSimpleName()).start();
 
             try {
@@ -66,8 +78,10 @@ public abstract class MediaEncoder implements Runnable {
                 return false;
             }
 
-            requestDrain++;
-            sync.notifyAll();
+            if (!asyncDrain) {
+                requestDrain++;
+                sync.notifyAll();
+            }
         }
 
         return true;
@@ -75,6 +89,78 @@ public abstract class MediaEncoder implements Runnable {
 
     protected abstract void prepare() throws IOException;
 
+    /**
+     * 키 프레임 간격을 줄이고 B 프레임이 없는 Baseline 프로파일로 인코딩, 파일 크기보다 지연 시간이 중요한 스트리밍용
+     * prepare 전에 호출해야 함
+     */
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+    }
+
+    /**
+     * 다음 프레임을 키 프레임으로 인코딩하도록 요청, 받는 쪽이 프레임을 잃어서 다음 키 프레임을 기다리는 경우에 사용
+     */
+    public void requestKeyFrame() {
+        final EncoderBackend backend = codec;
+
+        if (backend != null && isCapturing && !requestStop) {
+            backend.requestSyncFrame();
+        }
+    }
+
+    /**
+     * 영상 포맷에 저지연 설정을 적용, KEY_PRIORITY 와 KEY_LEVEL 은 API 23 부터 적용됨
+     */
+    protected static void applyLowLatency(MediaFormat format, CodecCapabilityCache.Entry codecInfo) {
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+
+        // 실시간 우선순위
+        format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+
+        final int[] profiles = codecInfo.getProfiles();
+        final int[] levels = codecInfo.getLevels();
+        int level = 0;
+
+        for (int i = 0; i < profiles.length; i++) {
+            if (profiles[i] == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
+                level = Math.max(level, levels[i]);
+            }
+        }
+
+        // Baseline 은 B 프레임이 없으므로 인코더가 프레임 순서를 바꾸느라 지연되지 않음
+        if (level > 0) {
+            format.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline);
+            format.setInteger(MediaFormat.KEY_LEVEL, level);
+        }
+    }
+
+    /**
+     * MediaCodec 기반 EncoderBackend 를 생성, 비동기 드레인 모드면 인코더 스레드에서 콜백을 받도록 설정
+     * <br/>
+     * MediaCodec 의 제약으로 configure 전에 콜백을 등록해야 하므로 생성 직후에 등록함
+     */
+    protected MediaCodecBackend createMediaCodecBackend(String mime) throws IOException {
+        return createMediaCodecBackend(mime, null);
+    }
+
+    /**
+     * @param codecName 사용할 인코더 이름, null 이면 mime 의 기본 인코더
+     */
+    protected MediaCodecBackend createMediaCodecBackend(String mime, @Nullable String codecName) throws IOException {
+        final MediaCodecBackend backend = codecName != null ? MediaCodecBackend.createByCodecName(codecName, codecHandler)
+                                                            : new MediaCodecBackend(mime, codecHandler);
+
+        if (asyncDrain) {
+            backend.setCallback(codecCallback);
+        }
+
+        return backend;
+    }
+
     protected void startRecording() {
         Log.d(TAG, "startRecording");
 
@@ -97,6 +183,31 @@ public abstract class MediaEncoder implements Runnable {
             requestStop = true;
             sync.notifyAll();
         }
+
+        if (asyncDrain) {
+            codecHandler.post(endOfStreamTask);
+        }
+    }
+
+    /**
+     * prepare 만 하고 녹화를 시작하지 않은 경우 EOS 없이 코덱과 인코더 스레드를 해제
+     */
+    protected void cancel() {
+        Log.d(TAG, "cancel");
+
+        synchronized (sync) {
+            if (requestStop) {
+                return;
+            }
+
+            requestCancel = true;
+            requestStop = true;
+            sync.notifyAll();
+        }
+
+        if (asyncDrain) {
+            codecHandler.post(cancelTask);
+        }
     }
 
     public void pauseRecording() {
@@ -108,7 +219,6 @@ public abstract class MediaEncoder implements Runnable {
             }
 
             requestPause = true;
-            lastPausedTimeUs = System.nanoTime() / 1000;
             sync.notifyAll();
         }
     }
@@ -121,44 +231,76 @@ public abstract class MediaEncoder implements Runnable {
                 return;
             }
 
-            offsetPTUs = System.nanoTime() / 1000 - lastPausedTimeUs;
             requestPause = false;
             sync.notifyAll();
         }
     }
 
+    /**
+     * @return 인코더가 밀려서 버린 프레임 수
+     */
+    public long getDroppedFrameCount() {
+        return flowController.getDroppedFrames();
+    }
+
+    /**
+     * @return 최근 1초 동안 초당 버린 프레임 수
+     */
+    public float getDropsPerSecond() {
+        return flowController.getDropsPerSecond();
+    }
+
     protected void release() {
-        Log.d(TAG, "release");
+        Log.d(TAG, "release dropped frames : " + flowController.getDroppedFrames());
 
         listener.onStopped(this);
 
         isCapturing = false;
 
-        if (mediaCodec != null) {
-            mediaCodec.stop();
-            mediaCodec.release();
-            mediaCodec = null;
-        }
-
-        if (muxerStarted) {
-            final MediaMuxerWrapper muxer = weakMuxer != null ? weakMuxer.get() : null;
-
-            if (muxer != null) {
-                muxer.stop();
-            }
+        if (codec != null) {
+            codec.stop();
+            codec.release();
+            codec = null;
         }
 
-        bufferInfo = null;
+        // 포맷이 나오기 전에 끝나면 트랙 등록을 취소해서 다른 인코더의 시작을 붙잡지 않음
+        sink.stop();
     }
 
     @Override
     public void run() {
+        if (asyncDrain) {
+            Looper.prepare();
+        }
+
         synchronized (sync) {
             requestStop = false;
             requestDrain = 0;
+
+            if (asyncDrain) {
+                codecHandler = new Handler();
+            }
+
             sync.notify();
         }
 
+        if (asyncDrain) {
+            // 드레인은 코덱 콜백에서 처리, EOS 를 받으면 Looper 종료
+            Looper.loop();
+        }
+        else {
+            drainLoop();
+        }
+
+        Log.d(TAG, "run Encoder Thread Exting");
+
+        synchronized (sync) {
+            requestStop = true;
+            isCapturing = false;
+        }
+    }
+
+    private void drainLoop() {
         boolean localRequestStop;
         boolean localRequestDrain;
 
@@ -172,6 +314,12 @@ public abstract class MediaEncoder implements Runnable {
                 }
             }
 
+            if (localRequestStop && requestCancel) {
+                release();
+
+                break;
+            }
+
             if (localRequestStop) {
                 drain();
                 signalEndOfInputStream();
@@ -195,158 +343,73 @@ public abstract class MediaEncoder implements Runnable {
                 }
             }
         }
-
-        Log.d(TAG, "run Encoder Thread Exting");
-
-        synchronized (sync) {
-            requestStop = true;
-            isCapturing = false;
-        }
     }
 
+    @Override
     protected void signalEndOfInputStream() {
         Log.d(TAG, "signalEndOfInputStream");
 
-        encode(null, 0, getPTSUs());
+        super.signalEndOfInputStream();
     }
 
-    @SuppressWarnings("deprecation")
-    protected void drain() {
-        if (mediaCodec == null) {
-            return;
-        }
-
-        ByteBuffer[] encoderOutputBuffers = mediaCodec.getOutputBuffers();
-        int encoderStatus, count = 0;
-
-        final MediaMuxerWrapper muxer = weakMuxer.get();
-        if (muxer == null) {
-            Log.d(TAG, "drain muxer is unexpectedly null");
-            return;
-        }
-
-        LOOP:
-        while (isCapturing) {
-            encoderStatus = mediaCodec.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
-
-            switch (encoderStatus) {
-                case MediaCodec.INFO_TRY_AGAIN_LATER:
-                    if (!isEOS) {
-                        if (++count > 5) {
-                            break LOOP;
-                        }
-                    }
-                    break;
-                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                    Log.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
-                    encoderOutputBuffers = mediaCodec.getOutputBuffers();
-                    break;
-                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                    Log.d(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
-
-                    if (muxerStarted) {
-                        throw new RuntimeException("format changed twice");
-                    }
-
-                    final MediaFormat format = mediaCodec.getOutputFormat();
-                    trackIndex = muxer.addTrack(format);
-                    muxerStarted = true;
-
-                    if (!muxer.start()) {
-                        synchronized (muxer) {
-                            while (!muxer.isStarted()) {
-                                try {
-                                    muxer.wait(100);
-                                }
-                                catch (InterruptedException e) {
-                                    break LOOP;
-                                }
-                            }
-                        }
-                    }
-                    break;
-                default:
-                    final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                    if (encodedData == null) {
-                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-                    }
-
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        Log.d(TAG, "BUFFER_FLAG_CODEC_CONFIG");
-                        bufferInfo.size = 0;
-                    }
-
-                    if (bufferInfo.size != 0) {
-                        count = 0;
-
-                        if (!muxerStarted) {
-                            throw new RuntimeException("drain muxer hasn't started");
-                        }
-
-                        bufferInfo.presentationTimeUs = getPTSUs();
-                        muxer.writeData(trackIndex, encodedData, bufferInfo);
-                        prevOutputPTSUs = bufferInfo.presentationTimeUs;
-                    }
-
-                    mediaCodec.releaseOutputBuffer(encoderStatus, false);
-
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        isCapturing = false;
-                        break;
-                    }
-            }
-        }
+    @Override
+    protected SampleSink getSink() {
+        return sink;
     }
 
-    @SuppressWarnings("deprecation")
-    protected void encode(final ByteBuffer buffer, int length, long time) {
-        if (!isCapturing) {
-            return;
-        }
-
-        final ByteBuffer[] inputBuffers = mediaCodec.getInputBuffers();
-
-        while (isCapturing) {
-            final int inputBufferIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
-
-            if (inputBufferIndex > 0) {
-                final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-                inputBuffer.clear();
+    @Override
+    protected void onAsyncFinished() {
+        finishAsync();
+    }
 
-                if (buffer != null) {
-                    // 데이터 저장
-                    inputBuffer.put(buffer);
-                }
+    @Override
+    protected void onCodecError(Exception e) {
+        Log.e(TAG, "onCodecError", e);
+        super.onCodecError(e);
+    }
 
-                if (length <= 0) {
-                    isEOS = true;
-                    Log.d(TAG, "encode BUFFER_FLAG_END_OF_STREAM");
+    /**
+     * EOS 를 받거나 EOS_TIMEOUT_MS 가 지나면 코덱을 해제하고 인코더 스레드의 Looper 를 종료
+     */
+    private void finishAsync() {
+        codecHandler.removeCallbacks(releaseTask);
+        release();
+        Looper.myLooper().quit();
+    }
 
-                    mediaCodec.queueInputBuffer(inputBufferIndex, 0, 0, time, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                }
-                else {
-                    mediaCodec.queueInputBuffer(inputBufferIndex, 0, length, time, 0);
-                }
-                break;
+    private final Runnable endOfStreamTask = new Runnable() {
+        @Override
+        public void run() {
+            if (codec == null) {
+                return;
             }
-            else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
 
-            }
+            signalEndOfInputStream();
+            codecHandler.postDelayed(releaseTask, EOS_TIMEOUT_MS);
         }
-    }
-
-    protected long getPTSUs() {
-        long result;
+    };
 
-        synchronized (sync) {
-            result = System.nanoTime() / 1000L - offsetPTUs;
+    private final Runnable cancelTask = new Runnable() {
+        @Override
+        public void run() {
+            finishAsync();
         }
+    };
 
-        if (result < prevOutputPTSUs) {
-            result = (prevOutputPTSUs - result) + result;
+    private final Runnable releaseTask = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "releaseTask EOS timeout");
+            finishAsync();
         }
+    };
 
-        return result;
+    /**
+     * 일시정지한 시간을 뺀 MediaMuxerWrapper 의 시계 시간, 이 인코더의 트랙 안에서 항상 증가
+     */
+    @Override
+    protected long getPTSUs() {
+        return clockTrack.nextTimeUs();
     }
 
     public interface MediaEncoderListener {
@@ -1,20 +1,31 @@
 package chuumong.io.screenrecode.media;
 
-import android.media.MediaCodec;
-import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Environment;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Locale;
 
+import chuumong.io.mediacore.clock.MediaClock;
+import chuumong.io.mediacore.mux.ContainerWriter;
+import chuumong.io.mediacore.mux.Fmp4Writer;
+import chuumong.io.mediacore.mux.InterleavingWriter;
+import chuumong.io.mediacore.mux.QueuedContainerWriter;
+import chuumong.io.mediacore.mux.ReplayBuffer;
+import chuumong.io.mediacore.mux.SampleMuxer;
+import chuumong.io.mediacore.mux.SampleSink;
+import chuumong.io.mediacore.mux.SegmentingWriter;
+import chuumong.io.mediacore.mux.ThroughputMonitor;
+import chuumong.io.mediacore.mux.WriteBehindOutput;
+
 /**
  * Created by LeeJongHun on 2016-05-04.
  */
@@ -24,19 +35,36 @@ public final class MediaMuxerWrapper {
 
     private static final String DIR_NAME = "ScreenRecode";
 
+    // 파일로 기록하는 경우의 파일, 스트림으로 보내는 경우 null
     private final File outputFile;
     private final String outputFilePath;
-    private final MediaMuxer mediaMuxer;
-    private boolean isStarted;
-    private int encoderCount, startedCount;
-    private MediaScreenEncoder screenEncoder;
-    private MediaAudioEncoder audioEncoder;
+    private final MediaClock clock = new MediaClock();
+    private final QueuedContainerWriter queuedWriter;
+    private final SampleMuxer sampleMuxer;
+    // 파일 대신 최근 샘플만 메모리에 두는 경우, 아니면 null
+    private ReplayBuffer replayBuffer;
+    // 지금 기록 중인 파일, 조각으로 나누는 경우 마지막 조각, 파일로 기록하지 않으면 null
+    private volatile WriteBehindOutput storage;
+    // 저장 장치가 따라가야 할 녹화 설정의 비트레이트, 0 이면 들어오는 데이터 속도만 봄
+    private volatile int requiredBitRate;
+    // 트랙마다 하나, 영상(MediaScreenEncoder, 그 추가 출력인 MediaSurfaceEncoder)과 오디오 인코더를 수에 제한 없이 추가
+    private final List<MediaEncoder> encoders = new ArrayList<>();
 
     public MediaMuxerWrapper() throws IOException {
         this(".mp4");
     }
 
     public MediaMuxerWrapper(@Nullable String ext) throws IOException {
+        this(ext, true);
+    }
+
+    /**
+     * @param fragmented true 면 moof / mdat 조각을 계속 붙이는 Fmp4Writer 로 기록해서 녹화 중에 프로세스가 죽어도 재생 가능,
+     *                   false 면 stop 에서 moov 를 쓰는 android.media.MediaMuxer 로 기록
+     *                   <br/>
+     *                   Fmp4Writer 는 트랙마다 조각으로 모아서 기록하므로 샘플을 섞는 InterleavingWriter 는 MediaMuxer 앞에만 둠
+     */
+    public MediaMuxerWrapper(@Nullable String ext, boolean fragmented) throws IOException {
         if (TextUtils.isEmpty(ext)) {
             ext = ".mp4";
         }
@@ -50,131 +78,304 @@ public final class MediaMuxerWrapper {
             throw new RuntimeException("Out put File Error");
         }
 
-        mediaMuxer = new MediaMuxer(outputFilePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        encoderCount = startedCount = 0;
-        isStarted = false;
+        final ContainerWriter writer;
+
+        if (fragmented) {
+            storage = createStorage(outputFile);
+            writer = new Fmp4Writer(storage);
+        }
+        else {
+            writer = createInterleavingWriter(new MediaMuxerWriter(outputFilePath));
+        }
+
+        queuedWriter = createQueuedWriter(writer);
+        sampleMuxer = new SampleMuxer(queuedWriter);
+    }
+
+    /**
+     * 긴 녹화를 위해 키 프레임에서 다음 파일로 넘어가며 조각난 MP4 로 기록, 파일 이름은 시작 시각 뒤에 -001 부터 번호를 붙임
+     *
+     * @param segmentDurationUs 파일 하나의 최대 길이, 0 이면 길이로 나누지 않음
+     * @param segmentBytes      파일 하나의 최대 크기, 0 이면 크기로 나누지 않음
+     */
+    public MediaMuxerWrapper(@Nullable String ext, long segmentDurationUs, long segmentBytes) {
+        if (TextUtils.isEmpty(ext)) {
+            ext = ".mp4";
+        }
+
+        final File first = getCaptureFile(ext);
+
+        if (first == null) {
+            throw new RuntimeException("Out put File Error");
+        }
+
+        // 미리 연 파일은 SegmentingWriter 가 지우므로 cancel 에서 지울 파일은 없음
+        outputFile = null;
+        outputFilePath = first.toString();
+
+        final String baseName = first.getName().substring(0, first.getName().length() - ext.length());
+        final SegmentingWriter writer = new SegmentingWriter(new SegmentFiles(first.getParentFile(), baseName, ext), segmentDurationUs,
+                                                             segmentBytes);
+        writer.setOnSegmentListener(new SegmentingWriter.OnSegmentListener() {
+            @Override
+            public void onSegmentFinished(int segmentIndex, long durationUs, long bytes) {
+                Log.d(TAG, "onSegmentFinished " + segmentIndex + " duration : " + durationUs + "us, " + bytes + " bytes");
+            }
+
+            @Override
+            public void onSegmentError(int segmentIndex, Exception e) {
+                Log.e(TAG, "onSegmentError " + segmentIndex, e);
+            }
+        });
+
+        queuedWriter = createQueuedWriter(writer);
+        sampleMuxer = new SampleMuxer(queuedWriter);
+    }
+
+    /**
+     * 파일에 기록하지 않고 최근 샘플만 replayBuffer 에 두었다가 saveReplay 로 저장
+     */
+    public MediaMuxerWrapper(@NonNull ReplayBuffer replayBuffer) {
+        this((ContainerWriter) replayBuffer);
+        this.replayBuffer = replayBuffer;
+    }
+
+    /**
+     * 파일 대신 writer 로 기록, 소켓으로 보내는 StreamingWriter 등에 사용, 지연을 늘리지 않도록 트랙을 섞지 않고 받은 순서대로 넘김
+     */
+    public MediaMuxerWrapper(@NonNull ContainerWriter writer) {
+        outputFile = null;
+        outputFilePath = writer.toString();
+
+        queuedWriter = createQueuedWriter(writer);
+        sampleMuxer = new SampleMuxer(queuedWriter);
     }
 
-    public synchronized boolean isStarted() {
-        return isStarted;
+    /**
+     * 실제 기록은 전용 스레드에서만 하고, 인코더 스레드는 샘플을 큐에 넣고 바로 반환
+     */
+    private static QueuedContainerWriter createQueuedWriter(ContainerWriter writer) {
+        final QueuedContainerWriter queuedWriter = new QueuedContainerWriter(writer);
+        queuedWriter.setOnBackpressureListener(new QueuedContainerWriter.OnBackpressureListener() {
+            @Override
+            public void onSampleDropped(int trackIndex, int queueDepth) {
+                Log.w(TAG, "onSampleDropped trackIndex : " + trackIndex + ", queueDepth : " + queueDepth);
+            }
+        });
+
+        return queuedWriter;
     }
 
-    protected void addEncoder(MediaEncoder encoder) {
-        if (encoder instanceof MediaScreenEncoder) {
-            if (screenEncoder != null) {
-                throw new IllegalArgumentException("Screen encoder added.");
+    /**
+     * 트랙이 따로 들어오는 샘플을 타임스탬프 순서로 섞음, 녹화가 끝나면 한 트랙이 얼마나 앞서 나갔는지 기록
+     */
+    private static InterleavingWriter createInterleavingWriter(ContainerWriter writer) {
+        return new InterleavingWriter(writer) {
+            @Override
+            public void stop() {
+                super.stop();
+
+                final StringBuilder ahead = new StringBuilder();
+                for (int i = 0; i < getTrackCount(); i++) {
+                    ahead.append(i == 0 ? "" : ", ").append(getMaxAheadUs(i));
+                }
+
+                Log.d(TAG, "interleaving max ahead(us) : [" + ahead + "], forced : " + getForcedCount() + ", max buffered : "
+                        + getMaxBufferedBytes() + " bytes");
             }
+        };
+    }
 
-            screenEncoder = (MediaScreenEncoder) encoder;
+    /**
+     * 저장 장치가 따라가야 할 속도, 들어오는 데이터가 적어도 이 속도로 기록하지 못하면 느리다고 알림
+     *
+     * @param bitRate 모든 트랙의 인코더 비트레이트 합
+     */
+    public void setRequiredBitRate(int bitRate) {
+        requiredBitRate = bitRate;
+
+        final WriteBehindOutput current = storage;
+        if (current != null) {
+            current.setRequiredBitRate(bitRate);
         }
-        else if (encoder instanceof MediaAudioEncoder) {
-            if (audioEncoder != null) {
-                throw new IllegalArgumentException("Audio encoder added.");
+    }
+
+    /**
+     * 조각을 기록하는 스레드도 저장 장치를 기다리지 않도록 파일 기록은 WriteBehindOutput 의 스레드에 맡김
+     */
+    private WriteBehindOutput createStorage(File file) throws IOException {
+        final WriteBehindOutput storage = new WriteBehindOutput(file);
+        storage.setRequiredBitRate(requiredBitRate);
+        storage.setOnStorageSlowListener(new ThroughputMonitor.OnStorageSlowListener() {
+            @Override
+            public void onStorageSlow(long bytesPerSec, long requiredBytesPerSec, long maxLatencyUs, long stallUs) {
+                Log.w(TAG, "onStorageSlow " + bytesPerSec + " / " + requiredBytesPerSec + " bytes/s, max latency : " + maxLatencyUs
+                        + "us, stall : " + stallUs + "us");
             }
+        });
 
-            audioEncoder = (MediaAudioEncoder) encoder;
+        return storage;
+    }
+
+    /**
+     * 다시 보기 버퍼의 마지막 durationUs 를 새 MP4 파일로 저장, 녹화는 멈추지 않음, 파일 I/O 를 하므로 백그라운드 스레드에서 호출
+     *
+     * @return 저장한 파일, 저장할 키 프레임이 없으면 null
+     */
+    @Nullable
+    public File saveReplay(long durationUs) throws IOException {
+        if (replayBuffer == null) {
+            throw new IllegalStateException("replay buffer is not enabled");
         }
-        else {
-            throw new IllegalArgumentException("unsupported encoder");
+
+        final File file = getCaptureFile("-replay.mp4");
+
+        if (file == null) {
+            throw new IOException("Out put File Error");
         }
 
-        encoderCount = (screenEncoder != null ? 1 : 0) + (audioEncoder != null ? 1 : 0);
-    }
+        final int samples = replayBuffer.save(new Fmp4Writer(createStorage(file)), durationUs);
+        Log.d(TAG, "saveReplay " + file + " samples : " + samples);
 
-    public void prepare() throws IOException {
-        if (screenEncoder != null) {
-            screenEncoder.prepare();
+        if (samples == 0) {
+            if (!file.delete()) {
+                Log.w(TAG, "saveReplay failed to delete " + file);
+            }
+            return null;
         }
 
-        if (audioEncoder != null) {
-            audioEncoder.prepare();
+        return file;
+    }
+
+    public boolean isStarted() {
+        return sampleMuxer.isStarted();
+    }
+
+    /**
+     * 모든 인코더가 타임스탬프를 얻는 시계, 일시정지한 시간은 여기서만 누적
+     */
+    public MediaClock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return 기록 대기 중인 샘플 수
+     */
+    public int getQueueDepth() {
+        return queuedWriter.getQueueDepth();
+    }
+
+    public int getMaxQueueDepth() {
+        return queuedWriter.getMaxQueueDepth();
+    }
+
+    /**
+     * @return 큐가 가득 차서 버린 샘플 수
+     */
+    public long getDroppedSampleCount() {
+        return queuedWriter.getDroppedCount();
+    }
+
+    /**
+     * 인코더의 트랙을 등록, 등록한 모든 트랙의 포맷이 나와야 기록을 시작하므로 녹화를 시작하기 전에만 추가 가능
+     *
+     * @return 이 인코더가 출력을 기록하는 대상
+     */
+    protected synchronized SampleSink addEncoder(MediaEncoder encoder) {
+        final SampleSink sink = sampleMuxer.registerTrack();
+        encoders.add(encoder);
+        return sink;
+    }
+
+    private synchronized MediaEncoder[] getEncoders() {
+        return encoders.toArray(new MediaEncoder[encoders.size()]);
+    }
+
+    public void prepare() throws IOException {
+        for (MediaEncoder encoder : getEncoders()) {
+            encoder.prepare();
         }
     }
 
     public void startRecording() {
-        if (screenEncoder != null) {
-            screenEncoder.startRecording();
+        for (MediaEncoder encoder : getEncoders()) {
+            encoder.startRecording();
         }
+    }
 
-        if (audioEncoder != null) {
-            audioEncoder.startRecording();
+    public void stopRecording() {
+        for (MediaEncoder encoder : getEncoders()) {
+            encoder.stopRecording();
         }
     }
 
-    public void stopRecording() {
-        if (screenEncoder != null) {
-            screenEncoder.stopRecording();
+    /**
+     * prepare 만 하고 녹화를 시작하지 않은 경우 인코더를 해제하고 미리 만든 파일을 삭제
+     */
+    public void cancel() {
+        for (MediaEncoder encoder : getEncoders()) {
+            encoder.cancel();
         }
 
-        if (audioEncoder != null) {
-            audioEncoder.stopRecording();
+        queuedWriter.release();
+
+        if (outputFile != null && !outputFile.delete()) {
+            Log.w(TAG, "cancel failed to delete " + outputFilePath);
         }
     }
 
     public synchronized void pauseRecording() {
-        if (screenEncoder != null) {
-            screenEncoder.pauseRecording();
+        if (!clock.pause()) {
+            return;
         }
 
-        if (audioEncoder != null) {
-            audioEncoder.pauseRecording();
+        for (MediaEncoder encoder : getEncoders()) {
+            encoder.pauseRecording();
         }
     }
 
     public synchronized void resumeRecording() {
-        if (screenEncoder != null) {
-            screenEncoder.resumeRecording();
+        if (!clock.resume()) {
+            return;
         }
 
-        if (audioEncoder != null) {
-            audioEncoder.resumeRecording();
+        for (MediaEncoder encoder : getEncoders()) {
+            encoder.resumeRecording();
         }
     }
 
-    protected synchronized boolean start() {
-        startedCount++;
-        Log.d(TAG, "start startedCount : " + startedCount);
+    /**
+     * 시작 시각-001.mp4, 시작 시각-002.mp4 ... 순서로 조각난 MP4 파일을 만듦
+     */
+    private final class SegmentFiles implements SegmentingWriter.SegmentFactory {
 
-        if (encoderCount > 0 && startedCount == encoderCount) {
-            mediaMuxer.start();
-            isStarted = true;
-            notifyAll();
+        private final File dir;
+        private final String baseName;
+        private final String ext;
 
-            Log.d(TAG, "MediaMuxer start");
+        SegmentFiles(File dir, String baseName, String ext) {
+            this.dir = dir;
+            this.baseName = baseName;
+            this.ext = ext;
         }
 
-        return isStarted;
-    }
-
-    protected synchronized void stop() {
-        Log.d(TAG, "stop startedCount : " + startedCount);
-
-        startedCount--;
-
-        if (encoderCount > 0 && startedCount <= 0) {
-            mediaMuxer.stop();
-            mediaMuxer.release();
-            isStarted = false;
-
-            Log.d(TAG, "MediaMuxer Stop");
+        private File getFile(int segmentIndex) {
+            return new File(dir, String.format(Locale.US, "%s-%03d%s", baseName, segmentIndex + 1, ext));
         }
-    }
 
-    protected synchronized int addTrack(MediaFormat format) {
-        if (isStarted) {
-            throw new IllegalStateException("muxer already started");
+        @Override
+        public ContainerWriter create(int segmentIndex) throws IOException {
+            storage = createStorage(getFile(segmentIndex));
+            return new Fmp4Writer(storage);
         }
 
-        final int trackIndex = mediaMuxer.addTrack(format);
+        @Override
+        public void discard(int segmentIndex, ContainerWriter writer) {
+            writer.release();
 
-        Log.d(TAG, "addTrack encoderCount : " + encoderCount + ", trackIndex : " + trackIndex + ", format : " + format);
-
-        return trackIndex;
-    }
-
-    protected void writeData(int trackIndex, ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
-        if (startedCount > 0) {
-            mediaMuxer.writeSampleData(trackIndex, byteBuffer, bufferInfo);
+            if (!getFile(segmentIndex).delete()) {
+                Log.w(TAG, "discard failed to delete " + getFile(segmentIndex));
+            }
         }
     }
 
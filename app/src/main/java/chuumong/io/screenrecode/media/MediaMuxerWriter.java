@@ -0,0 +1,69 @@
+package chuumong.io.screenrecode.media;
+
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+import chuumong.io.mediacore.mux.ContainerWriter;
+
+/**
+ * android.media.MediaMuxer 로 MP4 파일을 기록하는 ContainerWriter
+ */
+public final class MediaMuxerWriter implements ContainerWriter {
+
+    private static final String TAG = MediaMuxerWriter.class.getSimpleName();
+
+    private final MediaMuxer mediaMuxer;
+    // QueuedContainerWriter 의 기록 스레드에서만 호출되므로 트랙별로 재사용
+    private MediaCodec.BufferInfo[] bufferInfos = new MediaCodec.BufferInfo[0];
+
+    public MediaMuxerWriter(String outputFilePath) throws IOException {
+        mediaMuxer = new MediaMuxer(outputFilePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        final int trackIndex = mediaMuxer.addTrack(MediaCodecBackend.toMediaFormat(format));
+
+        if (trackIndex >= bufferInfos.length) {
+            bufferInfos = Arrays.copyOf(bufferInfos, trackIndex + 1);
+        }
+        bufferInfos[trackIndex] = new MediaCodec.BufferInfo();
+
+        Log.d(TAG, "addTrack trackIndex : " + trackIndex + ", format : " + format);
+
+        return trackIndex;
+    }
+
+    @Override
+    public void start() {
+        mediaMuxer.start();
+
+        Log.d(TAG, "MediaMuxer start");
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        final MediaCodec.BufferInfo bufferInfo = bufferInfos[trackIndex];
+        bufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        mediaMuxer.writeSampleData(trackIndex, buffer, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mediaMuxer.stop();
+
+        Log.d(TAG, "MediaMuxer Stop");
+    }
+
+    @Override
+    public void release() {
+        mediaMuxer.release();
+    }
+}
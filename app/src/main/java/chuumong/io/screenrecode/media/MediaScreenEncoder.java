@@ -1,11 +1,12 @@
 package chuumong.io.screenrecode.media;
 
+import android.graphics.PixelFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
-import android.media.MediaCodec;
+import android.media.Image;
+import android.media.ImageReader;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.opengl.EGLContext;
@@ -13,15 +14,31 @@ import android.opengl.GLES20;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import chuumong.io.glutils.EglTask;
 import chuumong.io.glutils.FullFrameRect;
 import chuumong.io.glutils.Texture2dProgram;
 import chuumong.io.glutils.WindowSurface;
+import chuumong.io.mediacore.codec.BitrateController;
+import chuumong.io.mediacore.codec.CodecCapabilityCache;
+import chuumong.io.mediacore.codec.FlowController;
+import chuumong.io.mediacore.mux.QueuedContainerWriter;
+import chuumong.io.mediacore.utils.Histogram;
+import chuumong.io.mediacore.video.CaptureSize;
+import chuumong.io.mediacore.video.FramePacer;
+import chuumong.io.mediacore.video.IdleFrameFilter;
+import chuumong.io.mediacore.video.RgbaToYuvConverter;
+import chuumong.io.mediacore.video.TextureCrop;
+import chuumong.io.mediacore.video.YuvFramePool;
 
 /**
  * Created by LeeJongHun on 2016-05-04.
@@ -31,28 +48,115 @@ public final class MediaScreenEncoder extends MediaEncoder {
     private static final String TAG = MediaScreenEncoder.class.getSimpleName();
 
     private static final String MIME_TYPE = "video/avc";
-    private static final int FRAME_RATE = 25;
+    private static final int DEFAULT_FRAME_RATE = 25;
     private static final float BPP = 0.25f;
-
-    private MediaProjection mediaProjection;
-    private final int width;
-    private final int height;
-    private final int density;
+    private static final long BITRATE_UPDATE_INTERVAL_MS = 1000;
+
+    // DrawTask 에 VirtualDisplay 를 만들고 그리기를 시작하도록 요청
+    private static final int REQUEST_START_CAPTURE = 1;
+
+    // ImageReader 경로에서 변환된 프레임 버퍼 수와 ImageReader 가 동시에 가질 수 있는 이미지 수
+    private static final int YUV_FRAME_COUNT = 3;
+    private static final int MAX_IMAGES = 2;
+    // RgbaToYuvConverter 가 읽는 RGBA_8888 의 픽셀 간격
+    private static final int RGBA_PIXEL_STRIDE = 4;
+    private static final long INPUT_POLL_INTERVAL_MS = 100;
+    // 한 프레임을 행 구간으로 나눠 동시에 변환할 최대 스레드 수
+    private static final int MAX_CONVERT_THREADS = 4;
+
+    // 권한을 받기 전에 미리 준비하는 경우 setMediaProjection 전까지 null
+    private volatile MediaProjection mediaProjection;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int sourceDensity;
+
+    // setOutputSize / setCaptureScale 로 요청한 크기, prepare 에서 코덱에 맞춰 captureSize 를 계산
+    private int requestWidth, requestHeight;
+    private float captureScale = 1f;
+    private CaptureSize captureSize;
+    // 인코더에 넘기는 크기와 VirtualDisplay 의 dpi
+    private int width;
+    private int height;
+    private int density;
+    // GL 경로에서 VirtualDisplay 와 SurfaceTexture 의 크기, 잘라내는 경우에도 화면 전체를 같은 배율로 받음
+    private int displayWidth;
+    private int displayHeight;
+
+    // prepare 전에 setCropRect 로 지정한 영역, 인코더 크기를 이 영역 기준으로 계산
+    private TextureCrop crop;
+    // 그리기 스레드가 프레임마다 읽는 잘라낼 영역과 인코더 프레임 안에 그릴 위치, 녹화 중에 통째로 바꿈
+    private volatile CropState cropState;
+
+    // 같은 텍스처를 한 번 더 그려 넣는 추가 출력, prepare 전에 addOutput 으로 등록
+    private final List<MediaSurfaceEncoder> outputs = new ArrayList<>();
 
     private boolean requestDraw;
 
+    private int frameRate = DEFAULT_FRAME_RATE;
+    // GL 경로에서 프레임을 내보낼 시각을 정하고 실제 프레임 레이트 / 간격 통계를 기록
+    private FramePacer framePacer;
+
     private final Handler handler;
 
     private Surface surface;
 
-    public MediaScreenEncoder(@NonNull MediaMuxerWrapper muxer, @NonNull MediaEncoderListener listener, MediaProjection projection,
+    // true 면 필터, 오버레이, 크기 변경 등을 위해 GL 로 한 번 더 그림
+    private boolean glPassEnabled;
+    // GL 을 거치지 않고 VirtualDisplay 가 인코더 입력 Surface 에 직접 그리는 경우
+    private boolean passthrough;
+    // GL 없이 VirtualDisplay 가 Surface 에 직접 그리는 경우(passthrough, ImageReader)의 VirtualDisplay 와 그 Surface
+    private VirtualDisplay captureDisplay;
+    private Surface displaySurface;
+
+    // GL 없이 ImageReader 로 받은 화면을 YUV 로 변환해서 ByteBuffer 로 인코딩
+    private boolean imageReaderEnabled;
+    private boolean imageReaderInput;
+    private ImageReader imageReader;
+    private HandlerThread imageThread;
+    private RgbaToYuvConverter yuvConverter;
+    private ForkJoinPool convertPool;
+    private YuvFramePool yuvFramePool;
+    private Thread inputThread;
+    private long lastInputTimeUs = Long.MIN_VALUE;
+    // 지원하지 않는 픽셀 간격을 한 번만 알림
+    private boolean pixelStrideWarned;
+
+    // GL 경로에서 EGL 컨텍스트를 가진 그리기 스레드, 권한을 받기 전에 미리 시작
+    private DrawTask captureTask;
+    // VirtualDisplay 를 만들어 화면 캡처를 시작했으면 true
+    private boolean captureStarted;
+
+    // 화면이 바뀔 때만 프레임을 인코딩하는 가변 프레임 레이트 모드
+    private boolean variableFrameRate;
+    private long keepAliveIntervalMs = IdleFrameFilter.DEFAULT_KEEP_ALIVE_INTERVAL_MS;
+    private float minFrameRate = IdleFrameFilter.DEFAULT_MIN_FRAME_RATE;
+    private IdleFrameFilter idleFrameFilter;
+
+    // 화면 변화량과 기록 상태에 따라 실행 중에 비트레이트를 조정
+    private boolean adaptiveBitrate;
+    private int minBitRate, maxBitRate;
+    private BitrateController bitrateController;
+    private final BitrateController.Sample bitrateSample = new BitrateController.Sample();
+    // GL 경로에서 SurfaceTexture 로 들어온 새 프레임 수
+    private volatile long sourceFrameCount;
+    private long lastSourceFrameCount;
+    private long lastBitrateUpdateNs;
+
+    /**
+     * @param projection null 이면 코덱과 그리기 스레드만 준비하고, setMediaProjection 에서 화면 캡처를 시작
+     * @param width      화면 크기, 출력 크기를 따로 지정하지 않으면 이 크기로 녹화
+     */
+    public MediaScreenEncoder(@NonNull MediaMuxerWrapper muxer, @NonNull MediaEncoderListener listener, @Nullable MediaProjection projection,
                               int width, int height, int density) {
         super(muxer, listener);
 
         this.mediaProjection = projection;
-        this.width = width;
-        this.height = height;
-        this.density = density;
+        this.sourceWidth = this.width = width;
+        this.sourceHeight = this.height = height;
+        this.sourceDensity = this.density = density;
+
+        // 화면은 밀리더라도 가장 최근 프레임만 인코딩하면 되므로 오래된 프레임을 버림
+        flowController.configure(FlowController.Policy.DROP_OLDEST, FlowController.DEFAULT_MAX_IN_FLIGHT, FlowController.DEFAULT_BLOCK_TIMEOUT_US);
 
         HandlerThread thread = new HandlerThread(TAG);
         thread.start();
@@ -64,147 +168,719 @@ public final class MediaScreenEncoder extends MediaEncoder {
     protected void prepare() throws IOException {
         Log.d(TAG, "prepare");
 
+        imageReaderInput = imageReaderEnabled && !isGlPassRequired();
+        passthrough = !isGlPassRequired() && !imageReaderInput;
+        final boolean glPath = !passthrough && !imageReaderInput;
+
+        if (variableFrameRate) {
+            idleFrameFilter = new IdleFrameFilter(frameRate, keepAliveIntervalMs, minFrameRate);
+        }
+
+        if (glPath) {
+            framePacer = new FramePacer(frameRate);
+        }
+
         surface = prepareSurfaceEncoder();
-        mediaCodec.start();
+        codec.start();
         isCapturing = true;
 
-        new Thread(new DrawTask(null, 0), "ScreenCaptureThread").start();
+        if (glPath) {
+            captureTask = new DrawTask(null, 0);
+            new Thread(captureTask, "ScreenCaptureThread").start();
+        }
+        else if (imageReaderInput) {
+            prepareImageReader();
+        }
+
+        if (mediaProjection != null) {
+            startCapture();
+        }
 
         Log.d(TAG, "prepare finishing");
 
         listener.onPrepared(this);
     }
 
-    @Override
-    protected void release() {
-        handler.getLooper().quit();
-        super.release();
-    }
+    /**
+     * 권한 확인 창이 떠 있는 동안 prepare 로 코덱과 스레드를 미리 준비해 둔 경우, 권한을 받은 뒤 호출해서 화면 캡처를 시작
+     */
+    public void setMediaProjection(@NonNull MediaProjection projection) {
+        mediaProjection = projection;
 
-    @Override
-    protected void stopRecording() {
-        Log.d(TAG, "stopRecording");
+        if (codec != null) {
+            startCapture();
+        }
+    }
 
+    private void startCapture() {
         synchronized (sync) {
-            isCapturing = false;
-            sync.notifyAll();
+            if (captureStarted || requestStop) {
+                return;
+            }
+
+            captureStarted = true;
         }
 
-        super.stopRecording();
+        if (adaptiveBitrate) {
+            startAdaptiveBitrate();
+        }
+
+        if (passthrough) {
+            startPassthrough();
+        }
+        else if (imageReaderInput) {
+            startImageReaderCapture();
+        }
+        else {
+            captureTask.offer(REQUEST_START_CAPTURE, 0, null);
+        }
     }
 
-    @Override
-    protected void signalEndOfInputStream() {
-        Log.d(TAG, "signalEndOfInputStream");
+    /**
+     * 녹화할 프레임 레이트, prepare 전에 호출해야 함
+     */
+    public void setFrameRate(int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("frameRate must be positive");
+        }
 
-        mediaCodec.signalEndOfInputStream();
-        isEOS = true;
+        this.frameRate = frameRate;
     }
 
-    private Surface prepareSurfaceEncoder() throws IOException {
-        trackIndex = -1;
-        muxerStarted = isEOS = false;
+    /**
+     * 녹화할 크기, 화면과 비율이 다르면 비율을 유지하고 남는 부분은 검게 채움, prepare 전에 호출해야 함
+     * <br/>
+     * 화면과 방향이 다르면 가로 / 세로를 바꿔서 적용하고, 코덱의 최대 크기와 정렬 단위에 맞춰 줄어들 수 있음
+     *
+     * @param width 0 이하면 setCaptureScale 로 정한 크기
+     */
+    public void setOutputSize(int width, int height) {
+        this.requestWidth = width;
+        this.requestHeight = height;
+    }
 
-        final MediaCodecInfo codecInfo = selectScreenCodec();
-        if (codecInfo == null) {
-            throw new RuntimeException("Not Select Screen Codec");
+    /**
+     * 화면 크기에 곱할 배율, 인코딩 비용과 파일 크기가 화면이 아니라 줄인 크기를 따름, prepare 전에 호출해야 함
+     */
+    public void setCaptureScale(float scale) {
+        if (scale <= 0 || scale > 1) {
+            throw new IllegalArgumentException("scale must be in (0, 1]");
         }
 
-        Log.d(TAG, "prepareSurfaceEncoder Select Codec : " + codecInfo.getName());
+        this.captureScale = scale;
+    }
 
-        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+    /**
+     * 화면의 일부 영역만 녹화, 좌표는 화면 왼쪽 위 기준 픽셀이고 GL 경로를 사용
+     * <br/>
+     * prepare 전에 호출하면 인코더 크기를 이 영역 크기로 정하고, 녹화 중에 호출하면 코덱을 다시 만들지 않고
+     * 새 영역을 정해진 인코더 크기에 비율을 유지해서 맞춤
+     * <br/>
+     * MediaProjection 은 창 하나만 캡처할 수 없으므로, 특정 창을 녹화하려면 그 창의 화면상 위치를 넘김
+     *
+     * @return 녹화 중인데 GL 경로가 아니어서 적용할 수 없으면 false
+     */
+    public boolean setCropRect(int x, int y, int width, int height) {
+        final TextureCrop newCrop = new TextureCrop(sourceWidth, sourceHeight, x, y, width, height);
+
+        if (codec == null) {
+            crop = newCrop.isFullFrame() ? null : newCrop;
+            return true;
+        }
 
-        Log.d(TAG, "prepareSurfaceEncoder format : " + format);
+        if (captureTask == null) {
+            Log.w(TAG, "setCropRect requires the GL path, set it before prepare");
+            return false;
+        }
 
-        mediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        cropState = new CropState(newCrop, CaptureSize.fit(this.width, this.height, newCrop.width, newCrop.height, true));
+        Log.d(TAG, "setCropRect " + newCrop + " -> " + cropState.viewport);
+        return true;
+    }
+
+    /**
+     * 같은 화면을 다른 크기 / 비트레이트로 다른 Muxer 에 기록하는 출력을 추가, GL 경로를 사용하며 prepare 전에 호출해야 함
+     * <br/>
+     * 출력마다 MediaProjection 과 그리기 스레드를 따로 만들지 않고, 그리기 스레드가 같은 EGL 컨텍스트에서 프레임마다 한 번씩 더 그림
+     * <br/>
+     * 출력의 Muxer 는 이 인코더의 Muxer 와 같이 시작 / 정지 / 일시정지해야 함
+     */
+    public void addOutput(@NonNull MediaSurfaceEncoder output) {
+        if (codec != null) {
+            throw new IllegalStateException("addOutput must be called before prepare");
+        }
 
-        return mediaCodec.createInputSurface();
+        outputs.add(output);
     }
 
-    private int calcBitRate() {
-        final int bitrate = (int) (BPP * FRAME_RATE * width * height);
-        Log.d(TAG, String.format("bitrate : %5.2fMbps", bitrate / 1024f / 1024f));
-        return bitrate;
+    /**
+     * @return 인코더에 넘기는 크기, prepare 전에는 화면 크기
+     */
+    public int getOutputWidth() {
+        return width;
+    }
+
+    public int getOutputHeight() {
+        return height;
+    }
+
+    /**
+     * GL 없이 ImageReader 로 캡처해서 CPU 에서 YUV 로 변환한 뒤 ByteBuffer 로 인코딩, prepare 전에 호출해야 함
+     * <br/>
+     * EGL 드라이버에 문제가 있는 기기나 프레임을 CPU 에서 분석 / 가려야 하는 경우에 사용, GL 경로가 필요한 기능이 켜져 있으면 무시
+     */
+    public void setImageReaderEnabled(boolean enabled) {
+        imageReaderEnabled = enabled;
     }
 
-    @SuppressWarnings("deprecation")
-    private static MediaCodecInfo selectScreenCodec() {
-        Log.d(TAG, "selectScreenCodec");
+    /**
+     * GL 을 거쳐서 그릴지 지정, prepare 전에 호출해야 함
+     */
+    public void setGlPassEnabled(boolean enabled) {
+        glPassEnabled = enabled;
+    }
 
-        final int numCodecs = MediaCodecList.getCodecCount();
+    /**
+     * 화면이 바뀌었을 때만 프레임을 인코딩, prepare 전에 호출해야 함
+     * <br/>
+     * 직접 캡처하는 경우 인코더의 프레임 반복으로 최소 프레임 레이트만 지키고, 건너뛴 프레임 수 같은 통계는 GL 경로에서만 셈
+     *
+     * @param keepAliveIntervalMs 화면이 바뀌지 않아도 이전 프레임을 다시 인코딩하는 간격
+     * @param minFrameRate        화면이 바뀌지 않을 때 보장할 최소 프레임 레이트
+     */
+    public void setVariableFrameRate(boolean enabled, long keepAliveIntervalMs, float minFrameRate) {
+        this.variableFrameRate = enabled;
+        this.keepAliveIntervalMs = keepAliveIntervalMs;
+        this.minFrameRate = minFrameRate;
+    }
 
-        for (int i = 0; i < numCodecs; i++) {
-            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+    /**
+     * 실행 중에 비트레이트를 조정, prepare 전에 호출해야 함
+     *
+     * @param minBitRate 0 이하면 최대 비트레이트의 1/8
+     * @param maxBitRate 0 이하면 화면 크기로 계산한 비트레이트
+     */
+    public void setAdaptiveBitrate(boolean enabled, int minBitRate, int maxBitRate) {
+        this.adaptiveBitrate = enabled;
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+    }
+
+    /**
+     * @return 현재 설정된 비트레이트, 조정하지 않으면 0
+     */
+    public int getCurrentBitRate() {
+        return bitrateController != null ? bitrateController.getBitRate() : 0;
+    }
 
-            if (!codecInfo.isEncoder()) {
-                continue;
+    private void startAdaptiveBitrate() {
+        final int max = maxBitRate > 0 ? maxBitRate : calcBitRate();
+        final int min = minBitRate > 0 ? Math.min(minBitRate, max) : max / 8;
+
+        bitrateController = new BitrateController(min, max, max, QueuedContainerWriter.DEFAULT_CAPACITY / 2);
+        lastBitrateUpdateNs = System.nanoTime();
+        handler.postDelayed(bitrateTask, BITRATE_UPDATE_INTERVAL_MS);
+    }
+
+    private final Runnable bitrateTask = new Runnable() {
+        @Override
+        public void run() {
+            final MediaMuxerWrapper muxer = weakMuxer.get();
+
+            if (codec == null || !isCapturing || requestStop || muxer == null) {
+                return;
             }
 
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(MIME_TYPE)) {
-                    final int format = selectColorFormat(codecInfo);
+            final long now = System.nanoTime();
+            final float activity;
+
+            if (passthrough || requestPause) {
+                // 화면 변화량을 알 수 없으면 인코더가 쓰는 비트레이트로 판단
+                activity = -1;
+            }
+            else {
+                final long frames = sourceFrameCount;
+                activity = (frames - lastSourceFrameCount) / (frameRate * ((now - lastBitrateUpdateNs) / 1e9f));
+                lastSourceFrameCount = frames;
+            }
+            lastBitrateUpdateNs = now;
+
+            final int current = bitrateController.getBitRate();
+            final int next = bitrateController.update(bitrateSample.set(now, getEncodedBytes(), muxer.getQueueDepth(), activity));
+
+            if (next != current) {
+                Log.d(TAG, String.format("bitrate : %5.2fMbps -> %5.2fMbps", current / 1024f / 1024f, next / 1024f / 1024f));
+                codec.setVideoBitrate(next);
+            }
+
+            handler.postDelayed(this, BITRATE_UPDATE_INTERVAL_MS);
+        }
+    };
+
+    public int getTargetFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * @return GL 경로에서 최근 1초 동안 실제로 인코더에 넘긴 프레임 레이트, 직접 캡처하는 경우 0
+     */
+    public float getActualFrameRate() {
+        return framePacer != null ? framePacer.getActualFrameRate() : 0;
+    }
+
+    /**
+     * @return GL 경로에서 인코더에 넘긴 프레임 사이 간격(us) 히스토그램, 직접 캡처하는 경우 null
+     */
+    @Nullable
+    public Histogram getFrameIntervalHistogram() {
+        return framePacer != null ? framePacer.getIntervalHistogram() : null;
+    }
 
-                    if (format > 0) {
-                        return codecInfo;
+    /**
+     * @return GL 경로에서 프레임 간격과 목표 간격의 차이(us) 히스토그램, 직접 캡처하는 경우 null
+     */
+    @Nullable
+    public Histogram getFrameJitterHistogram() {
+        return framePacer != null ? framePacer.getJitterHistogram() : null;
+    }
+
+    /**
+     * @return 가변 프레임 레이트 모드에서 화면이 바뀌지 않아 인코딩하지 않은 프레임 수, GL 경로에서만 세고 직접 캡처하는 경우 0
+     */
+    public long getSkippedFrameCount() {
+        return idleFrameFilter != null ? idleFrameFilter.getSkippedFrames() : 0;
+    }
+
+    /**
+     * @return 화면이 바뀌지 않았지만 keep-alive 로 인코딩한 프레임 수, GL 경로에서만 세고 직접 캡처하는 경우 0
+     */
+    public long getKeepAliveFrameCount() {
+        return idleFrameFilter != null ? idleFrameFilter.getKeepAliveFrames() : 0;
+    }
+
+    /**
+     * @return 건너뛴 프레임만큼 인코더가 처리하지 않은 픽셀 수
+     */
+    public long getSavedEncodePixels() {
+        return getSkippedFrameCount() * width * height;
+    }
+
+    /**
+     * @return 화면을 GL 로 다시 그려야 하는 기능이 하나라도 켜져 있으면 true
+     */
+    private boolean isGlPassRequired() {
+        return glPassEnabled || crop != null || !outputs.isEmpty();
+    }
+
+    /**
+     * VirtualDisplay 가 인코더 입력 Surface 에 직접 그리도록 설정
+     * <br/>
+     * 프레임마다 하는 텍스처 복사와 GL 스레드가 없어지며, 폴링 드레인 모드에서는 프레임 간격마다 드레인을 요청
+     */
+    private void startPassthrough() {
+        Log.d(TAG, "startPassthrough");
+
+        createCaptureDisplay(surface);
+
+        if (!asyncDrain) {
+            handler.post(drainTickTask);
+        }
+    }
+
+    /**
+     * VirtualDisplay 를 인코더 크기로 만듦, 화면과 비율이 다르면 시스템이 비율을 유지해서 그리고 남는 부분은 검게 채움
+     */
+    private void createCaptureDisplay(Surface target) {
+        displaySurface = target;
+        captureDisplay = mediaProjection.createVirtualDisplay("Capturing Display",
+                width,
+                height,
+                density,
+                DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
+                target,
+                null,
+                null);
+    }
+
+    /**
+     * ImageReader, 변환 스레드, 인코더 입력 스레드를 준비, 화면은 startImageReaderCapture 부터 들어옴
+     */
+    private void prepareImageReader() {
+        yuvFramePool = new YuvFramePool(yuvConverter.getFrameSize(), YUV_FRAME_COUNT);
+
+        imageThread = new HandlerThread("ImageReaderThread");
+        imageThread.start();
+
+        imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, MAX_IMAGES);
+        imageReader.setOnImageAvailableListener(onImageAvailableListener, new Handler(imageThread.getLooper()));
+
+        inputThread = new Thread(inputTask, "ScreenInputThread");
+        inputThread.start();
+    }
+
+    private void startImageReaderCapture() {
+        Log.d(TAG, "startImageReaderCapture");
+
+        createCaptureDisplay(imageReader.getSurface());
+    }
+
+    /**
+     * 변환 스레드에서 가장 최근 이미지를 YUV 프레임으로 변환, 빈 프레임 버퍼가 없으면 인코더가 밀리는 중이므로 버림
+     */
+    private final ImageReader.OnImageAvailableListener onImageAvailableListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            final Image image = reader.acquireLatestImage();
+
+            if (image == null) {
+                return;
+            }
+
+            try {
+                sourceFrameCount++;
+
+                if (!isCapturing || requestStop || requestPause) {
+                    return;
+                }
+
+                final Image.Plane plane = image.getPlanes()[0];
+
+                if (plane.getPixelStride() != RGBA_PIXEL_STRIDE) {
+                    // 변환기는 픽셀마다 4 바이트인 RGBA 만 읽으므로 다른 배치의 이미지는 버림
+                    if (!pixelStrideWarned) {
+                        Log.w(TAG, "onImageAvailable unsupported pixel stride : " + plane.getPixelStride());
+                        pixelStrideWarned = true;
+                    }
+                    flowController.onFrameDropped();
+                    return;
+                }
+
+                final YuvFramePool.Frame frame = yuvFramePool.obtain();
+
+                if (frame == null) {
+                    flowController.onFrameDropped();
+                    return;
+                }
+
+                yuvConverter.convert(plane.getBuffer(), plane.getRowStride(), frame.data);
+
+                // 이미지가 합성된 시간, 일시정지한 시간을 빼고 트랙 안에서 항상 증가
+                long timeUs = clock.toMediaTimeNs(image.getTimestamp()) / 1000L;
+                if (timeUs <= lastInputTimeUs) {
+                    timeUs = lastInputTimeUs + 1;
+                }
+                lastInputTimeUs = timeUs;
+
+                frame.size = yuvConverter.getFrameSize();
+                frame.presentationTimeUs = timeUs;
+                yuvFramePool.submit(frame);
+            }
+            finally {
+                image.close();
+            }
+        }
+    };
+
+    /**
+     * 변환된 프레임을 순서대로 인코더에 넣음, 인코더 입력 버퍼를 기다리는 동안에도 변환 스레드는 다음 이미지를 변환
+     */
+    private final Runnable inputTask = new Runnable() {
+        @Override
+        public void run() {
+            while (!requestStop) {
+                final YuvFramePool.Frame frame;
+
+                try {
+                    frame = yuvFramePool.take(INPUT_POLL_INTERVAL_MS);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+
+                if (frame == null) {
+                    continue;
+                }
+
+                try {
+                    if (encode(frame.data, frame.size, frame.presentationTimeUs)) {
+                        frameAvailableSoon();
                     }
                 }
+                finally {
+                    yuvFramePool.recycle(frame);
+                }
             }
+
+            Log.d(TAG, "inputTask finished dropped frames : " + yuvFramePool.getDroppedFrames());
         }
+    };
+
+    @Override
+    public void pauseRecording() {
+        super.pauseRecording();
 
-        return null;
+        if (captureDisplay != null) {
+            // 일시정지 중에는 VirtualDisplay 가 그리지 않도록 Surface 를 분리
+            captureDisplay.setSurface(null);
+        }
     }
 
-    private static int selectColorFormat(MediaCodecInfo codecInfo) {
-        Log.d(TAG, "selectColorFormat");
+    @Override
+    public void resumeRecording() {
+        super.resumeRecording();
 
-        int result = 0;
+        if (captureDisplay != null) {
+            captureDisplay.setSurface(displaySurface);
+        }
 
-        final MediaCodecInfo.CodecCapabilities caps;
+        if (passthrough) {
+            // 일시정지 중에 반복한 프레임을 버렸으므로 그 프레임을 참조하지 않도록 키 프레임부터 다시 시작
+            requestKeyFrame();
+        }
+    }
 
-        try {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            caps = codecInfo.getCapabilitiesForType(MIME_TYPE);
+    @Override
+    protected void release() {
+        if (captureTask != null && !captureStarted) {
+            // 화면 캡처를 시작하지 않아 그리기 루프가 돌지 않으므로 여기서 종료
+            captureTask.releaseSelf();
         }
-        finally {
-            Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+
+        if (framePacer != null) {
+            Log.d(TAG, "release frame rate " + framePacer.getActualFrameRate() + "/" + frameRate + ", frames " + framePacer.getFrameCount()
+                       + ", duplicated " + framePacer.getDuplicatedFrameCount() + ", missed slots " + framePacer.getMissedSlotCount()
+                       + ", interval(us) " + framePacer.getIntervalHistogram() + ", jitter(us) " + framePacer.getJitterHistogram());
         }
 
-        int colorFormat;
+        if (idleFrameFilter != null) {
+            // 직접 캡처하는 경우 인코더가 프레임을 반복하므로 세지 않음
+            Log.d(TAG, "release variable frame rate " + (passthrough ? "passthrough, frames not counted" : "skipped " + getSkippedFrameCount()
+                       + ", keep-alive " + getKeepAliveFrameCount()));
+        }
 
-        for (int i = 0; i < caps.colorFormats.length; i++) {
-            colorFormat = caps.colorFormats[i];
+        handler.removeCallbacks(drainTickTask);
+        handler.removeCallbacks(bitrateTask);
+        handler.getLooper().quit();
 
-            if (isRecognizedViewoFormat(colorFormat)) {
-                if (result == 0) {
-                    result = colorFormat;
-                }
-                break;
+        if (captureDisplay != null) {
+            captureDisplay.release();
+            captureDisplay = null;
+        }
+
+        if (imageReader != null) {
+            // 변환 중인 이미지가 끝난 뒤 닫음
+            imageThread.quitSafely();
+
+            try {
+                imageThread.join();
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            imageReader.close();
+            imageReader = null;
+        }
+
+        if (convertPool != null) {
+            convertPool.shutdown();
+            convertPool = null;
+        }
+
+        if (captureTask == null && mediaProjection != null) {
+            mediaProjection.stop();
+            mediaProjection = null;
         }
 
-        return result;
+        super.release();
     }
 
-    protected static int[] recognizedFormats = new int[]{MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface};
+    /**
+     * VirtualDisplay 가 붙인 타임스탬프는 일시정지한 시간을 포함하므로 오디오와 같은 MediaClock 기준으로 변환
+     * <br/>
+     * 캡처한 시점의 일시정지 시간을 빼므로 일시정지 전에 캡처해서 재개한 뒤에 나온 프레임도 뒤로 가지 않음
+     */
+    @Override
+    protected long getOutputPTSUs(long presentationTimeUs) {
+        if (passthrough) {
+            return clock.toMediaTimeNs(presentationTimeUs * 1000L) / 1000L;
+        }
 
-    private static boolean isRecognizedViewoFormat(int colorFormat) {
-        Log.d(TAG, "isRecognizedViewoFormat colorFormat : " + colorFormat);
+        return presentationTimeUs;
+    }
 
-        final int n = recognizedFormats != null ? recognizedFormats.length : 0;
+    /**
+     * Surface 를 분리해도 인코더가 일시정지 구간에 이전 프레임을 반복할 수 있으므로 그 프레임은 기록하지 않음
+     */
+    @Override
+    protected boolean isOutputDiscarded(long presentationTimeUs) {
+        return passthrough && clock.isPausedAt(presentationTimeUs * 1000L);
+    }
 
-        for (int i = 0; i < n; i++) {
-            if (recognizedFormats[i] == colorFormat) {
-                return true;
+    private final Runnable drainTickTask = new Runnable() {
+        @Override
+        public void run() {
+            if (frameAvailableSoon()) {
+                handler.postDelayed(this, 1000 / frameRate);
             }
         }
+    };
+
+    @Override
+    protected void signalEndOfInputStream() {
+        Log.d(TAG, "signalEndOfInputStream");
+
+        if (imageReaderInput) {
+            // 입력 스레드가 끝난 뒤 ByteBuffer 입력으로 EOS 를 넣음
+            joinInputThread();
+            super.signalEndOfInputStream();
+            return;
+        }
+
+        codec.signalEndOfInputStream();
+        isEOS = true;
+    }
+
+    private void joinInputThread() {
+        if (inputThread == null) {
+            return;
+        }
+
+        try {
+            inputThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        inputThread = null;
+    }
+
+    /**
+     * @return 인코더 입력 Surface, ImageReader 경로는 ByteBuffer 로 입력하므로 null
+     */
+    private Surface prepareSurfaceEncoder() throws IOException {
+        trackIndex = -1;
+        muxerStarted = isEOS = false;
+
+        final CodecCapabilityCache.Entry codecInfo = CodecCapabilityStore.getEncoder(MIME_TYPE);
+        if (codecInfo == null) {
+            throw new RuntimeException("Not Select Screen Codec");
+        }
+
+        Log.d(TAG, "prepareSurfaceEncoder Select Codec : " + codecInfo);
+
+        // 잘라내는 경우 잘라낸 영역이 인코더 크기의 기준
+        captureSize = CaptureSize.compute(crop != null ? crop.width : sourceWidth, crop != null ? crop.height : sourceHeight,
+                requestWidth, requestHeight, captureScale, codecInfo);
+        width = captureSize.width;
+        height = captureSize.height;
+        density = captureSize.scaleDensity(sourceDensity);
+        displayWidth = captureSize.scaleLength(sourceWidth);
+        displayHeight = captureSize.scaleLength(sourceHeight);
+        cropState = crop != null ? new CropState(crop, captureSize) : null;
+
+        Log.d(TAG, "prepareSurfaceEncoder source " + sourceWidth + "x" + sourceHeight + " crop " + crop + " -> " + captureSize);
+
+        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, imageReaderInput ? selectYuvColorFormat(codecInfo) : MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
+        format.setInteger(MediaFormat.KEY_BIT_RATE, adaptiveBitrate && maxBitRate > 0 ? maxBitRate : calcBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+
+        if (lowLatency) {
+            applyLowLatency(format, codecInfo);
+        }
+
+        if (passthrough && idleFrameFilter != null) {
+            // VirtualDisplay 는 화면이 바뀔 때만 프레임을 보내므로 가변 프레임 레이트에서는 최소 프레임 레이트를 지키도록 인코더가 이전 프레임을 반복
+            format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, idleFrameFilter.getMaxIdleNs() / 1000);
+        }
+
+        Log.d(TAG, "prepareSurfaceEncoder format : " + format);
+
+        final MediaCodecBackend backend = createMediaCodecBackend(MIME_TYPE, codecInfo.getName());
+        backend.configure(format);
+        codec = backend;
+
+        return imageReaderInput ? null : backend.createInputSurface();
+    }
+
+    /**
+     * 인코더가 받는 YUV420 입력 형식을 고르고 그에 맞는 변환기를 만듦
+     */
+    private int selectYuvColorFormat(CodecCapabilityCache.Entry codecInfo) throws IOException {
+        final RgbaToYuvConverter.Layout layout;
+        final int colorFormat;
+
+        if (codecInfo.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar)) {
+            layout = RgbaToYuvConverter.Layout.NV12;
+            colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        }
+        else if (codecInfo.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar)) {
+            layout = RgbaToYuvConverter.Layout.I420;
+            colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        }
+        else {
+            throw new IOException("Encoder does not accept YUV420 byte buffers : " + codecInfo);
+        }
+
+        final int threads = Math.min(MAX_CONVERT_THREADS, Runtime.getRuntime().availableProcessors());
+        convertPool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+        // 색 정보를 따로 지정하지 않으므로 인코더 기본값인 BT.601 제한 범위로 변환
+        yuvConverter = new RgbaToYuvConverter(width, height, layout, RgbaToYuvConverter.Matrix.BT601, RgbaToYuvConverter.Range.LIMITED,
+                convertPool);
 
-        return false;
+        return colorFormat;
+    }
+
+    /**
+     * prepare 전에 녹화 설정만으로 최대 비트레이트를 계산, 코덱의 정렬 단위에 맞추면 크기가 줄어들 수 있으므로 실제 값 이상
+     * <br/>
+     * 저장 장치가 따라가야 할 속도나 다시 보기 버퍼 크기를 정하는 데 사용
+     *
+     * @param outputWidth 0 이하면 화면 크기에 captureScale 을 곱한 크기
+     */
+    public static int estimateMaxBitRate(int screenWidth, int screenHeight, int outputWidth, int outputHeight, float captureScale) {
+        final long pixels = outputWidth > 0 && outputHeight > 0 ? (long) outputWidth * outputHeight
+                                                                : (long) (screenWidth * captureScale) * (long) (screenHeight * captureScale);
+        return (int) Math.min(Integer.MAX_VALUE, (long) (BPP * DEFAULT_FRAME_RATE * pixels));
+    }
+
+    private int calcBitRate() {
+        final int bitrate = (int) (BPP * frameRate * width * height);
+        Log.d(TAG, String.format("bitrate : %5.2fMbps", bitrate / 1024f / 1024f));
+        return bitrate;
+    }
+
+    /**
+     * 잘라낼 영역과 그 영역을 인코더 프레임 안에 그릴 위치
+     */
+    private static final class CropState {
+        final TextureCrop crop;
+        final CaptureSize viewport;
+
+        CropState(TextureCrop crop, CaptureSize viewport) {
+            this.crop = crop;
+            this.viewport = viewport;
+        }
+    }
+
+    /**
+     * 그리기 스레드에서 추가 출력 하나에 그릴 EGL Surface 와 위치
+     */
+    private static final class OutputTarget {
+        final MediaSurfaceEncoder encoder;
+        WindowSurface surface;
+        // viewport 를 계산할 때 사용한 잘라낼 영역, 바뀌면 다시 계산
+        CropState cropState;
+        CaptureSize viewport;
+        boolean finished;
+
+        OutputTarget(MediaSurfaceEncoder encoder) {
+            this.encoder = encoder;
+        }
     }
 
     private class DrawTask extends EglTask {
@@ -212,7 +888,6 @@ public final class MediaScreenEncoder extends MediaEncoder {
         private FullFrameRect drawer;
 
         private int texId;
-        private long intervals;
 
         private SurfaceTexture sourceTexture;
         private WindowSurface encoderSurface;
@@ -220,6 +895,25 @@ public final class MediaScreenEncoder extends MediaEncoder {
         private VirtualDisplay display;
 
         private final float[] texMatrix = new float[16];
+        // 잘라내는 경우 texMatrix 에 잘라낼 영역을 곱한 행렬
+        private final float[] cropMatrix = new float[16];
+
+        private final List<OutputTarget> outputTargets = new ArrayList<>();
+
+        // 마지막으로 인코더에 전달한 프레임의 타임스탬프(ns), EGL 에 전달하는 값은 항상 증가해야 함
+        private long lastPresentationTimeNs = Long.MIN_VALUE;
+
+        // 마지막으로 인코딩한 뒤 텍스처에 새 프레임이 들어왔으면 true
+        private boolean sourceChanged;
+        // 텍스처에 있는 프레임이 합성된 시간
+        private long sourceTimeNs;
+
+        // DROP_OLDEST 정책에서 인코더가 가득 차 그리지 못하고 텍스처에 남아 있는 프레임
+        private boolean pendingFrame;
+
+        // 일시정지나 가변 프레임 레이트의 유휴 대기로 슬롯을 일부러 건너뛰었으면 true, 깨어나면 슬롯을 다시 맞춤
+        private boolean paused;
+        private boolean idleWait;
 
         public DrawTask(EGLContext context, int flags) {
             super(context, flags);
@@ -233,25 +927,35 @@ public final class MediaScreenEncoder extends MediaEncoder {
             texId = drawer.createTextureObject();
 
             sourceTexture = new SurfaceTexture(texId);
-            sourceTexture.setDefaultBufferSize(width, height);
+            // 줄인 크기로 받아서 텍스처 복사와 그리기 비용도 출력 크기를 따름
+            sourceTexture.setDefaultBufferSize(displayWidth, displayHeight);
             sourceTexture.setOnFrameAvailableListener(onFrameAvailableListener, handler);
 
             sourceSurface = new Surface(sourceTexture);
 
             encoderSurface = new WindowSurface(getEglCore(), surface);
 
-            Log.d(TAG, "DrawTask#onStart setup virtualDisplay");
-            intervals = (long) (1000f / FRAME_RATE);
+            for (MediaSurfaceEncoder output : outputs) {
+                outputTargets.add(new OutputTarget(output));
+            }
+        }
+
+        /**
+         * 권한을 받은 뒤 VirtualDisplay 를 만들고 그리기 루프를 시작
+         */
+        private void startDisplay() {
+            Log.d(TAG, "DrawTask#startDisplay setup virtualDisplay");
+
             display = mediaProjection.createVirtualDisplay("Capturing Display",
-                    width,
-                    height,
+                    displayWidth,
+                    displayHeight,
                     density,
                     DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
                     sourceSurface,
                     null,
                     null);
 
-            Log.d(TAG, "DrawTask#onStart screen capture loop display : " + display);
+            Log.d(TAG, "DrawTask#startDisplay screen capture loop display : " + display);
             queueEvent(drawTask);
         }
 
@@ -277,6 +981,11 @@ public final class MediaScreenEncoder extends MediaEncoder {
                 encoderSurface = null;
             }
 
+            for (OutputTarget target : outputTargets) {
+                releaseOutput(target);
+            }
+            outputTargets.clear();
+
             makeCurrent();
 
             Log.d(TAG, "DrawTask#onStop");
@@ -303,6 +1012,10 @@ public final class MediaScreenEncoder extends MediaEncoder {
 
         @Override
         protected boolean processRequest(int request, int arg1, Object arg2) {
+            if (request == REQUEST_START_CAPTURE && display == null) {
+                startDisplay();
+            }
+
             return false;
         }
 
@@ -316,6 +1029,199 @@ public final class MediaScreenEncoder extends MediaEncoder {
             }
         };
 
+        /**
+         * 고정 프레임 레이트면 항상, 가변 프레임 레이트면 화면이 바뀌었거나 keep-alive 시간이 되었을 때만 인코딩
+         */
+        private boolean shouldEncodeFrame(long nowNs) {
+            return idleFrameFilter == null || idleFrameFilter.onTick(nowNs, sourceChanged);
+        }
+
+        /**
+         * 인코더가 가득 차서 그리지 못한 프레임 처리
+         * <br/>
+         * DROP_OLDEST 면 텍스처에 남아 있는 이 프레임을 다음 슬롯에서 다시 그리고, 그 전에 새 프레임이 들어오면 이 프레임을 버림
+         */
+        private void onFrameRejected() {
+            if (flowController.getPolicy() != FlowController.Policy.DROP_OLDEST) {
+                flowController.onFrameDropped();
+                sourceChanged = false;
+                return;
+            }
+
+            pendingFrame = true;
+        }
+
+        /**
+         * SurfaceTexture 에 들어온 가장 최근 프레임을 텍스처로 가져옴, 인코딩은 다음 슬롯에서 함
+         */
+        private void latchFrame() {
+            sourceTexture.updateTexImage();
+            sourceTexture.getTransformMatrix(texMatrix);
+            // 프레임이 합성된 시간, System.nanoTime 과 같은 기준
+            sourceTimeNs = sourceTexture.getTimestamp();
+            sourceFrameCount++;
+
+            if (pendingFrame) {
+                flowController.onFrameDropped();
+                pendingFrame = false;
+            }
+
+            sourceChanged = true;
+        }
+
+        /**
+         * 다음 슬롯까지 기다릴 시간, 가변 프레임 레이트에서 화면이 그대로면 다음 keep-alive 프레임까지 대기
+         */
+        private long getWaitNs(long nowNs) {
+            if (requestPause) {
+                return framePacer.getIntervalNs();
+            }
+
+            long waitNs = framePacer.getWaitNs(nowNs);
+
+            if (idleFrameFilter != null && !sourceChanged) {
+                final long idleNs = idleFrameFilter.getIdleTimeoutNs(nowNs);
+
+                if (idleNs > waitNs) {
+                    idleWait = true;
+                    waitNs = idleNs;
+                }
+            }
+
+            return waitNs;
+        }
+
+        /**
+         * 슬롯에서 텍스처를 인코더 Surface 에 그림
+         * <br/>
+         * 고정 프레임 레이트는 슬롯 시각을, 가변 프레임 레이트의 새 프레임은 합성된 시간을 타임스탬프로 사용
+         */
+        private void encodeFrame(long slotNs) {
+            if (!flowController.acquire()) {
+                onFrameRejected();
+                return;
+            }
+
+            final boolean duplicated = !sourceChanged;
+            final long timeNs = nextPresentationTimeNs(idleFrameFilter != null && !duplicated ? sourceTimeNs : slotNs);
+
+            final CropState cropState = MediaScreenEncoder.this.cropState;
+            final float[] matrix;
+
+            if (cropState != null) {
+                cropState.crop.apply(texMatrix, cropMatrix);
+                matrix = cropMatrix;
+            }
+            else {
+                matrix = texMatrix;
+            }
+
+            drawTo(encoderSurface, cropState != null ? cropState.viewport : captureSize, matrix);
+            encoderSurface.setPresentationTime(timeNs);
+            encoderSurface.swapBuffers();
+            flowController.onFrameSubmitted(timeNs / 1000L);
+            framePacer.onFrameEmitted(timeNs, duplicated);
+
+            if (!outputTargets.isEmpty()) {
+                drawOutputs(cropState, matrix, timeNs);
+            }
+
+            pendingFrame = false;
+            sourceChanged = false;
+
+            makeCurrent();
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLES20.glFlush();
+
+            frameAvailableSoon();
+        }
+
+        /**
+         * 텍스처를 surface 의 viewport 영역에 그림, 레터박스 부분은 검게 지움
+         */
+        private void drawTo(WindowSurface target, CaptureSize viewport, float[] matrix) {
+            target.makeCurrent();
+
+            // 출력마다 크기가 다르므로 이전에 그린 출력의 viewport 가 남지 않도록 매번 지정
+            if (viewport.isLetterboxed()) {
+                GLES20.glClearColor(0f, 0f, 0f, 1f);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                GLES20.glViewport(viewport.contentX, viewport.contentY, viewport.contentWidth, viewport.contentHeight);
+            }
+            else {
+                GLES20.glViewport(0, 0, target.getWidth(), target.getHeight());
+            }
+
+            drawer.drawFrame(texId, matrix);
+        }
+
+        /**
+         * 이미 가져온 텍스처를 추가 출력마다 한 번씩 그림, 밀리는 출력은 그 출력의 프레임만 버림
+         */
+        private void drawOutputs(CropState cropState, float[] matrix, long timeNs) {
+            for (OutputTarget target : outputTargets) {
+                if (target.finished) {
+                    continue;
+                }
+
+                // 확인한 뒤 그리는 사이에 출력 인코더가 EOS 를 보내거나 입력 Surface 를 해제하지 않도록 lock 을 잡고 그림
+                synchronized (target.encoder.getDrawLock()) {
+                    if (target.encoder.isFinished()) {
+                        releaseOutput(target);
+                        continue;
+                    }
+
+                    if (!target.encoder.acquireFrame()) {
+                        continue;
+                    }
+
+                    if (target.surface == null) {
+                        // 출력은 자기 Muxer 에서 따로 준비하므로 입력 Surface 가 생긴 뒤 처음 그릴 때 EGL Surface 를 만듦
+                        target.surface = new WindowSurface(getEglCore(), target.encoder.getInputSurface());
+                    }
+
+                    if (target.viewport == null || target.cropState != cropState) {
+                        final int sourceWidth = cropState != null ? cropState.crop.width : displayWidth;
+                        final int sourceHeight = cropState != null ? cropState.crop.height : displayHeight;
+                        target.viewport = CaptureSize.fit(target.encoder.getWidth(), target.encoder.getHeight(), sourceWidth, sourceHeight,
+                                true);
+                        target.cropState = cropState;
+                    }
+
+                    drawTo(target.surface, target.viewport, matrix);
+                    target.surface.setPresentationTime(timeNs);
+                    target.surface.swapBuffers();
+                }
+
+                target.encoder.onFrameDrawn(timeNs / 1000L);
+            }
+        }
+
+        private void releaseOutput(OutputTarget target) {
+            if (target.surface != null) {
+                target.surface.release();
+                target.surface = null;
+            }
+
+            target.finished = true;
+        }
+
+        /**
+         * 새 프레임은 SurfaceTexture 의 타임스탬프를, 새 프레임 없이 다시 그리는 경우에는 현재 시간을 사용
+         * <br/>
+         * 일시정지한 시간을 빼서 오디오와 같은 MediaClock 기준으로 맞추고, 이전 프레임보다 늦은 시간을 보장
+         */
+        private long nextPresentationTimeNs(long sourceTimeNs) {
+            long timeNs = sourceTimeNs > 0 ? clock.toMediaTimeNs(sourceTimeNs) : clock.getTimeNs();
+
+            if (timeNs <= lastPresentationTimeNs) {
+                timeNs = lastPresentationTimeNs + 1000;
+            }
+
+            lastPresentationTimeNs = timeNs;
+            return timeNs;
+        }
+
         private final Runnable drawTask = new Runnable() {
             @Override
             public void run() {
@@ -323,39 +1229,50 @@ public final class MediaScreenEncoder extends MediaEncoder {
                 boolean localRequestDraw;
 
                 synchronized (sync) {
-                    localReuqestPause = requestPause;
-                    localRequestDraw = requestDraw;
-
                     if (!requestDraw) {
-                        try {
-                            sync.wait(intervals);
-                            localReuqestPause = requestPause;
-                            localRequestDraw = requestDraw;
-                            requestDraw = false;
-                        }
-                        catch (InterruptedException e) {
-                            return;
+                        final long waitNs = getWaitNs(System.nanoTime());
+
+                        if (waitNs > 0) {
+                            try {
+                                TimeUnit.NANOSECONDS.timedWait(sync, waitNs);
+                            }
+                            catch (InterruptedException e) {
+                                return;
+                            }
                         }
                     }
+
+                    localReuqestPause = requestPause;
+                    localRequestDraw = requestDraw;
+                    requestDraw = false;
                 }
 
-                if (isCapturing) {
+                if (isCapturing && !requestStop) {
                     if (localRequestDraw) {
-                        sourceTexture.updateTexImage();
-                        sourceTexture.getTransformMatrix(texMatrix);
+                        latchFrame();
                     }
 
-                    if (!localReuqestPause) {
-                        encoderSurface.makeCurrent();
-                        drawer.drawFrame(texId, texMatrix);
-                        encoderSurface.swapBuffers();
+                    final long now = System.nanoTime();
+
+                    if (localReuqestPause) {
+                        paused = true;
                     }
+                    else {
+                        if (paused || idleWait) {
+                            framePacer.resync(now);
+                            paused = idleWait = false;
+                        }
+
+                        // 깨어난 시각이 아니라 슬롯 시각에 맞춰 내보내므로 깨어나는 시간이 흔들려도 프레임 간격이 일정
+                        if (framePacer.isDue(now)) {
+                            final long slotNs = framePacer.onSlot(now);
 
-                    makeCurrent();
-                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-                    GLES20.glFlush();
+                            if (shouldEncodeFrame(now)) {
+                                encodeFrame(slotNs);
+                            }
+                        }
+                    }
 
-                    frameAvailableSoon();
                     queueEvent(this);
                 }
                 else {
@@ -0,0 +1,183 @@
+package chuumong.io.screenrecode.media;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+
+import chuumong.io.mediacore.codec.CodecCapabilityCache;
+import chuumong.io.mediacore.codec.FlowController;
+import chuumong.io.mediacore.video.CaptureSize;
+
+/**
+ * MediaScreenEncoder 의 그리기 스레드가 화면을 한 번 더 그려 넣는 추가 출력, 크기 / 비트레이트 / Muxer 를 따로 가짐
+ * <br/>
+ * 화면 캡처와 GL 컨텍스트는 MediaScreenEncoder 것을 같이 쓰므로 출력 하나당 그리기 호출 한 번과 인코딩 비용만 늘어남
+ * <br/>
+ * 타임스탬프는 MediaScreenEncoder 의 시계를 따르므로, 일시정지는 MediaScreenEncoder 쪽 Muxer 와 같이 해야 함
+ */
+public final class MediaSurfaceEncoder extends MediaEncoder {
+
+    private static final String TAG = MediaSurfaceEncoder.class.getSimpleName();
+
+    private static final String MIME_TYPE = "video/avc";
+    private static final float BPP = 0.25f;
+
+    private final int frameRate;
+    private final int bitRate;
+
+    private int width;
+    private int height;
+
+    private volatile Surface surface;
+
+    // 그리기 스레드가 이 출력에 그리는 동안 EOS 와 해제를 미룸
+    private final Object drawLock = new Object();
+    // EOS 를 보냈거나 해제해서 더 이상 입력 Surface 에 그리면 안 됨, drawLock 으로 보호
+    private boolean inputClosed;
+
+    /**
+     * @param width   인코더 크기, 코덱의 정렬 단위와 최대 크기에 맞춰 줄어들 수 있음
+     * @param bitRate 0 이하면 크기와 프레임 레이트로 계산
+     */
+    public MediaSurfaceEncoder(@NonNull MediaMuxerWrapper muxer, @NonNull MediaEncoderListener listener, int width, int height, int bitRate,
+                               int frameRate) {
+        super(muxer, listener);
+
+        if (width <= 0 || height <= 0 || frameRate <= 0) {
+            throw new IllegalArgumentException("size and frameRate must be positive");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.bitRate = bitRate;
+        this.frameRate = frameRate;
+
+        // 추가 출력이 밀려도 그리기 스레드와 다른 출력을 막지 않도록 이 출력의 프레임만 버림
+        flowController.configure(FlowController.Policy.DROP_NEWEST, FlowController.DEFAULT_MAX_IN_FLIGHT, FlowController.DEFAULT_BLOCK_TIMEOUT_US);
+    }
+
+    @Override
+    protected void prepare() throws IOException {
+        Log.d(TAG, "prepare");
+
+        trackIndex = -1;
+        muxerStarted = isEOS = false;
+
+        final CodecCapabilityCache.Entry codecInfo = CodecCapabilityStore.getEncoder(MIME_TYPE);
+        if (codecInfo == null) {
+            throw new RuntimeException("Not Select Screen Codec");
+        }
+
+        final CaptureSize size = CaptureSize.compute(width, height, 0, 0, 1f, codecInfo);
+        width = size.width;
+        height = size.height;
+
+        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate > 0 ? bitRate : (int) (BPP * frameRate * width * height));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+
+        if (lowLatency) {
+            applyLowLatency(format, codecInfo);
+        }
+
+        Log.d(TAG, "prepare format : " + format);
+
+        final MediaCodecBackend backend = createMediaCodecBackend(MIME_TYPE, codecInfo.getName());
+        backend.configure(format);
+        codec = backend;
+
+        final Surface inputSurface = backend.createInputSurface();
+        codec.start();
+        isCapturing = true;
+        surface = inputSurface;
+
+        Log.d(TAG, "prepare finishing");
+
+        listener.onPrepared(this);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return 그리기 스레드가 그려 넣을 인코더 입력 Surface, prepare 전에는 null
+     */
+    @Nullable
+    Surface getInputSurface() {
+        return surface;
+    }
+
+    /**
+     * @return 그리기 스레드가 지금 프레임을 그려 넣어도 되면 true, 가득 차서 버리는 경우도 false
+     */
+    boolean acquireFrame() {
+        if (surface == null || !isCapturing || requestStop || requestPause) {
+            return false;
+        }
+
+        if (!flowController.acquire()) {
+            flowController.onFrameDropped();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 그리기 스레드가 프레임을 그려 넣은 뒤 호출
+     */
+    void onFrameDrawn(long presentationTimeUs) {
+        flowController.onFrameSubmitted(presentationTimeUs);
+        frameAvailableSoon();
+    }
+
+    /**
+     * 그리기 스레드는 isFinished 확인부터 swapBuffers 까지 이 lock 을 잡아서 그리는 중에 EOS 나 해제가 끼어들지 않게 함
+     */
+    Object getDrawLock() {
+        return drawLock;
+    }
+
+    /**
+     * getDrawLock 을 잡고 호출
+     *
+     * @return 녹화를 끝내서 그리기 스레드가 이 출력의 EGL Surface 를 정리해도 되면 true
+     */
+    boolean isFinished() {
+        return requestStop || inputClosed;
+    }
+
+    @Override
+    protected void signalEndOfInputStream() {
+        Log.d(TAG, "signalEndOfInputStream");
+
+        synchronized (drawLock) {
+            inputClosed = true;
+            codec.signalEndOfInputStream();
+            isEOS = true;
+        }
+    }
+
+    @Override
+    protected void release() {
+        // 그리던 프레임이 끝난 뒤에 코덱과 입력 Surface 를 해제
+        synchronized (drawLock) {
+            inputClosed = true;
+            surface = null;
+        }
+
+        super.release();
+    }
+}
@@ -5,15 +5,26 @@ import android.content.Context;
 import android.content.Intent;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import chuumong.io.mediacore.mux.ReplayBuffer;
+import chuumong.io.mediacore.mux.StreamingWriter;
 
 import chuumong.io.screenrecode.media.MediaAudioEncoder;
 import chuumong.io.screenrecode.media.MediaEncoder;
 import chuumong.io.screenrecode.media.MediaMuxerWrapper;
 import chuumong.io.screenrecode.media.MediaScreenEncoder;
+import chuumong.io.screenrecode.media.MediaSurfaceEncoder;
 
 /**
  * Created by LeeJongHun on 2016-05-02.
@@ -27,11 +38,48 @@ public class ScreenRecorderService extends IntentService {
     private static final String TAG = ScreenRecorderService.class.getSimpleName();
     private static final String BASE = ScreenRecorderService.class.getPackage().getName() + "." + TAG + ".";
     public static final String EXTRA_RESULT_CODE = BASE + "EXTRA_RESULT_CODE";
+    // 녹화할 크기, 없으면 EXTRA_CAPTURE_SCALE 배율로 줄인 화면 크기
+    public static final String EXTRA_OUTPUT_WIDTH = BASE + "EXTRA_OUTPUT_WIDTH";
+    public static final String EXTRA_OUTPUT_HEIGHT = BASE + "EXTRA_OUTPUT_HEIGHT";
+    public static final String EXTRA_CAPTURE_SCALE = BASE + "EXTRA_CAPTURE_SCALE";
+    // 있으면 같은 화면을 이 크기로 별도 파일에 한 번 더 기록 (미리보기 / 스트리밍용)
+    public static final String EXTRA_PREVIEW_WIDTH = BASE + "EXTRA_PREVIEW_WIDTH";
+    public static final String EXTRA_PREVIEW_HEIGHT = BASE + "EXTRA_PREVIEW_HEIGHT";
+    public static final String EXTRA_PREVIEW_BIT_RATE = BASE + "EXTRA_PREVIEW_BIT_RATE";
+    // 추가 출력을 파일 대신 MPEG-TS 로 보낼 주소, "host:port" 면 TCP, 아니면 Unix 도메인 소켓 이름 (adb forward 등)
+    public static final String EXTRA_STREAM_ADDRESS = BASE + "EXTRA_STREAM_ADDRESS";
+    // 긴 녹화를 여러 파일로 나눔, 키 프레임에서 이 길이(초) 또는 크기(MB)를 넘으면 다음 파일로 넘어감
+    public static final String EXTRA_SEGMENT_DURATION_SEC = BASE + "EXTRA_SEGMENT_DURATION_SEC";
+    public static final String EXTRA_SEGMENT_SIZE_MB = BASE + "EXTRA_SEGMENT_SIZE_MB";
+    // 있으면 파일에 기록하지 않고 최근 이 시간(초)만 메모리에 두었다가 ACTION_SAVE_REPLAY 로 저장
+    public static final String EXTRA_REPLAY_SECONDS = BASE + "EXTRA_REPLAY_SECONDS";
+
+    // 준비할 때 쓰는 설정, ACTION_PREPARE 와 ACTION_START 의 값이 다르면 START 의 값으로 다시 준비
+    private static final String[] CONFIG_EXTRAS = {EXTRA_OUTPUT_WIDTH, EXTRA_OUTPUT_HEIGHT, EXTRA_CAPTURE_SCALE,
+                                                   EXTRA_PREVIEW_WIDTH, EXTRA_PREVIEW_HEIGHT, EXTRA_PREVIEW_BIT_RATE,
+                                                   EXTRA_STREAM_ADDRESS, EXTRA_SEGMENT_DURATION_SEC, EXTRA_SEGMENT_SIZE_MB,
+                                                   EXTRA_REPLAY_SECONDS};
+
+    private static final long KEEP_ALIVE_INTERVAL_MS = 1000;
+    private static final float MIN_FRAME_RATE = 1f;
+    private static final int STREAM_CONNECT_TIMEOUT_MS = 3000;
+    // 다시 보기 버퍼는 최대 비트레이트에 저장 중에 쌓일 여유분 절반을 더한 크기, 다이렉트 버퍼 하나로 잡으므로 상한을 둠
+    private static final long MAX_REPLAY_BYTES = 512L * 1024 * 1024;
+    // 60fps 영상과 AAC 오디오(약 47 프레임 / 초)
+    private static final int REPLAY_SAMPLES_PER_SEC = 128;
+    private static final int MAX_REPLAY_SAMPLES = 1024 * 1024;
 
     private static Object sync = new Object();
+    private static final Object replaySaveLock = new Object();
 
     private MediaProjectionManager mediaProjectionManager;
     private static MediaMuxerWrapper muxer;
+    // 화면 인코더의 추가 출력을 기록하는 Muxer, 미리보기를 요청하지 않으면 null
+    private static MediaMuxerWrapper previewMuxer;
+    // 권한 확인 창이 떠 있는 동안 미리 준비해 두고 아직 화면 캡처를 시작하지 않은 인코더
+    private static MediaScreenEncoder preparedScreenEncoder;
+    // 지금 준비된 Muxer 를 만든 설정
+    private static String preparedConfig;
 
     public ScreenRecorderService() {
         super(TAG);
@@ -50,7 +98,13 @@ public class ScreenRecorderService extends IntentService {
 
         final String action = intent.getAction();
 
-        if (action.equals(RecodeType.ACTION_START)) {
+        if (action.equals(RecodeType.ACTION_PREPARE)) {
+            prepareScreenRecord(intent);
+        }
+        else if (action.equals(RecodeType.ACTION_CANCEL)) {
+            cancelScreenRecord();
+        }
+        else if (action.equals(RecodeType.ACTION_START)) {
             startScreenRecode(intent);
         }
         else if (action.equals(RecodeType.ACTION_STOP)) {
@@ -62,6 +116,157 @@ public class ScreenRecorderService extends IntentService {
         else if (action.equals(RecodeType.ACTION_RESUME)) {
             resumeScreenRecord();
         }
+        else if (action.equals(RecodeType.ACTION_SAVE_REPLAY)) {
+            saveReplay();
+        }
+    }
+
+    /**
+     * 권한 확인 창이 떠 있는 동안 파일, 코덱, 인코더 스레드를 미리 만들어 둠
+     * <br/>
+     * IntentService 는 요청을 순서대로 처리하므로 ACTION_START 는 준비가 끝난 뒤 실행됨
+     */
+    private void prepareScreenRecord(Intent intent) {
+        Log.d(TAG, "prepareScreenRecord muxer : " + muxer);
+
+        synchronized (sync) {
+            if (muxer != null) {
+                return;
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+
+            try {
+                prepareMuxer(intent);
+            }
+            catch (IOException | RuntimeException e) {
+                Log.e(TAG, "prepareScreenRecord error", e);
+                cancelPrepared();
+            }
+
+            Log.d(TAG, "prepareScreenRecord " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+    }
+
+    private void prepareMuxer(Intent intent) throws IOException {
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        preparedConfig = getConfig(intent);
+
+        final int segmentDurationSec = intent.getIntExtra(EXTRA_SEGMENT_DURATION_SEC, 0);
+        final int segmentSizeMb = intent.getIntExtra(EXTRA_SEGMENT_SIZE_MB, 0);
+        final int replaySeconds = intent.getIntExtra(EXTRA_REPLAY_SECONDS, 0);
+        final int outputWidth = intent.getIntExtra(EXTRA_OUTPUT_WIDTH, 0);
+        final int outputHeight = intent.getIntExtra(EXTRA_OUTPUT_HEIGHT, 0);
+        final float captureScale = intent.getFloatExtra(EXTRA_CAPTURE_SCALE, 1f);
+        // 적응형 비트레이트의 상한과 오디오, 저장 장치는 화면이 많이 바뀔 때의 이 속도를 따라가야 함
+        final int bitRate = MediaScreenEncoder.estimateMaxBitRate(metrics.widthPixels, metrics.heightPixels, outputWidth, outputHeight,
+                                                                  captureScale) + MediaAudioEncoder.BIT_RATE;
+
+        if (replaySeconds > 0) {
+            final long replayBytes = Math.min(MAX_REPLAY_BYTES, replaySeconds * (bitRate / 8L) * 3 / 2);
+            final long replaySamples = Math.min(MAX_REPLAY_SAMPLES, replaySeconds * (long) REPLAY_SAMPLES_PER_SEC);
+
+            if (replayBytes == MAX_REPLAY_BYTES) {
+                Log.w(TAG, "prepareMuxer replay buffer is limited to " + MAX_REPLAY_BYTES + " bytes, may hold less than " + replaySeconds + "s");
+            }
+
+            muxer = new MediaMuxerWrapper(new ReplayBuffer((int) replayBytes, (int) replaySamples, replaySeconds * 1000000L));
+        }
+        else if (segmentDurationSec > 0 || segmentSizeMb > 0) {
+            muxer = new MediaMuxerWrapper(".mp4", segmentDurationSec * 1000000L, segmentSizeMb * 1024L * 1024L);
+        }
+        else {
+            muxer = new MediaMuxerWrapper(".mp4");
+        }
+
+        final MediaScreenEncoder screenEncoder = new MediaScreenEncoder(muxer,
+                mediaEncoderListener,
+                null,
+                metrics.widthPixels,
+                metrics.heightPixels,
+                metrics.densityDpi);
+        // 정지된 화면이 대부분이므로 화면이 바뀔 때만 인코딩
+        screenEncoder.setVariableFrameRate(true, KEEP_ALIVE_INTERVAL_MS, MIN_FRAME_RATE);
+        screenEncoder.setAdaptiveBitrate(true, 0, 0);
+        screenEncoder.setOutputSize(outputWidth, outputHeight);
+        screenEncoder.setCaptureScale(captureScale);
+        preparedScreenEncoder = screenEncoder;
+        muxer.setRequiredBitRate(bitRate);
+
+        new MediaAudioEncoder(muxer, mediaEncoderListener);
+
+        final String streamAddress = intent.getStringExtra(EXTRA_STREAM_ADDRESS);
+        int previewWidth = intent.getIntExtra(EXTRA_PREVIEW_WIDTH, 0);
+        int previewHeight = intent.getIntExtra(EXTRA_PREVIEW_HEIGHT, 0);
+
+        if (streamAddress != null && (previewWidth <= 0 || previewHeight <= 0)) {
+            previewWidth = metrics.widthPixels;
+            previewHeight = metrics.heightPixels;
+        }
+
+        if (previewWidth > 0 && previewHeight > 0) {
+            final StreamingWriter streamingWriter = streamAddress != null ? new StreamingWriter(openStream(streamAddress)) : null;
+            previewMuxer = streamingWriter != null ? new MediaMuxerWrapper(streamingWriter) : new MediaMuxerWrapper("-preview.mp4");
+
+            final MediaSurfaceEncoder previewEncoder = new MediaSurfaceEncoder(previewMuxer,
+                    mediaEncoderListener,
+                    previewWidth,
+                    previewHeight,
+                    intent.getIntExtra(EXTRA_PREVIEW_BIT_RATE, 0),
+                    screenEncoder.getTargetFrameRate());
+
+            if (streamingWriter != null) {
+                previewEncoder.setLowLatency(true);
+                streamingWriter.setOnCongestionListener(new StreamingWriter.OnCongestionListener() {
+                    @Override
+                    public void onFrameDropped(int trackIndex, boolean waitingKeyFrame, int bufferedBytes) {
+                        // 참조되는 프레임을 버렸으면 받는 쪽이 다음 키 프레임까지 멈추므로 바로 키 프레임을 요청
+                        if (waitingKeyFrame) {
+                            previewEncoder.requestKeyFrame();
+                        }
+                    }
+                });
+            }
+
+            screenEncoder.addOutput(previewEncoder);
+            previewMuxer.prepare();
+        }
+
+        muxer.prepare();
+    }
+
+    /**
+     * @return CONFIG_EXTRAS 의 값을 이어 붙인 문자열, 두 Intent 의 설정이 같은지 비교할 때 사용
+     */
+    private static String getConfig(Intent intent) {
+        final StringBuilder config = new StringBuilder();
+        final Bundle extras = intent.getExtras();
+
+        for (String key : CONFIG_EXTRAS) {
+            config.append(extras != null ? extras.get(key) : null).append(',');
+        }
+
+        return config.toString();
+    }
+
+    /**
+     * @param address "host:port" 면 TCP 로 연결, 아니면 Unix 도메인 소켓 이름으로 연결
+     */
+    private static OutputStream openStream(String address) throws IOException {
+        final int separator = address.lastIndexOf(':');
+
+        if (separator > 0) {
+            final Socket socket = new Socket();
+            // 작은 TS 패킷이 모일 때까지 기다리지 않고 바로 보냄
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1))),
+                    STREAM_CONNECT_TIMEOUT_MS);
+            return socket.getOutputStream();
+        }
+
+        final LocalSocket socket = new LocalSocket();
+        socket.connect(new LocalSocketAddress(address));
+        return socket.getOutputStream();
     }
 
     private void startScreenRecode(Intent intent) {
@@ -71,35 +276,102 @@ public class ScreenRecorderService extends IntentService {
             final int resultCode = intent.getIntExtra(EXTRA_RESULT_CODE, 0);
             final MediaProjection projection = mediaProjectionManager.getMediaProjection(resultCode, intent);
 
-            if (projection != null) {
-                final DisplayMetrics metrics = getResources().getDisplayMetrics();
-                final int density = metrics.densityDpi;
+            if (projection == null) {
+                cancelScreenRecord();
+                return;
+            }
 
-                Log.d(TAG, "startRecording");
+            final long start = SystemClock.elapsedRealtime();
+            boolean projectionTaken = false;
 
-                try {
-                    muxer = new MediaMuxerWrapper(".mp4");
+            try {
+                if (muxer != null && preparedScreenEncoder == null) {
+                    Log.w(TAG, "startScreenRecode already recording");
+                    projection.stop();
+                    return;
+                }
 
-                    new MediaScreenEncoder(muxer, mediaEncoderListener, projection, metrics.widthPixels, metrics.heightPixels, density);
-                    new MediaAudioEncoder(muxer, mediaEncoderListener);
+                if (muxer != null && !getConfig(intent).equals(preparedConfig)) {
+                    // 미리 준비한 설정과 다르면 버리고 START 의 설정으로 다시 준비
+                    Log.d(TAG, "startScreenRecode config changed, prepare again");
+                    cancelPrepared();
+                }
 
-                    muxer.prepare();
-                    muxer.startRecording();
+                if (muxer == null) {
+                    // ACTION_PREPARE 없이 시작한 경우
+                    prepareMuxer(intent);
                 }
-                catch (IOException e) {
-                    Log.e(TAG, "startScreenRecode error", e);
+
+                Log.d(TAG, "startRecording");
+
+                preparedScreenEncoder.setMediaProjection(projection);
+                projectionTaken = true;
+                preparedScreenEncoder = null;
+                muxer.startRecording();
+
+                if (previewMuxer != null) {
+                    previewMuxer.startRecording();
                 }
+
+                Log.d(TAG, "startScreenRecode " + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+            catch (IOException | RuntimeException e) {
+                Log.e(TAG, "startScreenRecode error", e);
+
+                if (!projectionTaken) {
+                    projection.stop();
+                }
+                cancelPrepared();
             }
         }
     }
 
+    /**
+     * 권한을 받지 못했거나 준비 중 오류가 난 경우 미리 만든 인코더와 파일을 정리
+     */
+    private void cancelScreenRecord() {
+        Log.d(TAG, "cancelScreenRecord muxer : " + muxer);
+
+        synchronized (sync) {
+            if (muxer != null && preparedScreenEncoder != null) {
+                cancelPrepared();
+            }
+        }
+    }
+
+    /**
+     * 준비 중이거나 시작하다 실패한 Muxer 를 정리, 일부만 만들어진 경우에도 호출
+     */
+    private void cancelPrepared() {
+        if (muxer != null) {
+            muxer.cancel();
+            muxer = null;
+        }
+
+        if (previewMuxer != null) {
+            previewMuxer.cancel();
+            previewMuxer = null;
+        }
+
+        preparedScreenEncoder = null;
+        preparedConfig = null;
+    }
+
     private void stopScreenRecord() {
         Log.d(TAG, "stopScreenRecord muxer : " + muxer);
 
         synchronized (sync) {
-            if (muxer != null) {
+            if (preparedScreenEncoder != null) {
+                cancelScreenRecord();
+            }
+            else if (muxer != null) {
                 muxer.stopRecording();
                 muxer = null;
+
+                if (previewMuxer != null) {
+                    previewMuxer.stopRecording();
+                    previewMuxer = null;
+                }
             }
         }
     }
@@ -109,6 +381,10 @@ public class ScreenRecorderService extends IntentService {
             if (muxer != null) {
                 muxer.pauseRecording();
             }
+
+            if (previewMuxer != null) {
+                previewMuxer.pauseRecording();
+            }
         }
     }
 
@@ -117,7 +393,41 @@ public class ScreenRecorderService extends IntentService {
             if (muxer != null) {
                 muxer.resumeRecording();
             }
+
+            if (previewMuxer != null) {
+                previewMuxer.resumeRecording();
+            }
+        }
+    }
+
+    /**
+     * 다시 보기 버퍼를 파일로 저장, 파일을 쓰는 동안 ACTION_STOP / ACTION_PAUSE 가 기다리지 않도록 별도 스레드에서 저장하고 녹화는 계속됨
+     */
+    private void saveReplay() {
+        final MediaMuxerWrapper current;
+
+        synchronized (sync) {
+            current = muxer;
         }
+
+        if (current == null) {
+            return;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // 여러 번 요청해도 한 번에 하나씩 저장
+                synchronized (replaySaveLock) {
+                    try {
+                        Log.d(TAG, "saveReplay file : " + current.saveReplay(0));
+                    }
+                    catch (IOException | RuntimeException e) {
+                        Log.e(TAG, "saveReplay error", e);
+                    }
+                }
+            }
+        }, "ReplaySaveThread").start();
     }
 
     private static final MediaEncoder.MediaEncoderListener mediaEncoderListener = new MediaEncoder.MediaEncoderListener() {
@@ -134,9 +444,12 @@ public class ScreenRecorderService extends IntentService {
 
     public interface RecodeType {
 
+        String ACTION_PREPARE = BASE + "ACTION_PREPARE";
+        String ACTION_CANCEL = BASE + "ACTION_CANCEL";
         String ACTION_START = BASE + "ACTION_START";
         String ACTION_STOP = BASE + "ACTION_STOP";
         String ACTION_PAUSE = BASE + "ACTION_PAUSE";
         String ACTION_RESUME = BASE + "ACTION_RESUME";
+        String ACTION_SAVE_REPLAY = BASE + "ACTION_SAVE_REPLAY";
     }
 }
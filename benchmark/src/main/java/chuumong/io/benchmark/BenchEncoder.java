@@ -0,0 +1,60 @@
+package chuumong.io.benchmark;
+
+import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.codec.BaseEncoder;
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.mux.SampleSink;
+
+/**
+ * MediaEncoder 와 같은 드레인 / 인코딩 경로를 스레드 없이 직접 호출하기 위한 인코더
+ */
+public class BenchEncoder extends BaseEncoder {
+
+    private final SampleSink sink;
+    private long pts;
+
+    public BenchEncoder(EncoderBackend backend, SampleSink sink, boolean asyncDrain) {
+        super(asyncDrain);
+        this.codec = backend;
+        this.sink = sink;
+
+        if (asyncDrain) {
+            backend.setCallback(codecCallback);
+        }
+    }
+
+    public void start() {
+        isCapturing = true;
+        codec.start();
+    }
+
+    public void stop() {
+        isCapturing = false;
+        codec.release();
+    }
+
+    @Override
+    public void drain() {
+        super.drain();
+    }
+
+    @Override
+    public boolean encode(ByteBuffer buffer, int length, long time) {
+        return super.encode(buffer, length, time);
+    }
+
+    @Override
+    protected SampleSink getSink() {
+        return sink;
+    }
+
+    @Override
+    protected long getPTSUs() {
+        return pts += 1000;
+    }
+
+    @Override
+    protected void onAsyncFinished() {
+    }
+}
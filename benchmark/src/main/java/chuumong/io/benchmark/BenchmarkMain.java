@@ -0,0 +1,43 @@
+package chuumong.io.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 같은 벤치마크를 처리량(ops/s)과 지연 분포(p50/p99, us)로 한 번씩 실행
+ * <br/>
+ * 두 실행 모두 GC 프로파일러를 붙여 gc.alloc.rate.norm 으로 프레임(op)당 할당량을 기록
+ * <br/>
+ * args[0] : 실행할 벤치마크 정규식, args[1] : 결과 JSON 을 저장할 디렉터리
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final String include = args.length > 0 ? args[0] : ".*";
+        final File resultDir = new File(args.length > 1 ? args[1] : "build/reports/jmh");
+        resultDir.mkdirs();
+
+        run(include, Mode.Throughput, TimeUnit.SECONDS, new File(resultDir, "throughput.json"));
+        run(include, Mode.SampleTime, TimeUnit.MICROSECONDS, new File(resultDir, "latency.json"));
+    }
+
+    private static void run(String include, Mode mode, TimeUnit timeUnit, File result) throws RunnerException {
+        new Runner(new OptionsBuilder().include(include)
+                                       .mode(mode)
+                                       .timeUnit(timeUnit)
+                                       .addProfiler(GCProfiler.class)
+                                       .resultFormat(ResultFormatType.JSON)
+                                       .result(result.getPath())
+                                       .build()).run();
+    }
+}
@@ -0,0 +1,58 @@
+package chuumong.io.benchmark;
+
+import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+import chuumong.io.mediacore.mux.ContainerWriter;
+
+/**
+ * 파일을 쓰지 않고 기록된 샘플 수와 크기만 세는 ContainerWriter
+ */
+public class BlackholeWriter implements ContainerWriter {
+
+    private int trackCount;
+    private volatile long sampleCount;
+    private long byteCount;
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        return trackCount++;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        byteCount += info.size;
+        sampleCount++;
+        notifyAll();
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * 기록된 샘플 수가 count 이상이 될 때까지 대기
+     */
+    public synchronized void awaitSamples(long count) throws InterruptedException {
+        while (sampleCount < count) {
+            wait();
+        }
+    }
+}
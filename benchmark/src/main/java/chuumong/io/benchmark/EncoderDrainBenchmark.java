@@ -0,0 +1,130 @@
+package chuumong.io.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.codec.FakeEncoderBackend;
+import chuumong.io.mediacore.mux.SampleMuxer;
+
+/**
+ * 프레임 하나가 인코더에 들어가서 Muxer 에 기록될 때까지의 비용 (MediaEncoder.drain / encode 경로)
+ * <br/>
+ * asyncDrain=false 는 dequeueOutputBuffer 폴링, true 는 EncoderBackend 콜백으로 드레인
+ * <br/>
+ * 폴링은 출력이 없으면 TIMEOUT_USEC 씩 MAX_TRY_AGAIN 번까지 기다리므로 asyncDrain=false 에서는
+ * FakeEncoderBackend 의 대기 시간을 0 으로 제한해 타임아웃 대기가 아닌 드레인 비용만 측정
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderDrainBenchmark {
+
+    @State(Scope.Thread)
+    public static class ScreenState {
+
+        @Param({"false", "true"})
+        public boolean asyncDrain;
+
+        FakeEncoderBackend backend;
+        BlackholeWriter writer;
+        BenchEncoder encoder;
+        long expected;
+
+        @Setup
+        public void setUp() {
+            backend = new FakeEncoderBackend(FakeEncoderBackend.Config.h264(1920, 1080, 60, 8000000)
+                                                                      .setMaxWaitUs(asyncDrain ? -1 : 0));
+            writer = new BlackholeWriter();
+
+            encoder = new BenchEncoder(backend, new SampleMuxer(writer).registerTrack(), asyncDrain);
+            encoder.start();
+        }
+
+        @TearDown
+        public void tearDown() {
+            encoder.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AudioState {
+
+        private static final int FRAME_BYTES = 2048;
+
+        @Param({"false", "true"})
+        public boolean asyncDrain;
+
+        FakeEncoderBackend backend;
+        BlackholeWriter writer;
+        BenchEncoder encoder;
+        ByteBuffer pcm;
+        long expected;
+        long pts;
+
+        @Setup
+        public void setUp() {
+            backend = new FakeEncoderBackend(FakeEncoderBackend.Config.aac(44100, 1, 64000)
+                                                                      .setMaxWaitUs(asyncDrain ? -1 : 0));
+            writer = new BlackholeWriter();
+
+            encoder = new BenchEncoder(backend, new SampleMuxer(writer).registerTrack(), asyncDrain);
+            encoder.start();
+
+            pcm = ByteBuffer.allocateDirect(FRAME_BYTES);
+        }
+
+        @TearDown
+        public void tearDown() {
+            encoder.stop();
+        }
+    }
+
+    /**
+     * Surface 로 그려진 화면 프레임 하나를 Muxer 까지 전달
+     */
+    @Benchmark
+    public long screenFrame(ScreenState state) throws InterruptedException {
+        while (!state.backend.renderFrame()) {
+            state.encoder.drain();
+        }
+
+        state.expected++;
+
+        if (state.asyncDrain) {
+            state.writer.awaitSamples(state.expected);
+        }
+        else {
+            state.encoder.drain();
+        }
+
+        return state.writer.getSampleCount();
+    }
+
+    /**
+     * PCM 프레임 하나를 encode 로 넣고 Muxer 까지 전달
+     */
+    @Benchmark
+    public long audioFrame(AudioState state) throws InterruptedException {
+        state.pcm.clear();
+        state.encoder.encode(state.pcm, AudioState.FRAME_BYTES, state.pts += 23219);
+        state.expected++;
+
+        if (state.asyncDrain) {
+            state.writer.awaitSamples(state.expected);
+        }
+        else {
+            state.encoder.drain();
+        }
+
+        return state.writer.getSampleCount();
+    }
+}
@@ -0,0 +1,111 @@
+package chuumong.io.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import chuumong.io.mediacore.utils.MessageTask;
+
+/**
+ * EglTask 의 요청 처리 (queueEvent → 작업 스레드에서 실행) 비용, EGL 없이 같은 MessageTask 로 측정
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTaskBenchmark {
+
+    private static final int BATCH = 64;
+
+    private final AtomicLong processed = new AtomicLong();
+    private long sent;
+    private EmptyTask task;
+
+    private final Runnable event = new Runnable() {
+        @Override
+        public void run() {
+            processed.incrementAndGet();
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        task = new EmptyTask();
+        new Thread(task, "MessageTaskBenchmark").start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        task.release();
+    }
+
+    /**
+     * 요청 하나를 보내고 실행될 때까지의 왕복 시간
+     */
+    @Benchmark
+    public long roundTrip() {
+        task.queueEvent(event);
+        sent++;
+
+        while (processed.get() < sent) {
+            // spin
+        }
+
+        return sent;
+    }
+
+    /**
+     * 요청을 연달아 보내는 경우 (DrawTask 가 매 프레임 자신을 다시 넣는 것과 같은 패턴)
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long batch() {
+        for (int i = 0; i < BATCH; i++) {
+            task.queueEvent(event);
+        }
+        sent += BATCH;
+
+        while (processed.get() < sent) {
+            // spin
+        }
+
+        return sent;
+    }
+
+    private static final class EmptyTask extends MessageTask {
+
+        EmptyTask() {
+            init(0, null);
+        }
+
+        @Override
+        protected void onInit(int arg1, Object arg2) {
+        }
+
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onStop() {
+        }
+
+        @Override
+        protected boolean onError(Exception e) {
+            return true;
+        }
+
+        @Override
+        protected boolean processRequest(int request, int arg1, Object arg2) {
+            return false;
+        }
+    }
+}
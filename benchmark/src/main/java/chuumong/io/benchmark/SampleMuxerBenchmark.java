@@ -0,0 +1,92 @@
+package chuumong.io.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+import chuumong.io.mediacore.mux.ContainerWriter;
+import chuumong.io.mediacore.mux.QueuedContainerWriter;
+import chuumong.io.mediacore.mux.SampleMuxer;
+import chuumong.io.mediacore.mux.SampleSink;
+
+/**
+ * 화면 / 오디오 인코더 스레드가 동시에 writeSampleData 를 호출하는 경로 (MediaMuxerWrapper 의 writeData)
+ * <br/>
+ * queued=true 면 QueuedContainerWriter 를 거쳐 기록 스레드로 넘김, 인코더 스레드가 부담하는 비용만 측정
+ */
+@State(Scope.Group)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleMuxerBenchmark {
+
+    @Param({"false", "true"})
+    public boolean queued;
+
+    private SampleSink videoTrack;
+    private SampleSink audioTrack;
+    private int videoIndex;
+    private int audioIndex;
+
+    @State(Scope.Thread)
+    public static class VideoSample {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+        final SampleInfo info = new SampleInfo();
+        long pts;
+    }
+
+    @State(Scope.Thread)
+    public static class AudioSample {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        final SampleInfo info = new SampleInfo();
+        long pts;
+    }
+
+    @Setup
+    public void setUp() {
+        final ContainerWriter writer = new BlackholeWriter();
+        final SampleMuxer muxer = new SampleMuxer(queued ? new QueuedContainerWriter(writer, 256) : writer);
+        videoTrack = muxer.registerTrack();
+        audioTrack = muxer.registerTrack();
+        videoIndex = videoTrack.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 1920, 1080));
+        audioIndex = audioTrack.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+        videoTrack.start();
+        audioTrack.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        videoTrack.stop();
+        audioTrack.stop();
+    }
+
+    @Benchmark
+    @Group("av")
+    @GroupThreads(1)
+    public void video(VideoSample sample) {
+        sample.info.set(0, sample.buffer.capacity(), sample.pts += 16666, 0);
+        videoTrack.writeSampleData(videoIndex, sample.buffer, sample.info);
+    }
+
+    @Benchmark
+    @Group("av")
+    @GroupThreads(1)
+    public void audio(AudioSample sample) {
+        sample.info.set(0, sample.buffer.capacity(), sample.pts += 23219, 0);
+        audioTrack.writeSampleData(audioIndex, sample.buffer, sample.info);
+    }
+}
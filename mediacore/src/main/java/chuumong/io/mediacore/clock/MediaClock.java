@@ -0,0 +1,245 @@
+package chuumong.io.mediacore.clock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 녹화 중인 모든 트랙이 공유하는 시계, 일시정지한 시간을 누적해서 빼므로 여러 번 일시정지해도 트랙 간 싱크가 유지됨
+ * <br/>
+ * 일시정지 상태는 불변 객체 하나로 교체하므로 시간을 읽을 때 락을 잡지 않음
+ */
+public class MediaClock {
+
+    /**
+     * 시계의 기준 시간, 테스트에서는 직접 시간을 넣을 수 있도록 교체 가능
+     */
+    public interface TimeSource {
+        long nanoTime();
+    }
+
+    public static final TimeSource SYSTEM = new TimeSource() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final class State {
+        // 일시정지 중이 아니면 -1
+        final long pausedAtNs;
+        final long pausedTotalNs;
+        // 끝난 일시정지 구간, 오래된 순서
+        final long[] windowStartNs;
+        final long[] windowEndNs;
+        // 가장 오래된 구간 이전에 일시정지한 시간의 합
+        final long baseTotalNs;
+
+        State(long pausedAtNs, long pausedTotalNs, long[] windowStartNs, long[] windowEndNs, long baseTotalNs) {
+            this.pausedAtNs = pausedAtNs;
+            this.pausedTotalNs = pausedTotalNs;
+            this.windowStartNs = windowStartNs;
+            this.windowEndNs = windowEndNs;
+            this.baseTotalNs = baseTotalNs;
+        }
+
+        boolean isPaused() {
+            return pausedAtNs >= 0;
+        }
+
+        State pause(long now) {
+            return new State(now, pausedTotalNs, windowStartNs, windowEndNs, baseTotalNs);
+        }
+
+        /**
+         * 일시정지 구간을 닫고 기록, MAX_WINDOWS 를 넘으면 가장 오래된 구간을 baseTotalNs 에 합침
+         */
+        State resume(long now) {
+            final int drop = windowStartNs.length >= MAX_WINDOWS ? 1 : 0;
+            final int length = windowStartNs.length - drop;
+            final long[] starts = new long[length + 1];
+            final long[] ends = new long[length + 1];
+
+            System.arraycopy(windowStartNs, drop, starts, 0, length);
+            System.arraycopy(windowEndNs, drop, ends, 0, length);
+            starts[length] = pausedAtNs;
+            ends[length] = now;
+
+            final long base = drop > 0 ? baseTotalNs + (windowEndNs[0] - windowStartNs[0]) : baseTotalNs;
+
+            return new State(-1, pausedTotalNs + (now - pausedAtNs), starts, ends, base);
+        }
+
+        /**
+         * sourceTimeNs 까지 일시정지한 시간을 빼서 변환, 일시정지 구간 안이면 그 구간이 시작한 시점으로 변환
+         */
+        long toMediaTimeNs(long sourceTimeNs) {
+            if (isPaused() && sourceTimeNs >= pausedAtNs) {
+                return pausedAtNs - pausedTotalNs;
+            }
+
+            long total = baseTotalNs;
+
+            for (int i = 0; i < windowStartNs.length && windowStartNs[i] <= sourceTimeNs; i++) {
+                if (sourceTimeNs < windowEndNs[i]) {
+                    return windowStartNs[i] - total;
+                }
+                total += windowEndNs[i] - windowStartNs[i];
+            }
+
+            return sourceTimeNs - total;
+        }
+
+        boolean isPausedAt(long sourceTimeNs) {
+            if (isPaused() && sourceTimeNs >= pausedAtNs) {
+                return true;
+            }
+
+            for (int i = windowStartNs.length - 1; i >= 0 && windowEndNs[i] > sourceTimeNs; i--) {
+                if (windowStartNs[i] <= sourceTimeNs) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * 트랙 하나의 타임스탬프, 같은 시계에서 읽더라도 항상 이전 값보다 큰 값을 반환
+     */
+    public static final class Track {
+
+        private final MediaClock clock;
+        private final AtomicLong lastTimeUs = new AtomicLong(Long.MIN_VALUE);
+
+        private Track(MediaClock clock) {
+            this.clock = clock;
+        }
+
+        /**
+         * @return 현재 시계 시간, 이전에 반환한 값 이하면 이전 값 + 1
+         */
+        public long nextTimeUs() {
+            return advance(clock.getTimeUs());
+        }
+
+        /**
+         * 코덱 등 외부에서 정한 타임스탬프를 그대로 쓰되 이전 값 이하면 이전 값 + 1 로 보정
+         */
+        public long advance(long timeUs) {
+            long last, next;
+
+            do {
+                last = lastTimeUs.get();
+                next = timeUs > last ? timeUs : last + 1;
+            }
+            while (!lastTimeUs.compareAndSet(last, next));
+
+            return next;
+        }
+
+        public long getLastTimeUs() {
+            return lastTimeUs.get();
+        }
+    }
+
+    // 캡처 시각으로 변환할 수 있도록 기억하는 최근 일시정지 구간 수
+    private static final int MAX_WINDOWS = 32;
+
+    private final TimeSource timeSource;
+    private final AtomicReference<State> state = new AtomicReference<>(new State(-1, 0, new long[0], new long[0], 0));
+
+    public MediaClock() {
+        this(SYSTEM);
+    }
+
+    public MediaClock(TimeSource timeSource) {
+        this.timeSource = timeSource;
+    }
+
+    public Track newTrack() {
+        return new Track(this);
+    }
+
+    /**
+     * 일시정지한 시간을 뺀 현재 시간, 일시정지 중에는 일시정지한 시점에서 멈춤
+     * <br/>
+     * System.nanoTime 과 같은 기준이므로 일시정지하지 않았다면 Surface 의 기본 타임스탬프와 같음
+     */
+    public long getTimeNs() {
+        final State s = state.get();
+        final long now = s.isPaused() ? s.pausedAtNs : timeSource.nanoTime();
+
+        return now - s.pausedTotalNs;
+    }
+
+    public long getTimeUs() {
+        return getTimeNs() / 1000L;
+    }
+
+    /**
+     * 기준 시간(예를 들어 SurfaceTexture 의 타임스탬프)을 시계 시간으로 변환
+     * <br/>
+     * 변환하는 시점이 아니라 캡처한 시점까지 일시정지한 시간을 빼므로, 일시정지 전에 캡처해서 재개한 뒤에 꺼낸 프레임도 뒤로 가지 않음
+     * 일시정지 구간 안의 시간은 일시정지한 시점으로 변환
+     */
+    public long toMediaTimeNs(long sourceTimeNs) {
+        return state.get().toMediaTimeNs(sourceTimeNs);
+    }
+
+    /**
+     * @return 기준 시간 sourceTimeNs 가 일시정지 구간 안이면 true, 일시정지 중에 코덱이 만든 프레임을 버릴 때 사용
+     */
+    public boolean isPausedAt(long sourceTimeNs) {
+        return state.get().isPausedAt(sourceTimeNs);
+    }
+
+    /**
+     * @return 이미 일시정지 중이면 false
+     */
+    public boolean pause() {
+        final long now = timeSource.nanoTime();
+        State s;
+
+        do {
+            s = state.get();
+
+            if (s.isPaused()) {
+                return false;
+            }
+        }
+        while (!state.compareAndSet(s, s.pause(now)));
+
+        return true;
+    }
+
+    /**
+     * @return 일시정지 중이 아니었으면 false
+     */
+    public boolean resume() {
+        final long now = timeSource.nanoTime();
+        State s;
+
+        do {
+            s = state.get();
+
+            if (!s.isPaused()) {
+                return false;
+            }
+        }
+        while (!state.compareAndSet(s, s.resume(now)));
+
+        return true;
+    }
+
+    public boolean isPaused() {
+        return state.get().isPaused();
+    }
+
+    /**
+     * @return 지금까지 일시정지한 시간의 합, 일시정지 중인 시간은 포함하지 않음
+     */
+    public long getPausedDurationUs() {
+        return state.get().pausedTotalNs / 1000L;
+    }
+}
@@ -0,0 +1,401 @@
+package chuumong.io.mediacore.codec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import chuumong.io.mediacore.mux.SampleSink;
+
+/**
+ * EncoderBackend 에 입력을 넣고 출력을 SampleSink 로 옮기는 인코더 공통 처리
+ * <br/>
+ * 스레드와 생명주기는 하위 클래스가 관리하고, 여기서는 드레인 / 인코딩 루프와 비동기 콜백만 처리
+ */
+public abstract class BaseEncoder {
+
+    protected static final long TIMEOUT_USEC = 10000;
+    private static final int MAX_TRY_AGAIN = 5;
+
+    /**
+     * true 면 codecCallback 으로 출력 버퍼를 받는 즉시 SampleSink 로 전달
+     */
+    protected final boolean asyncDrain;
+
+    protected EncoderBackend codec;
+
+    protected int trackIndex;
+    protected volatile boolean isCapturing;
+    protected boolean muxerStarted;
+
+    protected volatile boolean isEOS;
+    // 마지막으로 Muxer 에 기록한 타임스탬프, 아직 기록하지 않았으면 Long.MIN_VALUE
+    protected long prevOutputPTSUs = Long.MIN_VALUE;
+    // Muxer 에 기록한 전체 바이트 수, 드레인 스레드에서만 갱신
+    private volatile long encodedBytes;
+
+    /**
+     * 인코더가 밀릴 때 입력 프레임을 버리는 정책과 통계
+     */
+    protected final FlowController flowController = new FlowController(FlowController.Policy.BLOCK);
+
+    private final SampleInfo bufferInfo = new SampleInfo();
+    private final LinkedBlockingQueue<Integer> inputBufferIndices = new LinkedBlockingQueue<>();
+    private boolean requestEndOfStream;
+
+    // DROP_OLDEST 정책에서 입력 버퍼가 없을 때 보관하는 가장 최근 프레임
+    private ByteBuffer pendingInput;
+    private int pendingLength;
+    private long pendingTime;
+
+    protected BaseEncoder(boolean asyncDrain) {
+        this.asyncDrain = asyncDrain;
+    }
+
+    public FlowController getFlowController() {
+        return flowController;
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * @return 출력을 기록할 대상, 이미 해제되었으면 null
+     */
+    protected abstract SampleSink getSink();
+
+    /**
+     * @return 입력 버퍼에 붙일 타임스탬프, 호출할 때마다 이전 값보다 커야 함
+     */
+    protected abstract long getPTSUs();
+
+    /**
+     * 비동기 모드에서 EOS 출력을 받았거나 코덱 오류가 발생했을 때 콜백 스레드에서 호출
+     */
+    protected abstract void onAsyncFinished();
+
+    protected void onCodecError(Exception e) {
+        onAsyncFinished();
+    }
+
+    /**
+     * 코덱이 준 타임스탬프를 Muxer 에 기록할 타임스탬프로 변환, 입력 시간의 기준이 다른 경우 하위 클래스에서 변환
+     */
+    protected long getOutputPTSUs(long presentationTimeUs) {
+        return presentationTimeUs;
+    }
+
+    /**
+     * @return 코덱이 준 타임스탬프의 출력을 기록하지 않고 버리려면 true, 일시정지 중에 코덱이 만든 프레임 등
+     */
+    protected boolean isOutputDiscarded(long presentationTimeUs) {
+        return false;
+    }
+
+    protected void signalEndOfInputStream() {
+        if (asyncDrain) {
+            // 콜백 스레드에서 호출되므로 입력 버퍼를 기다리지 않고, 없으면 다음 onInputBufferAvailable 에서 EOS 전달
+            final Integer index = inputBufferIndices.poll();
+
+            if (index != null) {
+                queueEndOfStream(index);
+            }
+            else {
+                requestEndOfStream = true;
+            }
+        }
+        else {
+            encode(null, 0, getPTSUs());
+        }
+    }
+
+    protected void drain() {
+        if (codec == null) {
+            return;
+        }
+
+        final SampleSink sink = getSink();
+        if (sink == null) {
+            return;
+        }
+
+        int encoderStatus, count = 0;
+
+        LOOP:
+        while (isCapturing) {
+            encoderStatus = codec.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
+
+            switch (encoderStatus) {
+                case EncoderBackend.INFO_TRY_AGAIN_LATER:
+                    if (!isEOS) {
+                        if (++count > MAX_TRY_AGAIN) {
+                            break LOOP;
+                        }
+                    }
+                    break;
+                case EncoderBackend.INFO_OUTPUT_BUFFERS_CHANGED:
+                    break;
+                case EncoderBackend.INFO_OUTPUT_FORMAT_CHANGED:
+                    if (!startMuxer(sink, codec.getOutputFormat())) {
+                        break LOOP;
+                    }
+                    break;
+                default:
+                    final ByteBuffer encodedData = codec.getOutputBuffer(encoderStatus);
+                    if (encodedData == null) {
+                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
+                    }
+
+                    if (writeEncodedData(sink, encodedData, bufferInfo)) {
+                        count = 0;
+                    }
+
+                    codec.releaseOutputBuffer(encoderStatus);
+
+                    if (bufferInfo.isEndOfStream()) {
+                        isCapturing = false;
+                        break;
+                    }
+            }
+        }
+    }
+
+    /**
+     * 출력 포맷으로 트랙을 추가하고 모든 인코더가 준비되어 Muxer 가 시작될 때까지 대기
+     *
+     * @return 대기 중 인터럽트 되면 false
+     */
+    private boolean startMuxer(SampleSink sink, TrackFormat format) {
+        if (muxerStarted) {
+            throw new RuntimeException("format changed twice");
+        }
+
+        trackIndex = sink.addTrack(format);
+        muxerStarted = true;
+
+        if (!sink.start()) {
+            synchronized (sink) {
+                while (!sink.isStarted()) {
+                    try {
+                        sink.wait(100);
+                    }
+                    catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 인코딩 된 데이터를 Muxer 에 기록, 코덱 설정 데이터는 건너뜀
+     * <br/>
+     * 타임스탬프는 코덱이 준 값(입력 또는 Surface 에 지정한 시간)을 그대로 기록
+     * B 프레임이 있으면 출력 순서에서 PTS 가 감소할 수 있으므로 여기서는 보정하지 않음
+     *
+     * @return 실제로 기록했으면 true
+     */
+    private boolean writeEncodedData(SampleSink sink, ByteBuffer encodedData, SampleInfo info) {
+        if (info.isCodecConfig()) {
+            info.size = 0;
+        }
+
+        if (info.size == 0) {
+            return false;
+        }
+
+        if (!muxerStarted) {
+            throw new RuntimeException("drain muxer hasn't started");
+        }
+
+        flowController.onFrameCompleted(info.presentationTimeUs);
+
+        if (isOutputDiscarded(info.presentationTimeUs)) {
+            return false;
+        }
+
+        info.presentationTimeUs = getOutputPTSUs(info.presentationTimeUs);
+        sink.writeSampleData(trackIndex, encodedData, info);
+        prevOutputPTSUs = info.presentationTimeUs;
+        encodedBytes += info.size;
+
+        return true;
+    }
+
+    /**
+     * 입력 데이터를 코덱에 넣음, 입력 버퍼가 없으면 FlowController 의 정책에 따라 기다리거나 버림
+     * <br/>
+     * EOS(length <= 0)는 버리지 않고 입력 버퍼가 생기거나 캡처가 끝날 때까지 기다림
+     *
+     * @return 코덱에 넣었으면 true
+     */
+    protected boolean encode(final ByteBuffer buffer, int length, long time) {
+        if (!isCapturing) {
+            return false;
+        }
+
+        if (length <= 0) {
+            while (isCapturing) {
+                if (queueInput(null, 0, time, TIMEOUT_USEC)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        final FlowController.Policy policy = flowController.getPolicy();
+        final long timeoutUs = policy == FlowController.Policy.BLOCK ? flowController.getBlockTimeoutUs() : TIMEOUT_USEC;
+
+        if (pendingLength > 0) {
+            if (!queueInput(pendingInput, pendingLength, pendingTime, timeoutUs)) {
+                // 아직 입력 버퍼가 없으면 보관 중인 오래된 프레임을 버리고 지금 프레임을 보관
+                flowController.onFrameDropped();
+                keepPendingInput(buffer, length, time);
+                return false;
+            }
+
+            pendingLength = 0;
+        }
+
+        if (queueInput(buffer, length, time, timeoutUs)) {
+            return true;
+        }
+
+        if (policy == FlowController.Policy.DROP_OLDEST) {
+            keepPendingInput(buffer, length, time);
+        }
+        else {
+            flowController.onFrameDropped();
+        }
+
+        return false;
+    }
+
+    /**
+     * timeoutUs 동안 입력 버퍼를 기다려서 데이터를 넣음, 데이터가 없으면 EOS 를 넣음
+     */
+    private boolean queueInput(final ByteBuffer buffer, int length, long time, long timeoutUs) {
+        final long deadlineNs = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+
+        do {
+            final long waitUs = Math.max(0, Math.min(TIMEOUT_USEC, TimeUnit.NANOSECONDS.toMicros(deadlineNs - System.nanoTime())));
+            final int inputBufferIndex = dequeueInputBuffer(waitUs);
+
+            if (inputBufferIndex >= 0) {
+                if (length <= 0) {
+                    queueEndOfStream(inputBufferIndex, time);
+                }
+                else {
+                    final ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+                    inputBuffer.clear();
+
+                    // 데이터 저장
+                    final int position = buffer.position();
+                    inputBuffer.put(buffer);
+                    buffer.position(position);
+
+                    codec.queueInputBuffer(inputBufferIndex, 0, length, time, 0);
+                }
+
+                return true;
+            }
+        }
+        while (isCapturing && System.nanoTime() < deadlineNs);
+
+        return false;
+    }
+
+    /**
+     * 비동기 모드면 onInputBufferAvailable 로 전달받은 입력 버퍼를 기다림
+     */
+    private int dequeueInputBuffer(long timeoutUs) {
+        if (!asyncDrain) {
+            return codec.dequeueInputBuffer(timeoutUs);
+        }
+
+        final Integer index;
+
+        try {
+            index = inputBufferIndices.poll(timeoutUs, TimeUnit.MICROSECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EncoderBackend.INFO_TRY_AGAIN_LATER;
+        }
+
+        return index != null ? index : EncoderBackend.INFO_TRY_AGAIN_LATER;
+    }
+
+    private void keepPendingInput(final ByteBuffer buffer, int length, long time) {
+        if (pendingInput == null || pendingInput.capacity() < length) {
+            pendingInput = ByteBuffer.allocateDirect(length);
+        }
+
+        pendingInput.clear();
+
+        final int position = buffer.position();
+        pendingInput.put(buffer);
+        buffer.position(position);
+
+        pendingInput.flip();
+        pendingLength = length;
+        pendingTime = time;
+    }
+
+    private void queueEndOfStream(int inputBufferIndex) {
+        queueEndOfStream(inputBufferIndex, getPTSUs());
+    }
+
+    private void queueEndOfStream(int inputBufferIndex, long time) {
+        isEOS = true;
+        codec.queueInputBuffer(inputBufferIndex, 0, 0, time, EncoderBackend.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    /**
+     * 비동기 드레인 모드에서 EncoderBackend 에 등록하는 콜백
+     */
+    protected final EncoderBackend.Callback codecCallback = new EncoderBackend.Callback() {
+        @Override
+        public void onInputBufferAvailable(EncoderBackend backend, int index) {
+            if (requestEndOfStream) {
+                requestEndOfStream = false;
+                queueEndOfStream(index);
+            }
+            else {
+                inputBufferIndices.offer(index);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(EncoderBackend backend, int index, SampleInfo info) {
+            final SampleSink sink = getSink();
+
+            if (sink != null) {
+                writeEncodedData(sink, backend.getOutputBuffer(index), info);
+            }
+
+            backend.releaseOutputBuffer(index);
+
+            if (info.isEndOfStream()) {
+                isCapturing = false;
+                onAsyncFinished();
+            }
+        }
+
+        @Override
+        public void onError(EncoderBackend backend, Exception e) {
+            onCodecError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(EncoderBackend backend, TrackFormat format) {
+            final SampleSink sink = getSink();
+
+            if (sink != null) {
+                startMuxer(sink, format);
+            }
+        }
+    };
+}
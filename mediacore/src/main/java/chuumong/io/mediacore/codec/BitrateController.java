@@ -0,0 +1,178 @@
+package chuumong.io.mediacore.codec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 인코딩 된 데이터 양, 기록 대기 큐 깊이, 화면 변화량을 보고 영상 인코더의 목표 비트레이트를 정하는 폐루프 제어기
+ * <br/>
+ * 코덱을 직접 다루지 않고 update 가 새 비트레이트만 반환하므로, 기록해 둔 측정값을 그대로 넣어 테스트할 수 있음
+ * <br/>
+ * 정지된 화면에서는 최소 비트레이트 쪽으로 천천히 내리고, 화면이 움직이거나 인코더가 예산을 다 쓰면 빠르게 올리며,
+ * 기록이 밀리면(큐가 쌓이면) 화면과 관계없이 내림
+ */
+public class BitrateController {
+
+    /**
+     * 주기마다 측정한 값
+     */
+    public static final class Sample {
+        /**
+         * 측정 시각
+         */
+        public long timeNs;
+        /**
+         * 지금까지 인코딩 된 전체 바이트 수 (누적값)
+         */
+        public long encodedBytes;
+        /**
+         * 기록을 기다리는 샘플 수
+         */
+        public int queueDepth;
+        /**
+         * 이번 주기 동안 화면이 바뀐 정도 0 ~ 1, 알 수 없으면 음수
+         */
+        public float activity;
+
+        public Sample set(long timeNs, long encodedBytes, int queueDepth, float activity) {
+            this.timeNs = timeNs;
+            this.encodedBytes = encodedBytes;
+            this.queueDepth = queueDepth;
+            this.activity = activity;
+            return this;
+        }
+    }
+
+    public static final long DEFAULT_MIN_CHANGE_INTERVAL_MS = 2000;
+
+    // 화면 변화량 평활 계수, 올릴 때는 바로 반영하고 내릴 때만 천천히 따라감
+    private static final float ACTIVITY_DECAY = 0.3f;
+    // 인코더가 목표의 이 비율 이상을 쓰면 예산이 부족한 것으로 판단
+    private static final float SATURATION = 0.9f;
+    private static final float STEP_UP = 1.5f;
+    private static final float STEP_DOWN = 0.75f;
+    private static final float CONGESTION_STEP_DOWN = 0.7f;
+    // 목표가 이 비율 이상 달라질 때만 코덱 설정을 바꿈, 최소 / 최대값으로 가는 경우는 제외
+    private static final float HYSTERESIS = 0.1f;
+    // 이보다 작은 화면 변화량은 정지된 화면으로 봄
+    private static final float IDLE_ACTIVITY = 0.01f;
+
+    private final int minBitRate;
+    private final int maxBitRate;
+    private final int congestionQueueDepth;
+    private final long minChangeIntervalNs;
+
+    private int bitRate;
+    private float activity;
+    private boolean hasSample;
+    private long lastTimeNs;
+    private long lastEncodedBytes;
+    private long lastChangeNs;
+    private float measuredBitRate;
+
+    public BitrateController(int minBitRate, int maxBitRate, int initialBitRate, int congestionQueueDepth) {
+        this(minBitRate, maxBitRate, initialBitRate, congestionQueueDepth, DEFAULT_MIN_CHANGE_INTERVAL_MS);
+    }
+
+    /**
+     * @param congestionQueueDepth 기록 대기 큐가 이 깊이 이상이면 저장소가 밀리는 것으로 보고 비트레이트를 내림
+     * @param minChangeIntervalMs  비트레이트를 다시 바꾸기까지의 최소 간격, 혼잡으로 내리는 경우는 제외
+     */
+    public BitrateController(int minBitRate, int maxBitRate, int initialBitRate, int congestionQueueDepth, long minChangeIntervalMs) {
+        if (minBitRate <= 0 || maxBitRate < minBitRate) {
+            throw new IllegalArgumentException("invalid bitrate range " + minBitRate + " ~ " + maxBitRate);
+        }
+
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.congestionQueueDepth = congestionQueueDepth;
+        this.minChangeIntervalNs = TimeUnit.MILLISECONDS.toNanos(minChangeIntervalMs);
+        this.bitRate = clamp(initialBitRate);
+        this.activity = 1f;
+    }
+
+    /**
+     * 측정값을 반영해서 목표 비트레이트를 계산
+     *
+     * @return 코덱에 설정할 비트레이트, 바꿀 필요가 없으면 현재 값 그대로
+     */
+    public int update(Sample sample) {
+        if (!hasSample) {
+            hasSample = true;
+            lastTimeNs = lastChangeNs = sample.timeNs;
+            lastEncodedBytes = sample.encodedBytes;
+            return bitRate;
+        }
+
+        final long elapsedNs = sample.timeNs - lastTimeNs;
+        if (elapsedNs <= 0) {
+            return bitRate;
+        }
+
+        measuredBitRate = (sample.encodedBytes - lastEncodedBytes) * 8f * TimeUnit.SECONDS.toNanos(1) / elapsedNs;
+        lastTimeNs = sample.timeNs;
+        lastEncodedBytes = sample.encodedBytes;
+
+        final float utilization = measuredBitRate / bitRate;
+        final float current = sample.activity >= 0 ? Math.min(1f, sample.activity) : Math.min(1f, utilization);
+
+        activity = current > activity ? current : activity + (current - activity) * ACTIVITY_DECAY;
+        if (activity < IDLE_ACTIVITY) {
+            activity = 0;
+        }
+
+        float target = minBitRate + (maxBitRate - minBitRate) * activity;
+
+        if (utilization >= SATURATION) {
+            // 인코더가 예산을 다 쓰면 화면 변화량과 관계없이 한 단계 올림
+            target = Math.max(target, bitRate * STEP_UP);
+        }
+
+        if (sample.queueDepth >= congestionQueueDepth) {
+            // 저장소가 밀리면 간격과 관계없이 바로 내림
+            return changeTo(clamp((int) Math.min(target, bitRate * CONGESTION_STEP_DOWN)), sample.timeNs);
+        }
+
+        // 화면이 움직이면 바로 올리고, 내릴 때는 한 번에 STEP_DOWN 까지만
+        target = Math.max(bitRate * STEP_DOWN, target);
+        final int next = clamp((int) target);
+
+        final boolean toBound = next != bitRate && (next == minBitRate || next == maxBitRate);
+
+        if ((!toBound && Math.abs(next - bitRate) < bitRate * HYSTERESIS) || sample.timeNs - lastChangeNs < minChangeIntervalNs) {
+            return bitRate;
+        }
+
+        return changeTo(next, sample.timeNs);
+    }
+
+    private int changeTo(int next, long timeNs) {
+        if (next != bitRate) {
+            bitRate = next;
+            lastChangeNs = timeNs;
+        }
+
+        return bitRate;
+    }
+
+    private int clamp(int value) {
+        return Math.max(minBitRate, Math.min(maxBitRate, value));
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * @return 마지막 주기 동안 실제로 인코딩 된 비트레이트
+     */
+    public float getMeasuredBitRate() {
+        return measuredBitRate;
+    }
+
+    /**
+     * @return 평활된 화면 변화량 0 ~ 1
+     */
+    public float getActivity() {
+        return activity;
+    }
+}
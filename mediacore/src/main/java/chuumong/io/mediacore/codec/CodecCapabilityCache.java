@@ -0,0 +1,255 @@
+package chuumong.io.mediacore.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MIME 타입별로 선택한 인코더와 그 기능(색 형식, 프로파일 / 레벨, 크기 / 비트레이트 범위)을 저장
+ * <br/>
+ * 코덱 목록은 OS 빌드가 바뀌지 않으면 그대로이므로 빌드 fingerprint 와 함께 파일로 저장해두고,
+ * 녹화를 시작할 때 코덱 목록을 다시 조회하지 않도록 함
+ */
+public final class CodecCapabilityCache {
+
+    private static final int MAGIC = 0x43434150; // "CCAP"
+    private static final int VERSION = 1;
+
+    /**
+     * 인코더 하나의 기능, 범위를 알 수 없으면 0
+     */
+    public static final class Entry {
+        private final String mime;
+        private final String name;
+        private int[] colorFormats = new int[0];
+        private int[] profiles = new int[0];
+        private int[] levels = new int[0];
+        private int minWidth, maxWidth, minHeight, maxHeight;
+        private int widthAlignment = 1, heightAlignment = 1;
+        private int minBitRate, maxBitRate;
+
+        public Entry(String mime, String name) {
+            this.mime = mime;
+            this.name = name;
+        }
+
+        public Entry setColorFormats(int[] colorFormats) {
+            this.colorFormats = colorFormats.clone();
+            return this;
+        }
+
+        /**
+         * profiles 와 levels 는 같은 순서의 쌍
+         */
+        public Entry setProfileLevels(int[] profiles, int[] levels) {
+            if (profiles.length != levels.length) {
+                throw new IllegalArgumentException("profiles and levels must have the same length");
+            }
+
+            this.profiles = profiles.clone();
+            this.levels = levels.clone();
+            return this;
+        }
+
+        public Entry setSizeRange(int minWidth, int maxWidth, int minHeight, int maxHeight) {
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            return this;
+        }
+
+        public Entry setAlignment(int widthAlignment, int heightAlignment) {
+            this.widthAlignment = Math.max(1, widthAlignment);
+            this.heightAlignment = Math.max(1, heightAlignment);
+            return this;
+        }
+
+        public Entry setBitRateRange(int minBitRate, int maxBitRate) {
+            this.minBitRate = minBitRate;
+            this.maxBitRate = maxBitRate;
+            return this;
+        }
+
+        public String getMime() {
+            return mime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean supportsColorFormat(int colorFormat) {
+            for (int format : colorFormats) {
+                if (format == colorFormat) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        public int[] getColorFormats() {
+            return colorFormats.clone();
+        }
+
+        public int[] getProfiles() {
+            return profiles.clone();
+        }
+
+        public int[] getLevels() {
+            return levels.clone();
+        }
+
+        public int getMinWidth() {
+            return minWidth;
+        }
+
+        public int getMaxWidth() {
+            return maxWidth;
+        }
+
+        public int getMinHeight() {
+            return minHeight;
+        }
+
+        public int getMaxHeight() {
+            return maxHeight;
+        }
+
+        public int getWidthAlignment() {
+            return widthAlignment;
+        }
+
+        public int getHeightAlignment() {
+            return heightAlignment;
+        }
+
+        public int getMinBitRate() {
+            return minBitRate;
+        }
+
+        public int getMaxBitRate() {
+            return maxBitRate;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" + mime + ", " + name + ", " + maxWidth + "x" + maxHeight + ", bitRate " + minBitRate + "~" + maxBitRate + "}";
+        }
+    }
+
+    private final String fingerprint;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    public CodecCapabilityCache(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public synchronized void put(Entry entry) {
+        entries.put(entry.mime, entry);
+    }
+
+    /**
+     * @return 저장된 인코더, 없으면 null
+     */
+    public synchronized Entry get(String mime) {
+        return entries.get(mime);
+    }
+
+    public synchronized Collection<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeUTF(fingerprint);
+        data.writeInt(entries.size());
+
+        for (Entry entry : entries.values()) {
+            data.writeUTF(entry.mime);
+            data.writeUTF(entry.name);
+            writeInts(data, entry.colorFormats);
+            writeInts(data, entry.profiles);
+            writeInts(data, entry.levels);
+            data.writeInt(entry.minWidth);
+            data.writeInt(entry.maxWidth);
+            data.writeInt(entry.minHeight);
+            data.writeInt(entry.maxHeight);
+            data.writeInt(entry.widthAlignment);
+            data.writeInt(entry.heightAlignment);
+            data.writeInt(entry.minBitRate);
+            data.writeInt(entry.maxBitRate);
+        }
+
+        data.flush();
+    }
+
+    /**
+     * @throws IOException 형식이나 버전이 다르면 발생, 호출한 쪽에서 코덱 목록을 다시 조회
+     */
+    public static CodecCapabilityCache readFrom(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not a codec capability cache");
+        }
+
+        final int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported cache version " + version);
+        }
+
+        final CodecCapabilityCache cache = new CodecCapabilityCache(data.readUTF());
+        final int count = data.readInt();
+
+        for (int i = 0; i < count; i++) {
+            final Entry entry = new Entry(data.readUTF(), data.readUTF());
+            entry.colorFormats = readInts(data);
+            entry.profiles = readInts(data);
+            entry.levels = readInts(data);
+            entry.setSizeRange(data.readInt(), data.readInt(), data.readInt(), data.readInt());
+            entry.setAlignment(data.readInt(), data.readInt());
+            entry.setBitRateRange(data.readInt(), data.readInt());
+
+            if (entry.profiles.length != entry.levels.length) {
+                throw new IOException("corrupted profile levels");
+            }
+
+            cache.put(entry);
+        }
+
+        return cache;
+    }
+
+    private static void writeInts(DataOutputStream data, int[] values) throws IOException {
+        data.writeShort(values.length);
+
+        for (int value : values) {
+            data.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream data) throws IOException {
+        final int[] values = new int[data.readUnsignedShort()];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.readInt();
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,78 @@
+package chuumong.io.mediacore.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 인코더 구현체(MediaCodec, 테스트용 가짜 코덱 등)를 감싸는 공통 인터페이스
+ * <br/>
+ * 상수와 호출 순서는 android.media.MediaCodec 과 동일하게 맞춤
+ */
+public interface EncoderBackend {
+
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    int BUFFER_FLAG_KEY_FRAME = 1;
+    int BUFFER_FLAG_CODEC_CONFIG = 2;
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    /**
+     * 비동기 모드로 전환, start 전에 호출해야 함
+     * <br/>
+     * 콜백이 설정되면 dequeueInputBuffer / dequeueOutputBuffer 는 사용할 수 없음
+     */
+    void setCallback(Callback callback);
+
+    void start();
+
+    void stop();
+
+    void release();
+
+    /**
+     * @return 입력 버퍼 인덱스, 없으면 INFO_TRY_AGAIN_LATER
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * Surface 입력 인코더의 입력 종료
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * @return 출력 버퍼 인덱스 또는 INFO_* 상태 값
+     */
+    int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    TrackFormat getOutputFormat();
+
+    /**
+     * 실행 중인 영상 인코더의 목표 비트레이트 변경, start 이후에 호출
+     */
+    void setVideoBitrate(int bitRate);
+
+    /**
+     * 영상 인코더가 가능한 빨리 키 프레임을 만들도록 요청, start 이후에 호출
+     */
+    void requestSyncFrame();
+
+    interface Callback {
+
+        void onInputBufferAvailable(EncoderBackend backend, int index);
+
+        void onOutputBufferAvailable(EncoderBackend backend, int index, SampleInfo info);
+
+        void onOutputFormatChanged(EncoderBackend backend, TrackFormat format);
+
+        void onError(EncoderBackend backend, Exception e);
+    }
+}
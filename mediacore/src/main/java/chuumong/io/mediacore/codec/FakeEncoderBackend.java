@@ -0,0 +1,708 @@
+package chuumong.io.mediacore.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 실제 코덱 없이 H.264 / AAC 형태의 패킷을 만들어 내는 결정적(deterministic) 가짜 인코더
+ * <br/>
+ * 같은 Config 와 입력이면 항상 같은 크기, 플래그, 타임스탬프의 출력을 만들기 때문에
+ * 일반 JVM 에서 드레인 / 인코딩 / Muxer 경로의 처리량과 지연을 측정하는 데 사용
+ * <br/>
+ * Surface 입력 인코더는 renderFrame 으로, ByteBuffer 입력 인코더는 queueInputBuffer 로 프레임을 넣음
+ */
+public class FakeEncoderBackend implements EncoderBackend {
+
+    /**
+     * Surface 입력의 BufferQueue 처럼 인코더가 처리하지 못하고 쌓아둘 수 있는 프레임 수
+     */
+    public static final int SURFACE_QUEUE_DEPTH = 3;
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final byte NAL_IDR = 0x65;
+    private static final byte NAL_NON_IDR = 0x41;
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE8, 0x06,
+                                       (byte) 0xD0, (byte) 0xA1, 0x35};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x06, (byte) 0xE2};
+    private static final int[] AAC_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000,
+                                                   7350};
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private final Config config;
+    private final TrackFormat format;
+    private final byte[] codecConfig;
+    private final Object lock = new Object();
+
+    private final ByteBuffer[] inputBuffers;
+    private final int[] freeInputs;
+    private int freeInputCount;
+
+    private final ByteBuffer[] outputBuffers;
+    private final SampleInfo[] outputInfos;
+    private final int[] freeOutputs;
+    private int freeOutputCount;
+    private final int[] readyOutputs;
+    private int readyHead, readyCount;
+
+    // 인코딩 대기 중인 프레임 (입력 버퍼 인덱스, Surface 프레임이면 -1)
+    private final int[] pendingIndex;
+    private final long[] pendingPts;
+    private final int[] pendingFlags;
+    private final long[] pendingReadyNs;
+    private int pendingHead, pendingCount, surfacePendingCount;
+    private long lastReadyNs;
+
+    private Callback callback;
+    private Thread callbackThread;
+    private boolean started;
+    private boolean formatSent;
+    private boolean configSent;
+    private boolean outputEOS;
+
+    private long frameIndex;
+    private long renderIndex;
+    private long lastPts;
+    private long random;
+    // setVideoBitrate 로 바뀐 비트레이트와 설정한 비트레이트의 비율
+    private double bitRateScale = 1.0;
+    // requestSyncFrame 이후 다음 프레임을 키 프레임으로 만듦
+    private boolean syncFrameRequested;
+    private long encodedFrames;
+    private long encodedBytes;
+
+    public FakeEncoderBackend(Config config) {
+        this.config = config;
+        this.format = config.format;
+        this.random = config.seed;
+
+        if (format.isVideo()) {
+            codecConfig = new byte[SPS.length + PPS.length];
+            System.arraycopy(SPS, 0, codecConfig, 0, SPS.length);
+            System.arraycopy(PPS, 0, codecConfig, SPS.length, PPS.length);
+            format.setCsd0(ByteBuffer.wrap(SPS));
+            format.setCsd1(ByteBuffer.wrap(PPS));
+        }
+        else {
+            codecConfig = audioSpecificConfig(format.getSampleRate(), format.getChannelCount());
+            format.setCsd0(ByteBuffer.wrap(codecConfig));
+        }
+
+        inputBuffers = new ByteBuffer[config.inputBufferCount];
+        freeInputs = new int[config.inputBufferCount];
+
+        outputBuffers = new ByteBuffer[config.outputBufferCount];
+        outputInfos = new SampleInfo[config.outputBufferCount];
+        freeOutputs = new int[config.outputBufferCount];
+        readyOutputs = new int[config.outputBufferCount];
+
+        final int maxPacketSize = Math.max(codecConfig.length, maxFrameSize());
+        for (int i = 0; i < outputBuffers.length; i++) {
+            outputBuffers[i] = ByteBuffer.allocateDirect(maxPacketSize);
+            fillPayload(outputBuffers[i]);
+            outputInfos[i] = new SampleInfo();
+        }
+
+        final int pendingCapacity = config.inputBufferCount + SURFACE_QUEUE_DEPTH + 1;
+        pendingIndex = new int[pendingCapacity];
+        pendingPts = new long[pendingCapacity];
+        pendingFlags = new int[pendingCapacity];
+        pendingReadyNs = new long[pendingCapacity];
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        synchronized (lock) {
+            if (started) {
+                throw new IllegalStateException("setCallback after start");
+            }
+
+            this.callback = callback;
+        }
+    }
+
+    @Override
+    public void start() {
+        synchronized (lock) {
+            if (started) {
+                throw new IllegalStateException("already started");
+            }
+
+            started = true;
+            formatSent = configSent = outputEOS = false;
+            frameIndex = renderIndex = lastPts = 0;
+            pendingHead = pendingCount = surfacePendingCount = 0;
+            readyHead = readyCount = 0;
+            lastReadyNs = 0;
+
+            freeInputCount = 0;
+            for (int i = inputBuffers.length - 1; i >= 0; i--) {
+                freeInputs[freeInputCount++] = i;
+            }
+
+            freeOutputCount = 0;
+            for (int i = outputBuffers.length - 1; i >= 0; i--) {
+                freeOutputs[freeOutputCount++] = i;
+            }
+
+            if (callback != null) {
+                callbackThread = new Thread(callbackLoop, getClass().getSimpleName());
+                callbackThread.start();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        final Thread thread;
+
+        synchronized (lock) {
+            started = false;
+            thread = callbackThread;
+            callbackThread = null;
+            lock.notifyAll();
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (lock) {
+            checkSyncMode();
+
+            final long deadline = System.nanoTime() + waitUs(timeoutUs) * 1000;
+
+            while (freeInputCount == 0) {
+                if (!awaitLocked(deadline)) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+
+            return freeInputs[--freeInputCount];
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        synchronized (lock) {
+            if (inputBuffers[index] == null) {
+                inputBuffers[index] = ByteBuffer.allocateDirect(config.inputBufferSize);
+            }
+
+            return inputBuffers[index];
+        }
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        synchronized (lock) {
+            checkStarted();
+            offerPendingLocked(index, presentationTimeUs, flags);
+        }
+    }
+
+    /**
+     * Surface 에 프레임을 그린 것과 같은 효과, 타임스탬프는 frameRate 로 계산
+     *
+     * @return 인코더가 밀려서 프레임을 받을 수 없으면 false
+     */
+    public boolean renderFrame() {
+        synchronized (lock) {
+            return renderFrame(renderIndex * 1000000L / config.frameRate);
+        }
+    }
+
+    /**
+     * Surface 에 presentationTimeUs 시각의 프레임을 그린 것과 같은 효과
+     *
+     * @return 인코더가 밀려서 프레임을 받을 수 없으면 false
+     */
+    public boolean renderFrame(long presentationTimeUs) {
+        synchronized (lock) {
+            checkStarted();
+
+            if (surfacePendingCount >= SURFACE_QUEUE_DEPTH) {
+                return false;
+            }
+
+            surfacePendingCount++;
+            renderIndex++;
+            offerPendingLocked(-1, presentationTimeUs, 0);
+            return true;
+        }
+    }
+
+    /**
+     * 이후 프레임 크기를 비트레이트 비율만큼 조정
+     */
+    @Override
+    public void setVideoBitrate(int bitRate) {
+        synchronized (lock) {
+            if (format.getBitRate() > 0) {
+                bitRateScale = (double) bitRate / format.getBitRate();
+            }
+        }
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        synchronized (lock) {
+            syncFrameRequested = true;
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (lock) {
+            checkStarted();
+            offerPendingLocked(-1, lastPts, BUFFER_FLAG_END_OF_STREAM);
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        synchronized (lock) {
+            checkSyncMode();
+
+            final long deadline = System.nanoTime() + waitUs(timeoutUs) * 1000;
+
+            while (true) {
+                final int result = pollOutputLocked();
+
+                if (result >= 0) {
+                    info.set(outputInfos[result]);
+                    return result;
+                }
+                else if (result == INFO_OUTPUT_FORMAT_CHANGED) {
+                    return result;
+                }
+
+                if (!awaitLocked(nextWakeNsLocked(deadline))) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        return INFO_TRY_AGAIN_LATER;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return outputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        synchronized (lock) {
+            freeOutputs[freeOutputCount++] = index;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return format;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public long getEncodedFrameCount() {
+        synchronized (lock) {
+            return encodedFrames;
+        }
+    }
+
+    public long getEncodedBytes() {
+        synchronized (lock) {
+            return encodedBytes;
+        }
+    }
+
+    private void checkStarted() {
+        if (!started) {
+            throw new IllegalStateException("not started");
+        }
+    }
+
+    private void checkSyncMode() {
+        checkStarted();
+
+        if (callback != null) {
+            throw new IllegalStateException("dequeue is not allowed in async mode");
+        }
+    }
+
+    /**
+     * @return deadline 전에 깨어났으면 true
+     */
+    /**
+     * Config.setMaxWaitUs 로 제한한 dequeue 대기 시간
+     */
+    private long waitUs(long timeoutUs) {
+        return config.maxWaitUs >= 0 ? Math.min(timeoutUs, config.maxWaitUs) : timeoutUs;
+    }
+
+    private boolean awaitLocked(long deadlineNs) {
+        final long remain = deadlineNs - System.nanoTime();
+
+        if (remain <= 0 || !started) {
+            return false;
+        }
+
+        try {
+            lock.wait(remain / 1000000, (int) (remain % 1000000));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    private void offerPendingLocked(int index, long presentationTimeUs, int flags) {
+        if (pendingCount == pendingIndex.length) {
+            throw new IllegalStateException("too many pending frames");
+        }
+
+        final long now = System.nanoTime();
+        lastReadyNs = Math.max(now, lastReadyNs) + config.encodeTimeUs * 1000;
+
+        final int tail = (pendingHead + pendingCount) % pendingIndex.length;
+        pendingIndex[tail] = index;
+        pendingPts[tail] = presentationTimeUs;
+        pendingFlags[tail] = flags;
+        pendingReadyNs[tail] = lastReadyNs;
+        pendingCount++;
+
+        lock.notifyAll();
+    }
+
+    /**
+     * 인코딩 할 수 있는 프레임이 있으면 그 프레임이 준비되는 시각, 없으면 deadline
+     */
+    private long nextWakeNsLocked(long deadlineNs) {
+        if (pendingCount > 0 && freeOutputCount > 0 && !outputEOS) {
+            return Math.min(deadlineNs, pendingReadyNs[pendingHead]);
+        }
+
+        return deadlineNs;
+    }
+
+    /**
+     * @return 출력 버퍼 인덱스, INFO_OUTPUT_FORMAT_CHANGED, 또는 아직 출력이 없으면 INFO_TRY_AGAIN_LATER
+     */
+    private int pollOutputLocked() {
+        if (!formatSent) {
+            formatSent = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+
+        if (readyCount == 0 && freeOutputCount > 0) {
+            if (!configSent) {
+                configSent = true;
+                final int index = freeOutputs[--freeOutputCount];
+                final ByteBuffer buffer = outputBuffers[index];
+                buffer.clear();
+                buffer.put(codecConfig);
+                buffer.flip();
+                outputInfos[index].set(0, codecConfig.length, 0, BUFFER_FLAG_CODEC_CONFIG);
+                pushReadyLocked(index);
+            }
+            else if (pendingCount > 0 && !outputEOS && System.nanoTime() - pendingReadyNs[pendingHead] >= 0) {
+                encodeLocked();
+            }
+        }
+
+        if (readyCount == 0) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+
+        final int index = readyOutputs[readyHead];
+        readyHead = (readyHead + 1) % readyOutputs.length;
+        readyCount--;
+
+        return index;
+    }
+
+    private void encodeLocked() {
+        final int inputIndex = pendingIndex[pendingHead];
+        final long pts = pendingPts[pendingHead];
+        final int inputFlags = pendingFlags[pendingHead];
+        pendingHead = (pendingHead + 1) % pendingIndex.length;
+        pendingCount--;
+
+        if (inputIndex >= 0) {
+            freeInputs[freeInputCount++] = inputIndex;
+        }
+        else if ((inputFlags & BUFFER_FLAG_END_OF_STREAM) == 0) {
+            surfacePendingCount--;
+        }
+
+        final int index = freeOutputs[--freeOutputCount];
+        final ByteBuffer buffer = outputBuffers[index];
+        final SampleInfo info = outputInfos[index];
+
+        if ((inputFlags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+            outputEOS = true;
+            buffer.clear();
+            buffer.limit(0);
+            info.set(0, 0, Math.max(pts, lastPts), BUFFER_FLAG_END_OF_STREAM);
+        }
+        else {
+            if (syncFrameRequested) {
+                // 실제 인코더처럼 키 프레임부터 GOP 를 다시 시작
+                frameIndex = 0;
+                syncFrameRequested = false;
+            }
+
+            final boolean keyFrame = frameIndex % config.keyFrameInterval == 0;
+            final int size = nextFrameSize(keyFrame);
+
+            buffer.clear();
+            if (format.isVideo()) {
+                buffer.put(START_CODE);
+                buffer.put(keyFrame ? NAL_IDR : NAL_NON_IDR);
+            }
+            buffer.position(0);
+            buffer.limit(size);
+
+            info.set(0, size, pts, keyFrame ? BUFFER_FLAG_KEY_FRAME : 0);
+            frameIndex++;
+            lastPts = pts;
+            encodedFrames++;
+            encodedBytes += size;
+        }
+
+        pushReadyLocked(index);
+        lock.notifyAll();
+    }
+
+    private void pushReadyLocked(int index) {
+        readyOutputs[(readyHead + readyCount) % readyOutputs.length] = index;
+        readyCount++;
+    }
+
+    private int nextFrameSize(boolean keyFrame) {
+        final int base = (int) ((keyFrame ? config.keyFrameSize : config.frameSize) * bitRateScale);
+
+        // xorshift64, 시드가 같으면 같은 크기 순서
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+
+        final double r = (random >>> 11) * 0x1.0p-53;
+        final int size = (int) (base * (1.0 + config.sizeJitter * (r * 2.0 - 1.0)));
+
+        return Math.max(START_CODE.length + 2, Math.min(size, outputBuffers[0].capacity()));
+    }
+
+    private int maxFrameSize() {
+        return (int) Math.ceil(Math.max(config.keyFrameSize, config.frameSize) * (1.0 + config.sizeJitter)) + START_CODE.length + 2;
+    }
+
+    /**
+     * 시작 코드(00 00 01)가 생기지 않도록 0x10 이상의 값으로 채움
+     */
+    private static void fillPayload(ByteBuffer buffer) {
+        int value = 0x5A;
+
+        for (int i = 0; i < buffer.capacity(); i++) {
+            value = (value * 1103515245 + 12345) & 0x7FFFFFFF;
+            buffer.put(i, (byte) (0x10 + (value >>> 16) % 0xF0));
+        }
+    }
+
+    private static byte[] audioSpecificConfig(int sampleRate, int channelCount) {
+        int frequencyIndex = 4;
+
+        for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+            if (AAC_SAMPLE_RATES[i] == sampleRate) {
+                frequencyIndex = i;
+                break;
+            }
+        }
+
+        // AAC LC(2) 5bit, 샘플레이트 인덱스 4bit, 채널 4bit, 나머지 3bit 는 0
+        final int config = (2 << 11) | (frequencyIndex << 7) | (channelCount << 3);
+        return new byte[]{(byte) (config >> 8), (byte) config};
+    }
+
+    private final Runnable callbackLoop = new Runnable() {
+        @Override
+        public void run() {
+            final Callback cb;
+
+            synchronized (lock) {
+                cb = callback;
+            }
+
+            while (true) {
+                int inputIndex = -1;
+                int outputIndex;
+
+                synchronized (lock) {
+                    if (!started) {
+                        break;
+                    }
+
+                    if (freeInputCount > 0) {
+                        inputIndex = freeInputs[--freeInputCount];
+                        outputIndex = INFO_TRY_AGAIN_LATER;
+                    }
+                    else {
+                        outputIndex = pollOutputLocked();
+
+                        if (outputIndex == INFO_TRY_AGAIN_LATER) {
+                            awaitLocked(nextWakeNsLocked(System.nanoTime() + 100000000L));
+                            continue;
+                        }
+                    }
+                }
+
+                try {
+                    if (inputIndex >= 0) {
+                        cb.onInputBufferAvailable(FakeEncoderBackend.this, inputIndex);
+                    }
+                    else if (outputIndex == INFO_OUTPUT_FORMAT_CHANGED) {
+                        cb.onOutputFormatChanged(FakeEncoderBackend.this, format);
+                    }
+                    else {
+                        cb.onOutputBufferAvailable(FakeEncoderBackend.this, outputIndex, outputInfos[outputIndex]);
+                    }
+                }
+                catch (RuntimeException e) {
+                    cb.onError(FakeEncoderBackend.this, e);
+                }
+            }
+        }
+    };
+
+    /**
+     * 가짜 인코더가 만들어 낼 패킷의 비율과 크기
+     */
+    public static final class Config {
+
+        private final TrackFormat format;
+        private int frameRate;
+        private int frameSize;
+        private int keyFrameSize;
+        private int keyFrameInterval;
+        private float sizeJitter;
+        private long seed = 0x2545F4914F6CDD1DL;
+        private int inputBufferCount = 4;
+        private int inputBufferSize;
+        private int outputBufferCount = 8;
+        private long encodeTimeUs;
+        private long maxWaitUs = -1;
+
+        private Config(TrackFormat format) {
+            this.format = format;
+        }
+
+        /**
+         * bitRate 를 frameRate 로 나눈 크기의 프레임을 만들고 1초마다 4배 크기의 IDR 프레임을 만듦
+         */
+        public static Config h264(int width, int height, int frameRate, int bitRate) {
+            final Config config = new Config(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, width, height));
+            config.format.setFrameRate(frameRate);
+            config.format.setBitRate(bitRate);
+            config.frameRate = frameRate;
+            config.frameSize = Math.max(16, bitRate / 8 / frameRate);
+            config.keyFrameSize = config.frameSize * 4;
+            config.keyFrameInterval = frameRate;
+            config.sizeJitter = 0.25f;
+            config.inputBufferSize = width * height * 3 / 2;
+            return config;
+        }
+
+        /**
+         * 1024 샘플 단위의 AAC 프레임을 bitRate 에 맞는 크기로 만듦
+         */
+        public static Config aac(int sampleRate, int channelCount, int bitRate) {
+            final Config config = new Config(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, sampleRate, channelCount));
+            config.format.setBitRate(bitRate);
+            config.frameRate = Math.max(1, sampleRate / AAC_SAMPLES_PER_FRAME);
+            config.frameSize = Math.max(8, bitRate / 8 / config.frameRate);
+            config.keyFrameSize = config.frameSize;
+            config.keyFrameInterval = 1;
+            config.sizeJitter = 0.1f;
+            config.inputBufferSize = AAC_SAMPLES_PER_FRAME * 2 * channelCount * 8;
+            return config;
+        }
+
+        public Config setFrameSize(int frameSize, int keyFrameSize) {
+            this.frameSize = frameSize;
+            this.keyFrameSize = keyFrameSize;
+            return this;
+        }
+
+        public Config setKeyFrameInterval(int frames) {
+            this.keyFrameInterval = Math.max(1, frames);
+            return this;
+        }
+
+        /**
+         * @param sizeJitter 0 이면 항상 같은 크기, 0.25 면 ±25% 범위
+         */
+        public Config setSizeJitter(float sizeJitter) {
+            this.sizeJitter = sizeJitter;
+            return this;
+        }
+
+        public Config setSeed(long seed) {
+            this.seed = seed != 0 ? seed : 1;
+            return this;
+        }
+
+        public Config setBufferCount(int inputBufferCount, int outputBufferCount) {
+            this.inputBufferCount = inputBufferCount;
+            this.outputBufferCount = outputBufferCount;
+            return this;
+        }
+
+        public Config setInputBufferSize(int inputBufferSize) {
+            this.inputBufferSize = inputBufferSize;
+            return this;
+        }
+
+        /**
+         * 프레임 하나를 인코딩하는 데 걸리는 시간, 0 이면 바로 출력
+         */
+        public Config setEncodeTimeUs(long encodeTimeUs) {
+            this.encodeTimeUs = encodeTimeUs;
+            return this;
+        }
+
+        /**
+         * dequeueInputBuffer / dequeueOutputBuffer 의 timeoutUs 를 이 값으로 제한, 음수면 제한 없음
+         * <br/>
+         * 0 이면 출력이 없을 때 기다리지 않고 바로 INFO_TRY_AGAIN_LATER 를 돌려줌
+         */
+        public Config setMaxWaitUs(long maxWaitUs) {
+            this.maxWaitUs = maxWaitUs;
+            return this;
+        }
+
+        public int getFrameRate() {
+            return frameRate;
+        }
+
+        public TrackFormat getFormat() {
+            return format;
+        }
+    }
+}
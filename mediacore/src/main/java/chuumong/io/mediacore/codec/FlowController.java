@@ -0,0 +1,181 @@
+package chuumong.io.mediacore.codec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 인코더에 들어가서 아직 출력되지 않은 프레임 수를 추적하고, 인코더가 밀릴 때 정책에 따라 프레임을 버림
+ * <br/>
+ * 입력 스레드(그리기 / 오디오 스레드)와 드레인 스레드에서 함께 호출하지만 프레임당 한 번씩이라 경합은 거의 없음
+ */
+public class FlowController {
+
+    public enum Policy {
+        /**
+         * 인코더가 가득 차 있으면 지금 들어온 프레임을 버림
+         */
+        DROP_NEWEST,
+        /**
+         * 인코더가 가득 차 있으면 가장 최근 프레임 하나만 보관하고 그보다 오래된 대기 프레임을 버림
+         */
+        DROP_OLDEST,
+        /**
+         * 인코더에 자리가 날 때까지 기다리고, 제한 시간이 지나면 지금 들어온 프레임을 버림
+         */
+        BLOCK
+    }
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 3;
+    public static final long DEFAULT_BLOCK_TIMEOUT_US = 50000;
+
+    private static final long RATE_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private Policy policy;
+    private int maxInFlight;
+    private long blockTimeoutUs;
+
+    // 인코더에 넣은 프레임의 타임스탬프, 출력된 타임스탬프까지 앞에서부터 제거
+    private long[] inFlightPts = new long[0];
+    private int head, inFlight;
+
+    private long droppedFrames;
+    private long windowStartNs;
+    private long windowStartDrops;
+    private float dropsPerSecond;
+
+    public FlowController(Policy policy) {
+        this(policy, DEFAULT_MAX_IN_FLIGHT, DEFAULT_BLOCK_TIMEOUT_US);
+    }
+
+    public FlowController(Policy policy, int maxInFlight, long blockTimeoutUs) {
+        configure(policy, maxInFlight, blockTimeoutUs);
+        windowStartNs = System.nanoTime();
+    }
+
+    /**
+     * @param maxInFlight    인코더에 동시에 넣어둘 수 있는 최대 프레임 수
+     * @param blockTimeoutUs BLOCK 정책에서 기다리는 최대 시간
+     */
+    public synchronized void configure(Policy policy, int maxInFlight, long blockTimeoutUs) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+
+        this.policy = policy;
+        this.maxInFlight = maxInFlight;
+        this.blockTimeoutUs = blockTimeoutUs;
+
+        if (inFlightPts.length < maxInFlight) {
+            final long[] pts = new long[maxInFlight];
+
+            for (int i = 0; i < inFlight; i++) {
+                pts[i] = inFlightPts[(head + i) % inFlightPts.length];
+            }
+
+            inFlightPts = pts;
+            head = 0;
+        }
+
+        notifyAll();
+    }
+
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized long getBlockTimeoutUs() {
+        return blockTimeoutUs;
+    }
+
+    /**
+     * 프레임을 인코더에 넣어도 되는지 확인, BLOCK 정책이면 자리가 날 때까지 제한 시간 동안 대기
+     *
+     * @return false 면 인코더가 가득 찬 상태, 호출한 쪽에서 정책에 따라 프레임을 버리거나 보관
+     */
+    public synchronized boolean acquire() {
+        if (inFlight < maxInFlight) {
+            return true;
+        }
+
+        if (policy != Policy.BLOCK) {
+            return false;
+        }
+
+        final long deadlineNs = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(blockTimeoutUs);
+        long remainingNs;
+
+        while (inFlight >= maxInFlight && (remainingNs = deadlineNs - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return inFlight < maxInFlight;
+    }
+
+    /**
+     * acquire 가 true 를 반환한 뒤 프레임을 인코더에 넣었을 때 호출
+     */
+    public synchronized void onFrameSubmitted(long presentationTimeUs) {
+        if (inFlight == inFlightPts.length) {
+            // acquire 없이 넣은 경우, 가장 오래된 것을 완료된 것으로 처리
+            head = (head + 1) % inFlightPts.length;
+            inFlight--;
+        }
+
+        inFlightPts[(head + inFlight) % inFlightPts.length] = presentationTimeUs;
+        inFlight++;
+    }
+
+    /**
+     * 인코더가 프레임을 출력했을 때 호출, 이 타임스탬프 이하로 넣은 프레임은 모두 완료된 것으로 처리
+     * <br/>
+     * 코덱이 내부에서 프레임을 버리거나 합쳐도 inFlight 가 줄어들지 않고 남는 일이 없음
+     */
+    public synchronized void onFrameCompleted(long presentationTimeUs) {
+        final int before = inFlight;
+
+        while (inFlight > 0 && inFlightPts[head] <= presentationTimeUs) {
+            head = (head + 1) % inFlightPts.length;
+            inFlight--;
+        }
+
+        if (inFlight != before) {
+            notifyAll();
+        }
+    }
+
+    public synchronized void onFrameDropped() {
+        droppedFrames++;
+        updateRate(System.nanoTime());
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return 최근 1초 구간의 초당 버린 프레임 수
+     */
+    public synchronized float getDropsPerSecond() {
+        updateRate(System.nanoTime());
+        return dropsPerSecond;
+    }
+
+    private void updateRate(long nowNs) {
+        final long elapsedNs = nowNs - windowStartNs;
+
+        if (elapsedNs >= RATE_WINDOW_NS) {
+            dropsPerSecond = (droppedFrames - windowStartDrops) * (float) RATE_WINDOW_NS / elapsedNs;
+            windowStartNs = nowNs;
+            windowStartDrops = droppedFrames;
+        }
+    }
+}
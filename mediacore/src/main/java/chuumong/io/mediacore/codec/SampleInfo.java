@@ -0,0 +1,40 @@
+package chuumong.io.mediacore.codec;
+
+/**
+ * 인코딩 된 샘플 하나의 메타데이터 (MediaCodec.BufferInfo 와 동일한 구성)
+ */
+public final class SampleInfo {
+
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(int offset, int size, long presentationTimeUs, int flags) {
+        this.offset = offset;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    public void set(SampleInfo info) {
+        set(info.offset, info.size, info.presentationTimeUs, info.flags);
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & EncoderBackend.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (flags & EncoderBackend.BUFFER_FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isEndOfStream() {
+        return (flags & EncoderBackend.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleInfo{offset=" + offset + ", size=" + size + ", presentationTimeUs=" + presentationTimeUs + ", flags=" + flags + "}";
+    }
+}
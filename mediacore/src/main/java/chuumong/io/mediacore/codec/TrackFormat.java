@@ -0,0 +1,123 @@
+package chuumong.io.mediacore.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 인코더 출력 포맷, Muxer 가 트랙을 추가할 때 사용
+ * <br/>
+ * 플랫폼 코덱이 만든 포맷은 platformFormat 으로 그대로 전달해 변환 손실을 없앰
+ */
+public final class TrackFormat {
+
+    public static final String MIME_VIDEO_AVC = "video/avc";
+    public static final String MIME_AUDIO_AAC = "audio/mp4a-latm";
+
+    private final String mime;
+    private int width;
+    private int height;
+    private int frameRate;
+    private int sampleRate;
+    private int channelCount;
+    private int bitRate;
+    private ByteBuffer csd0;
+    private ByteBuffer csd1;
+    private Object platformFormat;
+
+    private TrackFormat(String mime) {
+        this.mime = mime;
+    }
+
+    public static TrackFormat createVideoFormat(String mime, int width, int height) {
+        final TrackFormat format = new TrackFormat(mime);
+        format.width = width;
+        format.height = height;
+        return format;
+    }
+
+    public static TrackFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+        final TrackFormat format = new TrackFormat(mime);
+        format.sampleRate = sampleRate;
+        format.channelCount = channelCount;
+        return format;
+    }
+
+    public String getMime() {
+        return mime;
+    }
+
+    public boolean isVideo() {
+        return mime.startsWith("video/");
+    }
+
+    public boolean isAudio() {
+        return mime.startsWith("audio/");
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * H.264 는 SPS, AAC 는 AudioSpecificConfig
+     */
+    public ByteBuffer getCsd0() {
+        return csd0 != null ? csd0.duplicate() : null;
+    }
+
+    public void setCsd0(ByteBuffer csd0) {
+        this.csd0 = csd0;
+    }
+
+    /**
+     * H.264 의 PPS
+     */
+    public ByteBuffer getCsd1() {
+        return csd1 != null ? csd1.duplicate() : null;
+    }
+
+    public void setCsd1(ByteBuffer csd1) {
+        this.csd1 = csd1;
+    }
+
+    public Object getPlatformFormat() {
+        return platformFormat;
+    }
+
+    public void setPlatformFormat(Object platformFormat) {
+        this.platformFormat = platformFormat;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackFormat{mime=" + mime + ", width=" + width + ", height=" + height + ", frameRate=" + frameRate + ", sampleRate=" +
+               sampleRate + ", channelCount=" + channelCount + ", bitRate=" + bitRate + "}";
+    }
+}
@@ -0,0 +1,51 @@
+package chuumong.io.mediacore.mux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 호출한 스레드에서 바로 FileChannel 에 기록하는 StorageOutput
+ */
+public class ChannelOutput implements StorageOutput {
+
+    private final FileChannel channel;
+
+    /**
+     * @param channel 지금 위치부터 기록할 채널, close 에서 닫음
+     */
+    public ChannelOutput(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void append(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += buffers[i].remaining();
+        }
+
+        while (remaining > 0) {
+            remaining -= channel.write(buffers, offset, length);
+        }
+    }
+
+    @Override
+    public void writeAt(ByteBuffer buffer, long position) throws IOException {
+        final int start = buffer.position();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,22 @@
+package chuumong.io.mediacore.mux;
+
+import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * 인코딩 된 샘플을 실제 컨테이너(MP4 등)에 기록하는 쪽, android.media.MediaMuxer 와 같은 순서로 호출됨
+ */
+public interface ContainerWriter {
+
+    int addTrack(TrackFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info);
+
+    void stop();
+
+    void release();
+}
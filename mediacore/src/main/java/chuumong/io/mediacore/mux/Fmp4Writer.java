@@ -0,0 +1,904 @@
+package chuumong.io.mediacore.mux;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * H.264 / AAC 샘플을 조각난(fragmented) MP4 로 기록하는 ContainerWriter
+ * <br/>
+ * android.media.MediaMuxer 는 샘플 테이블을 모두 메모리에 두고 stop 에서 moov 를 쓰므로 중간에 프로세스가 죽으면 재생할 수 없지만,
+ * 여기서는 시작할 때 빈 moov 를 쓰고 moof / mdat 조각을 계속 붙이므로 마지막으로 기록한 조각까지는 항상 재생 가능
+ * <br/>
+ * 메모리는 기록하지 않은 조각 하나 분량만 사용하고, 조각은 StorageOutput 에 정렬된 위치에서 한 번의 gathering write 로 기록
+ * <br/>
+ * MediaCodec 은 디코딩 순서로 샘플을 내보내므로 B 프레임이 없다고 보고 composition offset 은 기록하지 않음
+ */
+public class Fmp4Writer implements ContainerWriter {
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+    public static final int DEFAULT_WRITE_ALIGNMENT = 4096;
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+    private static final int DEFAULT_FRAME_RATE = 30;
+
+    // 다른 샘플을 참조하지 않는 샘플 (sample_depends_on = 2)
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    // 다른 샘플을 참조하고 sync 샘플이 아님 (sample_depends_on = 1, sample_is_non_sync_sample = 1)
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+    private static final class Track {
+        final TrackFormat format;
+        final int trackId;
+        final int timescale;
+        final boolean video;
+
+        // 아직 기록하지 않은 샘플, 마지막 샘플은 다음 샘플이 와야 길이를 알 수 있음
+        long[] ptsUs = new long[64];
+        int[] sizes = new int[64];
+        int[] durations = new int[64];
+        boolean[] keyFrames = new boolean[64];
+        int count;
+        int complete;
+        ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+
+        // 다음 조각의 tfdt, 지금까지 기록한 샘플 길이의 합
+        long nextDecodeTicks = -1;
+        int lastDuration;
+
+        Track(TrackFormat format, int trackId) {
+            this.format = format;
+            this.trackId = trackId;
+            this.video = format.isVideo();
+            this.timescale = video ? VIDEO_TIMESCALE : format.getSampleRate();
+        }
+
+        long toTicks(long us) {
+            return us * timescale / 1000000L;
+        }
+    }
+
+    private final StorageOutput output;
+    private final List<Track> tracks = new ArrayList<>();
+    private Track videoTrack;
+
+    private long fragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+    private int maxFragmentBytes = DEFAULT_MAX_FRAGMENT_BYTES;
+    private int writeAlignment = DEFAULT_WRITE_ALIGNMENT;
+
+    private boolean started;
+    private long startUs = -1;
+    private long fragmentStartUs = -1;
+    private int sequenceNumber;
+    private int bufferedBytes;
+
+    // moov / moof 와 mdat 헤더를 만드는 버퍼
+    private ByteBuffer header = ByteBuffer.allocateDirect(4096);
+    private ByteBuffer padding;
+    private ByteBuffer[] gather = new ByteBuffer[0];
+    private long position;
+    private long mehdPosition;
+    private long fragmentCount;
+
+    public Fmp4Writer(File file) throws IOException {
+        this(new RandomAccessFile(file, "rw").getChannel());
+    }
+
+    /**
+     * @param channel 처음부터 기록할 채널, release 에서 닫음
+     */
+    public Fmp4Writer(FileChannel channel) {
+        this(new ChannelOutput(channel));
+    }
+
+    /**
+     * @param output 처음부터 기록할 저장소, release 에서 닫음
+     */
+    public Fmp4Writer(StorageOutput output) {
+        this.output = output;
+    }
+
+    /**
+     * 조각 하나의 길이, 영상이 있으면 이 길이가 지난 뒤의 키 프레임에서 나눔, start 전에 호출해야 함
+     *
+     * @param durationUs 0 이면 키 프레임마다 나눔
+     */
+    public void setFragmentDuration(long durationUs) {
+        if (durationUs < 0) {
+            throw new IllegalArgumentException("durationUs must not be negative");
+        }
+
+        this.fragmentDurationUs = durationUs;
+    }
+
+    /**
+     * 기록하지 않고 모아둘 최대 바이트 수, 넘으면 키 프레임이 아니어도 조각을 나눔, start 전에 호출해야 함
+     */
+    public void setMaxFragmentBytes(int maxFragmentBytes) {
+        if (maxFragmentBytes <= 0) {
+            throw new IllegalArgumentException("maxFragmentBytes must be positive");
+        }
+
+        this.maxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * 조각이 이 단위로 정렬된 파일 위치에서 시작하도록 free 박스로 채움, start 전에 호출해야 함
+     *
+     * @param alignment 0 이면 채우지 않음
+     */
+    public void setWriteAlignment(int alignment) {
+        if (alignment < 0) {
+            throw new IllegalArgumentException("alignment must not be negative");
+        }
+
+        this.writeAlignment = alignment;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (started) {
+            throw new IllegalStateException("writer already started");
+        }
+
+        final Track track = new Track(format, tracks.size() + 1);
+
+        if (track.video) {
+            if (!TrackFormat.MIME_VIDEO_AVC.equals(format.getMime())) {
+                throw new IllegalArgumentException("only H.264 video tracks are supported : " + format);
+            }
+            if (format.getCsd0() == null) {
+                throw new IllegalArgumentException("video format has no SPS : " + format);
+            }
+            // 영상 트랙이 여러 개면 첫 트랙의 키 프레임에서 조각을 나눔
+            if (videoTrack == null) {
+                videoTrack = track;
+            }
+        }
+        else if (!TrackFormat.MIME_AUDIO_AAC.equals(format.getMime()) || format.getCsd0() == null) {
+            throw new IllegalArgumentException("unsupported track : " + format);
+        }
+
+        tracks.add(track);
+        return tracks.size() - 1;
+    }
+
+    /**
+     * ftyp 와 샘플이 없는 moov 를 기록
+     */
+    @Override
+    public void start() {
+        if (started) {
+            throw new IllegalStateException("writer already started");
+        }
+
+        started = true;
+        padding = writeAlignment > 0 ? ByteBuffer.allocateDirect(writeAlignment + 8) : null;
+        gather = new ByteBuffer[tracks.size() + 2];
+
+        int csdBytes = 0;
+        for (Track track : tracks) {
+            csdBytes += remaining(track.format.getCsd0()) + remaining(track.format.getCsd1());
+        }
+        ensureHeader(1024 + tracks.size() * 1024 + csdBytes);
+
+        header.clear();
+        writeFtyp(header);
+        writeMoov(header);
+        header.flip();
+
+        write(new ByteBuffer[]{header, nextPadding(position + header.remaining())}, 2);
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        if (!started) {
+            throw new IllegalStateException("writer not started");
+        }
+        if (info.size <= 0 || info.isCodecConfig()) {
+            return;
+        }
+
+        final Track track = tracks.get(trackIndex);
+        long ptsUs = info.presentationTimeUs;
+
+        if (startUs < 0) {
+            startUs = fragmentStartUs = ptsUs;
+        }
+        if (track.nextDecodeTicks < 0) {
+            track.nextDecodeTicks = track.toTicks(Math.max(0, ptsUs - startUs));
+        }
+
+        if (track.count > 0) {
+            // 타임스탬프가 거꾸로 가도 샘플 길이가 0 이 되지 않도록 함
+            ptsUs = Math.max(ptsUs, track.ptsUs[track.count - 1] + 1);
+
+            final int last = track.count - 1;
+            track.durations[last] = (int) Math.max(1, track.toTicks(ptsUs - startUs) - track.toTicks(track.ptsUs[last] - startUs));
+            track.lastDuration = track.durations[last];
+            track.complete = track.count;
+        }
+
+        if ((isFragmentDue(track, ptsUs, info.isKeyFrame()) || bufferedBytes + info.size > maxFragmentBytes) && flushFragment()) {
+            fragmentStartUs = ptsUs;
+        }
+
+        append(track, buffer, info, ptsUs);
+    }
+
+    private boolean isFragmentDue(Track track, long ptsUs, boolean keyFrame) {
+        if (videoTrack != null) {
+            return track == videoTrack && keyFrame && ptsUs - fragmentStartUs >= fragmentDurationUs && bufferedBytes > 0;
+        }
+
+        return ptsUs - fragmentStartUs >= Math.max(fragmentDurationUs, 1) && bufferedBytes > 0;
+    }
+
+    private void append(Track track, ByteBuffer buffer, SampleInfo info, long ptsUs) {
+        if (track.count == track.sizes.length) {
+            final int capacity = track.count * 2;
+            track.ptsUs = Arrays.copyOf(track.ptsUs, capacity);
+            track.sizes = Arrays.copyOf(track.sizes, capacity);
+            track.durations = Arrays.copyOf(track.durations, capacity);
+            track.keyFrames = Arrays.copyOf(track.keyFrames, capacity);
+        }
+
+        final int start = track.data.position();
+
+        if (track.video) {
+            appendNalUnits(track, buffer, info.offset, info.size);
+        }
+        else {
+            final ByteBuffer sample = buffer.duplicate();
+            sample.limit(info.offset + info.size);
+            sample.position(info.offset);
+            ensureData(track, info.size);
+            track.data.put(sample);
+        }
+
+        final int size = track.data.position() - start;
+
+        track.ptsUs[track.count] = ptsUs;
+        track.sizes[track.count] = size;
+        track.keyFrames[track.count] = !track.video || info.isKeyFrame();
+        track.count++;
+        bufferedBytes += size;
+    }
+
+    /**
+     * Annex-B 샘플을 4 바이트 길이가 앞에 붙은 NAL 유닛으로 바꿔서 복사, SPS / PPS / AUD 는 avcC 에 있으므로 뺌
+     */
+    private void appendNalUnits(Track track, ByteBuffer buffer, int offset, int size) {
+        final int end = offset + size;
+        int start = NalUnits.findStartCode(buffer, offset, end);
+
+        if (start < 0) {
+            appendNalUnit(track, buffer, offset, end);
+            return;
+        }
+
+        while (start >= 0) {
+            final int nal = start + NalUnits.startCodeLength(buffer, start);
+            final int next = NalUnits.findStartCode(buffer, nal, end);
+            final int nalEnd = next >= 0 ? next : end;
+
+            if (nal < nalEnd) {
+                final int type = buffer.get(nal) & 0x1F;
+
+                if (type != NalUnits.TYPE_SPS && type != NalUnits.TYPE_PPS && type != NalUnits.TYPE_AUD) {
+                    appendNalUnit(track, buffer, nal, nalEnd);
+                }
+            }
+
+            start = next;
+        }
+    }
+
+    private void appendNalUnit(Track track, ByteBuffer buffer, int from, int to) {
+        final ByteBuffer nal = buffer.duplicate();
+        nal.limit(to);
+        nal.position(from);
+
+        ensureData(track, 4 + nal.remaining());
+        track.data.putInt(nal.remaining());
+        track.data.put(nal);
+    }
+
+    private static void ensureData(Track track, int size) {
+        if (track.data.remaining() < size) {
+            final ByteBuffer data = ByteBuffer.allocateDirect(Math.max(track.data.capacity() * 2, track.data.position() + size));
+            track.data.flip();
+            data.put(track.data);
+            track.data = data;
+        }
+    }
+
+    /**
+     * 길이를 아는 샘플을 moof / mdat 조각 하나로 기록하고, 길이를 모르는 마지막 샘플은 다음 조각으로 넘김
+     *
+     * @return 기록할 샘플이 없으면 false
+     */
+    private boolean flushFragment() {
+        int sampleCount = 0;
+        int mdatSize = 8;
+
+        for (Track track : tracks) {
+            sampleCount += track.complete;
+            for (int i = 0; i < track.complete; i++) {
+                mdatSize += track.sizes[i];
+            }
+        }
+
+        if (sampleCount == 0) {
+            return false;
+        }
+
+        ensureHeader(256 + tracks.size() * 128 + sampleCount * 12);
+
+        header.clear();
+        final int moofStart = header.position();
+        final int moof = beginBox(header, "moof");
+        final int mfhd = beginFullBox(header, "mfhd", 0, 0);
+        header.putInt(++sequenceNumber);
+        endBox(header, mfhd);
+
+        // 조각 안에서 트랙 데이터는 tracks 순서로 이어 붙이므로 trun 의 data_offset 을 나중에 채움
+        final int[] dataOffsetPositions = new int[tracks.size()];
+
+        for (int t = 0; t < tracks.size(); t++) {
+            final Track track = tracks.get(t);
+
+            if (track.complete == 0) {
+                dataOffsetPositions[t] = -1;
+                continue;
+            }
+
+            final int traf = beginBox(header, "traf");
+            final int tfhd = beginFullBox(header, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            header.putInt(track.trackId);
+            endBox(header, tfhd);
+
+            final int tfdt = beginFullBox(header, "tfdt", 1, 0);
+            header.putLong(track.nextDecodeTicks);
+            endBox(header, tfdt);
+
+            final int trun = beginFullBox(header, "trun", 0, TRUN_FLAGS);
+            header.putInt(track.complete);
+            dataOffsetPositions[t] = header.position();
+            header.putInt(0);
+
+            for (int i = 0; i < track.complete; i++) {
+                header.putInt(track.durations[i]);
+                header.putInt(track.sizes[i]);
+                header.putInt(track.keyFrames[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                track.nextDecodeTicks += track.durations[i];
+            }
+
+            endBox(header, trun);
+            endBox(header, traf);
+        }
+
+        endBox(header, moof);
+
+        final int moofSize = header.position() - moofStart;
+        int dataOffset = moofSize + 8;
+        int buffers = 0;
+
+        gather[buffers++] = header;
+
+        for (int t = 0; t < tracks.size(); t++) {
+            final Track track = tracks.get(t);
+
+            if (dataOffsetPositions[t] < 0) {
+                continue;
+            }
+
+            header.putInt(dataOffsetPositions[t], dataOffset);
+
+            int bytes = 0;
+            for (int i = 0; i < track.complete; i++) {
+                bytes += track.sizes[i];
+            }
+
+            final ByteBuffer data = track.data.duplicate();
+            data.flip();
+            data.limit(bytes);
+            gather[buffers++] = data;
+            dataOffset += bytes;
+        }
+
+        header.putInt(mdatSize);
+        header.putInt(fourCc("mdat"));
+        header.flip();
+
+        final long end = position + moofSize + mdatSize;
+        gather[buffers++] = nextPadding(end);
+
+        write(gather, buffers);
+        fragmentCount++;
+
+        for (Track track : tracks) {
+            removeCompleteSamples(track);
+        }
+
+        return true;
+    }
+
+    private void removeCompleteSamples(Track track) {
+        final int complete = track.complete;
+
+        if (complete == 0) {
+            return;
+        }
+
+        int bytes = 0;
+        for (int i = 0; i < complete; i++) {
+            bytes += track.sizes[i];
+        }
+
+        track.data.flip();
+        track.data.position(bytes);
+        track.data.compact();
+
+        final int remaining = track.count - complete;
+        System.arraycopy(track.ptsUs, complete, track.ptsUs, 0, remaining);
+        System.arraycopy(track.sizes, complete, track.sizes, 0, remaining);
+        System.arraycopy(track.durations, complete, track.durations, 0, remaining);
+        System.arraycopy(track.keyFrames, complete, track.keyFrames, 0, remaining);
+        track.count = remaining;
+        track.complete = 0;
+        bufferedBytes -= bytes;
+    }
+
+    /**
+     * @return end 다음을 정렬 단위까지 채우는 free 박스, 채울 필요가 없으면 null
+     */
+    private ByteBuffer nextPadding(long end) {
+        if (padding == null) {
+            return null;
+        }
+
+        int size = (int) ((writeAlignment - end % writeAlignment) % writeAlignment);
+
+        if (size == 0) {
+            return null;
+        }
+        if (size < 8) {
+            size += writeAlignment;
+        }
+
+        padding.clear();
+        padding.putInt(0, size);
+        padding.put(4, (byte) 'f').put(5, (byte) 'r').put(6, (byte) 'e').put(7, (byte) 'e');
+        padding.limit(size);
+        return padding;
+    }
+
+    private void write(ByteBuffer[] buffers, int count) {
+        int length = count;
+
+        // 채울 필요가 없으면 마지막 칸이 null
+        while (length > 0 && buffers[length - 1] == null) {
+            length--;
+        }
+
+        long remaining = 0;
+        for (int i = 0; i < length; i++) {
+            remaining += buffers[i].remaining();
+        }
+
+        try {
+            output.append(buffers, 0, length);
+            position += remaining;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("failed to write fragment", e);
+        }
+    }
+
+    /**
+     * 남은 샘플을 마지막 조각으로 기록하고 moov 의 전체 길이(mehd)를 채움
+     */
+    @Override
+    public void stop() {
+        if (!started) {
+            return;
+        }
+
+        for (Track track : tracks) {
+            if (track.count > track.complete) {
+                // 마지막 샘플은 다음 샘플이 없으므로 바로 앞 샘플과 같은 길이로 봄
+                track.durations[track.count - 1] = track.lastDuration > 0 ? track.lastDuration : defaultDuration(track);
+                track.complete = track.count;
+            }
+        }
+
+        flushFragment();
+
+        long durationMs = 0;
+        for (Track track : tracks) {
+            if (track.nextDecodeTicks > 0) {
+                durationMs = Math.max(durationMs, track.nextDecodeTicks * MOVIE_TIMESCALE / track.timescale);
+            }
+        }
+
+        try {
+            final ByteBuffer duration = ByteBuffer.allocate(8);
+            duration.putLong(0, durationMs);
+
+            output.writeAt(duration, mehdPosition);
+            output.sync();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("failed to finish file", e);
+        }
+
+        started = false;
+    }
+
+    private static int defaultDuration(Track track) {
+        if (track.video) {
+            final int frameRate = track.format.getFrameRate() > 0 ? track.format.getFrameRate() : DEFAULT_FRAME_RATE;
+            return track.timescale / frameRate;
+        }
+
+        return AAC_SAMPLES_PER_FRAME;
+    }
+
+    @Override
+    public void release() {
+        try {
+            output.close();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("failed to close file", e);
+        }
+    }
+
+    /**
+     * @return 기록한 moof / mdat 조각 수
+     */
+    public long getFragmentCount() {
+        return fragmentCount;
+    }
+
+    /**
+     * @return 기록하지 않고 모아둔 샘플 바이트 수
+     */
+    public int getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    private void ensureHeader(int size) {
+        if (header.capacity() < size) {
+            header = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private void writeFtyp(ByteBuffer out) {
+        final int ftyp = beginBox(out, "ftyp");
+        out.putInt(fourCc("isom"));
+        out.putInt(0x200);
+        out.putInt(fourCc("isom"));
+        out.putInt(fourCc("iso6"));
+        out.putInt(fourCc("avc1"));
+        out.putInt(fourCc("mp41"));
+        endBox(out, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer out) {
+        final int moov = beginBox(out, "moov");
+
+        final int mvhd = beginFullBox(out, "mvhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(MOVIE_TIMESCALE);
+        out.putInt(0);
+        out.putInt(0x00010000);
+        out.putShort((short) 0x0100);
+        out.put(new byte[10]);
+        writeMatrix(out);
+        out.put(new byte[24]);
+        out.putInt(tracks.size() + 1);
+        endBox(out, mvhd);
+
+        final int mvex = beginBox(out, "mvex");
+        final int mehd = beginFullBox(out, "mehd", 1, 0);
+        // stop 에서 전체 길이로 채움
+        mehdPosition = position + out.position();
+        out.putLong(0);
+        endBox(out, mehd);
+
+        for (Track track : tracks) {
+            final int trex = beginFullBox(out, "trex", 0, 0);
+            out.putInt(track.trackId);
+            out.putInt(1);
+            out.putInt(0);
+            out.putInt(0);
+            out.putInt(0);
+            endBox(out, trex);
+        }
+        endBox(out, mvex);
+
+        for (Track track : tracks) {
+            writeTrak(out, track);
+        }
+
+        endBox(out, moov);
+    }
+
+    private void writeTrak(ByteBuffer out, Track track) {
+        final TrackFormat format = track.format;
+        final int trak = beginBox(out, "trak");
+
+        final int tkhd = beginFullBox(out, "tkhd", 0, 0x3);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(track.trackId);
+        out.putInt(0);
+        out.putInt(0);
+        out.put(new byte[8]);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) (track.video ? 0 : 0x0100));
+        out.putShort((short) 0);
+        writeMatrix(out);
+        out.putInt(track.video ? format.getWidth() << 16 : 0);
+        out.putInt(track.video ? format.getHeight() << 16 : 0);
+        endBox(out, tkhd);
+
+        final int mdia = beginBox(out, "mdia");
+
+        final int mdhd = beginFullBox(out, "mdhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(track.timescale);
+        out.putInt(0);
+        // 'und'
+        out.putShort((short) 0x55C4);
+        out.putShort((short) 0);
+        endBox(out, mdhd);
+
+        final int hdlr = beginFullBox(out, "hdlr", 0, 0);
+        out.putInt(0);
+        out.putInt(fourCc(track.video ? "vide" : "soun"));
+        out.put(new byte[12]);
+        final String name = track.video ? "VideoHandler" : "SoundHandler";
+        for (int i = 0; i < name.length(); i++) {
+            out.put((byte) name.charAt(i));
+        }
+        out.put((byte) 0);
+        endBox(out, hdlr);
+
+        final int minf = beginBox(out, "minf");
+
+        if (track.video) {
+            final int vmhd = beginFullBox(out, "vmhd", 0, 1);
+            out.put(new byte[8]);
+            endBox(out, vmhd);
+        }
+        else {
+            final int smhd = beginFullBox(out, "smhd", 0, 0);
+            out.putInt(0);
+            endBox(out, smhd);
+        }
+
+        final int dinf = beginBox(out, "dinf");
+        final int dref = beginFullBox(out, "dref", 0, 0);
+        out.putInt(1);
+        endBox(out, beginFullBox(out, "url ", 0, 1));
+        endBox(out, dref);
+        endBox(out, dinf);
+
+        final int stbl = beginBox(out, "stbl");
+        final int stsd = beginFullBox(out, "stsd", 0, 0);
+        out.putInt(1);
+
+        if (track.video) {
+            writeAvc1(out, format);
+        }
+        else {
+            writeMp4a(out, format);
+        }
+
+        endBox(out, stsd);
+
+        // 샘플은 모두 조각에 있으므로 테이블은 비어 있음
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            final int box = beginFullBox(out, type, 0, 0);
+            out.putInt(0);
+            endBox(out, box);
+        }
+
+        final int stsz = beginFullBox(out, "stsz", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        endBox(out, stsz);
+
+        endBox(out, stbl);
+        endBox(out, minf);
+        endBox(out, mdia);
+        endBox(out, trak);
+    }
+
+    private static void writeAvc1(ByteBuffer out, TrackFormat format) {
+        final List<ByteBuffer> sps = new ArrayList<>();
+        final List<ByteBuffer> pps = new ArrayList<>();
+        collectParameterSets(format.getCsd0(), sps, pps);
+        collectParameterSets(format.getCsd1(), sps, pps);
+
+        if (sps.isEmpty() || sps.get(0).remaining() < 4) {
+            throw new IllegalArgumentException("invalid SPS : " + format);
+        }
+
+        final int avc1 = beginBox(out, "avc1");
+        out.put(new byte[6]);
+        out.putShort((short) 1);
+        out.put(new byte[16]);
+        out.putShort((short) format.getWidth());
+        out.putShort((short) format.getHeight());
+        out.putInt(0x00480000);
+        out.putInt(0x00480000);
+        out.putInt(0);
+        out.putShort((short) 1);
+        out.put(new byte[32]);
+        out.putShort((short) 0x0018);
+        out.putShort((short) -1);
+
+        final ByteBuffer firstSps = sps.get(0);
+        final int avcC = beginBox(out, "avcC");
+        out.put((byte) 1);
+        out.put(firstSps.get(firstSps.position() + 1));
+        out.put(firstSps.get(firstSps.position() + 2));
+        out.put(firstSps.get(firstSps.position() + 3));
+        // NAL 길이 4 바이트
+        out.put((byte) 0xFF);
+        out.put((byte) (0xE0 | sps.size()));
+        for (ByteBuffer nal : sps) {
+            out.putShort((short) nal.remaining());
+            out.put(nal);
+        }
+        out.put((byte) pps.size());
+        for (ByteBuffer nal : pps) {
+            out.putShort((short) nal.remaining());
+            out.put(nal);
+        }
+        endBox(out, avcC);
+
+        endBox(out, avc1);
+    }
+
+    /**
+     * csd 에서 시작 코드를 떼고 SPS / PPS 를 나눠 담음, 시작 코드가 없으면 csd 전체를 NAL 하나로 봄
+     */
+    private static void collectParameterSets(ByteBuffer csd, List<ByteBuffer> sps, List<ByteBuffer> pps) {
+        if (csd == null || !csd.hasRemaining()) {
+            return;
+        }
+
+        final int end = csd.limit();
+        int start = NalUnits.findStartCode(csd, csd.position(), end);
+
+        if (start < 0) {
+            addParameterSet(csd.slice(), sps, pps);
+            return;
+        }
+
+        while (start >= 0) {
+            final int nal = start + NalUnits.startCodeLength(csd, start);
+            final int next = NalUnits.findStartCode(csd, nal, end);
+
+            if (nal < (next >= 0 ? next : end)) {
+                final ByteBuffer unit = csd.duplicate();
+                unit.limit(next >= 0 ? next : end);
+                unit.position(nal);
+                addParameterSet(unit.slice(), sps, pps);
+            }
+
+            start = next;
+        }
+    }
+
+    private static void addParameterSet(ByteBuffer nal, List<ByteBuffer> sps, List<ByteBuffer> pps) {
+        final int type = nal.get(0) & 0x1F;
+
+        if (type == NalUnits.TYPE_SPS) {
+            sps.add(nal);
+        }
+        else if (type == NalUnits.TYPE_PPS) {
+            pps.add(nal);
+        }
+    }
+
+    private static void writeMp4a(ByteBuffer out, TrackFormat format) {
+        final ByteBuffer asc = format.getCsd0();
+        final int sampleRate = format.getSampleRate();
+
+        final int mp4a = beginBox(out, "mp4a");
+        out.put(new byte[6]);
+        out.putShort((short) 1);
+        out.put(new byte[8]);
+        out.putShort((short) format.getChannelCount());
+        out.putShort((short) 16);
+        out.putInt(0);
+        out.putInt(sampleRate <= 0xFFFF ? sampleRate << 16 : 0);
+
+        final int ascSize = asc.remaining();
+        final int esds = beginFullBox(out, "esds", 0, 0);
+        // ES_Descriptor
+        out.put((byte) 0x03);
+        out.put((byte) (3 + 2 + 13 + 2 + ascSize + 3));
+        out.putShort((short) 0);
+        out.put((byte) 0);
+        // DecoderConfigDescriptor, AAC / AudioStream
+        out.put((byte) 0x04);
+        out.put((byte) (13 + 2 + ascSize));
+        out.put((byte) 0x40);
+        out.put((byte) 0x15);
+        out.put(new byte[3]);
+        out.putInt(format.getBitRate());
+        out.putInt(format.getBitRate());
+        // DecoderSpecificInfo
+        out.put((byte) 0x05);
+        out.put((byte) ascSize);
+        out.put(asc);
+        // SLConfigDescriptor
+        out.put((byte) 0x06);
+        out.put((byte) 1);
+        out.put((byte) 0x02);
+        endBox(out, esds);
+
+        endBox(out, mp4a);
+    }
+
+    private static void writeMatrix(ByteBuffer out) {
+        out.putInt(0x00010000);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x00010000);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x40000000);
+    }
+
+    private static int remaining(ByteBuffer buffer) {
+        return buffer != null ? buffer.remaining() : 0;
+    }
+
+    private static int beginBox(ByteBuffer out, String type) {
+        final int start = out.position();
+        out.putInt(0);
+        out.putInt(fourCc(type));
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer out, String type, int version, int flags) {
+        final int start = beginBox(out, type);
+        out.putInt(version << 24 | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start);
+    }
+
+    private static int fourCc(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+}
@@ -0,0 +1,321 @@
+package chuumong.io.mediacore.mux;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * 인코더 스레드마다 따로 들어오는 샘플을 타임스탬프 순서로 섞어서 기록하는 ContainerWriter
+ * <br/>
+ * 모든 트랙이 어떤 시각을 지나야 그 시각까지의 샘플을 기록하므로 파일 안에서 영상과 오디오가 가까이 놓여 재생할 때 앞뒤로 읽지 않고,
+ * 한 트랙이 멈춰도 windowUs 보다 오래된 샘플은 기다리지 않고 기록하므로 메모리는 window 분량만 사용
+ * <br/>
+ * 같은 트랙의 샘플은 chunkDurationUs 만큼 이어서 기록해서 ContainerWriter 가 트랙을 자주 바꾸지 않음
+ * <br/>
+ * MediaCodec 은 B 프레임 없이 디코딩 순서로 내보낸다고 보고 presentationTimeUs 를 디코딩 시각으로 사용
+ */
+public class InterleavingWriter implements ContainerWriter {
+
+    public static final long DEFAULT_WINDOW_US = 500000L;
+    public static final long DEFAULT_CHUNK_DURATION_US = 100000L;
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+    private static final int BUFFER_ALIGN = 16 * 1024;
+
+    private static final class Sample {
+        final SampleInfo info = new SampleInfo();
+        ByteBuffer data;
+    }
+
+    private final ContainerWriter writer;
+    private final long windowUs;
+    private final int maxBufferedBytes;
+    private final List<ArrayDeque<Sample>> queues = new ArrayList<>();
+    private final ArrayDeque<Sample> freeSamples = new ArrayDeque<>();
+
+    private long chunkDurationUs = DEFAULT_CHUNK_DURATION_US;
+
+    // 트랙마다 마지막으로 받은 시각, 받은 적이 없으면 Long.MIN_VALUE
+    private long[] lastUs = new long[0];
+    private long[] aheadUs = new long[0];
+    private long[] maxAheadUs = new long[0];
+    private long newestUs = Long.MIN_VALUE;
+    private int bufferedBytes;
+    private int maxBufferedSeen;
+    private long forcedCount;
+
+    public InterleavingWriter(ContainerWriter writer) {
+        this(writer, DEFAULT_WINDOW_US, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /**
+     * @param windowUs         다른 트랙을 기다리는 최대 시간
+     * @param maxBufferedBytes window 안이라도 모아둔 샘플이 이 크기를 넘으면 가장 오래된 샘플부터 기록
+     */
+    public InterleavingWriter(ContainerWriter writer, long windowUs, int maxBufferedBytes) {
+        if (windowUs < 0 || maxBufferedBytes <= 0) {
+            throw new IllegalArgumentException("invalid window : " + windowUs + "us, " + maxBufferedBytes + " bytes");
+        }
+
+        this.writer = writer;
+        this.windowUs = windowUs;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * 한 트랙을 이어서 기록하는 최대 길이, 0 이면 샘플마다 타임스탬프 순서로 기록
+     */
+    public synchronized void setChunkDuration(long chunkDurationUs) {
+        if (chunkDurationUs < 0) {
+            throw new IllegalArgumentException("chunkDurationUs must not be negative");
+        }
+
+        this.chunkDurationUs = chunkDurationUs;
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        final int trackIndex = writer.addTrack(format);
+
+        if (trackIndex >= lastUs.length) {
+            final int from = lastUs.length;
+            lastUs = Arrays.copyOf(lastUs, trackIndex + 1);
+            aheadUs = Arrays.copyOf(aheadUs, trackIndex + 1);
+            maxAheadUs = Arrays.copyOf(maxAheadUs, trackIndex + 1);
+            Arrays.fill(lastUs, from, lastUs.length, Long.MIN_VALUE);
+
+            while (queues.size() <= trackIndex) {
+                queues.add(new ArrayDeque<Sample>());
+            }
+        }
+
+        return trackIndex;
+    }
+
+    @Override
+    public void start() {
+        writer.start();
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        if (info.isCodecConfig() || info.size <= 0) {
+            // 순서와 상관없는 설정은 바로 넘김
+            writer.writeSampleData(trackIndex, buffer, info);
+            return;
+        }
+
+        final long ptsUs = info.presentationTimeUs;
+        final Sample sample = obtainSample(info.size);
+        copySample(sample, buffer, info);
+        queues.get(trackIndex).addLast(sample);
+        bufferedBytes += info.size;
+        maxBufferedSeen = Math.max(maxBufferedSeen, bufferedBytes);
+
+        lastUs[trackIndex] = Math.max(lastUs[trackIndex], ptsUs);
+        newestUs = Math.max(newestUs, ptsUs);
+        updateAhead();
+
+        drain(false);
+    }
+
+    /**
+     * 트랙마다 샘플을 받은 다른 트랙 중 가장 늦은 트랙보다 얼마나 앞서 있는지 기록
+     */
+    private void updateAhead() {
+        for (int i = 0; i < lastUs.length; i++) {
+            if (lastUs[i] == Long.MIN_VALUE) {
+                continue;
+            }
+
+            long slowest = Long.MAX_VALUE;
+            for (int j = 0; j < lastUs.length; j++) {
+                if (j != i && lastUs[j] != Long.MIN_VALUE) {
+                    slowest = Math.min(slowest, lastUs[j]);
+                }
+            }
+
+            aheadUs[i] = slowest != Long.MAX_VALUE ? Math.max(0, lastUs[i] - slowest) : 0;
+            maxAheadUs[i] = Math.max(maxAheadUs[i], aheadUs[i]);
+        }
+    }
+
+    /**
+     * 가장 오래된 샘플부터 chunk 하나씩 기록, 모든 트랙이 chunk 의 끝을 지났거나 window 나 크기 제한을 넘었을 때만 기록
+     *
+     * @param all true 면 남은 샘플을 모두 기록
+     */
+    private void drain(boolean all) {
+        final long safeUs = safeUs();
+
+        while (true) {
+            final int track = earliestTrack();
+
+            if (track < 0) {
+                return;
+            }
+
+            final ArrayDeque<Sample> queue = queues.get(track);
+            final long headUs = queue.peekFirst().info.presentationTimeUs;
+            final long chunkEndUs = headUs + chunkDurationUs;
+            final boolean ready = all || chunkEndUs <= safeUs;
+
+            if (!ready) {
+                if (!isOverdue(headUs) && bufferedBytes <= maxBufferedBytes) {
+                    return;
+                }
+                forcedCount++;
+            }
+
+            do {
+                emit(track, queue.pollFirst());
+            }
+            while (!queue.isEmpty() && isInChunk(queue.peekFirst().info.presentationTimeUs, chunkEndUs, ready));
+        }
+    }
+
+    /**
+     * 먼저 기록하는 chunk 는 window 를 넘은 샘플까지만 이어서 기록
+     */
+    private boolean isInChunk(long ptsUs, long chunkEndUs, boolean ready) {
+        return ptsUs < chunkEndUs && (ready || isOverdue(ptsUs));
+    }
+
+    private boolean isOverdue(long ptsUs) {
+        return ptsUs < newestUs - windowUs;
+    }
+
+    /**
+     * @return 모든 트랙이 지난 시각, 샘플을 받지 못한 트랙이 있으면 Long.MIN_VALUE
+     */
+    private long safeUs() {
+        long safe = Long.MAX_VALUE;
+
+        for (long last : lastUs) {
+            safe = Math.min(safe, last);
+        }
+
+        return safe;
+    }
+
+    private int earliestTrack() {
+        int track = -1;
+        long earliestUs = Long.MAX_VALUE;
+
+        for (int i = 0; i < queues.size(); i++) {
+            final Sample head = queues.get(i).peekFirst();
+
+            if (head != null && head.info.presentationTimeUs < earliestUs) {
+                earliestUs = head.info.presentationTimeUs;
+                track = i;
+            }
+        }
+
+        return track;
+    }
+
+    private void emit(int trackIndex, Sample sample) {
+        bufferedBytes -= sample.info.size;
+
+        try {
+            writer.writeSampleData(trackIndex, sample.data, sample.info);
+        }
+        finally {
+            freeSamples.addLast(sample);
+        }
+    }
+
+    private Sample obtainSample(int size) {
+        Sample sample = freeSamples.pollFirst();
+
+        if (sample == null) {
+            sample = new Sample();
+        }
+
+        if (sample.data == null || sample.data.capacity() < size) {
+            // 버퍼는 더 큰 샘플이 들어올 때만 새로 할당
+            sample.data = ByteBuffer.allocateDirect((size / BUFFER_ALIGN + 1) * BUFFER_ALIGN);
+        }
+
+        return sample;
+    }
+
+    private static void copySample(Sample sample, ByteBuffer buffer, SampleInfo info) {
+        final ByteBuffer data = sample.data;
+        data.clear();
+
+        final ByteBuffer source = buffer.duplicate();
+        source.limit(info.offset + info.size);
+        source.position(info.offset);
+        data.put(source);
+        data.flip();
+
+        sample.info.set(0, info.size, info.presentationTimeUs, info.flags);
+    }
+
+    /**
+     * 남은 샘플을 모두 타임스탬프 순서로 기록한 뒤 정지
+     */
+    @Override
+    public void stop() {
+        synchronized (this) {
+            drain(true);
+        }
+
+        writer.stop();
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            for (ArrayDeque<Sample> queue : queues) {
+                queue.clear();
+            }
+            freeSamples.clear();
+            bufferedBytes = 0;
+        }
+
+        writer.release();
+    }
+
+    public synchronized int getTrackCount() {
+        return lastUs.length;
+    }
+
+    /**
+     * @return trackIndex 가 가장 늦은 다른 트랙보다 앞서 있는 시간
+     */
+    public synchronized long getAheadUs(int trackIndex) {
+        return aheadUs[trackIndex];
+    }
+
+    /**
+     * @return trackIndex 가 가장 많이 앞섰던 시간
+     */
+    public synchronized long getMaxAheadUs(int trackIndex) {
+        return maxAheadUs[trackIndex];
+    }
+
+    /**
+     * @return 기록하지 않고 모아둔 샘플 바이트 수
+     */
+    public synchronized int getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public synchronized int getMaxBufferedBytes() {
+        return maxBufferedSeen;
+    }
+
+    /**
+     * @return 다른 트랙을 기다리지 못하고 window 나 크기 제한으로 먼저 기록한 횟수
+     */
+    public synchronized long getForcedCount() {
+        return forcedCount;
+    }
+}
@@ -0,0 +1,85 @@
+package chuumong.io.mediacore.mux;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MediaCodec 이 내보내는 Annex-B(시작 코드로 구분된) H.264 샘플에서 NAL 유닛을 찾는 도구
+ */
+public final class NalUnits {
+
+    public static final int TYPE_NON_IDR_SLICE = 1;
+    public static final int TYPE_IDR_SLICE = 5;
+    public static final int TYPE_SPS = 7;
+    public static final int TYPE_PPS = 8;
+    public static final int TYPE_AUD = 9;
+
+    private NalUnits() {
+    }
+
+    /**
+     * @return from 부터 end 전까지에서 찾은 시작 코드(00 00 01)의 위치, 없으면 -1
+     *         앞에 0 이 하나 더 붙은 4 바이트 시작 코드면 그 0 의 위치
+     */
+    public static int findStartCode(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i > from && buffer.get(i - 1) == 0 ? i - 1 : i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return 시작 코드 위치에서 NAL 헤더까지의 길이 (3 또는 4)
+     */
+    public static int startCodeLength(ByteBuffer buffer, int startCode) {
+        return buffer.get(startCode + 2) == 0 ? 4 : 3;
+    }
+
+    /**
+     * @return 시작 코드가 없으면 -1, 있으면 첫 NAL 유닛의 타입
+     */
+    public static int firstNalType(ByteBuffer buffer, int offset, int size) {
+        final int start = findStartCode(buffer, offset, offset + size);
+
+        if (start < 0 || start + startCodeLength(buffer, start) >= offset + size) {
+            return -1;
+        }
+
+        return buffer.get(start + startCodeLength(buffer, start)) & 0x1F;
+    }
+
+    /**
+     * 슬라이스 NAL 의 nal_ref_idc 가 모두 0 이면 다른 프레임이 참조하지 않으므로 버려도 이후 디코딩이 깨지지 않음
+     *
+     * @return 슬라이스가 있고 모두 참조되지 않는 프레임이면 true
+     */
+    public static boolean isNonReferenceFrame(ByteBuffer buffer, int offset, int size) {
+        final int end = offset + size;
+        boolean hasSlice = false;
+        int start = findStartCode(buffer, offset, end);
+
+        while (start >= 0) {
+            final int header = start + startCodeLength(buffer, start);
+
+            if (header >= end) {
+                break;
+            }
+
+            final int nal = buffer.get(header) & 0xFF;
+            final int type = nal & 0x1F;
+
+            if (type == TYPE_NON_IDR_SLICE || type == TYPE_IDR_SLICE) {
+                if ((nal & 0x60) != 0) {
+                    return false;
+                }
+                hasSlice = true;
+            }
+
+            start = findStartCode(buffer, header + 1, end);
+        }
+
+        return hasSlice;
+    }
+}
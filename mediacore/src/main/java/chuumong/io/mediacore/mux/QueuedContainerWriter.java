@@ -0,0 +1,317 @@
+package chuumong.io.mediacore.mux;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * 전용 스레드 하나에서만 ContainerWriter 에 기록하는 ContainerWriter
+ * <br/>
+ * writeSampleData 는 샘플을 미리 할당해 둔 다이렉트 버퍼로 복사해 큐에 넣고 바로 반환하므로,
+ * 인코더는 코덱 출력 버퍼를 즉시 돌려줄 수 있고 파일 I/O 를 기다리지 않음
+ * <br/>
+ * 큐가 가득 차면 샘플을 버리고(backpressure), 영상 트랙은 다음 키 프레임부터 다시 기록
+ */
+public class QueuedContainerWriter implements ContainerWriter {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final int BUFFER_ALIGN = 16 * 1024;
+
+    /**
+     * 큐가 가득 차서 샘플을 버릴 때 인코더 스레드에서 호출
+     */
+    public interface OnBackpressureListener {
+        void onSampleDropped(int trackIndex, int queueDepth);
+    }
+
+    private static final class Sample {
+        final SampleInfo info = new SampleInfo();
+        ByteBuffer data;
+        int trackIndex;
+        // 큐에서 꺼냈을 때 기록을 끝내라는 표시
+        boolean endOfQueue;
+    }
+
+    private final ContainerWriter writer;
+    private final int capacity;
+    private final ArrayBlockingQueue<Sample> freeSamples;
+    private final ArrayBlockingQueue<Sample> pendingSamples;
+    private final Sample endOfQueue = new Sample();
+
+    private OnBackpressureListener backpressureListener;
+
+    private boolean[] videoTracks = new boolean[0];
+    private volatile boolean[] waitingKeyFrame = new boolean[0];
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Thread writerThread;
+    private volatile RuntimeException writeError;
+
+    public QueuedContainerWriter(ContainerWriter writer) {
+        this(writer, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 큐에 대기할 수 있는 최대 샘플 수, 같은 수의 버퍼를 풀에서 재사용
+     */
+    public QueuedContainerWriter(ContainerWriter writer, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        this.writer = writer;
+        this.capacity = capacity;
+        this.freeSamples = new ArrayBlockingQueue<>(capacity);
+        this.pendingSamples = new ArrayBlockingQueue<>(capacity + 1);
+
+        for (int i = 0; i < capacity; i++) {
+            freeSamples.offer(new Sample());
+        }
+
+        endOfQueue.endOfQueue = true;
+    }
+
+    public void setOnBackpressureListener(OnBackpressureListener listener) {
+        this.backpressureListener = listener;
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        final int trackIndex = writer.addTrack(format);
+
+        if (trackIndex >= videoTracks.length) {
+            videoTracks = Arrays.copyOf(videoTracks, trackIndex + 1);
+            waitingKeyFrame = Arrays.copyOf(waitingKeyFrame, trackIndex + 1);
+        }
+        videoTracks[trackIndex] = format.isVideo();
+
+        return trackIndex;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (writerThread != null) {
+            throw new IllegalStateException("writer already started");
+        }
+
+        writer.start();
+
+        writerThread = new Thread(writeTask, "QueuedContainerWriter");
+        writerThread.start();
+    }
+
+    /**
+     * 샘플을 복사해 큐에 넣음, 인코더 스레드 여러 개에서 동시에 호출해도 됨
+     */
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        if (writeError != null) {
+            return;
+        }
+
+        final boolean[] waiting = waitingKeyFrame;
+
+        if (waiting[trackIndex]) {
+            if (!info.isKeyFrame()) {
+                dropSample(trackIndex);
+                return;
+            }
+            waiting[trackIndex] = false;
+        }
+
+        final Sample sample = freeSamples.poll();
+
+        if (sample == null) {
+            // 키 프레임 없이 이어지는 영상 프레임은 디코딩 할 수 없으므로 다음 키 프레임까지 버림
+            if (videoTracks[trackIndex]) {
+                waiting[trackIndex] = true;
+            }
+
+            dropSample(trackIndex);
+            return;
+        }
+
+        copySample(sample, trackIndex, buffer, info);
+
+        final int depth = queueDepth.incrementAndGet();
+        updateMaxQueueDepth(depth);
+
+        pendingSamples.offer(sample);
+    }
+
+    /**
+     * 큐에 남은 샘플을 모두 기록할 때까지 기다린 뒤 ContainerWriter 를 정지
+     */
+    @Override
+    public void stop() {
+        final Thread thread;
+
+        synchronized (this) {
+            thread = writerThread;
+            writerThread = null;
+        }
+
+        if (thread != null) {
+            pendingSamples.offer(endOfQueue);
+
+            boolean interrupted = false;
+
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        writer.stop();
+    }
+
+    /**
+     * 시작하지 않고 끝난 SampleMuxer 와 cancel 양쪽에서 호출될 수 있으므로 한 번만 해제
+     */
+    @Override
+    public void release() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+
+        writer.release();
+
+        Sample sample;
+        while ((sample = freeSamples.poll()) != null) {
+            sample.data = null;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 기록을 기다리는 샘플 수
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * @return 기록 스레드에서 발생한 오류, 오류가 발생하면 이후 샘플은 기록하지 않음
+     */
+    public RuntimeException getWriteError() {
+        return writeError;
+    }
+
+    private void copySample(Sample sample, int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        final int size = info.size;
+
+        if (sample.data == null || sample.data.capacity() < size) {
+            // 버퍼는 더 큰 샘플이 들어올 때만 새로 할당
+            sample.data = ByteBuffer.allocateDirect((size / BUFFER_ALIGN + 1) * BUFFER_ALIGN);
+        }
+
+        final ByteBuffer data = sample.data;
+        data.clear();
+
+        final int position = buffer.position();
+        final int limit = buffer.limit();
+
+        buffer.limit(info.offset + size);
+        buffer.position(info.offset);
+        data.put(buffer);
+        data.flip();
+
+        buffer.limit(limit);
+        buffer.position(position);
+
+        sample.trackIndex = trackIndex;
+        sample.info.set(0, size, info.presentationTimeUs, info.flags);
+    }
+
+    private void dropSample(int trackIndex) {
+        droppedCount.incrementAndGet();
+
+        final OnBackpressureListener listener = backpressureListener;
+        if (listener != null) {
+            listener.onSampleDropped(trackIndex, queueDepth.get());
+        }
+    }
+
+    private void updateMaxQueueDepth(int depth) {
+        int max;
+
+        do {
+            max = maxQueueDepth.get();
+        }
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+    }
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final Sample sample;
+
+                try {
+                    sample = pendingSamples.take();
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+
+                if (sample.endOfQueue) {
+                    break;
+                }
+
+                if (writeError == null) {
+                    try {
+                        writer.writeSampleData(sample.trackIndex, sample.data, sample.info);
+                        writtenCount.incrementAndGet();
+                        writtenBytes.addAndGet(sample.info.size);
+                    }
+                    catch (RuntimeException e) {
+                        writeError = e;
+                    }
+                }
+
+                queueDepth.decrementAndGet();
+                freeSamples.offer(sample);
+            }
+        }
+    };
+}
@@ -0,0 +1,422 @@
+package chuumong.io.mediacore.mux;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * 파일에 계속 기록하지 않고 최근 인코딩 샘플만 메모리에 두었다가, 요청하면 그 구간을 파일로 저장하는 ContainerWriter (다시 보기)
+ * <br/>
+ * 샘플 데이터는 처음에 할당한 다이렉트 버퍼 하나를 링으로 쓰고, 메타데이터도 고정 크기 배열에 두므로 샘플마다 객체를 만들지 않음
+ * <br/>
+ * 공간이 모자라거나 windowUs 보다 오래된 샘플은 가장 오래된 GOP(키 프레임부터 다음 키 프레임 전까지) 단위로 버리므로,
+ * 버퍼는 항상 영상 키 프레임부터 시작함
+ * <br/>
+ * save 는 다른 스레드에서 호출해도 되고 기록을 멈추지 않음, 저장 중에는 아직 읽지 않은 GOP 를 버리지 않으므로 공간이 모자라면 새 샘플을 버림
+ */
+public class ReplayBuffer implements ContainerWriter {
+
+    private final Object lock = new Object();
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int maxSamples;
+    private final long windowUs;
+
+    private final List<TrackFormat> formats = new ArrayList<>();
+    private int videoTrack = -1;
+
+    // 샘플 번호 seq 의 메타데이터는 seq % maxSamples 칸에 있음
+    private final int[] tracks;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final int[] flags;
+    private final long[] ptsUs;
+    private long headSeq;
+    private long tailSeq;
+    private int tailOffset;
+    private int usedBytes;
+
+    // 버퍼에 있는 영상 키 프레임의 샘플 번호, keyHead 부터 keyTail 전까지
+    private final long[] keySeqs;
+    private long keyHead;
+    private long keyTail;
+
+    // GOP 를 버려서 다음 키 프레임 전까지의 영상은 디코딩 할 수 없음
+    private boolean waitingKeyFrame = true;
+
+    // 저장 중이면 아직 읽지 않은 첫 샘플 번호, 이 샘플부터는 버리지 않음
+    private long pinnedSeq = Long.MAX_VALUE;
+    private boolean saving;
+
+    private long evictedGops;
+    private long droppedSamples;
+
+    /**
+     * @param capacityBytes 샘플 데이터에 쓸 다이렉트 버퍼 크기, 비트레이트 x windowUs 보다 여유 있게 잡아야 저장 중에 샘플을 버리지 않음
+     * @param maxSamples    보관할 최대 샘플 수
+     * @param windowUs      보관할 최대 길이, 넘으면 오래된 GOP 부터 버림
+     */
+    public ReplayBuffer(int capacityBytes, int maxSamples, long windowUs) {
+        if (capacityBytes <= 0 || maxSamples <= 0 || windowUs <= 0) {
+            throw new IllegalArgumentException("capacityBytes, maxSamples and windowUs must be positive");
+        }
+
+        this.capacity = capacityBytes;
+        this.maxSamples = maxSamples;
+        this.windowUs = windowUs;
+
+        ring = ByteBuffer.allocateDirect(capacityBytes);
+        tracks = new int[maxSamples];
+        offsets = new int[maxSamples];
+        sizes = new int[maxSamples];
+        flags = new int[maxSamples];
+        ptsUs = new long[maxSamples];
+        keySeqs = new long[maxSamples];
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        synchronized (lock) {
+            if (format.isVideo()) {
+                if (videoTrack >= 0) {
+                    throw new IllegalArgumentException("only one video track is supported : " + format);
+                }
+                videoTrack = formats.size();
+            }
+
+            formats.add(format);
+            return formats.size() - 1;
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        if (info.size <= 0 || info.isCodecConfig()) {
+            return;
+        }
+
+        final boolean video = trackIndex == videoTrack;
+        final boolean keyFrame = video && info.isKeyFrame();
+
+        synchronized (lock) {
+            if (video && waitingKeyFrame && !keyFrame) {
+                droppedSamples++;
+                return;
+            }
+
+            if (videoTrack >= 0 && !video && keyTail == keyHead) {
+                // 첫 키 프레임 전의 오디오는 저장할 때 쓰이지 않음
+                droppedSamples++;
+                return;
+            }
+
+            if (keyFrame) {
+                evictOutsideWindow(info.presentationTimeUs);
+            }
+
+            final int offset = reserve(info.size);
+
+            if (offset < 0) {
+                droppedSamples++;
+                if (video) {
+                    waitingKeyFrame = true;
+                }
+                return;
+            }
+
+            // 공간을 만드느라 이 샘플이 속한 GOP 까지 버린 경우
+            if (video && !keyFrame && waitingKeyFrame || !video && videoTrack >= 0 && keyTail == keyHead) {
+                droppedSamples++;
+                return;
+            }
+
+            // 호출한 쪽 버퍼의 position / limit 을 잠시 바꿔서 복사, duplicate 를 만들지 않음
+            final int position = buffer.position();
+            final int limit = buffer.limit();
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            ring.limit(offset + info.size);
+            ring.position(offset);
+            ring.put(buffer);
+            buffer.limit(limit);
+            buffer.position(position);
+
+            final int slot = (int) (tailSeq % maxSamples);
+            tracks[slot] = trackIndex;
+            offsets[slot] = offset;
+            sizes[slot] = info.size;
+            flags[slot] = info.flags;
+            ptsUs[slot] = info.presentationTimeUs;
+
+            if (keyFrame) {
+                keySeqs[(int) (keyTail++ % maxSamples)] = tailSeq;
+                waitingKeyFrame = false;
+            }
+
+            tailSeq++;
+            tailOffset = offset + info.size;
+            usedBytes += info.size;
+        }
+    }
+
+    /**
+     * 새 키 프레임을 넣기 전에, 두 번째 GOP 부터도 windowUs 를 채우면 가장 오래된 GOP 를 버림
+     */
+    private void evictOutsideWindow(long keyFramePtsUs) {
+        while (keyTail - keyHead >= 2) {
+            final long secondKey = keySeqs[(int) ((keyHead + 1) % maxSamples)];
+
+            if (keyFramePtsUs - ptsUs[(int) (secondKey % maxSamples)] < windowUs || !evictOldestGop()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return size 바이트를 넣을 링 버퍼 위치, 저장 중이라 GOP 를 버릴 수 없거나 버퍼보다 크면 -1
+     */
+    private int reserve(int size) {
+        if (size > capacity) {
+            return -1;
+        }
+
+        while (true) {
+            if (tailSeq - headSeq < maxSamples) {
+                final int offset = findSpace(size);
+
+                if (offset >= 0) {
+                    return offset;
+                }
+            }
+
+            if (!evictOldestGop()) {
+                return -1;
+            }
+        }
+    }
+
+    private int findSpace(int size) {
+        if (tailSeq == headSeq) {
+            return 0;
+        }
+
+        final int head = offsets[(int) (headSeq % maxSamples)];
+
+        if (tailOffset > head) {
+            // [head, tail) 만 사용 중, 뒤에 자리가 없으면 앞으로 돌아감
+            if (tailOffset + size <= capacity) {
+                return tailOffset;
+            }
+            return size <= head ? 0 : -1;
+        }
+
+        return tailOffset + size <= head ? tailOffset : -1;
+    }
+
+    /**
+     * 가장 오래된 샘플부터 다음 키 프레임 전까지 버림
+     *
+     * @return 버퍼가 비었거나 저장 중이라 버릴 수 없으면 false
+     */
+    private boolean evictOldestGop() {
+        if (tailSeq == headSeq) {
+            return false;
+        }
+
+        long keyIndex = keyHead;
+        if (keyIndex < keyTail && keySeqs[(int) (keyIndex % maxSamples)] == headSeq) {
+            keyIndex++;
+        }
+
+        final long end = keyIndex < keyTail ? keySeqs[(int) (keyIndex % maxSamples)] : tailSeq;
+
+        if (end > pinnedSeq) {
+            return false;
+        }
+
+        for (long seq = headSeq; seq < end; seq++) {
+            usedBytes -= sizes[(int) (seq % maxSamples)];
+        }
+
+        headSeq = end;
+        keyHead = keyIndex;
+        evictedGops++;
+
+        if (headSeq == tailSeq) {
+            // 지금 GOP 까지 버렸으므로 다음 키 프레임까지 영상은 받지 않음
+            tailOffset = 0;
+            waitingKeyFrame = true;
+        }
+
+        return true;
+    }
+
+    /**
+     * 버퍼에 있는 마지막 durationUs 를 out 에 기록하고 out 을 stop / release 함, 기록은 계속 진행됨
+     * <br/>
+     * 시작은 그 구간 앞의 가장 가까운 키 프레임이므로 요청보다 최대 GOP 하나만큼 길어질 수 있음
+     *
+     * @param durationUs 0 이하면 버퍼 전체
+     * @return 기록한 샘플 수, 저장할 키 프레임이 없으면 0
+     */
+    public int save(ContainerWriter out, long durationUs) {
+        final long startSeq;
+        final long endSeq;
+        final TrackFormat[] trackFormats;
+
+        synchronized (lock) {
+            if (saving) {
+                throw new IllegalStateException("already saving");
+            }
+
+            if (keyTail == keyHead) {
+                return 0;
+            }
+
+            final long lastPtsUs = ptsUs[(int) ((tailSeq - 1) % maxSamples)];
+            long start = keySeqs[(int) (keyHead % maxSamples)];
+
+            if (durationUs > 0) {
+                for (long k = keyTail - 1; k >= keyHead; k--) {
+                    final long seq = keySeqs[(int) (k % maxSamples)];
+                    start = seq;
+
+                    if (lastPtsUs - ptsUs[(int) (seq % maxSamples)] >= durationUs) {
+                        break;
+                    }
+                }
+            }
+
+            startSeq = start;
+            endSeq = tailSeq;
+            saving = true;
+            pinnedSeq = startSeq;
+
+            trackFormats = formats.toArray(new TrackFormat[formats.size()]);
+        }
+
+        final SampleInfo info = new SampleInfo();
+        final int[] trackMap = new int[trackFormats.length];
+        ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+        int written = 0;
+
+        try {
+            for (int i = 0; i < trackFormats.length; i++) {
+                trackMap[i] = out.addTrack(trackFormats[i]);
+            }
+            out.start();
+
+            for (long seq = startSeq; seq < endSeq; seq++) {
+                final int track;
+
+                synchronized (lock) {
+                    final int slot = (int) (seq % maxSamples);
+                    final int size = sizes[slot];
+
+                    if (scratch.capacity() < size) {
+                        scratch = ByteBuffer.allocateDirect(Math.max(size, scratch.capacity() * 2));
+                    }
+
+                    ring.limit(offsets[slot] + size);
+                    ring.position(offsets[slot]);
+                    scratch.clear();
+                    scratch.put(ring);
+                    scratch.flip();
+
+                    track = tracks[slot];
+                    info.set(0, size, ptsUs[slot], flags[slot]);
+                    // 읽은 샘플까지는 기록 스레드가 버릴 수 있음
+                    pinnedSeq = seq + 1;
+                }
+
+                // 파일 기록은 잠금 밖에서 하므로 기록 스레드를 막지 않음
+                out.writeSampleData(trackMap[track], scratch, info);
+                written++;
+            }
+
+            out.stop();
+        }
+        finally {
+            synchronized (lock) {
+                saving = false;
+                pinnedSeq = Long.MAX_VALUE;
+            }
+
+            out.release();
+        }
+
+        return written;
+    }
+
+    /**
+     * 녹화가 끝나도 버퍼는 남겨두므로 release 전까지 save 할 수 있음
+     */
+    @Override
+    public void stop() {
+    }
+
+    /**
+     * 버퍼를 비움, 다이렉트 버퍼는 이 객체와 함께 해제됨
+     */
+    @Override
+    public void release() {
+        synchronized (lock) {
+            headSeq = tailSeq;
+            keyHead = keyTail;
+            usedBytes = 0;
+            tailOffset = 0;
+            waitingKeyFrame = true;
+        }
+    }
+
+    /**
+     * @return 버퍼에 있는 샘플 데이터 바이트 수
+     */
+    public int getBufferedBytes() {
+        synchronized (lock) {
+            return usedBytes;
+        }
+    }
+
+    /**
+     * @return 버퍼의 첫 키 프레임부터 마지막 샘플까지의 길이
+     */
+    public long getBufferedDurationUs() {
+        synchronized (lock) {
+            if (keyTail == keyHead) {
+                return 0;
+            }
+
+            return ptsUs[(int) ((tailSeq - 1) % maxSamples)] - ptsUs[(int) (keySeqs[(int) (keyHead % maxSamples)] % maxSamples)];
+        }
+    }
+
+    public int getBufferedSampleCount() {
+        synchronized (lock) {
+            return (int) (tailSeq - headSeq);
+        }
+    }
+
+    public long getEvictedGopCount() {
+        synchronized (lock) {
+            return evictedGops;
+        }
+    }
+
+    /**
+     * @return 버퍼보다 크거나, 저장 중에 공간이 모자라거나, 키 프레임을 기다리느라 버린 샘플 수
+     */
+    public long getDroppedSampleCount() {
+        synchronized (lock) {
+            return droppedSamples;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package chuumong.io.mediacore.mux;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * 인코더마다 트랙을 등록받아 하나의 ContainerWriter 에 기록, 영상 / 오디오 트랙의 수와 종류에 제한 없음
+ * <br/>
+ * 등록한 모든 트랙이 포맷을 정하고 start 하면 그 트랙들을 등록 순서대로 ContainerWriter 에 추가하고 시작, 모든 트랙이 stop 하면 종료하고 해제
+ * <br/>
+ * 등록 수와 준비 수는 하나의 AtomicLong 에 담아 CAS 로 세므로 인코더 스레드끼리 lock 을 잡지 않고,
+ * 포맷을 정하기 전에 stop 한 트랙은 등록을 취소해서 다른 트랙의 시작을 붙잡지 않고, 모든 트랙이 취소되면 시작하지 않고 해제
+ */
+public class SampleMuxer {
+
+    // gate 의 아래 31 비트는 준비된 트랙 수, 그 위 31 비트는 등록된 트랙 수
+    private static final long READY_MASK = (1L << 31) - 1;
+    private static final long REGISTERED_UNIT = 1L << 31;
+    private static final long STARTED = 1L << 62;
+
+    private static final int STATE_REGISTERED = 0;
+    private static final int STATE_READY = 1;
+    private static final int STATE_STOPPED = 2;
+    // 포맷을 정하기 전에 stop 해서 등록을 취소한 트랙
+    private static final int STATE_CANCELLED = 3;
+
+    private final ContainerWriter writer;
+    private final List<Track> tracks = new CopyOnWriteArrayList<>();
+    private final AtomicLong gate = new AtomicLong();
+    private final AtomicInteger stoppedCount = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile boolean isStarted;
+
+    public SampleMuxer(ContainerWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * 인코더 하나의 트랙을 등록, 시작하거나 해제한 뒤에는 등록할 수 없음
+     *
+     * @return 이 트랙만 기록하는 SampleSink, writeSampleData 의 trackIndex 는 무시
+     */
+    public SampleSink registerTrack() {
+        while (true) {
+            final long current = gate.get();
+
+            if ((current & STARTED) != 0) {
+                throw new IllegalStateException("muxer already started or closed");
+            }
+
+            if (gate.compareAndSet(current, current + REGISTERED_UNIT)) {
+                break;
+            }
+        }
+
+        final Track track = new Track();
+        tracks.add(track);
+        return track;
+    }
+
+    public boolean isStarted() {
+        return isStarted;
+    }
+
+    /**
+     * @return ContainerWriter 를 종료하고 해제했으면 true
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public int getRegisteredCount() {
+        return registered(gate.get());
+    }
+
+    /**
+     * @return 포맷을 정하고 start 한 트랙 수
+     */
+    public int getReadyCount() {
+        return (int) (gate.get() & READY_MASK);
+    }
+
+    /**
+     * @return start 한 뒤 stop 한 트랙 수
+     */
+    public int getStoppedCount() {
+        return stoppedCount.get();
+    }
+
+    private static int registered(long gate) {
+        return (int) ((gate & ~STARTED) >>> 31);
+    }
+
+    private static boolean isComplete(long gate) {
+        final int registered = registered(gate);
+        return registered > 0 && registered == (int) (gate & READY_MASK);
+    }
+
+    /**
+     * @return 이 트랙으로 모든 트랙이 준비되었으면 true, 호출한 스레드가 ContainerWriter 를 시작해야 함
+     */
+    private boolean markReady() {
+        while (true) {
+            final long current = gate.get();
+            final long next = current + 1;
+            final boolean complete = isComplete(next);
+
+            if (gate.compareAndSet(current, complete ? next | STARTED : next)) {
+                return complete;
+            }
+        }
+    }
+
+    /**
+     * @return 남은 트랙이 모두 준비되어 있으면 true, 호출한 스레드가 ContainerWriter 를 시작해야 함
+     */
+    private boolean unregister() {
+        while (true) {
+            final long current = gate.get();
+            final long next = current - REGISTERED_UNIT;
+            final boolean complete = (current & STARTED) == 0 && isComplete(next);
+
+            if (gate.compareAndSet(current, complete ? next | STARTED : next)) {
+                return complete;
+            }
+        }
+    }
+
+    /**
+     * 모든 트랙이 포맷을 정하기 전에 취소되었으면 ContainerWriter 를 시작하지 않고 해제, 이후에는 등록할 수 없음
+     */
+    private void closeIfEmpty() {
+        final long current = gate.get();
+
+        if ((current & STARTED) == 0 && registered(current) == 0 && gate.compareAndSet(current, current | STARTED)
+            && closed.compareAndSet(false, true)) {
+            writer.release();
+        }
+    }
+
+    /**
+     * 준비를 끝낸 스레드 하나만 호출, 다른 트랙은 모두 포맷이 정해져 있음
+     */
+    private void startWriter() {
+        for (Track track : tracks) {
+            if (track.state.get() != STATE_CANCELLED) {
+                track.writerIndex = writer.addTrack(track.format);
+            }
+        }
+
+        writer.start();
+        isStarted = true;
+
+        for (Track track : tracks) {
+            synchronized (track) {
+                track.notifyAll();
+            }
+        }
+
+        closeIfFinished();
+    }
+
+    /**
+     * 시작한 뒤 모든 트랙이 stop 했으면 한 번만 종료
+     */
+    private void closeIfFinished() {
+        if (isStarted && stoppedCount.get() == registered(gate.get()) && closed.compareAndSet(false, true)) {
+            writer.stop();
+            writer.release();
+        }
+    }
+
+    /**
+     * 인코더 하나의 트랙, 등록 → 포맷 → start → stop 순서로 다른 트랙과 상관없이 진행
+     */
+    private final class Track implements SampleSink {
+
+        final AtomicInteger state = new AtomicInteger(STATE_REGISTERED);
+        volatile TrackFormat format;
+        volatile int writerIndex = -1;
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            if (state.get() != STATE_REGISTERED || isStarted) {
+                throw new IllegalStateException("muxer already started");
+            }
+
+            this.format = format;
+            return tracks.indexOf(this);
+        }
+
+        @Override
+        public boolean start() {
+            if (format == null) {
+                throw new IllegalStateException("addTrack must be called before start");
+            }
+
+            if (state.compareAndSet(STATE_REGISTERED, STATE_READY) && markReady()) {
+                startWriter();
+            }
+
+            return isStarted;
+        }
+
+        @Override
+        public boolean isStarted() {
+            return isStarted;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+            if (isStarted && state.get() == STATE_READY) {
+                writer.writeSampleData(writerIndex, buffer, info);
+            }
+        }
+
+        @Override
+        public void stop() {
+            if (state.compareAndSet(STATE_REGISTERED, STATE_CANCELLED)) {
+                if (unregister()) {
+                    startWriter();
+                }
+                else {
+                    closeIfEmpty();
+                }
+            }
+            else if (state.compareAndSet(STATE_READY, STATE_STOPPED)) {
+                stoppedCount.incrementAndGet();
+                closeIfFinished();
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package chuumong.io.mediacore.mux;
+
+import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * 인코더가 출력 샘플을 넘기는 대상
+ * <br/>
+ * 등록된 모든 인코더가 start 를 호출해야 시작되며, 시작되면 자기 자신으로 notifyAll 해서 대기 중인 인코더를 깨움
+ */
+public interface SampleSink {
+
+    int addTrack(TrackFormat format);
+
+    /**
+     * @return 모든 인코더가 준비되어 시작되었으면 true
+     */
+    boolean start();
+
+    boolean isStarted();
+
+    void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info);
+
+    void stop();
+}
@@ -0,0 +1,401 @@
+package chuumong.io.mediacore.mux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * 일정 시간 / 크기마다 다음 파일로 넘어가며 기록하는 ContainerWriter, 인코더를 멈추거나 샘플을 버리지 않음
+ * <br/>
+ * 영상 키 프레임에서만 넘어가므로 각 파일은 키 프레임으로 시작하고, 트랙 포맷(SPS / PPS, AAC csd)을 파일마다 다시 넣어서 따로 재생 가능
+ * <br/>
+ * 다음 파일은 백그라운드 스레드에서 미리 열어 두고, 끝난 파일도 그 스레드에서 닫으므로 기록 스레드는 파일을 여닫느라 멈추지 않음
+ */
+public class SegmentingWriter implements ContainerWriter {
+
+    /**
+     * 파일 하나의 ContainerWriter 를 만듦, 백그라운드 스레드에서 호출
+     */
+    public interface SegmentFactory {
+
+        ContainerWriter create(int segmentIndex) throws IOException;
+
+        /**
+         * 미리 열었지만 기록하지 않은 writer, 해제하고 만든 파일을 지움
+         */
+        void discard(int segmentIndex, ContainerWriter writer);
+    }
+
+    /**
+     * 백그라운드 스레드에서 호출
+     */
+    public interface OnSegmentListener {
+
+        void onSegmentFinished(int segmentIndex, long durationUs, long bytes);
+
+        /**
+         * 다음 파일을 열지 못한 경우, 지금 파일에 계속 기록하고 다음 키 프레임에서 다시 시도
+         */
+        void onSegmentError(int segmentIndex, Exception e);
+    }
+
+    private final SegmentFactory factory;
+    private final long maxDurationUs;
+    private final long maxBytes;
+    private final ExecutorService executor;
+    private final List<TrackFormat> formats = new ArrayList<>();
+
+    private volatile OnSegmentListener segmentListener;
+
+    private int videoTrack = -1;
+    private int[] trackMap = new int[0];
+
+    private Future<ContainerWriter> nextWriter;
+    private int nextIndex;
+
+    private ContainerWriter writer;
+    private int segmentIndex = -1;
+    private long segmentStartUs = -1;
+    private long segmentEndUs;
+    private long segmentBytes;
+    private boolean stopped;
+    private boolean released;
+
+    /**
+     * 첫 파일은 바로 백그라운드에서 열기 시작
+     *
+     * @param maxDurationUs 파일 하나의 최대 길이, 0 이면 길이로 나누지 않음
+     * @param maxBytes      파일 하나의 최대 크기, 0 이면 크기로 나누지 않음, 다음 키 프레임까지는 넘을 수 있음
+     */
+    public SegmentingWriter(SegmentFactory factory, long maxDurationUs, long maxBytes) {
+        if (maxDurationUs < 0 || maxBytes < 0 || maxDurationUs == 0 && maxBytes == 0) {
+            throw new IllegalArgumentException("maxDurationUs or maxBytes must be positive");
+        }
+
+        this.factory = factory;
+        this.maxDurationUs = maxDurationUs;
+        this.maxBytes = maxBytes;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "SegmentingWriter");
+            }
+        });
+
+        preOpen();
+    }
+
+    public void setOnSegmentListener(OnSegmentListener listener) {
+        this.segmentListener = listener;
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        if (writer != null) {
+            throw new IllegalStateException("writer already started");
+        }
+
+        if (format.isVideo()) {
+            if (videoTrack >= 0) {
+                throw new IllegalArgumentException("only one video track is supported : " + format);
+            }
+            videoTrack = formats.size();
+        }
+
+        formats.add(format);
+        return formats.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (writer != null) {
+            throw new IllegalStateException("writer already started");
+        }
+
+        trackMap = new int[formats.size()];
+
+        try {
+            openSegment(takeNext());
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("failed to open first segment", e.getCause());
+        }
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        if (writer == null || stopped) {
+            throw new IllegalStateException("writer not started");
+        }
+
+        if (info.isCodecConfig()) {
+            // 코덱이 설정을 따로 내보내면 다음 파일부터 그 설정을 트랙 포맷으로 넣음
+            if (info.size > 0) {
+                updateCodecConfig(formats.get(trackIndex), buffer, info);
+            }
+            return;
+        }
+
+        if (info.size <= 0) {
+            return;
+        }
+
+        if (isRotationDue(trackIndex, info)) {
+            rotate();
+        }
+
+        if (segmentStartUs < 0) {
+            segmentStartUs = info.presentationTimeUs;
+        }
+
+        writer.writeSampleData(trackMap[trackIndex], buffer, info);
+        segmentEndUs = Math.max(segmentEndUs, info.presentationTimeUs);
+        segmentBytes += info.size;
+    }
+
+    private boolean isRotationDue(int trackIndex, SampleInfo info) {
+        if (segmentStartUs < 0 || videoTrack >= 0 && (trackIndex != videoTrack || !info.isKeyFrame())) {
+            return false;
+        }
+
+        return maxDurationUs > 0 && info.presentationTimeUs - segmentStartUs >= maxDurationUs || maxBytes > 0 && segmentBytes >= maxBytes;
+    }
+
+    /**
+     * 미리 열어둔 다음 파일로 넘어가고, 지금 파일은 백그라운드에서 닫음
+     */
+    private void rotate() {
+        final int failedIndex = nextIndex - 1;
+        final ContainerWriter next;
+
+        try {
+            next = takeNext();
+        }
+        catch (ExecutionException e) {
+            // 지금 파일에 계속 기록하고 다음 키 프레임에서 다시 시도
+            notifyError(failedIndex, e.getCause());
+            return;
+        }
+
+        final ContainerWriter previous = writer;
+        final int previousIndex = segmentIndex;
+        final long durationUs = segmentEndUs - segmentStartUs;
+        final long bytes = segmentBytes;
+
+        openSegment(next);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    previous.stop();
+                    previous.release();
+                }
+                catch (RuntimeException e) {
+                    notifyError(previousIndex, e);
+                    return;
+                }
+
+                notifyFinished(previousIndex, durationUs, bytes);
+            }
+        });
+    }
+
+    private void openSegment(ContainerWriter next) {
+        for (int i = 0; i < formats.size(); i++) {
+            trackMap[i] = next.addTrack(formats.get(i));
+        }
+        next.start();
+
+        writer = next;
+        segmentIndex = nextIndex - 1;
+        segmentStartUs = -1;
+        segmentEndUs = 0;
+        segmentBytes = 0;
+
+        preOpen();
+    }
+
+    /**
+     * 미리 연 파일을 받음, 아직 열고 있으면 기다림, 실패하면 다시 열기 시작
+     */
+    private ContainerWriter takeNext() throws ExecutionException {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    return nextWriter.get();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    preOpen();
+                    throw e;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void preOpen() {
+        final int index = nextIndex++;
+
+        nextWriter = executor.submit(new Callable<ContainerWriter>() {
+            @Override
+            public ContainerWriter call() throws IOException {
+                return factory.create(index);
+            }
+        });
+    }
+
+    private static void updateCodecConfig(TrackFormat format, ByteBuffer buffer, SampleInfo info) {
+        final ByteBuffer config = ByteBuffer.allocate(info.size);
+        final ByteBuffer source = buffer.duplicate();
+        source.limit(info.offset + info.size);
+        source.position(info.offset);
+        config.put(source);
+        config.flip();
+
+        if (!format.isVideo()) {
+            format.setCsd0(config);
+            return;
+        }
+
+        // SPS 와 PPS 가 이어서 오므로 두 번째 NAL 부터를 csd-1 로 나눔
+        final int first = NalUnits.findStartCode(config, 0, config.limit());
+        final int second = first >= 0 ? NalUnits.findStartCode(config, first + NalUnits.startCodeLength(config, first), config.limit()) : -1;
+
+        if (second < 0) {
+            format.setCsd0(config);
+            return;
+        }
+
+        final ByteBuffer sps = config.duplicate();
+        sps.limit(second);
+        final ByteBuffer pps = config.duplicate();
+        pps.position(second);
+        format.setCsd0(sps.slice());
+        format.setCsd1(pps.slice());
+    }
+
+    /**
+     * 지금 파일을 마무리, 백그라운드에서 닫는 중인 이전 파일은 release 에서 기다림
+     */
+    @Override
+    public void stop() {
+        final ContainerWriter current;
+        final int index;
+        final long durationUs;
+        final long bytes;
+
+        synchronized (this) {
+            if (writer == null || stopped) {
+                return;
+            }
+
+            stopped = true;
+            current = writer;
+            index = segmentIndex;
+            durationUs = segmentEndUs - segmentStartUs;
+            bytes = segmentBytes;
+        }
+
+        current.stop();
+        notifyFinished(index, durationUs, bytes);
+    }
+
+    /**
+     * 미리 열어둔 파일은 지우고, 백그라운드에서 닫는 중인 파일이 끝날 때까지 기다린 뒤 스레드를 끝냄
+     */
+    @Override
+    public void release() {
+        final ContainerWriter current;
+        final Future<ContainerWriter> unused;
+        final int unusedIndex;
+
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+
+            released = true;
+            current = writer;
+            unused = nextWriter;
+            unusedIndex = nextIndex - 1;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    factory.discard(unusedIndex, unused.get());
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    // 열지 못한 파일은 지울 것도 없음
+                }
+            }
+        });
+        executor.shutdown();
+
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (current != null) {
+            current.release();
+        }
+    }
+
+    /**
+     * @return 지금 기록 중인 파일 번호, 시작 전에는 -1
+     */
+    public synchronized int getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    private void notifyFinished(int index, long durationUs, long bytes) {
+        final OnSegmentListener listener = segmentListener;
+
+        if (listener != null) {
+            listener.onSegmentFinished(index, Math.max(0, durationUs), bytes);
+        }
+    }
+
+    private void notifyError(int index, Throwable e) {
+        final OnSegmentListener listener = segmentListener;
+
+        if (listener != null) {
+            listener.onSegmentError(index, e instanceof Exception ? (Exception) e : new RuntimeException(e));
+        }
+    }
+}
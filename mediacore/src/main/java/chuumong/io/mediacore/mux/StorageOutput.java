@@ -0,0 +1,27 @@
+package chuumong.io.mediacore.mux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 컨테이너 파일을 기록하는 저장소, 앞에서부터 이어 쓰고 이미 쓴 위치는 헤더를 고칠 때만 다시 씀
+ */
+public interface StorageOutput {
+
+    /**
+     * buffers 를 모두 파일 끝에 이어 씀, 반환한 뒤에는 buffers 를 다시 써도 됨
+     */
+    void append(ByteBuffer[] buffers, int offset, int length) throws IOException;
+
+    /**
+     * 이미 append 한 position 의 내용을 buffer 로 바꿈
+     */
+    void writeAt(ByteBuffer buffer, long position) throws IOException;
+
+    /**
+     * 지금까지 쓴 내용을 저장 장치에 기록할 때까지 기다림
+     */
+    void sync() throws IOException;
+
+    void close() throws IOException;
+}
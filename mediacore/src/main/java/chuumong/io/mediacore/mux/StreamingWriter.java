@@ -0,0 +1,394 @@
+package chuumong.io.mediacore.mux;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+/**
+ * 샘플을 MPEG-TS 로 나눠 소켓(TCP / Unix 도메인) 같은 스트림으로 보내는 ContainerWriter, 파일과 달리 받는 즉시 재생 가능
+ * <br/>
+ * 패킷으로 나눈 샘플은 보낼 버퍼에 넣고 전송 스레드가 보냄, 버퍼 크기는 maxBufferBytes 로 제한
+ * <br/>
+ * 네트워크가 밀려서 버퍼가 절반 이상 차면 참조되지 않는 영상 프레임부터 버리고, 가득 차면 다음 키 프레임까지 영상을 버림
+ */
+public class StreamingWriter implements ContainerWriter {
+
+    public static final int DEFAULT_BUFFER_BYTES = 2 * 1024 * 1024;
+    public static final long DEFAULT_STOP_TIMEOUT_MS = 3000;
+
+    private static final int CHUNK_COUNT = 64;
+
+    /**
+     * 버퍼가 밀려서 프레임을 버릴 때 기록 스레드에서 호출, 영상을 키 프레임까지 버리는 경우 인코더에 키 프레임을 요청하는 데 사용
+     */
+    public interface OnCongestionListener {
+        void onFrameDropped(int trackIndex, boolean waitingKeyFrame, int bufferedBytes);
+    }
+
+    private static final class Chunk {
+        byte[] data = new byte[0];
+        int length;
+    }
+
+    private final OutputStream out;
+    private final int maxBufferBytes;
+    private final ArrayBlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+    private final ArrayBlockingQueue<Chunk> pendingChunks = new ArrayBlockingQueue<>(CHUNK_COUNT + 1);
+    private final Chunk endOfStream = new Chunk();
+
+    private OnCongestionListener congestionListener;
+    private long stopTimeoutMs = DEFAULT_STOP_TIMEOUT_MS;
+
+    private int trackCount;
+    private int videoTrack = -1;
+    private int audioTrack = -1;
+    private TrackFormat videoFormat;
+    private TrackFormat audioFormat;
+
+    private TsPacketizer packetizer;
+    private boolean waitingKeyFrame;
+
+    private final AtomicInteger bufferedBytes = new AtomicInteger();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong droppedNonReferenceFrames = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    private Thread senderThread;
+    private volatile IOException sendError;
+
+    public StreamingWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * @param maxBufferBytes 보내지 못하고 쌓아둘 수 있는 최대 바이트 수, 지연 시간의 상한
+     */
+    public StreamingWriter(OutputStream out, int maxBufferBytes) {
+        if (maxBufferBytes <= 0) {
+            throw new IllegalArgumentException("maxBufferBytes must be positive");
+        }
+
+        this.out = out;
+        this.maxBufferBytes = maxBufferBytes;
+
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            freeChunks.offer(new Chunk());
+        }
+    }
+
+    public void setOnCongestionListener(OnCongestionListener listener) {
+        this.congestionListener = listener;
+    }
+
+    /**
+     * stop 에서 남은 패킷을 보내기를 기다리는 최대 시간, 넘으면 스트림을 닫고 남은 패킷은 버림
+     */
+    public void setStopTimeout(long stopTimeoutMs) {
+        if (stopTimeoutMs < 0) {
+            throw new IllegalArgumentException("stopTimeoutMs must not be negative");
+        }
+
+        this.stopTimeoutMs = stopTimeoutMs;
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        if (packetizer != null) {
+            throw new IllegalStateException("writer already started");
+        }
+
+        final int trackIndex = trackCount++;
+
+        if (format.isVideo() && videoTrack < 0) {
+            videoTrack = trackIndex;
+            videoFormat = format;
+        }
+        else if (format.isAudio() && audioTrack < 0) {
+            audioTrack = trackIndex;
+            audioFormat = format;
+        }
+        else {
+            throw new IllegalArgumentException("only one video and one audio track are supported : " + format);
+        }
+
+        return trackIndex;
+    }
+
+    /**
+     * PAT / PMT 를 먼저 보내고 전송 스레드를 시작
+     */
+    @Override
+    public synchronized void start() {
+        if (packetizer != null) {
+            throw new IllegalStateException("writer already started");
+        }
+
+        packetizer = new TsPacketizer(videoFormat != null, audioFormat != null);
+
+        if (videoFormat != null && videoFormat.getCsd0() != null) {
+            packetizer.setParameterSets(videoFormat.getCsd0(), videoFormat.getCsd1());
+        }
+        if (audioFormat != null) {
+            packetizer.setAudioConfig(audioFormat.getCsd0(), audioFormat.getSampleRate(), audioFormat.getChannelCount());
+        }
+
+        // 첫 키 프레임 전의 영상은 디코딩 할 수 없음
+        waitingKeyFrame = true;
+
+        final Chunk chunk = freeChunks.poll();
+        ensureCapacity(chunk, TsPacketizer.PACKET_SIZE * 2);
+        enqueue(chunk, packetizer.writeTables(chunk.data, 0));
+
+        senderThread = new Thread(sendTask, "StreamingWriter");
+        senderThread.start();
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        if (packetizer == null || sendError != null || info.size <= 0) {
+            return;
+        }
+
+        final boolean video = trackIndex == videoTrack;
+
+        if (info.isCodecConfig()) {
+            // 포맷에 csd 가 없던 경우, 코덱이 따로 내보낸 SPS / PPS 를 키 프레임 앞에 넣음
+            if (video) {
+                final ByteBuffer config = buffer.duplicate();
+                config.limit(info.offset + info.size);
+                config.position(info.offset);
+                packetizer.setParameterSets(config, null);
+            }
+            return;
+        }
+
+        if (!admit(trackIndex, video, buffer, info)) {
+            return;
+        }
+
+        final Chunk chunk = freeChunks.poll();
+
+        if (chunk == null) {
+            drop(trackIndex, video);
+            return;
+        }
+
+        ensureCapacity(chunk, packetizer.maxPacketizedSize(info.size));
+
+        final int length = video ? packetizer.writeVideo(chunk.data, 0, buffer, info.offset, info.size, info.presentationTimeUs, info.isKeyFrame())
+                                 : packetizer.writeAudio(chunk.data, 0, buffer, info.offset, info.size, info.presentationTimeUs);
+        enqueue(chunk, length);
+    }
+
+    /**
+     * 버퍼가 찬 정도에 따라 이 샘플을 보낼지 결정, 버리는 경우 여기서 셈
+     */
+    private boolean admit(int trackIndex, boolean video, ByteBuffer buffer, SampleInfo info) {
+        final int buffered = bufferedBytes.get();
+
+        if (!video) {
+            if (buffered >= maxBufferBytes) {
+                drop(trackIndex, false);
+                return false;
+            }
+            return true;
+        }
+
+        if (waitingKeyFrame && !info.isKeyFrame()) {
+            droppedFrames.incrementAndGet();
+            return false;
+        }
+
+        if (buffered >= maxBufferBytes) {
+            drop(trackIndex, true);
+            return false;
+        }
+
+        if (buffered >= maxBufferBytes / 2 && !info.isKeyFrame() && NalUnits.isNonReferenceFrame(buffer, info.offset, info.size)) {
+            // 참조되지 않는 프레임은 버려도 다음 프레임 디코딩이 깨지지 않음
+            droppedNonReferenceFrames.incrementAndGet();
+            droppedFrames.incrementAndGet();
+            notifyDropped(trackIndex, false, buffered);
+            return false;
+        }
+
+        waitingKeyFrame = false;
+        return true;
+    }
+
+    private void drop(int trackIndex, boolean video) {
+        droppedFrames.incrementAndGet();
+
+        if (video) {
+            // 참조되는 프레임을 버렸으므로 이후 프레임은 다음 키 프레임까지 디코딩 할 수 없음
+            waitingKeyFrame = true;
+        }
+
+        notifyDropped(trackIndex, video, bufferedBytes.get());
+    }
+
+    private void notifyDropped(int trackIndex, boolean waitingKeyFrame, int buffered) {
+        final OnCongestionListener listener = congestionListener;
+
+        if (listener != null) {
+            listener.onFrameDropped(trackIndex, waitingKeyFrame, buffered);
+        }
+    }
+
+    private void enqueue(Chunk chunk, int length) {
+        chunk.length = length;
+        bufferedBytes.addAndGet(length);
+        pendingChunks.offer(chunk);
+    }
+
+    private static void ensureCapacity(Chunk chunk, int size) {
+        if (chunk.data.length < size) {
+            chunk.data = new byte[size];
+        }
+    }
+
+    /**
+     * 버퍼에 남은 패킷을 모두 보낼 때까지 stopTimeoutMs 동안 기다림
+     * <br/>
+     * 받는 쪽이 읽지 않아 전송 스레드가 write 에서 막혀 있으면 시간이 지나거나 인터럽트 되었을 때 스트림을 닫아서 깨움
+     */
+    @Override
+    public void stop() {
+        final Thread thread;
+
+        synchronized (this) {
+            thread = senderThread;
+            senderThread = null;
+        }
+
+        if (thread == null) {
+            return;
+        }
+
+        pendingChunks.offer(endOfStream);
+
+        boolean interrupted = false;
+
+        try {
+            thread.join(stopTimeoutMs);
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+        }
+
+        if (thread.isAlive()) {
+            if (sendError == null) {
+                sendError = new IOException("stop timed out, " + bufferedBytes.get() + " bytes not sent");
+            }
+
+            closeOutput();
+            thread.interrupt();
+
+            try {
+                thread.join(stopTimeoutMs);
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void release() {
+        closeOutput();
+    }
+
+    private void closeOutput() {
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            if (sendError == null) {
+                sendError = e;
+            }
+        }
+    }
+
+    /**
+     * @return 보내지 못하고 버퍼에 쌓여 있는 바이트 수
+     */
+    public int getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    public long getDroppedFrameCount() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return 버린 프레임 중 참조되지 않는 영상 프레임 수
+     */
+    public long getDroppedNonReferenceFrameCount() {
+        return droppedNonReferenceFrames.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * @return 전송 중 발생한 오류, 오류가 발생하면 이후 샘플은 보내지 않음
+     */
+    public IOException getSendError() {
+        return sendError;
+    }
+
+    private final Runnable sendTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final Chunk chunk;
+
+                try {
+                    chunk = pendingChunks.take();
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+
+                if (chunk == endOfStream) {
+                    break;
+                }
+
+                if (sendError == null) {
+                    try {
+                        out.write(chunk.data, 0, chunk.length);
+                        sentBytes.addAndGet(chunk.length);
+                    }
+                    catch (IOException e) {
+                        // 받는 쪽이 끊어지면 남은 패킷은 버퍼만 돌려줌
+                        sendError = e;
+                    }
+                }
+
+                bufferedBytes.addAndGet(-chunk.length);
+                chunk.length = 0;
+                freeChunks.offer(chunk);
+            }
+
+            try {
+                out.flush();
+            }
+            catch (IOException e) {
+                if (sendError == null) {
+                    sendError = e;
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,174 @@
+package chuumong.io.mediacore.mux;
+
+/**
+ * 저장 장치의 기록 속도가 들어오는 데이터 속도를 따라가는지 window 마다 확인
+ * <br/>
+ * 기록 속도는 실제로 기록과 fsync 에 걸린 시간으로 나눈 값이라 장치가 쉬는 시간과 상관없이 장치의 능력을 보고,
+ * 버퍼가 모두 차서 쓰는 쪽이 기다린 적이 있으면 속도와 상관없이 따라가지 못한 것으로 봄
+ */
+public class ThroughputMonitor {
+
+    public static final long DEFAULT_WINDOW_NS = 5000000000L;
+
+    /**
+     * 기록 스레드나 쓰는 스레드에서 호출
+     */
+    public interface OnStorageSlowListener {
+
+        /**
+         * @param bytesPerSec         기록에 걸린 시간으로 잰 초당 바이트
+         * @param requiredBytesPerSec 설정한 속도와 들어온 데이터 속도 중 큰 값
+         * @param maxLatencyUs        기록이나 fsync 한 번에 걸린 가장 긴 시간
+         * @param stallUs             버퍼가 비기를 기다린 시간
+         */
+        void onStorageSlow(long bytesPerSec, long requiredBytesPerSec, long maxLatencyUs, long stallUs);
+    }
+
+    private final long windowNs;
+
+    private volatile OnStorageSlowListener listener;
+
+    private long configuredBytesPerSec;
+    private long windowStartNs = -1;
+    private long incomingBytes;
+    private long writtenBytes;
+    private long busyNs;
+    private long maxLatencyNs;
+    private long stallNs;
+
+    private long lastBytesPerSec;
+    private long lastRequiredBytesPerSec;
+    private long slowCount;
+
+    public ThroughputMonitor() {
+        this(DEFAULT_WINDOW_NS);
+    }
+
+    public ThroughputMonitor(long windowNs) {
+        if (windowNs <= 0) {
+            throw new IllegalArgumentException("windowNs must be positive");
+        }
+
+        this.windowNs = windowNs;
+    }
+
+    public void setOnStorageSlowListener(OnStorageSlowListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 들어오는 데이터 속도가 이보다 낮아도 이 속도를 기준으로 봄, 0 이면 들어온 데이터 속도만 봄
+     */
+    public synchronized void setRequiredBytesPerSec(long bytesPerSec) {
+        this.configuredBytesPerSec = Math.max(0, bytesPerSec);
+    }
+
+    /**
+     * 기록할 데이터가 들어옴
+     */
+    public synchronized void onIncoming(long bytes, long nowNs) {
+        begin(nowNs);
+        incomingBytes += bytes;
+    }
+
+    /**
+     * 기록 한 번이 끝남
+     */
+    public void onWrite(long bytes, long latencyNs, long nowNs) {
+        synchronized (this) {
+            begin(nowNs - latencyNs);
+            writtenBytes += bytes;
+            busyNs += latencyNs;
+            maxLatencyNs = Math.max(maxLatencyNs, latencyNs);
+        }
+
+        evaluate(nowNs);
+    }
+
+    /**
+     * fsync 한 번이 끝남, 기록한 바이트는 없지만 기록 스레드가 장치를 기다린 시간으로 셈
+     */
+    public void onSync(long latencyNs, long nowNs) {
+        onWrite(0, latencyNs, nowNs);
+    }
+
+    /**
+     * 버퍼가 모두 차서 쓰는 쪽이 stallNs 만큼 기다림
+     */
+    public void onStall(long stallNs, long nowNs) {
+        synchronized (this) {
+            begin(nowNs - stallNs);
+            this.stallNs += stallNs;
+        }
+
+        evaluate(nowNs);
+    }
+
+    private void begin(long nowNs) {
+        if (windowStartNs < 0) {
+            windowStartNs = nowNs;
+        }
+    }
+
+    private void evaluate(long nowNs) {
+        final boolean slow;
+        final long bytesPerSec;
+        final long requiredBytesPerSec;
+        final long latencyUs;
+        final long stallUs;
+
+        synchronized (this) {
+            final long elapsedNs = nowNs - windowStartNs;
+
+            if (windowStartNs < 0 || elapsedNs < windowNs) {
+                return;
+            }
+
+            bytesPerSec = busyNs > 0 ? writtenBytes * 1000000000L / busyNs : 0;
+            requiredBytesPerSec = Math.max(configuredBytesPerSec, incomingBytes * 1000000000L / elapsedNs);
+            latencyUs = maxLatencyNs / 1000;
+            stallUs = stallNs / 1000;
+            slow = stallNs > 0 || busyNs > 0 && bytesPerSec < requiredBytesPerSec;
+
+            lastBytesPerSec = bytesPerSec;
+            lastRequiredBytesPerSec = requiredBytesPerSec;
+            if (slow) {
+                slowCount++;
+            }
+
+            windowStartNs = nowNs;
+            incomingBytes = 0;
+            writtenBytes = 0;
+            busyNs = 0;
+            maxLatencyNs = 0;
+            this.stallNs = 0;
+        }
+
+        final OnStorageSlowListener listener = this.listener;
+
+        if (slow && listener != null) {
+            listener.onStorageSlow(bytesPerSec, requiredBytesPerSec, latencyUs, stallUs);
+        }
+    }
+
+    /**
+     * @return 마지막 window 에서 잰 기록 속도
+     */
+    public synchronized long getBytesPerSec() {
+        return lastBytesPerSec;
+    }
+
+    /**
+     * @return 마지막 window 에서 필요했던 기록 속도
+     */
+    public synchronized long getRequiredBytesPerSec() {
+        return lastRequiredBytesPerSec;
+    }
+
+    /**
+     * @return 따라가지 못한 window 수
+     */
+    public synchronized long getSlowCount() {
+        return slowCount;
+    }
+}
@@ -0,0 +1,395 @@
+package chuumong.io.mediacore.mux;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 / AAC 샘플을 188 바이트 MPEG-TS 패킷으로 나눔, 프로그램 하나에 영상 / 오디오 트랙 하나씩
+ * <br/>
+ * 영상 키 프레임 앞에는 PAT / PMT 와 SPS / PPS 를 다시 넣어서 중간에 접속한 수신 측도 바로 디코딩을 시작할 수 있음
+ * <br/>
+ * 한 스레드에서만 호출, 출력 배열은 호출한 쪽이 maxPacketizedSize 이상으로 준비
+ */
+public final class TsPacketizer {
+
+    public static final int PACKET_SIZE = 188;
+
+    public static final int PID_PAT = 0x0000;
+    public static final int PID_PMT = 0x1000;
+    public static final int PID_VIDEO = 0x0100;
+    public static final int PID_AUDIO = 0x0101;
+
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_AAC = 0x0F;
+    private static final int STREAM_ID_VIDEO = 0xE0;
+    private static final int STREAM_ID_AUDIO = 0xC0;
+
+    // PES 헤더(9) + PTS(5)
+    private static final int PES_HEADER_SIZE = 14;
+    private static final int ADTS_HEADER_SIZE = 7;
+    // PCR 을 넣는 적응 필드(길이 1 + 플래그 1 + PCR 6)
+    private static final int PCR_FIELD_SIZE = 8;
+    // PTS 가 0 부근에서 시작하면 PCR 을 PTS 보다 앞에 둘 수 없으므로 1초 밀어서 시작
+    private static final long PTS_OFFSET = 90000;
+    private static final long PCR_DELAY = 9000;
+    private static final long TIMESTAMP_MASK = (1L << 33) - 1;
+
+    private static final byte[] AUD = {0, 0, 0, 1, 9, (byte) 0xF0};
+    private static final int[] AAC_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    private final boolean hasVideo;
+    private final boolean hasAudio;
+
+    // 키 프레임 앞에 넣을 AUD + SPS + PPS, 그 외 프레임은 AUD 만
+    private byte[] videoPrefix = AUD;
+    // AAC 프로파일 / 샘플레이트 / 채널을 채운 ADTS 헤더, 프레임 길이만 샘플마다 채움
+    private final byte[] adtsHeader = new byte[ADTS_HEADER_SIZE];
+
+    // PES 헤더와 그 뒤에 붙는 AUD / SPS / PPS 또는 ADTS 헤더
+    private byte[] pesHeader = new byte[PES_HEADER_SIZE + AUD.length + ADTS_HEADER_SIZE];
+    private final int[] continuity = new int[0x2000];
+
+    public TsPacketizer(boolean hasVideo, boolean hasAudio) {
+        if (!hasVideo && !hasAudio) {
+            throw new IllegalArgumentException("at least one track is required");
+        }
+
+        this.hasVideo = hasVideo;
+        this.hasAudio = hasAudio;
+
+        setAudioConfig(null, 44100, 1);
+    }
+
+    /**
+     * @param sps 시작 코드가 있어도 되고 없어도 됨, null 이면 샘플 안의 것을 그대로 사용
+     */
+    public void setParameterSets(ByteBuffer sps, ByteBuffer pps) {
+        final int spsSize = sps != null ? nalSize(sps) : 0;
+        final int ppsSize = pps != null ? nalSize(pps) : 0;
+        final byte[] prefix = new byte[AUD.length + spsSize + ppsSize];
+
+        System.arraycopy(AUD, 0, prefix, 0, AUD.length);
+        int offset = AUD.length;
+
+        if (sps != null) {
+            offset = copyNal(sps, prefix, offset);
+        }
+        if (pps != null) {
+            copyNal(pps, prefix, offset);
+        }
+
+        videoPrefix = prefix;
+
+        if (pesHeader.length < PES_HEADER_SIZE + prefix.length) {
+            pesHeader = new byte[PES_HEADER_SIZE + prefix.length];
+        }
+    }
+
+    /**
+     * @param audioSpecificConfig null 이면 AAC-LC 와 sampleRate / channelCount 로 ADTS 헤더를 만듦
+     */
+    public void setAudioConfig(ByteBuffer audioSpecificConfig, int sampleRate, int channelCount) {
+        int objectType = 2;
+        int rateIndex = -1;
+        int channels = channelCount;
+
+        if (audioSpecificConfig != null && audioSpecificConfig.remaining() >= 2) {
+            final int b0 = audioSpecificConfig.get(audioSpecificConfig.position()) & 0xFF;
+            final int b1 = audioSpecificConfig.get(audioSpecificConfig.position() + 1) & 0xFF;
+            objectType = b0 >> 3;
+            rateIndex = ((b0 & 0x07) << 1) | (b1 >> 7);
+            channels = (b1 >> 3) & 0x0F;
+        }
+
+        if (rateIndex < 0 || rateIndex >= AAC_SAMPLE_RATES.length) {
+            rateIndex = 4;
+
+            for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+                if (AAC_SAMPLE_RATES[i] == sampleRate) {
+                    rateIndex = i;
+                    break;
+                }
+            }
+        }
+
+        adtsHeader[0] = (byte) 0xFF;
+        // MPEG-4, layer 0, CRC 없음
+        adtsHeader[1] = (byte) 0xF1;
+        adtsHeader[2] = (byte) (((objectType - 1) << 6) | (rateIndex << 2) | ((channels >> 2) & 0x01));
+        adtsHeader[3] = (byte) ((channels & 0x03) << 6);
+        adtsHeader[6] = (byte) 0xFC;
+    }
+
+    /**
+     * @return 샘플 하나를 패킷으로 나눴을 때의 최대 크기, PAT / PMT 포함
+     */
+    public int maxPacketizedSize(int sampleSize) {
+        final int pesSize = PES_HEADER_SIZE + Math.max(videoPrefix.length, ADTS_HEADER_SIZE) + sampleSize;
+        return (pesSize / (PACKET_SIZE - 4 - PCR_FIELD_SIZE) + 4) * PACKET_SIZE;
+    }
+
+    /**
+     * PAT 와 PMT 를 한 패킷씩 씀
+     *
+     * @return 쓴 바이트 수
+     */
+    public int writeTables(byte[] out, int offset) {
+        // PAT, 프로그램 1 -> PMT
+        int p = startSection(out, offset, PID_PAT, 0x00, 13);
+        out[p++] = 0x00;
+        out[p++] = 0x01;
+        out[p++] = (byte) 0xC1;
+        out[p++] = 0x00;
+        out[p++] = 0x00;
+        out[p++] = 0x00;
+        out[p++] = 0x01;
+        out[p++] = (byte) (0xE0 | (PID_PMT >> 8));
+        out[p++] = (byte) PID_PMT;
+        endSection(out, offset, p);
+
+        // PMT, PCR 은 영상이 있으면 영상 PID 에 실음
+        final int streams = (hasVideo ? 1 : 0) + (hasAudio ? 1 : 0);
+        final int pmt = offset + PACKET_SIZE;
+        p = startSection(out, pmt, PID_PMT, 0x02, 9 + 5 * streams + 4);
+        out[p++] = 0x00;
+        out[p++] = 0x01;
+        out[p++] = (byte) 0xC1;
+        out[p++] = 0x00;
+        out[p++] = 0x00;
+        final int pcrPid = hasVideo ? PID_VIDEO : PID_AUDIO;
+        out[p++] = (byte) (0xE0 | (pcrPid >> 8));
+        out[p++] = (byte) pcrPid;
+        out[p++] = (byte) 0xF0;
+        out[p++] = 0x00;
+        if (hasVideo) {
+            p = writeStream(out, p, STREAM_TYPE_H264, PID_VIDEO);
+        }
+        if (hasAudio) {
+            p = writeStream(out, p, STREAM_TYPE_AAC, PID_AUDIO);
+        }
+        endSection(out, pmt, p);
+
+        return PACKET_SIZE * 2;
+    }
+
+    /**
+     * 영상 샘플 하나를 PES 로 만들어 패킷으로 나눔, 키 프레임이면 PAT / PMT 와 SPS / PPS 를 앞에 넣음
+     *
+     * @return 쓴 바이트 수
+     */
+    public int writeVideo(byte[] out, int offset, ByteBuffer sample, int sampleOffset, int size, long presentationTimeUs, boolean keyFrame) {
+        int written = 0;
+
+        if (keyFrame) {
+            written += writeTables(out, offset);
+        }
+
+        final byte[] prefix = keyFrame ? videoPrefix : AUD;
+        final long pts = toPts(presentationTimeUs);
+        int headerSize = writePesHeader(STREAM_ID_VIDEO, 0, pts);
+
+        System.arraycopy(prefix, 0, pesHeader, headerSize, prefix.length);
+        headerSize += prefix.length;
+
+        // 영상 PES 마다 PCR 을 실어서 수신 측 시계를 맞춤
+        final long pcr = (pts - PCR_DELAY) & TIMESTAMP_MASK;
+        written += writePes(out, offset + written, PID_VIDEO, headerSize, sample, sampleOffset, size, pcr);
+
+        return written;
+    }
+
+    /**
+     * AAC 프레임 하나에 ADTS 헤더를 붙여 PES 로 만들어 패킷으로 나눔
+     *
+     * @return 쓴 바이트 수
+     */
+    public int writeAudio(byte[] out, int offset, ByteBuffer sample, int sampleOffset, int size, long presentationTimeUs) {
+        final int frameLength = ADTS_HEADER_SIZE + size;
+        adtsHeader[3] = (byte) ((adtsHeader[3] & 0xFC) | ((frameLength >> 11) & 0x03));
+        adtsHeader[4] = (byte) (frameLength >> 3);
+        adtsHeader[5] = (byte) (((frameLength & 0x07) << 5) | 0x1F);
+
+        final long pts = toPts(presentationTimeUs);
+        int headerSize = writePesHeader(STREAM_ID_AUDIO, 8 + frameLength, pts);
+
+        System.arraycopy(adtsHeader, 0, pesHeader, headerSize, ADTS_HEADER_SIZE);
+        headerSize += ADTS_HEADER_SIZE;
+
+        // 오디오만 있으면 오디오 PES 에 PCR 을 실음
+        final long pcr = hasVideo ? -1 : (pts - PCR_DELAY) & TIMESTAMP_MASK;
+        return writePes(out, offset, PID_AUDIO, headerSize, sample, sampleOffset, size, pcr);
+    }
+
+    private static long toPts(long presentationTimeUs) {
+        return (presentationTimeUs * 9 / 100 + PTS_OFFSET) & TIMESTAMP_MASK;
+    }
+
+    /**
+     * @param payloadSize PES 헤더의 길이 필드 이후 바이트 수, 0 이면 길이를 정하지 않음 (영상)
+     */
+    private int writePesHeader(int streamId, int payloadSize, long pts) {
+        final byte[] h = pesHeader;
+        h[0] = 0;
+        h[1] = 0;
+        h[2] = 1;
+        h[3] = (byte) streamId;
+        final int length = payloadSize > 0xFFFF ? 0 : payloadSize;
+        h[4] = (byte) (length >> 8);
+        h[5] = (byte) length;
+        h[6] = (byte) 0x80;
+        // PTS 만 있음, B 프레임을 쓰지 않으므로 DTS 는 PTS 와 같음
+        h[7] = (byte) 0x80;
+        h[8] = 5;
+        h[9] = (byte) (0x21 | ((pts >> 29) & 0x0E));
+        h[10] = (byte) (pts >> 22);
+        h[11] = (byte) (((pts >> 14) & 0xFE) | 1);
+        h[12] = (byte) (pts >> 7);
+        h[13] = (byte) (((pts << 1) & 0xFE) | 1);
+        return PES_HEADER_SIZE;
+    }
+
+    /**
+     * pesHeader 의 headerSize 바이트와 sample 을 이어서 패킷으로 나눔, 마지막 패킷은 적응 필드로 채움
+     *
+     * @param pcr 첫 패킷에 실을 PCR(90kHz), 음수면 넣지 않음
+     */
+    private int writePes(byte[] out, int offset, int pid, int headerSize, ByteBuffer sample, int sampleOffset, int size, long pcr) {
+        final int start = offset;
+        final ByteBuffer src = sample.duplicate();
+        src.limit(sampleOffset + size);
+        src.position(sampleOffset);
+        int headerPos = 0;
+        int remaining = headerSize + size;
+        boolean first = true;
+
+        while (remaining > 0) {
+            final int pcrSize = first && pcr >= 0 ? PCR_FIELD_SIZE : 0;
+            final int space = PACKET_SIZE - 4 - pcrSize;
+            final int adaptationSize = remaining < space ? PACKET_SIZE - 4 - remaining : pcrSize;
+
+            out[offset] = 0x47;
+            out[offset + 1] = (byte) ((first ? 0x40 : 0) | ((pid >> 8) & 0x1F));
+            out[offset + 2] = (byte) pid;
+            out[offset + 3] = (byte) ((adaptationSize > 0 ? 0x30 : 0x10) | nextContinuity(pid));
+
+            int p = offset + 4;
+
+            if (adaptationSize > 0) {
+                out[p] = (byte) (adaptationSize - 1);
+
+                if (adaptationSize > 1) {
+                    out[p + 1] = (byte) (pcrSize > 0 ? 0x10 : 0x00);
+                    int q = p + 2;
+
+                    if (pcrSize > 0) {
+                        out[q++] = (byte) (pcr >> 25);
+                        out[q++] = (byte) (pcr >> 17);
+                        out[q++] = (byte) (pcr >> 9);
+                        out[q++] = (byte) (pcr >> 1);
+                        out[q++] = (byte) (((pcr & 1) << 7) | 0x7E);
+                        out[q++] = 0;
+                    }
+
+                    while (q < p + adaptationSize) {
+                        out[q++] = (byte) 0xFF;
+                    }
+                }
+
+                p += adaptationSize;
+            }
+
+            int count = offset + PACKET_SIZE - p;
+            remaining -= count;
+
+            final int fromHeader = Math.min(count, headerSize - headerPos);
+            if (fromHeader > 0) {
+                System.arraycopy(pesHeader, headerPos, out, p, fromHeader);
+                headerPos += fromHeader;
+                p += fromHeader;
+                count -= fromHeader;
+            }
+
+            src.get(out, p, count);
+
+            offset += PACKET_SIZE;
+            first = false;
+        }
+
+        return offset - start;
+    }
+
+    private int nextContinuity(int pid) {
+        final int value = continuity[pid];
+        continuity[pid] = (value + 1) & 0x0F;
+        return value;
+    }
+
+    private int startSection(byte[] out, int offset, int pid, int tableId, int sectionLength) {
+        out[offset] = 0x47;
+        out[offset + 1] = (byte) (0x40 | (pid >> 8));
+        out[offset + 2] = (byte) pid;
+        out[offset + 3] = (byte) (0x10 | nextContinuity(pid));
+        // pointer field
+        out[offset + 4] = 0;
+        out[offset + 5] = (byte) tableId;
+        out[offset + 6] = (byte) (0xB0 | (sectionLength >> 8));
+        out[offset + 7] = (byte) sectionLength;
+        return offset + 8;
+    }
+
+    private static void endSection(byte[] out, int packet, int p) {
+        final int crc = crc32(out, packet + 5, p);
+        out[p++] = (byte) (crc >> 24);
+        out[p++] = (byte) (crc >> 16);
+        out[p++] = (byte) (crc >> 8);
+        out[p++] = (byte) crc;
+
+        while (p < packet + PACKET_SIZE) {
+            out[p++] = (byte) 0xFF;
+        }
+    }
+
+    private static int writeStream(byte[] out, int p, int streamType, int pid) {
+        out[p++] = (byte) streamType;
+        out[p++] = (byte) (0xE0 | (pid >> 8));
+        out[p++] = (byte) pid;
+        out[p++] = (byte) 0xF0;
+        out[p++] = 0x00;
+        return p;
+    }
+
+    /**
+     * MPEG-2 CRC32 (다항식 0x04C11DB7, 반전 없음)
+     */
+    static int crc32(byte[] data, int from, int to) {
+        int crc = 0xFFFFFFFF;
+
+        for (int i = from; i < to; i++) {
+            crc ^= (data[i] & 0xFF) << 24;
+
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+        }
+
+        return crc;
+    }
+
+    private static int nalSize(ByteBuffer nal) {
+        return NalUnits.findStartCode(nal, nal.position(), nal.limit()) == nal.position() ? nal.remaining() : nal.remaining() + 4;
+    }
+
+    private static int copyNal(ByteBuffer nal, byte[] out, int offset) {
+        if (NalUnits.findStartCode(nal, nal.position(), nal.limit()) != nal.position()) {
+            out[offset++] = 0;
+            out[offset++] = 0;
+            out[offset++] = 0;
+            out[offset++] = 1;
+        }
+
+        for (int i = nal.position(); i < nal.limit(); i++) {
+            out[offset++] = nal.get(i);
+        }
+
+        return offset;
+    }
+}
@@ -0,0 +1,527 @@
+package chuumong.io.mediacore.mux;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 파일 기록을 전용 스레드에 맡기는 StorageOutput, append 는 미리 잡아둔 버퍼에 복사만 하고 바로 반환
+ * <br/>
+ * 쌓인 버퍼는 한 번의 gathering write 로 모아서 기록하고, 파일은 preallocateBytes 단위로 미리 늘려서 기록할 때마다 파일 크기를 바꾸지 않음,
+ * 닫을 때 실제로 쓴 길이로 줄임
+ * <br/>
+ * fsync 는 기록마다 하지 않고 syncInterval 마다 한 번만 하며, 기록이 들어오는 속도를 따라가지 못하면 ThroughputMonitor 로 알림
+ */
+public class WriteBehindOutput implements StorageOutput {
+
+    public static final int DEFAULT_CHUNK_BYTES = 256 * 1024;
+    public static final int DEFAULT_CHUNK_COUNT = 32;
+    public static final long DEFAULT_PREALLOCATE_BYTES = 32L * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+    // 기록을 기다리지 않을 때 스레드가 깨어나는 간격
+    private static final long IDLE_WAIT_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Chunk {
+        final ByteBuffer data;
+        // 0 이상이면 이미 기록한 위치를 고치는 writeAt
+        long position = -1;
+
+        Chunk(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    // 버퍼 없이 기록 스레드에 보내는 요청
+    private static final Chunk SYNC = new Chunk(null);
+    private static final Chunk END = new Chunk(null);
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int chunkBytes;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> pending = new LinkedBlockingQueue<>();
+    private final ThroughputMonitor monitor = new ThroughputMonitor();
+    private final Thread thread;
+
+    private volatile long syncIntervalNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SYNC_INTERVAL_MS);
+    private volatile long preallocateBytes = DEFAULT_PREALLOCATE_BYTES;
+    private volatile IOException error;
+    private volatile long writtenBytes;
+    private volatile long syncCount;
+    private volatile long writeCount;
+
+    private final Object syncLock = new Object();
+    private long syncRequested;
+    private long syncCompleted;
+
+    private boolean closed;
+
+    // 기록 스레드만 사용
+    private final Chunk[] batch;
+    private final ByteBuffer[] gather;
+    private long allocatedBytes;
+    private long lastSyncNs;
+    private boolean dirty;
+
+    public WriteBehindOutput(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_BYTES, DEFAULT_CHUNK_COUNT);
+    }
+
+    /**
+     * 기록을 기다리는 데이터가 chunkBytes * chunkCount 를 넘으면 append 는 기록이 끝나기를 기다림
+     */
+    public WriteBehindOutput(File file, int chunkBytes, int chunkCount) throws IOException {
+        if (chunkBytes <= 0 || chunkCount <= 0) {
+            throw new IllegalArgumentException("chunkBytes and chunkCount must be positive");
+        }
+
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.chunkBytes = chunkBytes;
+        this.free = new ArrayBlockingQueue<>(chunkCount);
+        this.batch = new Chunk[chunkCount];
+        this.gather = new ByteBuffer[chunkCount];
+
+        for (int i = 0; i < chunkCount; i++) {
+            free.add(new Chunk(ByteBuffer.allocateDirect(chunkBytes)));
+        }
+
+        try {
+            this.file.setLength(0);
+        }
+        catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "WriteBehindOutput");
+        thread.start();
+    }
+
+    /**
+     * fsync 간격, 그 사이에 쓴 데이터는 모아서 한 번에 저장 장치에 기록
+     */
+    public void setSyncInterval(long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("intervalMs must not be negative");
+        }
+
+        this.syncIntervalNs = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+    }
+
+    /**
+     * 파일을 한 번에 늘리는 크기, 0 이면 미리 늘리지 않음
+     */
+    public void setPreallocateBytes(long preallocateBytes) {
+        if (preallocateBytes < 0) {
+            throw new IllegalArgumentException("preallocateBytes must not be negative");
+        }
+
+        this.preallocateBytes = preallocateBytes;
+    }
+
+    /**
+     * @param bitRate 녹화 설정의 비트레이트, 들어오는 데이터가 이보다 적어도 이 속도를 따라가는지 봄
+     */
+    public void setRequiredBitRate(int bitRate) {
+        monitor.setRequiredBytesPerSec(bitRate / 8);
+    }
+
+    public void setOnStorageSlowListener(ThroughputMonitor.OnStorageSlowListener listener) {
+        monitor.setOnStorageSlowListener(listener);
+    }
+
+    @Override
+    public synchronized void append(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        checkOpen();
+
+        Chunk chunk = null;
+        long bytes = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            final ByteBuffer buffer = buffers[i];
+            bytes += buffer.remaining();
+
+            while (buffer.hasRemaining()) {
+                if (chunk == null) {
+                    chunk = takeFree();
+                }
+
+                final int limit = buffer.limit();
+                buffer.limit(buffer.position() + Math.min(buffer.remaining(), chunk.data.remaining()));
+                chunk.data.put(buffer);
+                buffer.limit(limit);
+
+                if (!chunk.data.hasRemaining()) {
+                    submit(chunk);
+                    chunk = null;
+                }
+            }
+        }
+
+        // 다 채우지 않은 버퍼도 남겨두지 않고 바로 보냄, 기록 스레드가 다음 버퍼와 모아서 씀
+        if (chunk != null) {
+            submit(chunk);
+        }
+
+        monitor.onIncoming(bytes, System.nanoTime());
+    }
+
+    @Override
+    public synchronized void writeAt(ByteBuffer buffer, long position) throws IOException {
+        checkOpen();
+
+        if (buffer.remaining() > chunkBytes) {
+            throw new IllegalArgumentException("buffer is larger than chunk : " + buffer.remaining());
+        }
+
+        final Chunk chunk = takeFree();
+        chunk.data.put(buffer);
+        chunk.position = position;
+        submit(chunk);
+    }
+
+    /**
+     * 앞서 보낸 데이터를 모두 기록하고 fsync 할 때까지 기다림
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        checkOpen();
+
+        final long target;
+        synchronized (syncLock) {
+            target = ++syncRequested;
+        }
+
+        pending.add(SYNC);
+        awaitSync(target);
+        checkError();
+    }
+
+    /**
+     * 남은 데이터를 기록하고 파일을 실제 길이로 줄인 뒤 닫음
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        pending.add(END);
+
+        boolean interrupted = false;
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        file.close();
+        checkError();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("output closed");
+        }
+
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        final IOException e = error;
+
+        if (e != null) {
+            throw new IOException("write-behind failed", e);
+        }
+    }
+
+    /**
+     * 비어 있는 버퍼를 받음, 저장 장치가 밀려서 모두 기록을 기다리고 있으면 하나가 빌 때까지 기다림
+     */
+    private Chunk takeFree() {
+        Chunk chunk = free.poll();
+
+        if (chunk == null) {
+            final long startNs = System.nanoTime();
+            boolean interrupted = false;
+
+            while (chunk == null) {
+                try {
+                    chunk = free.take();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            final long nowNs = System.nanoTime();
+            monitor.onStall(nowNs - startNs, nowNs);
+        }
+
+        chunk.data.clear();
+        chunk.position = -1;
+        return chunk;
+    }
+
+    private void submit(Chunk chunk) {
+        chunk.data.flip();
+        pending.add(chunk);
+    }
+
+    private void awaitSync(long target) {
+        boolean interrupted = false;
+
+        synchronized (syncLock) {
+            while (syncCompleted < target) {
+                try {
+                    syncLock.wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 기록 스레드, 연속해서 이어 쓰는 버퍼는 모아서 한 번에 기록
+     */
+    private void drain() {
+        lastSyncNs = System.nanoTime();
+
+        while (true) {
+            final Chunk first;
+
+            try {
+                first = pending.poll(nextWaitNs(), TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+
+            if (first == null) {
+                syncIfDue();
+            }
+            else if (first == END) {
+                finish();
+                return;
+            }
+            else if (first == SYNC) {
+                forceNow();
+
+                synchronized (syncLock) {
+                    syncCompleted++;
+                    syncLock.notifyAll();
+                }
+            }
+            else if (first.position >= 0) {
+                writePatch(first);
+                free.add(first);
+                syncIfDue();
+            }
+            else {
+                int count = 0;
+                batch[count++] = first;
+
+                while (count < batch.length) {
+                    final Chunk next = pending.peek();
+
+                    if (next == null || next == SYNC || next == END || next.position >= 0) {
+                        break;
+                    }
+
+                    batch[count++] = pending.poll();
+                }
+
+                writeBatch(count);
+
+                for (int i = 0; i < count; i++) {
+                    free.add(batch[i]);
+                    batch[i] = null;
+                }
+
+                syncIfDue();
+            }
+        }
+    }
+
+    private long nextWaitNs() {
+        if (!dirty) {
+            return IDLE_WAIT_NS;
+        }
+
+        return Math.max(0, lastSyncNs + syncIntervalNs - System.nanoTime());
+    }
+
+    private void writeBatch(int count) {
+        if (error != null) {
+            return;
+        }
+
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            gather[i] = batch[i].data;
+            bytes += gather[i].remaining();
+        }
+
+        try {
+            ensureAllocated(writtenBytes + bytes);
+
+            final long startNs = System.nanoTime();
+            long remaining = bytes;
+
+            while (remaining > 0) {
+                remaining -= channel.write(gather, 0, count);
+            }
+
+            final long nowNs = System.nanoTime();
+            writtenBytes += bytes;
+            writeCount++;
+            dirty = true;
+            monitor.onWrite(bytes, nowNs - startNs, nowNs);
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void writePatch(Chunk chunk) {
+        if (error != null) {
+            return;
+        }
+
+        try {
+            while (chunk.data.hasRemaining()) {
+                channel.write(chunk.data, chunk.position + chunk.data.position());
+            }
+            dirty = true;
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 파일 끝을 넘으면 preallocateBytes 만큼 더 늘림
+     */
+    private void ensureAllocated(long end) throws IOException {
+        final long step = preallocateBytes;
+
+        if (step == 0 || end <= allocatedBytes) {
+            return;
+        }
+
+        allocatedBytes = Math.max(end, allocatedBytes + step);
+        file.setLength(allocatedBytes);
+    }
+
+    private void syncIfDue() {
+        if (dirty && System.nanoTime() - lastSyncNs >= syncIntervalNs) {
+            forceNow();
+        }
+    }
+
+    private void forceNow() {
+        lastSyncNs = System.nanoTime();
+
+        if (!dirty || error != null) {
+            return;
+        }
+
+        try {
+            final long startNs = System.nanoTime();
+            channel.force(false);
+
+            final long nowNs = System.nanoTime();
+            syncCount++;
+            dirty = false;
+            monitor.onSync(nowNs - startNs, nowNs);
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void finish() {
+        if (error != null) {
+            return;
+        }
+
+        try {
+            // 미리 늘린 부분을 잘라내고 파일 길이까지 기록
+            channel.truncate(writtenBytes);
+
+            final long startNs = System.nanoTime();
+            channel.force(true);
+
+            final long nowNs = System.nanoTime();
+            syncCount++;
+            dirty = false;
+            monitor.onSync(nowNs - startNs, nowNs);
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    /**
+     * @return 파일에 기록한 바이트 수, 기록을 기다리는 데이터는 포함하지 않음
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * @return gathering write 횟수
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * @return fsync 횟수
+     */
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    public ThroughputMonitor getMonitor() {
+        return monitor;
+    }
+}
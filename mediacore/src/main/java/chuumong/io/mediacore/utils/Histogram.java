@@ -0,0 +1,109 @@
+package chuumong.io.mediacore.utils;
+
+import java.util.Arrays;
+
+/**
+ * 0 이상의 값을 2 의 거듭제곱 구간으로 세는 히스토그램, 값을 기록할 때 메모리를 할당하지 않음
+ * <br/>
+ * 구간 0 은 [0, 2), 구간 i 는 [2^i, 2^(i+1)), 마지막 구간은 그 이상의 모든 값
+ */
+public class Histogram {
+
+    public static final int DEFAULT_BUCKET_COUNT = 24;
+
+    private final long[] counts;
+    private long count;
+    private long sum;
+    private long max;
+
+    public Histogram() {
+        this(DEFAULT_BUCKET_COUNT);
+    }
+
+    public Histogram(int bucketCount) {
+        if (bucketCount < 2 || bucketCount > 63) {
+            throw new IllegalArgumentException("bucketCount must be 2 ~ 63");
+        }
+
+        counts = new long[bucketCount];
+    }
+
+    /**
+     * @param value 음수는 0 으로 기록
+     */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    private int bucketOf(long value) {
+        final int bucket = value < 2 ? 0 : 63 - Long.numberOfLeadingZeros(value);
+        return Math.min(bucket, counts.length - 1);
+    }
+
+    public int getBucketCount() {
+        return counts.length;
+    }
+
+    /**
+     * @return 구간의 상한(포함하지 않음), 마지막 구간은 Long.MAX_VALUE
+     */
+    public long getBucketUpperBound(int bucket) {
+        return bucket >= counts.length - 1 ? Long.MAX_VALUE : 1L << (bucket + 1);
+    }
+
+    public synchronized long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * @param percentile 0 ~ 100
+     * @return 기록된 값 중 percentile 에 해당하는 값이 들어 있는 구간의 상한, 최대값을 넘지 않음
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        final long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long accumulated = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            accumulated += counts[i];
+
+            if (accumulated >= target) {
+                return Math.min(max, getBucketUpperBound(i));
+            }
+        }
+
+        return max;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = sum = max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count " + count + ", mean " + Math.round(getMean()) + ", p50 " + getPercentile(50) + ", p99 " + getPercentile(99) + ", max " + max;
+    }
+}
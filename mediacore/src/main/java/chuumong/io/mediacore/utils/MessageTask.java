@@ -0,0 +1,286 @@
+package chuumong.io.mediacore.utils;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 요청 큐를 전용 스레드에서 하나씩 처리하는 작업, EglTask 의 요청 처리 부분을 플랫폼과 무관하게 분리한 것
+ * <br/>
+ * Request 객체는 풀에서 재사용하므로 요청마다 할당이 생기지 않음
+ */
+public abstract class MessageTask implements Runnable {
+
+    protected static final class Request {
+        int request;
+        int arg1;
+        Object arg2;
+
+        public Request(final int request, final int arg1, final Object arg2) {
+            this.request = request;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return (o instanceof Request)
+                   ? (request == ((Request) o).request) && (arg1 == ((Request) o).arg1) && (arg2 == ((Request) o).arg2)
+                   : super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return request * 31 + arg1;
+        }
+    }
+
+    // minus value is reserved for internal use
+    private static final int REQUEST_TASK_NON = 0;
+    private static final int REQUEST_TASK_RUN = -1;
+    private static final int REQUEST_TASK_START = -8;
+    private static final int REQUEST_TASK_QUIT = -9;
+
+    private final Object mSync = new Object();
+    private final LinkedBlockingQueue<Request> mRequestPool = new LinkedBlockingQueue<Request>();
+    private final LinkedBlockingDeque<Request> mRequestQueue = new LinkedBlockingDeque<Request>();
+    private boolean mIsRunning = true;
+
+    /**
+     * 작업 스레드에서 처음 처리할 초기화 요청을 등록, 하위 클래스의 생성자에서 호출
+     */
+    protected void init(final int arg1, final Object arg2) {
+        offer(REQUEST_TASK_START, arg1, arg2);
+    }
+
+    /**
+     * 작업 스레드에서 init 의 인자로 호출, 예외가 발생하면 작업을 시작하지 않음
+     */
+    protected abstract void onInit(int arg1, Object arg2);
+
+    protected abstract void onStart();
+
+    protected abstract void onStop();
+
+    /**
+     * onStop 이후 onInit 에서 만든 자원을 해제
+     */
+    protected void onRelease() {
+    }
+
+    /**
+     * 각 요청을 처리하기 직전에 호출
+     */
+    protected void onBeforeRequest() {
+    }
+
+    /**
+     * @return true 면 작업 종료
+     */
+    protected abstract boolean onError(Exception e);
+
+    /**
+     * @return true 면 작업 종료
+     */
+    protected abstract boolean processRequest(int request, int arg1, Object arg2);
+
+    @Override
+    public void run() {
+        Request request;
+
+        try {
+            request = mRequestQueue.take();
+        }
+        catch (final InterruptedException e) {
+            return;
+        }
+
+        synchronized (mSync) {
+            boolean initialized = false;
+
+            try {
+                onInit(request.arg1, request.arg2);
+                initialized = true;
+            }
+            catch (final Exception e) {
+                callOnError(e);
+            }
+
+            mSync.notifyAll();
+
+            if (!initialized) {
+                mIsRunning = false;
+                return;
+            }
+        }
+
+        try {
+            onStart();
+        }
+        catch (final Exception e) {
+            if (callOnError(e)) {
+                mIsRunning = false;
+            }
+        }
+
+        LOOP:
+        while (mIsRunning) {
+            try {
+                request = mRequestQueue.take();
+            }
+            catch (final InterruptedException e) {
+                break;
+            }
+
+            onBeforeRequest();
+
+            switch (request.request) {
+                case REQUEST_TASK_NON:
+                    break;
+                case REQUEST_TASK_RUN:
+                    if (request.arg2 instanceof Runnable) {
+                        try {
+                            ((Runnable) request.arg2).run();
+                        }
+                        catch (final Exception e) {
+                            if (callOnError(e)) {
+                                break LOOP;
+                            }
+                        }
+                    }
+                    break;
+                case REQUEST_TASK_QUIT:
+                    break LOOP;
+                default:
+                    boolean result = false;
+                    try {
+                        result = processRequest(request.request, request.arg1, request.arg2);
+                    }
+                    catch (final Exception e) {
+                        if (callOnError(e)) {
+                            break LOOP;
+                        }
+                    }
+                    if (result) {
+                        break LOOP;
+                    }
+                    break;
+            }
+
+            request.request = REQUEST_TASK_NON;
+            request.arg2 = null;
+            mRequestPool.offer(request);
+        }
+
+        onBeforeRequest();
+
+        try {
+            onStop();
+        }
+        catch (final Exception e) {
+            callOnError(e);
+        }
+
+        onRelease();
+
+        synchronized (mSync) {
+            mIsRunning = false;
+            mSync.notifyAll();
+        }
+    }
+
+    private boolean callOnError(final Exception e) {
+        try {
+            return onError(e);
+        }
+        catch (final Exception e2) {
+            e2.printStackTrace();
+        }
+
+        return true;
+    }
+
+    protected Request obtain(final int request, final int arg1, final Object arg2) {
+        Request req = mRequestPool.poll();
+
+        if (req != null) {
+            req.request = request;
+            req.arg1 = arg1;
+            req.arg2 = arg2;
+        }
+        else {
+            req = new Request(request, arg1, arg2);
+        }
+
+        return req;
+    }
+
+    /**
+     * offer request to run on worker thread
+     *
+     * @param request minus values and zero are reserved
+     */
+    public void offer(final int request, final int arg1, final Object arg2) {
+        mRequestQueue.offer(obtain(request, arg1, arg2));
+    }
+
+    /**
+     * offer request to run on worker thread on top of the request queue
+     *
+     * @param request minus values and zero are reserved
+     */
+    public void offerFirst(final int request, final int arg1, final Object arg2) {
+        mRequestQueue.offerFirst(obtain(request, arg1, arg2));
+    }
+
+    /**
+     * request to run on worker thread
+     */
+    public void queueEvent(final Runnable task) {
+        if (task != null) {
+            mRequestQueue.offer(obtain(REQUEST_TASK_RUN, 0, task));
+        }
+    }
+
+    public void removeRequest(final Request request) {
+        while (mRequestQueue.remove(request)) {
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (mSync) {
+            return mIsRunning;
+        }
+    }
+
+    /**
+     * request terminate worker thread and release all related resources
+     */
+    public void release() {
+        mRequestQueue.clear();
+
+        synchronized (mSync) {
+            if (mIsRunning) {
+                offerFirst(REQUEST_TASK_QUIT, 0, null);
+                mIsRunning = false;
+
+                try {
+                    mSync.wait();
+                }
+                catch (final InterruptedException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public void releaseSelf() {
+        mRequestQueue.clear();
+
+        synchronized (mSync) {
+            if (mIsRunning) {
+                offerFirst(REQUEST_TASK_QUIT, 0, null);
+                mIsRunning = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package chuumong.io.mediacore.video;
+
+import chuumong.io.mediacore.codec.CodecCapabilityCache;
+
+/**
+ * 화면 크기와 요청한 출력 크기 / 배율로 인코더에 넘길 크기와 그 안에 화면을 그릴 영역을 계산
+ * <br/>
+ * 인코더 크기는 코덱의 최대 크기 안으로 줄이고 정렬 단위로 내림, 화면은 비율을 유지한 채 가운데에 그리고 남는 부분은 레터박스
+ */
+public final class CaptureSize {
+
+    // YUV420 은 가로 / 세로가 짝수여야 함
+    private static final int MIN_ALIGNMENT = 2;
+
+    public final int width;
+    public final int height;
+
+    // 인코더 프레임 안에서 화면이 그려지는 영역, 가운데 정렬이므로 위 / 아래 기준 어느 쪽이든 같은 값
+    public final int contentX;
+    public final int contentY;
+    public final int contentWidth;
+    public final int contentHeight;
+
+    private final float contentScale;
+
+    private CaptureSize(int width, int height, int contentWidth, int contentHeight, float contentScale) {
+        this.width = width;
+        this.height = height;
+        this.contentWidth = contentWidth;
+        this.contentHeight = contentHeight;
+        this.contentX = (width - contentWidth) / 2;
+        this.contentY = (height - contentHeight) / 2;
+        this.contentScale = contentScale;
+    }
+
+    /**
+     * @param requestWidth  원하는 출력 크기, 가로 / 세로 중 하나라도 0 이하면 scale 을 사용, 화면과 방향이 다르면 가로 / 세로를 바꿔서 적용
+     * @param scale         화면 크기에 곱할 배율, 0 이하거나 1 이상이면 화면 크기 그대로
+     * @param codec         정렬 단위와 최대 크기를 가져올 코덱 정보, null 이면 짝수로만 맞춤
+     */
+    public static CaptureSize compute(int sourceWidth, int sourceHeight, int requestWidth, int requestHeight, float scale,
+                                      CodecCapabilityCache.Entry codec) {
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IllegalArgumentException("source size must be positive");
+        }
+
+        float width;
+        float height;
+
+        if (requestWidth > 0 && requestHeight > 0) {
+            final boolean swap = requestWidth != requestHeight && (requestWidth > requestHeight) != (sourceWidth > sourceHeight);
+            width = swap ? requestHeight : requestWidth;
+            height = swap ? requestWidth : requestHeight;
+        }
+        else {
+            final float s = scale > 0 && scale < 1 ? scale : 1;
+            width = sourceWidth * s;
+            height = sourceHeight * s;
+        }
+
+        int widthAlignment = MIN_ALIGNMENT;
+        int heightAlignment = MIN_ALIGNMENT;
+
+        if (codec != null) {
+            widthAlignment = Math.max(widthAlignment, codec.getWidthAlignment());
+            heightAlignment = Math.max(heightAlignment, codec.getHeightAlignment());
+
+            // 코덱은 가로 모드 기준으로 최대 크기를 알려주는 경우가 많으므로 긴 변 / 짧은 변끼리 비교
+            final int maxLong = Math.max(codec.getMaxWidth(), codec.getMaxHeight());
+            final int maxShort = Math.min(codec.getMaxWidth(), codec.getMaxHeight());
+
+            if (maxShort > 0) {
+                final float longEdge = Math.max(width, height);
+                final float shortEdge = Math.min(width, height);
+                final float fit = Math.min(1f, Math.min(maxLong / longEdge, maxShort / shortEdge));
+                width *= fit;
+                height *= fit;
+            }
+        }
+
+        // 화면을 키우지는 않음, 요청한 크기가 화면보다 크면 남는 부분은 레터박스
+        return fit(alignDown((int) width, widthAlignment), alignDown((int) height, heightAlignment), sourceWidth, sourceHeight, false);
+    }
+
+    /**
+     * 이미 정해진 인코더 크기 안에 비율을 유지해서 화면을 배치, 녹화 중에 그릴 영역만 바뀌는 경우에 사용
+     *
+     * @param upscale false 면 화면이 인코더 크기보다 작아도 키우지 않음
+     */
+    public static CaptureSize fit(int width, int height, int sourceWidth, int sourceHeight, boolean upscale) {
+        if (width <= 0 || height <= 0 || sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+
+        float contentScale = Math.min(width / (float) sourceWidth, height / (float) sourceHeight);
+        if (!upscale) {
+            contentScale = Math.min(1f, contentScale);
+        }
+
+        final int contentWidth = Math.min(width, roundEven(sourceWidth * contentScale));
+        final int contentHeight = Math.min(height, roundEven(sourceHeight * contentScale));
+
+        return new CaptureSize(width, height, contentWidth, contentHeight, contentScale);
+    }
+
+    /**
+     * @return 인코더 프레임 전체를 화면이 채우지 않으면 true
+     */
+    public boolean isLetterboxed() {
+        return contentWidth != width || contentHeight != height;
+    }
+
+    /**
+     * @return 화면을 줄인 배율, 1 이면 원래 크기
+     */
+    public float getContentScale() {
+        return contentScale;
+    }
+
+    /**
+     * @return 줄인 화면에 맞춘 dpi, VirtualDisplay 를 줄인 크기로 만들 때 사용
+     */
+    public int scaleDensity(int sourceDensity) {
+        return Math.max(1, Math.round(sourceDensity * contentScale));
+    }
+
+    /**
+     * @return 화면을 줄인 배율을 적용한 짝수 길이, 잘라낸 영역 밖까지 포함한 전체 화면을 같은 배율로 받을 때 사용
+     */
+    public int scaleLength(int sourceLength) {
+        return roundEven(sourceLength * contentScale);
+    }
+
+    private static int alignDown(int value, int alignment) {
+        return Math.max(alignment, value - value % alignment);
+    }
+
+    private static int roundEven(float value) {
+        return Math.max(MIN_ALIGNMENT, Math.round(value / 2) * 2);
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " content " + contentWidth + "x" + contentHeight + " at " + contentX + "," + contentY;
+    }
+}
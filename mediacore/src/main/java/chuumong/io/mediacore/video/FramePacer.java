@@ -0,0 +1,184 @@
+package chuumong.io.mediacore.video;
+
+import java.util.concurrent.TimeUnit;
+
+import chuumong.io.mediacore.utils.Histogram;
+
+/**
+ * 그리기 루프가 프레임을 내보낼 시각을 단조 시계의 절대 시각(슬롯)으로 정하는 스케줄러
+ * <br/>
+ * 다음 슬롯은 깨어난 시각이 아니라 이전 슬롯에 프레임 간격을 더해서 정하므로 깨어나는 시간이 늦어져도 프레임 레이트가 밀리지 않고,
+ * 한 간격 이상 늦으면 지나간 슬롯은 몰아서 그리지 않고 건너뜀
+ * <br/>
+ * 한 스레드(그리기 스레드)에서만 호출, 통계는 다른 스레드에서 읽어도 됨
+ */
+public class FramePacer {
+
+    private static final long RATE_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final float targetFrameRate;
+    private final long intervalNs;
+
+    private boolean started;
+    private long deadlineNs;
+    private long lastFrameNs;
+    private boolean hasLastFrame;
+
+    private long windowStartNs;
+    private long windowFrames;
+    private volatile float actualFrameRate;
+
+    private volatile long frames;
+    private volatile long duplicatedFrames;
+    private volatile long missedSlots;
+
+    // 내보낸 프레임 사이 간격(us)
+    private final Histogram intervalHistogram = new Histogram();
+    // 프레임 간격과 목표 간격의 차이(us)
+    private final Histogram jitterHistogram = new Histogram();
+    // 슬롯 시각보다 늦게 깨어난 시간(us)
+    private final Histogram latenessHistogram = new Histogram();
+
+    public FramePacer(float frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("frameRate must be positive");
+        }
+
+        this.targetFrameRate = frameRate;
+        this.intervalNs = (long) (TimeUnit.SECONDS.toNanos(1) / frameRate);
+    }
+
+    public long getIntervalNs() {
+        return intervalNs;
+    }
+
+    /**
+     * 다음 슬롯을 지금으로 다시 맞춤, 처음 시작할 때와 일시정지 / 유휴 상태에서 돌아올 때 호출
+     * <br/>
+     * 쉬는 동안 지나간 슬롯은 놓친 것으로 세지 않고, 쉬기 전 프레임과의 간격도 통계에 넣지 않음
+     */
+    public void resync(long nowNs) {
+        started = true;
+        deadlineNs = nowNs;
+        hasLastFrame = false;
+    }
+
+    /**
+     * @return 다음 슬롯까지 기다릴 시간, 이미 지났으면 0
+     */
+    public long getWaitNs(long nowNs) {
+        if (!started) {
+            return 0;
+        }
+
+        return Math.max(0, deadlineNs - nowNs);
+    }
+
+    public boolean isDue(long nowNs) {
+        return !started || nowNs >= deadlineNs;
+    }
+
+    /**
+     * isDue 가 true 일 때 호출, 지금 처리할 슬롯을 정하고 다음 슬롯으로 넘어감
+     *
+     * @return 이번 슬롯의 시각, 같은 간격으로 떨어진 프레임 타임스탬프로 사용
+     */
+    public long onSlot(long nowNs) {
+        if (!started) {
+            resync(nowNs);
+        }
+
+        final long lateNs = Math.max(0, nowNs - deadlineNs);
+        final long missed = lateNs / intervalNs;
+
+        // 한 간격 이상 늦었으면 지나간 슬롯은 건너뛰고 가장 최근 슬롯만 처리
+        final long slotNs = deadlineNs + missed * intervalNs;
+        deadlineNs = slotNs + intervalNs;
+
+        if (missed > 0) {
+            missedSlots += missed;
+        }
+
+        latenessHistogram.record(TimeUnit.NANOSECONDS.toMicros(nowNs - slotNs));
+
+        return slotNs;
+    }
+
+    /**
+     * 슬롯에서 실제로 프레임을 내보냈을 때 호출
+     *
+     * @param frameTimeNs 내보낸 프레임의 타임스탬프
+     * @param duplicated  새 프레임 없이 이전 프레임을 다시 내보냈으면 true
+     */
+    public void onFrameEmitted(long frameTimeNs, boolean duplicated) {
+        frames++;
+
+        if (duplicated) {
+            duplicatedFrames++;
+        }
+
+        if (hasLastFrame) {
+            final long frameIntervalNs = frameTimeNs - lastFrameNs;
+
+            intervalHistogram.record(TimeUnit.NANOSECONDS.toMicros(frameIntervalNs));
+            jitterHistogram.record(TimeUnit.NANOSECONDS.toMicros(Math.abs(frameIntervalNs - intervalNs)));
+        }
+        else {
+            windowStartNs = frameTimeNs;
+            windowFrames = 0;
+        }
+
+        hasLastFrame = true;
+        lastFrameNs = frameTimeNs;
+        windowFrames++;
+
+        final long elapsedNs = frameTimeNs - windowStartNs;
+
+        if (elapsedNs >= RATE_WINDOW_NS) {
+            actualFrameRate = (windowFrames - 1) * (float) RATE_WINDOW_NS / elapsedNs;
+            windowStartNs = frameTimeNs;
+            windowFrames = 1;
+        }
+    }
+
+    public float getTargetFrameRate() {
+        return targetFrameRate;
+    }
+
+    /**
+     * @return 마지막으로 계산한 1초 구간의 실제 프레임 레이트
+     */
+    public float getActualFrameRate() {
+        return actualFrameRate;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return 새 프레임이 없어서 이전 프레임을 다시 내보낸 수
+     */
+    public long getDuplicatedFrameCount() {
+        return duplicatedFrames;
+    }
+
+    /**
+     * @return 그리기 루프가 늦어서 건너뛴 슬롯 수
+     */
+    public long getMissedSlotCount() {
+        return missedSlots;
+    }
+
+    public Histogram getIntervalHistogram() {
+        return intervalHistogram;
+    }
+
+    public Histogram getJitterHistogram() {
+        return jitterHistogram;
+    }
+
+    public Histogram getLatenessHistogram() {
+        return latenessHistogram;
+    }
+}
@@ -0,0 +1,123 @@
+package chuumong.io.mediacore.video;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 가변 프레임 레이트 녹화에서 화면이 바뀌었을 때만 프레임을 내보내도록 거르는 필터
+ * <br/>
+ * 화면이 바뀌지 않아도 keep-alive 간격과 최소 프레임 레이트 중 짧은 간격마다 한 번은 이전 프레임을 다시 내보냄
+ * <br/>
+ * 한 스레드(그리기 스레드)에서만 호출, 카운터는 다른 스레드에서 읽어도 됨
+ */
+public class IdleFrameFilter {
+
+    public static final long DEFAULT_KEEP_ALIVE_INTERVAL_MS = 1000;
+    public static final float DEFAULT_MIN_FRAME_RATE = 1f;
+
+    private final long frameIntervalNs;
+    private final long maxIdleNs;
+
+    private long lastEmitNs;
+    private boolean emitted;
+
+    private volatile long emittedFrames;
+    private volatile long keepAliveFrames;
+    private volatile long skippedFrames;
+
+    public IdleFrameFilter(float frameRate) {
+        this(frameRate, DEFAULT_KEEP_ALIVE_INTERVAL_MS, DEFAULT_MIN_FRAME_RATE);
+    }
+
+    /**
+     * @param frameRate           고정 프레임 레이트로 녹화할 때의 프레임 레이트, 건너뛴 프레임 수를 계산하는 기준
+     * @param keepAliveIntervalMs 화면이 바뀌지 않아도 프레임을 다시 내보내는 간격, 플레이어의 탐색 / 표시를 위해 필요
+     * @param minFrameRate        화면이 바뀌지 않을 때 보장할 최소 프레임 레이트, 0 이하면 keep-alive 간격만 사용
+     */
+    public IdleFrameFilter(float frameRate, long keepAliveIntervalMs, float minFrameRate) {
+        if (frameRate <= 0 || keepAliveIntervalMs <= 0) {
+            throw new IllegalArgumentException("frameRate and keepAliveIntervalMs must be positive");
+        }
+
+        this.frameIntervalNs = (long) (TimeUnit.SECONDS.toNanos(1) / frameRate);
+
+        long maxIdleNs = TimeUnit.MILLISECONDS.toNanos(keepAliveIntervalMs);
+
+        if (minFrameRate > 0) {
+            maxIdleNs = Math.min(maxIdleNs, (long) (TimeUnit.SECONDS.toNanos(1) / minFrameRate));
+        }
+
+        this.maxIdleNs = maxIdleNs;
+    }
+
+    /**
+     * 그리기 루프가 깨어날 때마다 호출
+     *
+     * @param sourceChanged 마지막 호출 이후 새 프레임이 들어왔으면 true
+     * @return 이번에 프레임을 그려서 인코더에 넘겨야 하면 true
+     */
+    public boolean onTick(long nowNs, boolean sourceChanged) {
+        if (sourceChanged || !emitted) {
+            emit(nowNs);
+            return true;
+        }
+
+        if (nowNs - lastEmitNs >= maxIdleNs) {
+            emit(nowNs);
+            keepAliveFrames++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return 다음 keep-alive 프레임까지 남은 시간(ns), 그리기 루프의 대기 시간으로 사용
+     */
+    public long getIdleTimeoutNs(long nowNs) {
+        if (!emitted) {
+            return 0;
+        }
+
+        return Math.max(0, lastEmitNs + maxIdleNs - nowNs);
+    }
+
+    /**
+     * @return 화면이 바뀌지 않을 때 프레임을 다시 내보내는 최대 간격(ns)
+     */
+    public long getMaxIdleNs() {
+        return maxIdleNs;
+    }
+
+    private void emit(long nowNs) {
+        if (emitted) {
+            // 고정 프레임 레이트였다면 지난 프레임 이후 그렸을 프레임 중 이번 프레임을 제외한 나머지
+            final long frames = (nowNs - lastEmitNs) / frameIntervalNs;
+
+            if (frames > 1) {
+                skippedFrames += frames - 1;
+            }
+        }
+
+        lastEmitNs = nowNs;
+        emitted = true;
+        emittedFrames++;
+    }
+
+    public long getEmittedFrames() {
+        return emittedFrames;
+    }
+
+    /**
+     * @return 화면이 바뀌지 않았지만 keep-alive 로 내보낸 프레임 수
+     */
+    public long getKeepAliveFrames() {
+        return keepAliveFrames;
+    }
+
+    /**
+     * @return 고정 프레임 레이트였다면 그렸을 프레임 중 건너뛴 수, 다음 프레임을 내보낼 때 갱신됨
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+}
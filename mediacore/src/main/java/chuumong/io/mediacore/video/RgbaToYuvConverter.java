@@ -0,0 +1,412 @@
+package chuumong.io.mediacore.video;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * RGBA_8888 이미지를 인코더 ByteBuffer 입력, 썸네일, 분석용 YUV420 으로 변환
+ * <br/>
+ * 행을 짝수 행 단위 구간(stripe)으로 나눠 ForkJoinPool 에서 동시에 변환하고, 구간별 작업과 행 버퍼는 생성할 때 모두 할당해 두고 재사용하므로
+ * 프레임마다 메모리를 할당하지 않음
+ * <br/>
+ * U / V 는 2x2 픽셀의 평균 색으로 계산하고, 계수는 8 비트 고정소수점
+ * <br/>
+ * 변환 중에는 구간별 버퍼를 사용하므로 convert 는 한 번에 한 스레드에서만 호출
+ */
+public class RgbaToYuvConverter {
+
+    public enum Layout {
+        /**
+         * Y 평면, U 평면, V 평면 (COLOR_FormatYUV420Planar)
+         */
+        I420,
+        /**
+         * Y 평면, U / V 가 번갈아 들어간 평면 (COLOR_FormatYUV420SemiPlanar)
+         */
+        NV12
+    }
+
+    public enum Matrix {
+        /**
+         * SD, 대부분의 인코더가 색 정보가 없을 때 가정하는 기본값
+         */
+        BT601(0.299, 0.114),
+        /**
+         * HD
+         */
+        BT709(0.2126, 0.0722);
+
+        final double kr;
+        final double kb;
+
+        Matrix(double kr, double kb) {
+            this.kr = kr;
+            this.kb = kb;
+        }
+    }
+
+    public enum Range {
+        /**
+         * Y 16 ~ 235, U / V 16 ~ 240
+         */
+        LIMITED,
+        /**
+         * Y, U, V 0 ~ 255
+         */
+        FULL
+    }
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int SHIFT = 8;
+    private static final int HALF = 1 << (SHIFT - 1);
+
+    private final int width;
+    private final int height;
+    private final Layout layout;
+    private final Matrix matrix;
+    private final Range range;
+    private final ForkJoinPool pool;
+
+    private final int yr, yg, yb, yOffset;
+    private final int ur, ug, ub;
+    private final int vr, vg, vb;
+
+    private final Stripe[] stripes;
+    private final FrameTask frameTask;
+
+    // 변환 중인 프레임, 배열과 ByteBuffer 중 하나만 사용
+    private byte[] srcArray;
+    private ByteBuffer srcBuffer;
+    private boolean srcBigEndian;
+    private int srcOffset;
+    private int srcRowStride;
+    private byte[] dstArray;
+    private ByteBuffer dstBuffer;
+    private int dstOffset;
+
+    /**
+     * BT.601 제한 범위로 호출한 스레드에서 변환
+     */
+    public RgbaToYuvConverter(int width, int height, Layout layout) {
+        this(width, height, layout, Matrix.BT601, Range.LIMITED, null);
+    }
+
+    /**
+     * @param width  짝수
+     * @param height 짝수
+     * @param pool   행 구간을 나눠 변환할 pool, null 이면 호출한 스레드에서 변환
+     */
+    public RgbaToYuvConverter(int width, int height, Layout layout, Matrix matrix, Range range, ForkJoinPool pool) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("width and height must be positive even numbers " + width + "x" + height);
+        }
+
+        this.width = width;
+        this.height = height;
+        this.layout = layout;
+        this.matrix = matrix;
+        this.range = range;
+        this.pool = pool;
+
+        final double kr = matrix.kr;
+        final double kb = matrix.kb;
+        final double kg = 1 - kr - kb;
+        final boolean full = range == Range.FULL;
+        final double yScale = (full ? 255 : 219) / 255.0 * (1 << SHIFT);
+        final double cScale = (full ? 255 : 224) / 255.0 * (1 << SHIFT);
+
+        yr = (int) Math.round(kr * yScale);
+        yb = (int) Math.round(kb * yScale);
+        // 흰색이 정확히 최대값이 되도록 G 계수로 반올림 오차를 맞춤
+        yg = (int) Math.round(yScale) - yr - yb;
+        yOffset = full ? 0 : 16;
+
+        ub = (int) Math.round(0.5 * cScale);
+        ur = -(int) Math.round(kr / (2 * (1 - kb)) * cScale);
+        // 회색이 정확히 128 이 되도록 계수 합을 0 으로 맞춤
+        ug = -ub - ur;
+
+        vr = (int) Math.round(0.5 * cScale);
+        vb = -(int) Math.round(kb / (2 * (1 - kr)) * cScale);
+        vg = -vr - vb;
+
+        final int stripeCount = pool != null ? Math.max(1, Math.min(pool.getParallelism(), height / 2)) : 1;
+        stripes = new Stripe[stripeCount];
+
+        // 2 행 단위로 나눠서 U / V 행이 구간 경계에 걸치지 않도록 함
+        final int rowPairs = height / 2;
+
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(rowPairs * i / stripeCount * 2, rowPairs * (i + 1) / stripeCount * 2);
+        }
+
+        frameTask = new FrameTask();
+    }
+
+    public static int getFrameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    public int getFrameSize() {
+        return getFrameSize(width, height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public Matrix getMatrix() {
+        return matrix;
+    }
+
+    public Range getRange() {
+        return range;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * @param src       position 부터 rowStride 간격으로 height 행의 RGBA 픽셀, 변환 후 position 은 그대로
+     * @param rowStride 한 행의 바이트 수, width * 4 이상
+     * @param dst       0 부터 getFrameSize 바이트를 기록하고 position 0, limit 를 프레임 크기로 맞춤
+     */
+    public void convert(ByteBuffer src, int rowStride, ByteBuffer dst) {
+        checkSource(src.remaining(), rowStride);
+
+        if (dst.capacity() < getFrameSize()) {
+            throw new IllegalArgumentException("dst is smaller than frame size " + getFrameSize());
+        }
+
+        srcBuffer = src;
+        srcBigEndian = src.order() == ByteOrder.BIG_ENDIAN;
+        srcOffset = src.position();
+        srcRowStride = rowStride;
+        dstBuffer = dst;
+        dstOffset = 0;
+
+        try {
+            run();
+        }
+        finally {
+            srcBuffer = null;
+            dstBuffer = null;
+        }
+
+        dst.clear();
+        dst.limit(getFrameSize());
+    }
+
+    /**
+     * @param src       srcOffset 부터 rowStride 간격으로 height 행의 RGBA 픽셀
+     * @param rowStride 한 행의 바이트 수, width * 4 이상
+     * @param dst       dstOffset 부터 getFrameSize 바이트를 기록
+     */
+    public void convert(byte[] src, int srcOffset, int rowStride, byte[] dst, int dstOffset) {
+        checkSource(src.length - srcOffset, rowStride);
+
+        if (dst.length - dstOffset < getFrameSize()) {
+            throw new IllegalArgumentException("dst is smaller than frame size " + getFrameSize());
+        }
+
+        srcArray = src;
+        this.srcOffset = srcOffset;
+        srcRowStride = rowStride;
+        dstArray = dst;
+        this.dstOffset = dstOffset;
+
+        try {
+            run();
+        }
+        finally {
+            srcArray = null;
+            dstArray = null;
+        }
+    }
+
+    private void checkSource(int length, int rowStride) {
+        if (rowStride < width * BYTES_PER_PIXEL) {
+            throw new IllegalArgumentException("rowStride " + rowStride + " is smaller than width " + width);
+        }
+
+        // 마지막 행은 패딩이 없을 수 있음
+        if (length < (height - 1) * rowStride + width * BYTES_PER_PIXEL) {
+            throw new IllegalArgumentException("src is smaller than " + width + "x" + height + " rowStride " + rowStride);
+        }
+    }
+
+    private void run() {
+        if (stripes.length == 1) {
+            stripes[0].convertRows();
+            return;
+        }
+
+        for (Stripe stripe : stripes) {
+            stripe.reinitialize();
+        }
+
+        frameTask.reinitialize();
+        pool.invoke(frameTask);
+    }
+
+    private final class FrameTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            ForkJoinTask.invokeAll(stripes);
+        }
+    }
+
+    /**
+     * startRow ~ endRow 구간의 행을 변환, 행 버퍼는 구간마다 따로 가짐
+     */
+    private final class Stripe extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int startRow;
+        private final int endRow;
+
+        // 0x00RRGGBB
+        private final int[] row0 = new int[width];
+        private final int[] row1 = new int[width];
+        private final byte[] yRows = new byte[width * 2];
+        // NV12 는 UV 를 번갈아, I420 은 앞쪽 절반에 U 뒤쪽 절반에 V
+        private final byte[] chromaRow = new byte[width];
+
+        Stripe(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            convertRows();
+        }
+
+        void convertRows() {
+            for (int row = startRow; row < endRow; row += 2) {
+                loadRow(row, row0);
+                loadRow(row + 1, row1);
+                convertRowPair();
+                storeRowPair(row);
+            }
+        }
+
+        private void loadRow(int row, int[] pixels) {
+            final int base = srcOffset + row * srcRowStride;
+
+            if (srcArray != null) {
+                final byte[] src = srcArray;
+
+                for (int x = 0, i = base; x < width; x++, i += BYTES_PER_PIXEL) {
+                    pixels[x] = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+                }
+            }
+            else if (srcBigEndian) {
+                final ByteBuffer src = srcBuffer;
+
+                for (int x = 0, i = base; x < width; x++, i += BYTES_PER_PIXEL) {
+                    pixels[x] = src.getInt(i) >>> 8;
+                }
+            }
+            else {
+                final ByteBuffer src = srcBuffer;
+
+                for (int x = 0, i = base; x < width; x++, i += BYTES_PER_PIXEL) {
+                    pixels[x] = Integer.reverseBytes(src.getInt(i)) >>> 8;
+                }
+            }
+        }
+
+        private void convertRowPair() {
+            final int halfWidth = width / 2;
+            final boolean nv12 = layout == Layout.NV12;
+
+            for (int x = 0; x < width; x += 2) {
+                final int p0 = row0[x], p1 = row0[x + 1], p2 = row1[x], p3 = row1[x + 1];
+
+                yRows[x] = luma(p0);
+                yRows[x + 1] = luma(p1);
+                yRows[width + x] = luma(p2);
+                yRows[width + x + 1] = luma(p3);
+
+                final int r = ((p0 >> 16) + (p1 >> 16) + (p2 >> 16) + (p3 >> 16) + 2) >> 2;
+                final int g = ((p0 >> 8 & 0xFF) + (p1 >> 8 & 0xFF) + (p2 >> 8 & 0xFF) + (p3 >> 8 & 0xFF) + 2) >> 2;
+                final int b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + 2) >> 2;
+
+                // 전체 범위에서는 계수가 128 이라 포화된 색이 256 이 되므로 잘라냄
+                final byte u = clamp(((ur * r + ug * g + ub * b + HALF) >> SHIFT) + 128);
+                final byte v = clamp(((vr * r + vg * g + vb * b + HALF) >> SHIFT) + 128);
+
+                if (nv12) {
+                    chromaRow[x] = u;
+                    chromaRow[x + 1] = v;
+                }
+                else {
+                    chromaRow[x / 2] = u;
+                    chromaRow[halfWidth + x / 2] = v;
+                }
+            }
+        }
+
+        private byte clamp(int value) {
+            return (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+        }
+
+        private byte luma(int p) {
+            return (byte) (((yr * (p >> 16) + yg * (p >> 8 & 0xFF) + yb * (p & 0xFF) + HALF) >> SHIFT) + yOffset);
+        }
+
+        private void storeRowPair(int row) {
+            final int lumaSize = width * height;
+            final int halfWidth = width / 2;
+            final int chromaRowIndex = row / 2;
+
+            final int yIndex = dstOffset + row * width;
+
+            if (layout == Layout.NV12) {
+                final int uvIndex = dstOffset + lumaSize + chromaRowIndex * width;
+
+                store(yRows, 0, yIndex, yRows.length);
+                store(chromaRow, 0, uvIndex, width);
+            }
+            else {
+                final int uIndex = dstOffset + lumaSize + chromaRowIndex * halfWidth;
+                final int vIndex = uIndex + lumaSize / 4;
+
+                store(yRows, 0, yIndex, yRows.length);
+                store(chromaRow, 0, uIndex, halfWidth);
+                store(chromaRow, halfWidth, vIndex, halfWidth);
+            }
+        }
+
+        private void store(byte[] values, int offset, int index, int length) {
+            if (dstArray != null) {
+                System.arraycopy(values, offset, dstArray, index, length);
+                return;
+            }
+
+            // 구간마다 다른 위치에 동시에 기록하므로 position 을 바꾸지 않는 절대 위치 put 사용
+            final ByteBuffer dst = dstBuffer;
+
+            for (int i = 0; i < length; i++) {
+                dst.put(index + i, values[offset + i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package chuumong.io.mediacore.video;
+
+/**
+ * 화면에서 잘라낼 영역, SurfaceTexture 의 텍스처 행렬에 곱해서 FullFrameRect 가 이 영역만 샘플링하도록 함
+ * <br/>
+ * 좌표는 화면 왼쪽 위 기준 픽셀, 텍스처 좌표는 정규화된 값이므로 VirtualDisplay 를 줄인 크기로 만들어도 그대로 사용
+ * <br/>
+ * 값이 바뀌지 않으므로 녹화 중에 새 객체로 바꿔서 그리기 스레드에 넘기면 됨
+ */
+public final class TextureCrop {
+
+    public final int sourceWidth;
+    public final int sourceHeight;
+
+    public final int x;
+    public final int y;
+    public final int width;
+    public final int height;
+
+    // 열 우선 4x4 행렬, 텍스처 좌표 (0, 0) ~ (1, 1) 을 잘라낸 영역으로 옮김
+    private final float[] matrix = new float[16];
+
+    /**
+     * 화면 밖으로 나간 부분은 잘라내고, YUV420 인코딩을 위해 크기를 짝수로 내림
+     */
+    public TextureCrop(int sourceWidth, int sourceHeight, int x, int y, int width, int height) {
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IllegalArgumentException("source size must be positive");
+        }
+
+        final int left = clamp(x, 0, sourceWidth);
+        final int top = clamp(y, 0, sourceHeight);
+        final int right = clamp(x + width, left, sourceWidth);
+        final int bottom = clamp(y + height, top, sourceHeight);
+
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.x = left;
+        this.y = top;
+        this.width = (right - left) & ~1;
+        this.height = (bottom - top) & ~1;
+
+        if (this.width == 0 || this.height == 0) {
+            throw new IllegalArgumentException("crop rect is empty : " + x + "," + y + " " + width + "x" + height);
+        }
+
+        // GL 텍스처 좌표는 아래쪽이 0 이므로 세로 위치를 뒤집음
+        matrix[0] = this.width / (float) sourceWidth;
+        matrix[5] = this.height / (float) sourceHeight;
+        matrix[10] = 1f;
+        matrix[12] = this.x / (float) sourceWidth;
+        matrix[13] = (sourceHeight - this.y - this.height) / (float) sourceHeight;
+        matrix[15] = 1f;
+    }
+
+    /**
+     * @return 화면 전체를 그대로 사용하면 true
+     */
+    public boolean isFullFrame() {
+        return width == (sourceWidth & ~1) && height == (sourceHeight & ~1) && x == 0 && y == 0;
+    }
+
+    /**
+     * out = texMatrix * crop, SurfaceTexture 의 변환(뒤집기, 회전)은 잘라낸 뒤에 적용됨
+     * <br/>
+     * 그리기 스레드에서 프레임마다 호출하므로 할당하지 않음, out 은 texMatrix 와 다른 배열이어야 함
+     */
+    public void apply(float[] texMatrix, float[] out) {
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0;
+
+                for (int k = 0; k < 4; k++) {
+                    sum += texMatrix[k * 4 + row] * matrix[col * 4 + k];
+                }
+
+                out[col * 4 + row] = sum;
+            }
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public String toString() {
+        return x + "," + y + " " + width + "x" + height + " of " + sourceWidth + "x" + sourceHeight;
+    }
+}
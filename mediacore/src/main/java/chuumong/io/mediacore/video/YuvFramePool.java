@@ -0,0 +1,93 @@
+package chuumong.io.mediacore.video;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 변환 스레드와 인코더 입력 스레드가 주고받는 YUV 프레임 버퍼, 시작할 때 모두 할당해 두고 재사용
+ * <br/>
+ * 변환 스레드는 obtain 으로 빈 버퍼를 받아 채운 뒤 submit, 입력 스레드는 take 로 받아 인코더에 넣은 뒤 recycle
+ * <br/>
+ * 빈 버퍼가 없으면 인코더가 밀리는 중이므로 obtain 이 null 을 반환하고, 호출한 쪽에서 그 프레임을 버림
+ */
+public class YuvFramePool {
+
+    public static final class Frame {
+        public final ByteBuffer data;
+        public int size;
+        public long presentationTimeUs;
+
+        private Frame(int frameSize) {
+            data = ByteBuffer.allocateDirect(frameSize);
+        }
+    }
+
+    private final int frameSize;
+    private final BlockingQueue<Frame> freeFrames;
+    private final BlockingQueue<Frame> filledFrames;
+
+    private volatile long droppedFrames;
+
+    /**
+     * @param count 버퍼 수, 변환 중 1 + 인코더 대기 중 count - 1
+     */
+    public YuvFramePool(int frameSize, int count) {
+        if (frameSize <= 0 || count <= 0) {
+            throw new IllegalArgumentException("frameSize and count must be positive");
+        }
+
+        this.frameSize = frameSize;
+        freeFrames = new ArrayBlockingQueue<>(count);
+        filledFrames = new ArrayBlockingQueue<>(count);
+
+        for (int i = 0; i < count; i++) {
+            freeFrames.offer(new Frame(frameSize));
+        }
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return 빈 버퍼, 모두 사용 중이면 null 을 반환하고 버린 프레임으로 셈
+     */
+    public Frame obtain() {
+        final Frame frame = freeFrames.poll();
+
+        if (frame == null) {
+            droppedFrames++;
+        }
+
+        return frame;
+    }
+
+    public void submit(Frame frame) {
+        filledFrames.offer(frame);
+    }
+
+    /**
+     * @return 채워진 프레임, timeoutMs 동안 없으면 null
+     */
+    public Frame take(long timeoutMs) throws InterruptedException {
+        return filledFrames.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void recycle(Frame frame) {
+        frame.size = 0;
+        freeFrames.offer(frame);
+    }
+
+    /**
+     * @return 인코더에 넣기를 기다리는 프레임 수
+     */
+    public int getPendingCount() {
+        return filledFrames.size();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,106 @@
+package chuumong.io.mediacore.clock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MediaClockTest {
+
+    private static final long MS = 1000000L;
+
+    private static final class ManualTimeSource implements MediaClock.TimeSource {
+        long now;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    @Test
+    public void pausedDuration_accumulatesAcrossManyPauses() {
+        final ManualTimeSource source = new ManualTimeSource();
+        final MediaClock clock = new MediaClock(source);
+
+        source.now = 1000 * MS;
+        final long start = clock.getTimeUs();
+
+        for (int i = 0; i < 100; i++) {
+            // 100ms 녹화 후 50ms 일시정지
+            source.now += 100 * MS;
+            assertTrue(clock.pause());
+
+            source.now += 25 * MS;
+            assertFalse(clock.pause());
+            // 일시정지 중에는 시간이 멈춤
+            assertEquals(start + (i + 1) * 100000L, clock.getTimeUs());
+
+            source.now += 25 * MS;
+            assertTrue(clock.resume());
+        }
+
+        assertFalse(clock.resume());
+        assertEquals(100 * 50000L, clock.getPausedDurationUs());
+        assertEquals(start + 100 * 100000L, clock.getTimeUs());
+        assertEquals(source.now - 100 * 50 * MS, clock.toMediaTimeNs(source.now));
+    }
+
+    @Test
+    public void stampBeforePause_drainedAfterResume_usesOffsetAtCaptureTime() {
+        final ManualTimeSource source = new ManualTimeSource();
+        final MediaClock clock = new MediaClock(source);
+
+        // 일시정지 전에 캡처한 프레임
+        source.now = 1000 * MS;
+        final long captured = source.now;
+
+        source.now += 10 * MS;
+        assertTrue(clock.pause());
+        // 일시정지 중에 인코더가 반복한 프레임
+        final long repeated = source.now + 20 * MS;
+        source.now += 500 * MS;
+        assertTrue(clock.resume());
+
+        final long afterResume = source.now + 5 * MS;
+        source.now += 30 * MS;
+
+        // 재개한 뒤에 꺼내도 일시정지한 시간을 빼지 않음
+        assertEquals(captured, clock.toMediaTimeNs(captured));
+        assertEquals(1010 * MS, clock.toMediaTimeNs(repeated));
+        assertEquals(afterResume - 500 * MS, clock.toMediaTimeNs(afterResume));
+        assertTrue(clock.toMediaTimeNs(captured) < clock.toMediaTimeNs(afterResume));
+
+        assertFalse(clock.isPausedAt(captured));
+        assertTrue(clock.isPausedAt(repeated));
+        assertFalse(clock.isPausedAt(afterResume));
+
+        // 구간을 많이 기억하지 않아도 최근 구간의 변환은 유지
+        for (int i = 0; i < 40; i++) {
+            source.now += 10 * MS;
+            clock.pause();
+            source.now += 10 * MS;
+            clock.resume();
+        }
+        assertEquals(source.now - 900 * MS, clock.toMediaTimeNs(source.now));
+        assertEquals(source.now - 20 * MS - 890 * MS, clock.toMediaTimeNs(source.now - 20 * MS));
+    }
+
+    @Test
+    public void track_isStrictlyMonotonic() {
+        final ManualTimeSource source = new ManualTimeSource();
+        final MediaClock clock = new MediaClock(source);
+        final MediaClock.Track audio = clock.newTrack();
+        final MediaClock.Track video = clock.newTrack();
+
+        source.now = 5 * MS;
+        assertEquals(5000, audio.nextTimeUs());
+        assertEquals(5001, audio.nextTimeUs());
+        // 트랙마다 따로 증가
+        assertEquals(5000, video.nextTimeUs());
+
+        // 코덱이 준 타임스탬프는 유지, 뒤로 가는 경우만 보정
+        assertEquals(9000, video.advance(9000));
+        assertEquals(9001, video.advance(8000));
+        assertEquals(9001, video.getLastTimeUs());
+    }
+}
@@ -0,0 +1,99 @@
+package chuumong.io.mediacore.codec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BitrateControllerTest {
+
+    private static final int MIN = 2000000;
+    private static final int MAX = 16000000;
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * 1초 간격의 측정 기록, {인코딩 된 kbps, 큐 깊이, 화면 변화량 %}
+     */
+    private static int[] replay(BitrateController controller, int[][] trace) {
+        final BitrateController.Sample sample = new BitrateController.Sample();
+        final int[] bitRates = new int[trace.length];
+        long bytes = 0;
+
+        controller.update(sample.set(0, 0, 0, 1f));
+
+        for (int i = 0; i < trace.length; i++) {
+            bytes += trace[i][0] * 1000L / 8;
+            final float activity = trace[i][2] < 0 ? -1f : trace[i][2] / 100f;
+            bitRates[i] = controller.update(sample.set((i + 1) * SECOND, bytes, trace[i][1], activity));
+        }
+
+        return bitRates;
+    }
+
+    @Test
+    public void staticScreen_fallsToMinimum() {
+        final int[][] trace = new int[20][];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = new int[]{300, 0, 0};
+        }
+
+        final int[] bitRates = replay(new BitrateController(MIN, MAX, MAX, 32), trace);
+
+        assertEquals(MIN, bitRates[bitRates.length - 1]);
+        // 한 번에 크게 내리지 않고 단계적으로 내림
+        for (int i = 1; i < bitRates.length; i++) {
+            assertTrue(bitRates[i] >= bitRates[i - 1] * 0.75f - 1);
+        }
+    }
+
+    @Test
+    public void activityAfterIdle_rampsBackUpQuickly() {
+        final int[][] trace = new int[24][];
+        for (int i = 0; i < 20; i++) {
+            trace[i] = new int[]{300, 0, 0};
+        }
+        for (int i = 20; i < trace.length; i++) {
+            trace[i] = new int[]{MAX / 1000, 0, 100};
+        }
+
+        final BitrateController controller = new BitrateController(MIN, MAX, MAX, 32, 0);
+        final int[] bitRates = replay(controller, trace);
+
+        assertEquals(MIN, bitRates[19]);
+        assertTrue(bitRates[20] > MIN);
+        assertEquals(MAX, bitRates[trace.length - 1]);
+    }
+
+    @Test
+    public void congestion_lowersBitrateEvenWhenActive() {
+        final int[][] trace = {{16000, 0, 100}, {16000, 40, 100}, {16000, 40, 100}, {16000, 0, 100}};
+
+        final int[] bitRates = replay(new BitrateController(MIN, MAX, MAX, 32), trace);
+
+        assertEquals(MAX, bitRates[0]);
+        assertEquals((int) (MAX * 0.7f), bitRates[1]);
+        assertEquals((int) (MAX * 0.7f * 0.7f), bitRates[2]);
+    }
+
+    @Test
+    public void unknownActivity_followsEncoderUtilization() {
+        final BitrateController controller = new BitrateController(MIN, MAX, 8000000, 32, 0);
+        final BitrateController.Sample sample = new BitrateController.Sample();
+        long bytes = 0;
+
+        controller.update(sample.set(0, 0, 0, -1));
+
+        // 복잡한 화면이라 인코더가 주어진 예산을 거의 다 씀
+        for (int i = 1; i <= 6; i++) {
+            bytes += (long) (controller.getBitRate() * 0.95f / 8);
+            controller.update(sample.set(i * SECOND, bytes, 0, -1));
+        }
+        assertEquals(MAX, controller.getBitRate());
+
+        // 단순한 화면이라 예산의 일부만 씀
+        for (int i = 7; i <= 30; i++) {
+            bytes += (long) (controller.getBitRate() * 0.1f / 8);
+            controller.update(sample.set(i * SECOND, bytes, 0, -1));
+        }
+        assertTrue(controller.getBitRate() < MAX / 2);
+    }
+}
@@ -0,0 +1,69 @@
+package chuumong.io.mediacore.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class CodecCapabilityCacheTest {
+
+    private static final int COLOR_FORMAT_SURFACE = 0x7F000789;
+
+    @Test
+    public void writeAndRead_keepsEntries() throws Exception {
+        final CodecCapabilityCache cache = new CodecCapabilityCache("vendor/device:7.0/NRD90M/1:user/release-keys");
+        cache.put(new CodecCapabilityCache.Entry("video/avc", "OMX.vendor.avc.encoder")
+                          .setColorFormats(new int[]{21, COLOR_FORMAT_SURFACE})
+                          .setProfileLevels(new int[]{1, 2}, new int[]{512, 1024})
+                          .setSizeRange(64, 1920, 64, 1088)
+                          .setAlignment(16, 2)
+                          .setBitRateRange(1, 40000000));
+        cache.put(new CodecCapabilityCache.Entry("audio/mp4a-latm", "OMX.google.aac.encoder").setBitRateRange(8000, 960000));
+
+        final CodecCapabilityCache read = CodecCapabilityCache.readFrom(new ByteArrayInputStream(toBytes(cache)));
+
+        assertEquals(cache.getFingerprint(), read.getFingerprint());
+        assertEquals(2, read.getEntries().size());
+
+        final CodecCapabilityCache.Entry video = read.get("video/avc");
+        assertEquals("OMX.vendor.avc.encoder", video.getName());
+        assertTrue(video.supportsColorFormat(COLOR_FORMAT_SURFACE));
+        assertArrayEquals(new int[]{1, 2}, video.getProfiles());
+        assertArrayEquals(new int[]{512, 1024}, video.getLevels());
+        assertEquals(1920, video.getMaxWidth());
+        assertEquals(1088, video.getMaxHeight());
+        assertEquals(16, video.getWidthAlignment());
+        assertEquals(40000000, video.getMaxBitRate());
+
+        final CodecCapabilityCache.Entry audio = read.get("audio/mp4a-latm");
+        assertFalse(audio.supportsColorFormat(COLOR_FORMAT_SURFACE));
+        assertEquals(8000, audio.getMinBitRate());
+        assertNull(read.get("video/hevc"));
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrom_rejectsOtherData() throws Exception {
+        CodecCapabilityCache.readFrom(new ByteArrayInputStream(new byte[]{0, 0, 0, 1, 0, 0, 0, 1}));
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrom_rejectsTruncatedData() throws Exception {
+        final CodecCapabilityCache cache = new CodecCapabilityCache("fingerprint");
+        cache.put(new CodecCapabilityCache.Entry("video/avc", "encoder"));
+
+        final byte[] bytes = toBytes(cache);
+        final byte[] truncated = new byte[bytes.length - 4];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        CodecCapabilityCache.readFrom(new ByteArrayInputStream(truncated));
+    }
+
+    private static byte[] toBytes(CodecCapabilityCache cache) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.writeTo(out);
+        return out.toByteArray();
+    }
+}
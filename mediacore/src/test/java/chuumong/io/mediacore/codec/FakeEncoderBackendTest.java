@@ -0,0 +1,198 @@
+package chuumong.io.mediacore.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FakeEncoderBackendTest {
+
+    @Test
+    public void surfaceInput_emitsFormatConfigAndH264Frames() throws Exception {
+        final FakeEncoderBackend backend = new FakeEncoderBackend(FakeEncoderBackend.Config.h264(1280, 720, 30, 4000000)
+                                                                                      .setKeyFrameInterval(3));
+        backend.start();
+
+        final SampleInfo info = new SampleInfo();
+        assertEquals(EncoderBackend.INFO_OUTPUT_FORMAT_CHANGED, backend.dequeueOutputBuffer(info, 0));
+
+        int index = backend.dequeueOutputBuffer(info, 0);
+        assertTrue(index >= 0);
+        assertTrue(info.isCodecConfig());
+        backend.releaseOutputBuffer(index);
+
+        final List<Long> timestamps = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            assertTrue(backend.renderFrame());
+            index = backend.dequeueOutputBuffer(info, 10000);
+            assertTrue(index >= 0);
+
+            final ByteBuffer data = backend.getOutputBuffer(index);
+            assertEquals(1, data.get(3));
+            assertEquals(i % 3 == 0 ? 0x65 : 0x41, data.get(4));
+            assertEquals(i % 3 == 0, info.isKeyFrame());
+            timestamps.add(info.presentationTimeUs);
+            backend.releaseOutputBuffer(index);
+        }
+
+        assertEquals(Long.valueOf(0), timestamps.get(0));
+        assertEquals(Long.valueOf(1000000L / 30), timestamps.get(1));
+
+        backend.signalEndOfInputStream();
+        index = backend.dequeueOutputBuffer(info, 10000);
+        assertTrue(info.isEndOfStream());
+        backend.releaseOutputBuffer(index);
+        backend.release();
+    }
+
+    @Test
+    public void sameSeed_producesSameSizes() {
+        assertArrayEquals(encodeSizes(42), encodeSizes(42));
+        assertFalse(java.util.Arrays.equals(encodeSizes(42), encodeSizes(7)));
+    }
+
+    @Test
+    public void requestSyncFrame_restartsGopWithKeyFrame() {
+        final FakeEncoderBackend backend = new FakeEncoderBackend(FakeEncoderBackend.Config.h264(640, 480, 30, 1000000)
+                                                                                      .setKeyFrameInterval(30));
+        backend.start();
+
+        final SampleInfo info = new SampleInfo();
+        final List<Boolean> keyFrames = new ArrayList<>();
+
+        while (keyFrames.size() < 6) {
+            if (keyFrames.size() == 3) {
+                backend.requestSyncFrame();
+            }
+
+            backend.renderFrame();
+            final int index = backend.dequeueOutputBuffer(info, 10000);
+
+            if (index >= 0) {
+                if (!info.isCodecConfig()) {
+                    keyFrames.add(info.isKeyFrame());
+                }
+                backend.releaseOutputBuffer(index);
+            }
+        }
+
+        assertEquals(java.util.Arrays.asList(true, false, false, true, false, false), keyFrames);
+        backend.release();
+    }
+
+    @Test
+    public void surfaceQueue_isBounded() {
+        final FakeEncoderBackend backend = new FakeEncoderBackend(FakeEncoderBackend.Config.h264(640, 480, 30, 1000000));
+        backend.start();
+
+        for (int i = 0; i < FakeEncoderBackend.SURFACE_QUEUE_DEPTH; i++) {
+            assertTrue(backend.renderFrame());
+        }
+        assertFalse(backend.renderFrame());
+
+        backend.release();
+    }
+
+    @Test
+    public void maxWaitUs_capsDequeueTimeout() {
+        final FakeEncoderBackend backend = new FakeEncoderBackend(FakeEncoderBackend.Config.h264(640, 480, 30, 1000000)
+                                                                                      .setMaxWaitUs(0));
+        backend.start();
+
+        final SampleInfo info = new SampleInfo();
+        int index;
+        while ((index = backend.dequeueOutputBuffer(info, 0)) != EncoderBackend.INFO_TRY_AGAIN_LATER) {
+            if (index >= 0) {
+                backend.releaseOutputBuffer(index);
+            }
+        }
+
+        final long start = System.nanoTime();
+        assertEquals(EncoderBackend.INFO_TRY_AGAIN_LATER, backend.dequeueOutputBuffer(info, 1000000));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        backend.release();
+    }
+
+    @Test
+    public void asyncMode_deliversAacPacketsForQueuedInput() throws Exception {
+        final FakeEncoderBackend backend = new FakeEncoderBackend(FakeEncoderBackend.Config.aac(44100, 1, 64000));
+        final CountDownLatch eos = new CountDownLatch(1);
+        final List<Long> timestamps = new ArrayList<>();
+        final TrackFormat[] format = new TrackFormat[1];
+
+        backend.setCallback(new EncoderBackend.Callback() {
+            private int queued;
+
+            @Override
+            public void onInputBufferAvailable(EncoderBackend b, int index) {
+                if (queued < 4) {
+                    b.queueInputBuffer(index, 0, 2048, queued * 23220L, 0);
+                }
+                else if (queued == 4) {
+                    b.queueInputBuffer(index, 0, 0, queued * 23220L, EncoderBackend.BUFFER_FLAG_END_OF_STREAM);
+                }
+                queued++;
+            }
+
+            @Override
+            public void onOutputBufferAvailable(EncoderBackend b, int index, SampleInfo info) {
+                if (info.isEndOfStream()) {
+                    eos.countDown();
+                }
+                else if (!info.isCodecConfig()) {
+                    timestamps.add(info.presentationTimeUs);
+                }
+                b.releaseOutputBuffer(index);
+            }
+
+            @Override
+            public void onOutputFormatChanged(EncoderBackend b, TrackFormat f) {
+                format[0] = f;
+            }
+
+            @Override
+            public void onError(EncoderBackend b, Exception e) {
+                fail(e.toString());
+            }
+        });
+        backend.start();
+
+        assertTrue(eos.await(5, TimeUnit.SECONDS));
+        backend.release();
+
+        assertNotNull(format[0]);
+        assertEquals(2, format[0].getCsd0().remaining());
+        assertEquals(4, timestamps.size());
+        assertEquals(Long.valueOf(3 * 23220L), timestamps.get(3));
+    }
+
+    private static int[] encodeSizes(long seed) {
+        final FakeEncoderBackend backend = new FakeEncoderBackend(FakeEncoderBackend.Config.h264(640, 480, 30, 1000000).setSeed(seed));
+        backend.start();
+
+        final SampleInfo info = new SampleInfo();
+        final int[] sizes = new int[10];
+        int count = 0;
+
+        while (count < sizes.length) {
+            backend.renderFrame();
+            final int index = backend.dequeueOutputBuffer(info, 10000);
+
+            if (index >= 0) {
+                if (!info.isCodecConfig()) {
+                    sizes[count++] = info.size;
+                }
+                backend.releaseOutputBuffer(index);
+            }
+        }
+
+        backend.release();
+        return sizes;
+    }
+}
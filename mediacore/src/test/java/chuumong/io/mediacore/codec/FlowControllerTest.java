@@ -0,0 +1,111 @@
+package chuumong.io.mediacore.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import chuumong.io.mediacore.mux.SampleSink;
+
+import static org.junit.Assert.*;
+
+public class FlowControllerTest {
+
+    @Test
+    public void dropNewest_rejectsWhenFullAndReleasesOnOutput() {
+        final FlowController flow = new FlowController(FlowController.Policy.DROP_NEWEST, 2, 0);
+
+        assertTrue(flow.acquire());
+        flow.onFrameSubmitted(1000);
+        assertTrue(flow.acquire());
+        flow.onFrameSubmitted(2000);
+        assertFalse(flow.acquire());
+
+        // 코덱이 1000 을 건너뛰고 2000 만 출력해도 둘 다 완료
+        flow.onFrameCompleted(2000);
+        assertEquals(0, flow.getInFlight());
+        assertTrue(flow.acquire());
+    }
+
+    @Test
+    public void block_waitsForOutputUntilDeadline() throws Exception {
+        final FlowController flow = new FlowController(FlowController.Policy.BLOCK, 1, 200000);
+        flow.onFrameSubmitted(1000);
+
+        final Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                flow.onFrameCompleted(1000);
+            }
+        });
+        drain.start();
+
+        assertTrue(flow.acquire());
+        drain.join();
+
+        flow.onFrameSubmitted(2000);
+        flow.configure(FlowController.Policy.BLOCK, 1, 10000);
+
+        final long start = System.nanoTime();
+        assertFalse(flow.acquire());
+        assertTrue(System.nanoTime() - start >= 10000000L);
+    }
+
+    @Test
+    public void encode_usesInputBufferZeroAndDropsInsteadOfSpinning() {
+        final FakeEncoderBackend backend = new FakeEncoderBackend(FakeEncoderBackend.Config.aac(44100, 1, 64000)
+                                                                                      .setBufferCount(1, 4)
+                                                                                      .setEncodeTimeUs(1000000));
+        final TestEncoder encoder = new TestEncoder(backend);
+        encoder.getFlowController().configure(FlowController.Policy.DROP_NEWEST, 1, 0);
+        backend.start();
+
+        final ByteBuffer pcm = ByteBuffer.allocate(1024);
+
+        // 입력 버퍼가 0 번 하나뿐이어도 넣을 수 있어야 함
+        assertTrue(encoder.encode(pcm, 1024, 0));
+
+        // 코덱이 입력 버퍼를 잡고 있으면 계속 기다리지 않고 버림
+        final long start = System.nanoTime();
+        assertFalse(encoder.encode(pcm, 1024, 1000));
+        assertTrue(System.nanoTime() - start < 500000000L);
+        assertEquals(1, encoder.getFlowController().getDroppedFrames());
+
+        // DROP_OLDEST 는 지금 프레임을 보관하고, 다음에도 자리가 없으면 보관하던 프레임을 버림
+        encoder.getFlowController().configure(FlowController.Policy.DROP_OLDEST, 1, 0);
+        assertFalse(encoder.encode(pcm, 1024, 2000));
+        assertEquals(1, encoder.getFlowController().getDroppedFrames());
+        assertFalse(encoder.encode(pcm, 1024, 3000));
+        assertEquals(2, encoder.getFlowController().getDroppedFrames());
+
+        backend.release();
+    }
+
+    private static final class TestEncoder extends BaseEncoder {
+
+        TestEncoder(EncoderBackend backend) {
+            super(false);
+            codec = backend;
+            isCapturing = true;
+        }
+
+        @Override
+        protected SampleSink getSink() {
+            return null;
+        }
+
+        @Override
+        protected long getPTSUs() {
+            return 0;
+        }
+
+        @Override
+        protected void onAsyncFinished() {
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+import static org.junit.Assert.*;
+
+public class Fmp4WriterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    // AAC-LC, 44100Hz, 모노
+    private static final byte[] ASC = {0x12, 0x08};
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("fmp4", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void fragmentsOnKeyFrames_andParsesBack() throws Exception {
+        final Fmp4Writer writer = new Fmp4Writer(file);
+        writer.setFragmentDuration(0);
+        final int video = writer.addTrack(videoFormat());
+        final int audio = writer.addTrack(audioFormat());
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        // 키 프레임 앞에 붙은 SPS / PPS 는 avcC 에 있으므로 샘플에서 빠짐
+        writeVideo(writer, video, info, concat(SPS, PPS, nal(0x65, 20)), 0, true);
+        writeAudio(writer, audio, info, 10, 0);
+        writeVideo(writer, video, info, nal(0x41, 10), 33333, false);
+        writeAudio(writer, audio, info, 10, 23220);
+        writeVideo(writer, video, info, nal(0x65, 30), 66666, true);
+        writeVideo(writer, video, info, nal(0x41, 12), 100000, false);
+        writer.stop();
+        writer.release();
+
+        final ByteBuffer mp4 = readFile();
+        final List<Box> boxes = Box.parse(mp4, 0, mp4.limit());
+
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+
+        final Box moov = boxes.get(1);
+        // mehd 는 stop 에서 전체 길이로 채움, 영상 마지막 프레임은 앞 프레임과 같은 길이
+        assertEquals(133, moov.child("mvex").child("mehd").body(mp4).getLong(4));
+
+        final Box avcC = moov.children.get(2).find("avcC");
+        final ByteBuffer avc = avcC.body(mp4);
+        assertEquals(1, avc.get(0));
+        assertEquals(0x42, avc.get(1));
+        assertEquals(0xE1, avc.get(5) & 0xFF);
+        assertEquals(SPS.length - 4, avc.getShort(6));
+        assertEquals(0x67, avc.get(8));
+        assertEquals(1, avc.get(8 + SPS.length - 4));
+        assertEquals(0x68, avc.get(8 + SPS.length - 4 + 3));
+
+        final ByteBuffer esds = moov.children.get(3).find("esds").body(mp4);
+        assertEquals(0x05, esds.get(4 + 5 + 15));
+        assertEquals(2, esds.get(4 + 5 + 15 + 1));
+        assertEquals(0x12, esds.get(4 + 5 + 15 + 2));
+
+        final List<Box> moofs = Box.ofType(boxes, "moof");
+        final List<Box> mdats = Box.ofType(boxes, "mdat");
+        assertEquals(2, moofs.size());
+        assertEquals(2, mdats.size());
+        assertEquals(2, writer.getFragmentCount());
+
+        // 첫 조각 : 두 번째 키 프레임 전까지의 영상 2 개, 두 번째 오디오는 길이를 몰라서 다음 조각으로
+        final Box firstMoof = moofs.get(0);
+        final List<Box> trafs = firstMoof.all("traf");
+        assertEquals(2, trafs.size());
+
+        final Run videoRun = Run.read(mp4, trafs.get(0));
+        assertEquals(1, videoRun.trackId);
+        assertEquals(0, videoRun.baseDecodeTime);
+        assertArrayEquals(new int[]{2999, 3000}, videoRun.durations);
+        assertEquals(0x02000000, videoRun.flags[0]);
+        assertEquals(0x01010000, videoRun.flags[1]);
+
+        // 샘플은 길이가 앞에 붙은 NAL 로 바뀜
+        final int firstSample = firstMoof.offset + videoRun.dataOffset;
+        assertEquals(20, mp4.getInt(firstSample));
+        assertEquals(0x65, mp4.get(firstSample + 4));
+        assertEquals(24, videoRun.sizes[0]);
+
+        final Run audioRun = Run.read(mp4, trafs.get(1));
+        assertEquals(2, audioRun.trackId);
+        assertArrayEquals(new int[]{1024}, audioRun.durations);
+        assertEquals(firstSample + 24 + 14, firstMoof.offset + audioRun.dataOffset);
+        assertEquals(0x21, mp4.get(firstMoof.offset + audioRun.dataOffset));
+
+        final List<Box> lastTrafs = moofs.get(1).all("traf");
+        final Run lastVideo = Run.read(mp4, lastTrafs.get(0));
+        assertEquals(5999, lastVideo.baseDecodeTime);
+        assertEquals(2, lastVideo.durations.length);
+        assertEquals(3001, lastVideo.durations[1]);
+        final Run lastAudio = Run.read(mp4, lastTrafs.get(1));
+        assertEquals(1024, lastAudio.baseDecodeTime);
+
+        // mdat 은 moof 바로 뒤, 모든 샘플이 mdat 안에 있음
+        for (int i = 0; i < moofs.size(); i++) {
+            final Box moof = moofs.get(i);
+            final Box mdat = mdats.get(i);
+            int bytes = 0;
+            for (Box traf : moof.all("traf")) {
+                final Run run = Run.read(mp4, traf);
+                assertTrue(moof.offset + run.dataOffset >= mdat.offset + 8);
+                for (int size : run.sizes) {
+                    bytes += size;
+                }
+            }
+            assertEquals(mdat.size - 8, bytes);
+        }
+    }
+
+    @Test
+    public void fragmentDuration_waitsForKeyFrame_andAlignsFragments() throws Exception {
+        final Fmp4Writer writer = new Fmp4Writer(file);
+        writer.setFragmentDuration(2000000);
+        writer.setWriteAlignment(4096);
+        final int video = writer.addTrack(videoFormat());
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        // 1 초마다 키 프레임, 10 fps
+        for (int i = 0; i < 50; i++) {
+            writeVideo(writer, video, info, nal(i % 10 == 0 ? 0x65 : 0x41, 100), i * 100000L, i % 10 == 0);
+        }
+        writer.stop();
+        writer.release();
+
+        final ByteBuffer mp4 = readFile();
+        final List<Box> boxes = Box.parse(mp4, 0, mp4.limit());
+        final List<Box> moofs = Box.ofType(boxes, "moof");
+
+        // 2 초 이후의 키 프레임에서 나눔 : 0~2 초, 2~4 초, 4~5 초
+        assertEquals(3, moofs.size());
+        assertEquals(20, Run.read(mp4, moofs.get(0).child("traf")).durations.length);
+        assertEquals(20, Run.read(mp4, moofs.get(1).child("traf")).durations.length);
+        assertEquals(10, Run.read(mp4, moofs.get(2).child("traf")).durations.length);
+        assertEquals(2 * 90000, Run.read(mp4, moofs.get(1).child("traf")).baseDecodeTime);
+
+        for (Box moof : moofs) {
+            assertEquals(0, moof.offset % 4096);
+        }
+        assertEquals(0, mp4.limit() % 4096);
+        assertFalse(Box.ofType(boxes, "free").isEmpty());
+    }
+
+    @Test
+    public void maxFragmentBytes_boundsMemory_andFileIsPlayableWithoutStop() throws Exception {
+        final Fmp4Writer writer = new Fmp4Writer(file);
+        writer.setMaxFragmentBytes(1000);
+        writer.setWriteAlignment(0);
+        final int video = writer.addTrack(videoFormat());
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        writeVideo(writer, video, info, nal(0x65, 300), 0, true);
+        for (int i = 1; i < 20; i++) {
+            writeVideo(writer, video, info, nal(0x41, 300), i * 33333L, false);
+            assertTrue(writer.getBufferedBytes() <= 1000);
+        }
+
+        // stop 없이 프로세스가 죽어도 기록한 조각까지는 모두 완전한 박스
+        final ByteBuffer mp4 = readFile();
+        final List<Box> boxes = Box.parse(mp4, 0, mp4.limit());
+        assertEquals(mp4.limit(), boxes.get(boxes.size() - 1).offset + boxes.get(boxes.size() - 1).size);
+        assertEquals("mdat", boxes.get(boxes.size() - 1).type);
+        assertTrue(Box.ofType(boxes, "moof").size() >= 5);
+
+        long decodeTime = 0;
+        for (Box moof : Box.ofType(boxes, "moof")) {
+            final Run run = Run.read(mp4, moof.child("traf"));
+            assertEquals(decodeTime, run.baseDecodeTime);
+            for (int duration : run.durations) {
+                decodeTime += duration;
+            }
+        }
+
+        writer.release();
+    }
+
+    @Test
+    public void severalVideoAndAudioTracks_fragmentOnFirstVideoTrack() throws Exception {
+        final Fmp4Writer writer = new Fmp4Writer(file);
+        writer.setFragmentDuration(0);
+        // 원본 영상과 프록시 영상, 마이크와 두 번째 오디오
+        final int video = writer.addTrack(videoFormat());
+        final int proxy = writer.addTrack(videoFormat());
+        final int mic = writer.addTrack(audioFormat());
+        final int pcm = writer.addTrack(audioFormat());
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 20; i++) {
+            writeVideo(writer, video, info, nal(i % 10 == 0 ? 0x65 : 0x41, 100), i * 100000L, i % 10 == 0);
+            // 프록시의 키 프레임에서는 나누지 않음
+            writeVideo(writer, proxy, info, nal(i % 10 == 5 ? 0x65 : 0x41, 30), i * 100000L, i % 10 == 5);
+            writeAudio(writer, mic, info, 10, i * 100000L + 50000);
+            writeAudio(writer, pcm, info, 10, i * 100000L + 50000);
+        }
+        writer.stop();
+        writer.release();
+
+        final ByteBuffer mp4 = readFile();
+        final List<Box> boxes = Box.parse(mp4, 0, mp4.limit());
+        assertEquals(4, boxes.get(1).all("trak").size());
+
+        final List<Box> moofs = Box.ofType(boxes, "moof");
+        assertEquals(2, moofs.size());
+
+        final List<Box> trafs = moofs.get(0).all("traf");
+        assertEquals(4, trafs.size());
+        for (int i = 0; i < trafs.size(); i++) {
+            assertEquals(i + 1, Run.read(mp4, trafs.get(i)).trackId);
+        }
+        assertEquals(10, Run.read(mp4, trafs.get(0)).durations.length);
+        assertEquals(0x02000000, Run.read(mp4, trafs.get(1)).flags[5]);
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        final byte[] data = new byte[(int) in.length()];
+        in.readFully(data);
+        in.close();
+        return ByteBuffer.wrap(data);
+    }
+
+    private static TrackFormat videoFormat() {
+        final TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480);
+        format.setCsd0(ByteBuffer.wrap(SPS));
+        format.setCsd1(ByteBuffer.wrap(PPS));
+        return format;
+    }
+
+    private static TrackFormat audioFormat() {
+        final TrackFormat format = TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1);
+        format.setCsd0(ByteBuffer.wrap(ASC));
+        return format;
+    }
+
+    private static void writeVideo(Fmp4Writer writer, int track, SampleInfo info, byte[] sample, long ptsUs, boolean keyFrame) {
+        info.set(0, sample.length, ptsUs, keyFrame ? EncoderBackend.BUFFER_FLAG_KEY_FRAME : 0);
+        writer.writeSampleData(track, ByteBuffer.wrap(sample), info);
+    }
+
+    private static void writeAudio(Fmp4Writer writer, int track, SampleInfo info, int size, long ptsUs) {
+        final byte[] sample = new byte[size];
+        sample[0] = 0x21;
+        info.set(0, size, ptsUs, 0);
+        writer.writeSampleData(track, ByteBuffer.wrap(sample), info);
+    }
+
+    /**
+     * @return 4 바이트 시작 코드와 NAL 헤더를 포함해 size + 4 바이트인 NAL
+     */
+    private static byte[] nal(int header, int size) {
+        final byte[] nal = new byte[size + 4];
+        nal[3] = 1;
+        nal[4] = (byte) header;
+        for (int i = 5; i < nal.length; i++) {
+            nal[i] = (byte) 0x80;
+        }
+        return nal;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+
+        final ByteBuffer out = ByteBuffer.allocate(length);
+        for (byte[] array : arrays) {
+            out.put(array);
+        }
+        return out.array();
+    }
+
+    private static final class Box {
+        final String type;
+        final int offset;
+        final int size;
+        final int headerSize;
+        final List<Box> children = new ArrayList<>();
+
+        Box(String type, int offset, int size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        static List<Box> parse(ByteBuffer buffer, int from, int to) {
+            final List<Box> boxes = new ArrayList<>();
+            int offset = from;
+
+            while (offset < to) {
+                final int size = buffer.getInt(offset);
+                assertTrue("box size " + size + " at " + offset, size >= 8 && offset + size <= to);
+
+                final String type = new String(new char[]{(char) buffer.get(offset + 4), (char) buffer.get(offset + 5),
+                                                          (char) buffer.get(offset + 6), (char) buffer.get(offset + 7)});
+                final Box box = new Box(type, offset, size, 8);
+
+                if ("moov".equals(type) || "trak".equals(type) || "mdia".equals(type) || "minf".equals(type) ||
+                    "stbl".equals(type) || "mvex".equals(type) || "moof".equals(type) || "traf".equals(type)) {
+                    box.children.addAll(parse(buffer, offset + 8, offset + size));
+                }
+                else if ("stsd".equals(type)) {
+                    box.children.addAll(parse(buffer, offset + 16, offset + size));
+                }
+                else if ("avc1".equals(type)) {
+                    box.children.addAll(parse(buffer, offset + 86, offset + size));
+                }
+                else if ("mp4a".equals(type)) {
+                    box.children.addAll(parse(buffer, offset + 36, offset + size));
+                }
+
+                boxes.add(box);
+                offset += size;
+            }
+
+            assertEquals(to, offset);
+            return boxes;
+        }
+
+        static List<Box> ofType(List<Box> boxes, String type) {
+            final List<Box> result = new ArrayList<>();
+            for (Box box : boxes) {
+                if (box.type.equals(type)) {
+                    result.add(box);
+                }
+            }
+            return result;
+        }
+
+        Box child(String type) {
+            final List<Box> boxes = all(type);
+            assertEquals(type, 1, boxes.size());
+            return boxes.get(0);
+        }
+
+        List<Box> all(String type) {
+            return ofType(children, type);
+        }
+
+        Box find(String type) {
+            for (Box box : children) {
+                if (box.type.equals(type)) {
+                    return box;
+                }
+                final Box found = box.find(type);
+                if (found != null) {
+                    return found;
+                }
+            }
+            return null;
+        }
+
+        ByteBuffer body(ByteBuffer buffer) {
+            final ByteBuffer body = buffer.duplicate();
+            body.limit(offset + size);
+            body.position(offset + headerSize);
+            return body.slice();
+        }
+    }
+
+    private static final class Run {
+        int trackId;
+        long baseDecodeTime;
+        int dataOffset;
+        int[] durations;
+        int[] sizes;
+        int[] flags;
+
+        static Run read(ByteBuffer buffer, Box traf) {
+            final Run run = new Run();
+
+            final ByteBuffer tfhd = traf.child("tfhd").body(buffer);
+            assertEquals(0x020000, tfhd.getInt(0));
+            run.trackId = tfhd.getInt(4);
+
+            final ByteBuffer tfdt = traf.child("tfdt").body(buffer);
+            assertEquals(1, tfdt.get(0));
+            run.baseDecodeTime = tfdt.getLong(4);
+
+            final ByteBuffer trun = traf.child("trun").body(buffer);
+            assertEquals(0x000701, trun.getInt(0));
+            final int count = trun.getInt(4);
+            run.dataOffset = trun.getInt(8);
+            run.durations = new int[count];
+            run.sizes = new int[count];
+            run.flags = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                run.durations[i] = trun.getInt(12 + i * 12);
+                run.sizes[i] = trun.getInt(16 + i * 12);
+                run.flags[i] = trun.getInt(20 + i * 12);
+            }
+
+            return run;
+        }
+    }
+}
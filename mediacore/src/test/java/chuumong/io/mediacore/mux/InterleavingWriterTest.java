@@ -0,0 +1,202 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+import static org.junit.Assert.*;
+
+public class InterleavingWriterTest {
+
+    @Test
+    public void holdsBurstUntilOtherTrackCatchesUp_andWritesInTimestampOrder() {
+        final RecordingWriter out = new RecordingWriter();
+        final InterleavingWriter writer = new InterleavingWriter(out);
+        writer.setChunkDuration(0);
+        final int video = writer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        final int audio = writer.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+        writer.start();
+
+        // 영상 스레드가 먼저 300ms 분량을 한꺼번에 내보냄
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 10; i++) {
+            write(writer, video, info, i * 33000L, i == 0, 50);
+        }
+        assertTrue(out.pts.isEmpty());
+
+        for (int i = 0; i < 13; i++) {
+            write(writer, audio, info, i * 23000L, false, 10);
+        }
+
+        // 오디오가 276ms 까지 왔으므로 그 뒤의 영상 프레임 하나만 남음
+        assertEquals(22, out.pts.size());
+        assertEquals(297000, writer.getMaxAheadUs(video));
+        assertEquals(0, writer.getMaxAheadUs(audio));
+        assertEquals(21000, writer.getAheadUs(video));
+
+        writer.stop();
+
+        assertEquals(23, out.pts.size());
+        for (int i = 1; i < out.pts.size(); i++) {
+            assertTrue(out.pts.get(i - 1) <= out.pts.get(i));
+        }
+        assertEquals(0, writer.getForcedCount());
+        assertEquals(0, writer.getBufferedBytes());
+        out.assertSamplesIntact();
+    }
+
+    @Test
+    public void silentTrack_doesNotHoldSamplesLongerThanWindow() {
+        final RecordingWriter out = new RecordingWriter();
+        final InterleavingWriter writer = new InterleavingWriter(out);
+        final int video = writer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        final int audio = writer.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i <= 10; i++) {
+            write(writer, video, info, i * 100000L, i == 0, 50);
+        }
+
+        // 1 초에서 500ms 보다 오래된 0 ~ 400ms 는 오디오를 기다리지 않고 기록
+        assertEquals(5, out.pts.size());
+        assertEquals(Long.valueOf(400000), out.pts.get(4));
+        assertEquals(5, writer.getForcedCount());
+
+        // 늦게 온 오디오는 바로 기록하고, 그 뒤의 영상은 다시 오디오를 기다림
+        write(writer, audio, info, 0, false, 10);
+        assertEquals(6, out.pts.size());
+        assertEquals(Integer.valueOf(audio), out.tracks.get(5));
+        assertEquals(1000000, writer.getAheadUs(video));
+
+        writer.stop();
+        assertEquals(12, out.pts.size());
+    }
+
+    @Test
+    public void writesEachTrackInChunks() {
+        final RecordingWriter out = new RecordingWriter();
+        final InterleavingWriter writer = new InterleavingWriter(out);
+        final int video = writer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        final int audio = writer.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+        writer.start();
+
+        // 두 트랙이 번갈아 들어옴
+        final SampleInfo info = new SampleInfo();
+        int samples = 0;
+        for (long us = 0; us < 1000000; us += 1000) {
+            if (us % 33000 == 0) {
+                write(writer, video, info, us, us == 0, 50);
+                samples++;
+            }
+            if (us % 23000 == 0) {
+                write(writer, audio, info, us, false, 10);
+                samples++;
+            }
+        }
+        writer.stop();
+
+        assertEquals(samples, out.pts.size());
+
+        // 샘플마다 트랙을 바꾸지 않고 100ms 씩 이어서 기록
+        int runs = 1;
+        final long[] lastUs = {-1, -1};
+        for (int i = 0; i < out.pts.size(); i++) {
+            if (i > 0 && !out.tracks.get(i).equals(out.tracks.get(i - 1))) {
+                runs++;
+            }
+
+            final int track = out.tracks.get(i);
+            assertTrue(out.pts.get(i) > lastUs[track]);
+            lastUs[track] = out.pts.get(i);
+        }
+
+        assertTrue("runs : " + runs, runs <= 20);
+        out.assertSamplesIntact();
+    }
+
+    @Test
+    public void bufferedBytes_staysUnderLimit() {
+        final RecordingWriter out = new RecordingWriter();
+        final InterleavingWriter writer = new InterleavingWriter(out, 10000000, 1000);
+        final int video = writer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        writer.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 30; i++) {
+            write(writer, video, info, i * 33000L, i == 0, 100);
+            assertTrue(writer.getBufferedBytes() <= 1000);
+        }
+
+        assertEquals(20, out.pts.size());
+        assertEquals(Long.valueOf(0), out.pts.get(0));
+        assertEquals(1100, writer.getMaxBufferedBytes());
+    }
+
+    private static void write(InterleavingWriter writer, int track, SampleInfo info, long ptsUs, boolean keyFrame, int size) {
+        final ByteBuffer buffer = ByteBuffer.allocate(size + 3);
+        for (int i = 0; i < size; i++) {
+            buffer.put(3 + i, pattern(track, ptsUs, i));
+        }
+
+        info.set(3, size, ptsUs, keyFrame ? EncoderBackend.BUFFER_FLAG_KEY_FRAME : 0);
+        writer.writeSampleData(track, buffer, info);
+    }
+
+    private static byte pattern(int track, long ptsUs, int index) {
+        return (byte) (track * 101 + ptsUs / 1000 + index * 31);
+    }
+
+    private static class RecordingWriter implements ContainerWriter {
+        final List<TrackFormat> formats = new ArrayList<>();
+        final List<Integer> tracks = new ArrayList<>();
+        final List<Long> pts = new ArrayList<>();
+        final List<byte[]> data = new ArrayList<>();
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            formats.add(format);
+            return formats.size() - 1;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+            final byte[] bytes = new byte[info.size];
+            final ByteBuffer sample = buffer.duplicate();
+            sample.position(info.offset);
+            sample.get(bytes);
+
+            tracks.add(trackIndex);
+            pts.add(info.presentationTimeUs);
+            data.add(bytes);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        void assertSamplesIntact() {
+            for (int i = 0; i < data.size(); i++) {
+                final byte[] bytes = data.get(i);
+                for (int j = 0; j < bytes.length; j++) {
+                    assertEquals(pattern(tracks.get(i), pts.get(i), j), bytes[j]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+import static org.junit.Assert.*;
+
+public class QueuedContainerWriterTest {
+
+    @Test
+    public void samplesAreCopiedAndWrittenInOrder() {
+        final RecordingWriter recording = new RecordingWriter(null);
+        final QueuedContainerWriter writer = new QueuedContainerWriter(recording, 16);
+        final int track = writer.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+        writer.start();
+
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        final SampleInfo info = new SampleInfo();
+
+        for (int i = 0; i < 10; i++) {
+            buffer.clear();
+            buffer.put(4, (byte) i);
+            // 코덱이 버퍼를 바로 재사용하더라도 복사본이 기록되어야 함
+            info.set(4, 1, i * 1000L, 0);
+            writer.writeSampleData(track, buffer, info);
+            buffer.put(4, (byte) -1);
+        }
+
+        writer.stop();
+        writer.release();
+
+        assertEquals(10, recording.values.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), recording.values.get(i));
+            assertEquals(Long.valueOf(i * 1000L), recording.timestamps.get(i));
+        }
+        assertEquals(10, writer.getWrittenCount());
+        assertEquals(0, writer.getQueueDepth());
+        assertEquals(0, writer.getDroppedCount());
+    }
+
+    @Test
+    public void fullQueue_dropsVideoUntilNextKeyFrame() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final RecordingWriter recording = new RecordingWriter(blocked);
+        final QueuedContainerWriter writer = new QueuedContainerWriter(recording, 2);
+        final int track = writer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        writer.start();
+
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        final SampleInfo info = new SampleInfo();
+
+        // 첫 샘플은 기록 스레드가 잡고 있고, 두 번째는 큐에 대기, 이후는 버려짐
+        write(writer, track, buffer, info, 0, true);
+        assertTrue(recording.entered.await(1, TimeUnit.SECONDS));
+        write(writer, track, buffer, info, 1, false);
+        write(writer, track, buffer, info, 2, false);
+        assertEquals(1, writer.getDroppedCount());
+
+        blocked.countDown();
+        while (writer.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+
+        // 공간이 생겨도 키 프레임 전까지는 버림
+        write(writer, track, buffer, info, 3, false);
+        write(writer, track, buffer, info, 4, true);
+        write(writer, track, buffer, info, 5, false);
+
+        writer.stop();
+
+        assertEquals(2, writer.getDroppedCount());
+        assertEquals(2, writer.getMaxQueueDepth());
+        assertEquals(4, recording.values.size());
+        assertEquals(Integer.valueOf(0), recording.values.get(0));
+        assertEquals(Integer.valueOf(1), recording.values.get(1));
+        assertEquals(Integer.valueOf(4), recording.values.get(2));
+        assertEquals(Integer.valueOf(5), recording.values.get(3));
+    }
+
+    private static void write(QueuedContainerWriter writer, int track, ByteBuffer buffer, SampleInfo info, int value, boolean keyFrame) {
+        buffer.clear();
+        buffer.put(0, (byte) value);
+        info.set(0, 1, value * 1000L, keyFrame ? EncoderBackend.BUFFER_FLAG_KEY_FRAME : 0);
+        writer.writeSampleData(track, buffer, info);
+    }
+
+    private static final class RecordingWriter implements ContainerWriter {
+
+        final List<Integer> values = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch blocked;
+
+        RecordingWriter(CountDownLatch blocked) {
+            this.blocked = blocked;
+        }
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+            entered.countDown();
+
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            values.add((int) buffer.get(buffer.position() + info.offset));
+            timestamps.add(info.presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
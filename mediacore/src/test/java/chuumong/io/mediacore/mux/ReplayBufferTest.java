@@ -0,0 +1,215 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+import static org.junit.Assert.*;
+
+public class ReplayBufferTest {
+
+    private static final long FRAME_US = 100000;
+
+    @Test
+    public void keepsWindowFromKeyFrame_andSavesIt() {
+        final ReplayBuffer replay = new ReplayBuffer(1024 * 1024, 1000, 3000000);
+        final int video = replay.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        final int audio = replay.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+        replay.start();
+
+        final SampleInfo info = new SampleInfo();
+        // 첫 키 프레임 전의 오디오는 버림
+        write(replay, audio, info, 0, false, 10);
+
+        // 10 fps, 1 초마다 키 프레임, 영상 프레임마다 오디오 하나
+        for (int i = 1; i <= 100; i++) {
+            write(replay, video, info, i * FRAME_US, i % 10 == 1, 100 + i % 7);
+            write(replay, audio, info, i * FRAME_US + 50000, false, 10);
+        }
+        replay.stop();
+
+        // 마지막 키 프레임 9.1 초 앞으로 3 초를 채우는 GOP 까지 남김 : 6.1 초부터 10.05 초까지
+        assertEquals(1, replay.getDroppedSampleCount());
+        assertEquals(6, replay.getEvictedGopCount());
+        assertEquals(10050000 - 6100000, replay.getBufferedDurationUs());
+        assertEquals(80, replay.getBufferedSampleCount());
+
+        final RecordingWriter out = new RecordingWriter();
+        assertEquals(80, replay.save(out, 0));
+
+        assertTrue(out.started && out.stopped && out.released);
+        assertEquals(2, out.formats.size());
+        assertEquals(Long.valueOf(6100000), out.pts.get(0));
+        assertTrue(out.keyFrames.get(0));
+        assertEquals(Integer.valueOf(video), out.tracks.get(0));
+        assertEquals(Integer.valueOf(audio), out.tracks.get(1));
+        assertSamplesIntact(out);
+    }
+
+    @Test
+    public void save_startsAtKeyFrameBeforeRequestedDuration() {
+        final ReplayBuffer replay = new ReplayBuffer(1024 * 1024, 1000, 10000000);
+        final int video = replay.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        replay.start();
+
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 50; i++) {
+            write(replay, video, info, i * FRAME_US, i % 10 == 0, 100);
+        }
+
+        // 마지막 프레임 4.9 초에서 1.5 초 전은 3.4 초, 그 앞의 키 프레임은 3 초
+        final RecordingWriter out = new RecordingWriter();
+        assertEquals(20, replay.save(out, 1500000));
+        assertEquals(Long.valueOf(3000000), out.pts.get(0));
+
+        // 저장해도 버퍼는 그대로
+        assertEquals(50, replay.getBufferedSampleCount());
+    }
+
+    @Test
+    public void evictsOldestGopWhenFull_andSurvivesWrapAround() {
+        // GOP 하나가 1000 바이트, 버퍼는 GOP 3.5 개 분량
+        final ReplayBuffer replay = new ReplayBuffer(3500, 1000, 60000000);
+        final int video = replay.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        replay.start();
+
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 95; i++) {
+            write(replay, video, info, i * FRAME_US, i % 10 == 0, 100);
+            assertTrue(replay.getBufferedBytes() <= 3500);
+        }
+
+        assertEquals(0, replay.getDroppedSampleCount());
+        assertEquals(35, replay.getBufferedSampleCount());
+
+        final RecordingWriter out = new RecordingWriter();
+        replay.save(out, 0);
+        assertEquals(Long.valueOf(6000000), out.pts.get(0));
+        assertTrue(out.keyFrames.get(0));
+        assertSamplesIntact(out);
+
+        // 버퍼보다 큰 샘플은 버리고 다음 키 프레임까지 영상도 버림
+        write(replay, video, info, 95 * FRAME_US, false, 4000);
+        write(replay, video, info, 96 * FRAME_US, false, 100);
+        assertEquals(2, replay.getDroppedSampleCount());
+    }
+
+    @Test
+    public void saving_pinsUnreadSamples_andDropsNewOnesInstead() {
+        final ReplayBuffer replay = new ReplayBuffer(3000, 1000, 60000000);
+        final int video = replay.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        replay.start();
+
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 30; i++) {
+            write(replay, video, info, i * FRAME_US, i % 10 == 0, 100);
+        }
+
+        // 첫 GOP 를 저장한 뒤 기록이 계속되어 버퍼가 넘침
+        final RecordingWriter out = new RecordingWriter() {
+            @Override
+            public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo sample) {
+                super.writeSampleData(trackIndex, buffer, sample);
+
+                if (pts.size() == 10) {
+                    final SampleInfo live = new SampleInfo();
+                    for (int i = 30; i < 60; i++) {
+                        write(replay, video, live, i * FRAME_US, i % 10 == 0, 100);
+                    }
+                }
+            }
+        };
+
+        assertEquals(30, replay.save(out, 0));
+        assertSamplesIntact(out);
+        assertEquals(Long.valueOf(0), out.pts.get(0));
+        assertEquals(Long.valueOf(2900000), out.pts.get(29));
+
+        // 이미 읽은 첫 GOP 만 버려서 10 개는 들어가고, 아직 읽지 않은 GOP 는 남기고 나머지를 버림
+        assertEquals(20, replay.getDroppedSampleCount());
+        assertEquals(1, replay.getEvictedGopCount());
+
+        // 저장이 끝나면 다시 GOP 를 버리면서 기록
+        final long dropped = replay.getDroppedSampleCount();
+        for (int i = 60; i < 80; i++) {
+            write(replay, video, info, i * FRAME_US, i % 10 == 0, 100);
+        }
+        assertEquals(dropped, replay.getDroppedSampleCount());
+    }
+
+    private static void write(ReplayBuffer replay, int track, SampleInfo info, long ptsUs, boolean keyFrame, int size) {
+        // 앞에 다른 데이터가 있는 버퍼에서도 offset 부터 복사하는지 확인
+        final ByteBuffer buffer = ByteBuffer.allocate(size + 3);
+        for (int i = 0; i < size; i++) {
+            buffer.put(3 + i, pattern(ptsUs, i));
+        }
+
+        info.set(3, size, ptsUs, keyFrame ? EncoderBackend.BUFFER_FLAG_KEY_FRAME : 0);
+        replay.writeSampleData(track, buffer, info);
+        assertEquals(0, buffer.position());
+    }
+
+    private static byte pattern(long ptsUs, int index) {
+        return (byte) (ptsUs / 1000 + index * 31);
+    }
+
+    private static void assertSamplesIntact(RecordingWriter out) {
+        for (int i = 0; i < out.data.size(); i++) {
+            final byte[] data = out.data.get(i);
+            for (int j = 0; j < data.length; j++) {
+                assertEquals(pattern(out.pts.get(i), j), data[j]);
+            }
+        }
+    }
+
+    private static class RecordingWriter implements ContainerWriter {
+        final List<TrackFormat> formats = new ArrayList<>();
+        final List<Integer> tracks = new ArrayList<>();
+        final List<Long> pts = new ArrayList<>();
+        final List<Boolean> keyFrames = new ArrayList<>();
+        final List<byte[]> data = new ArrayList<>();
+        boolean started;
+        boolean stopped;
+        boolean released;
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            formats.add(format);
+            return formats.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+            final byte[] bytes = new byte[info.size];
+            final ByteBuffer sample = buffer.duplicate();
+            sample.position(info.offset);
+            sample.get(bytes);
+
+            tracks.add(trackIndex);
+            pts.add(info.presentationTimeUs);
+            keyFrames.add(info.isKeyFrame());
+            data.add(bytes);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+import static org.junit.Assert.*;
+
+public class SampleMuxerTest {
+
+    @Test
+    public void startsWhenAllTracksReady_andStopsAfterLast() {
+        final RecordingWriter writer = new RecordingWriter();
+        final SampleMuxer muxer = new SampleMuxer(writer);
+
+        // 화면, 마이크, 두 번째 PCM 소스
+        final SampleSink screen = muxer.registerTrack();
+        final SampleSink mic = muxer.registerTrack();
+        final SampleSink pcm = muxer.registerTrack();
+
+        final TrackFormat video = TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 1280, 720);
+        final TrackFormat micFormat = TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1);
+        final TrackFormat pcmFormat = TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 48000, 2);
+
+        final int pcmIndex = pcm.addTrack(pcmFormat);
+        assertFalse(pcm.start());
+        final int screenIndex = screen.addTrack(video);
+        assertFalse(screen.start());
+        assertEquals(0, writer.startCount.get());
+
+        final int micIndex = mic.addTrack(micFormat);
+        assertTrue(mic.start());
+        assertTrue(screen.isStarted() && pcm.isStarted());
+        assertEquals(3, muxer.getReadyCount());
+
+        // 포맷을 받은 순서와 상관없이 등록 순서대로 추가
+        assertEquals(1, writer.startCount.get());
+        assertSame(video, writer.formats.get(0));
+        assertSame(micFormat, writer.formats.get(1));
+        assertSame(pcmFormat, writer.formats.get(2));
+
+        final SampleInfo info = new SampleInfo();
+        info.set(0, 4, 1000, 0);
+        pcm.writeSampleData(pcmIndex, ByteBuffer.allocate(4), info);
+        screen.writeSampleData(screenIndex, ByteBuffer.allocate(4), info);
+        mic.writeSampleData(micIndex, ByteBuffer.allocate(4), info);
+        assertEquals(Arrays.asList(2, 0, 1), writer.tracks);
+
+        // 한 트랙이 먼저 끝나도 다른 트랙은 계속 기록
+        mic.stop();
+        mic.writeSampleData(micIndex, ByteBuffer.allocate(4), info);
+        screen.writeSampleData(screenIndex, ByteBuffer.allocate(4), info);
+        assertEquals(Arrays.asList(2, 0, 1, 0), writer.tracks);
+
+        screen.stop();
+        assertFalse(writer.stopped);
+        pcm.stop();
+        pcm.stop();
+        assertTrue(writer.stopped && writer.released);
+        assertEquals(3, muxer.getStoppedCount());
+    }
+
+    @Test
+    public void trackStoppedBeforeFormat_doesNotHoldOthers() {
+        final RecordingWriter writer = new RecordingWriter();
+        final SampleMuxer muxer = new SampleMuxer(writer);
+        final SampleSink screen = muxer.registerTrack();
+        final SampleSink mic = muxer.registerTrack();
+
+        screen.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 1280, 720));
+        assertFalse(screen.start());
+
+        // 마이크를 열지 못해서 포맷 없이 끝남
+        mic.stop();
+        assertTrue(screen.isStarted());
+        assertEquals(1, writer.formats.size());
+        assertEquals(1, muxer.getRegisteredCount());
+
+        try {
+            muxer.registerTrack();
+            fail("registered after start");
+        }
+        catch (IllegalStateException expected) {
+        }
+
+        screen.stop();
+        assertTrue(writer.stopped && writer.released);
+    }
+
+    @Test
+    public void allTracksStoppedBeforeFormat_releasesWriterWithoutStart() {
+        final RecordingWriter writer = new RecordingWriter();
+        final SampleMuxer muxer = new SampleMuxer(writer);
+        final SampleSink screen = muxer.registerTrack();
+        final SampleSink mic = muxer.registerTrack();
+
+        // 권한을 받지 못해서 두 인코더 모두 포맷 없이 끝남
+        screen.stop();
+        assertFalse(writer.released);
+        mic.stop();
+        mic.stop();
+
+        assertTrue(writer.released);
+        assertTrue(muxer.isClosed());
+        assertFalse(writer.stopped);
+        assertFalse(muxer.isStarted());
+        assertEquals(0, writer.startCount.get());
+        assertEquals(0, muxer.getRegisteredCount());
+
+        try {
+            muxer.registerTrack();
+            fail("registered after release");
+        }
+        catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void concurrentStarts_startWriterOnce() throws InterruptedException {
+        final int count = 8;
+
+        for (int round = 0; round < 50; round++) {
+            final RecordingWriter writer = new RecordingWriter();
+            final SampleMuxer muxer = new SampleMuxer(writer);
+            final List<SampleSink> sinks = new ArrayList<>();
+
+            for (int i = 0; i < count; i++) {
+                sinks.add(muxer.registerTrack());
+            }
+
+            final CountDownLatch ready = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(count);
+            final AtomicInteger startedTrue = new AtomicInteger();
+
+            for (final SampleSink sink : sinks) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        sink.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+
+                        try {
+                            ready.await();
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+
+                        if (sink.start()) {
+                            startedTrue.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                }).start();
+            }
+
+            ready.countDown();
+            done.await();
+
+            assertEquals(1, writer.startCount.get());
+            assertEquals(count, writer.formats.size());
+            assertTrue(muxer.isStarted());
+            assertTrue(startedTrue.get() >= 1);
+        }
+    }
+
+    private static final class RecordingWriter implements ContainerWriter {
+        final List<TrackFormat> formats = Collections.synchronizedList(new ArrayList<TrackFormat>());
+        final List<Integer> tracks = new ArrayList<>();
+        final AtomicInteger startCount = new AtomicInteger();
+        volatile boolean stopped;
+        volatile boolean released;
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            formats.add(format);
+            return formats.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            startCount.incrementAndGet();
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+            tracks.add(trackIndex);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+}
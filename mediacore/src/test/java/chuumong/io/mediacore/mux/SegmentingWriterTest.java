@@ -0,0 +1,217 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+import static org.junit.Assert.*;
+
+public class SegmentingWriterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    @Test
+    public void rotatesOnKeyFrameAfterDuration_withoutDroppingSamples() {
+        final Factory factory = new Factory();
+        final List<Integer> finished = Collections.synchronizedList(new ArrayList<Integer>());
+        final SegmentingWriter writer = new SegmentingWriter(factory, 2000000, 0);
+        writer.setOnSegmentListener(new SegmentingWriter.OnSegmentListener() {
+            @Override
+            public void onSegmentFinished(int segmentIndex, long durationUs, long bytes) {
+                finished.add(segmentIndex);
+            }
+
+            @Override
+            public void onSegmentError(int segmentIndex, Exception e) {
+                fail(e.toString());
+            }
+        });
+
+        final int video = writer.addTrack(videoFormat());
+        final int audio = writer.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1));
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        // 10 fps, 1 초마다 키 프레임, 영상 프레임마다 오디오 하나
+        for (int i = 0; i < 50; i++) {
+            write(writer, video, info, i * 100000L, i % 10 == 0);
+            write(writer, audio, info, i * 100000L + 50000, false);
+        }
+
+        writer.stop();
+        writer.release();
+
+        // 0~2 초, 2~4 초, 4~5 초, 그리고 미리 열어 두었다가 지운 파일
+        assertEquals(4, factory.created.size());
+        assertEquals(Collections.singletonList(3), factory.discarded);
+        assertEquals(3, finished.size());
+
+        int samples = 0;
+        for (int i = 0; i < 3; i++) {
+            final RecordingWriter segment = factory.created.get(i);
+            assertTrue(segment.stopped && segment.released);
+            assertEquals(2, segment.formats.size());
+            assertNotNull(segment.formats.get(0).getCsd0());
+
+            // 파일마다 영상 키 프레임으로 시작
+            assertEquals(0, segment.tracks.get(0).intValue());
+            assertTrue(segment.keyFrames.get(0));
+            samples += segment.tracks.size();
+        }
+
+        assertEquals(100, samples);
+        assertEquals(40, factory.created.get(0).tracks.size());
+        assertEquals(Long.valueOf(2000000), factory.created.get(1).pts.get(0));
+        assertEquals(20, factory.created.get(2).tracks.size());
+    }
+
+    @Test
+    public void rotatesOnSize_andForwardsCodecConfig() {
+        final Factory factory = new Factory();
+        final SegmentingWriter writer = new SegmentingWriter(factory, 0, 300);
+        final int video = writer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480));
+        writer.start();
+
+        // 포맷에 없던 SPS / PPS 를 코덱이 샘플로 내보내면 다음 파일의 포맷에 넣음
+        final SampleInfo info = new SampleInfo();
+        final ByteBuffer config = ByteBuffer.allocate(SPS.length + PPS.length);
+        config.put(SPS).put(PPS).flip();
+        info.set(0, config.remaining(), 0, EncoderBackend.BUFFER_FLAG_CODEC_CONFIG);
+        writer.writeSampleData(video, config, info);
+
+        for (int i = 0; i < 10; i++) {
+            write(writer, video, info, i * 33333L, i % 2 == 0);
+        }
+        writer.stop();
+        writer.release();
+
+        // 샘플 100 바이트, 300 바이트가 넘은 뒤의 키 프레임에서 나눔
+        assertEquals(4, factory.created.get(0).tracks.size());
+        assertEquals(4, factory.created.get(1).tracks.size());
+        assertEquals(2, factory.created.get(2).tracks.size());
+
+        final TrackFormat format = factory.created.get(1).formats.get(0);
+        assertEquals(SPS.length, format.getCsd0().remaining());
+        assertEquals(0x67, format.getCsd0().get(4));
+        assertEquals(PPS.length, format.getCsd1().remaining());
+        assertEquals(0x68, format.getCsd1().get(4));
+    }
+
+    @Test
+    public void openFailure_keepsWritingCurrentSegment() {
+        final Factory factory = new Factory();
+        factory.failIndex = 1;
+        final List<Integer> errors = Collections.synchronizedList(new ArrayList<Integer>());
+        final SegmentingWriter writer = new SegmentingWriter(factory, 1000000, 0);
+        writer.setOnSegmentListener(new SegmentingWriter.OnSegmentListener() {
+            @Override
+            public void onSegmentFinished(int segmentIndex, long durationUs, long bytes) {
+            }
+
+            @Override
+            public void onSegmentError(int segmentIndex, Exception e) {
+                errors.add(segmentIndex);
+            }
+        });
+
+        final int video = writer.addTrack(videoFormat());
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 30; i++) {
+            write(writer, video, info, i * 100000L, i % 10 == 0);
+        }
+        writer.stop();
+        writer.release();
+
+        assertEquals(Collections.singletonList(1), errors);
+        // 1 초에 넘어가지 못하고 2 초 키 프레임에서 다시 열어 둔 파일로 넘어감
+        assertEquals(20, factory.created.get(0).tracks.size());
+        assertEquals(10, factory.created.get(1).tracks.size());
+        assertEquals(2, factory.created.get(1).index);
+    }
+
+    private static TrackFormat videoFormat() {
+        final TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480);
+        format.setCsd0(ByteBuffer.wrap(SPS));
+        format.setCsd1(ByteBuffer.wrap(PPS));
+        return format;
+    }
+
+    private static void write(SegmentingWriter writer, int track, SampleInfo info, long ptsUs, boolean keyFrame) {
+        info.set(0, 100, ptsUs, keyFrame ? EncoderBackend.BUFFER_FLAG_KEY_FRAME : 0);
+        writer.writeSampleData(track, ByteBuffer.allocate(100), info);
+    }
+
+    private static final class Factory implements SegmentingWriter.SegmentFactory {
+        final List<RecordingWriter> created = Collections.synchronizedList(new ArrayList<RecordingWriter>());
+        final List<Integer> discarded = Collections.synchronizedList(new ArrayList<Integer>());
+        int failIndex = -1;
+
+        @Override
+        public ContainerWriter create(int segmentIndex) throws IOException {
+            if (segmentIndex == failIndex) {
+                throw new IOException("no space");
+            }
+
+            final RecordingWriter writer = new RecordingWriter(segmentIndex);
+            created.add(writer);
+            return writer;
+        }
+
+        @Override
+        public void discard(int segmentIndex, ContainerWriter writer) {
+            discarded.add(segmentIndex);
+        }
+    }
+
+    private static final class RecordingWriter implements ContainerWriter {
+        final int index;
+        final List<TrackFormat> formats = new ArrayList<>();
+        final List<Integer> tracks = new ArrayList<>();
+        final List<Long> pts = new ArrayList<>();
+        final List<Boolean> keyFrames = new ArrayList<>();
+        volatile boolean stopped;
+        volatile boolean released;
+
+        RecordingWriter(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            formats.add(format);
+            return formats.size() - 1;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+            tracks.add(trackIndex);
+            pts.add(info.presentationTimeUs);
+            keyFrames.add(info.isKeyFrame());
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import chuumong.io.mediacore.codec.EncoderBackend;
+import chuumong.io.mediacore.codec.SampleInfo;
+import chuumong.io.mediacore.codec.TrackFormat;
+
+import static org.junit.Assert.*;
+
+public class StreamingWriterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    // AAC-LC, 44100Hz, 모노
+    private static final byte[] ASC = {0x12, 0x08};
+
+    @Test
+    public void stream_isReceivedAsMpegTs() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final Receiver receiver = new Receiver(server);
+        receiver.start();
+
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        socket.setTcpNoDelay(true);
+
+        final StreamingWriter writer = new StreamingWriter(socket.getOutputStream());
+        final int video = writer.addTrack(videoFormat());
+        final int audio = writer.addTrack(audioFormat());
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        // 첫 키 프레임 전의 프레임은 보내지 않음
+        writeFrame(writer, video, info, 0x41, 0, 0);
+        writeFrame(writer, video, info, 0x65, 1000, EncoderBackend.BUFFER_FLAG_KEY_FRAME);
+        writeFrame(writer, audio, info, 0x21, 2000, 0);
+        // 184 바이트보다 큰 프레임은 여러 패킷으로 나뉨
+        final ByteBuffer large = ByteBuffer.allocate(1000);
+        large.put(new byte[]{0, 0, 0, 1, 0x41});
+        for (int i = 5; i < 1000; i++) {
+            large.put(i, (byte) i);
+        }
+        info.set(0, 1000, 41000, 0);
+        writer.writeSampleData(video, large, info);
+
+        writer.stop();
+        writer.release();
+        socket.close();
+
+        final byte[] ts = receiver.await();
+        server.close();
+
+        assertEquals(0, ts.length % TsPacketizer.PACKET_SIZE);
+        assertEquals(1, writer.getDroppedFrameCount());
+        assertEquals(ts.length, writer.getSentBytes());
+
+        final Map<Integer, List<byte[]>> pes = demux(ts);
+
+        // 시작할 때와 키 프레임 앞에 PAT / PMT
+        assertEquals(2, pes.get(TsPacketizer.PID_PAT).size());
+        assertEquals(2, pes.get(TsPacketizer.PID_PMT).size());
+
+        final List<byte[]> videoPes = pes.get(TsPacketizer.PID_VIDEO);
+        assertEquals(2, videoPes.size());
+
+        final byte[] key = videoPes.get(0);
+        assertEquals(0xE0, key[3] & 0xFF);
+        assertEquals(90000 + 90, readPts(key));
+        // PES 헤더 뒤에 AUD, SPS, PPS, 프레임 순서
+        final byte[] expected = concat(new byte[]{0, 0, 0, 1, 9, (byte) 0xF0}, SPS, PPS, new byte[]{0, 0, 0, 1, 0x65, 0x65, 0x65, 0x65});
+        assertArrayEquals(expected, slice(key, 14, key.length));
+
+        final byte[] second = videoPes.get(1);
+        assertEquals(90000 + 3690, readPts(second));
+        assertEquals(14 + 6 + 1000, second.length);
+        assertEquals((byte) 999, second[second.length - 1]);
+
+        final byte[] audioPes = pes.get(TsPacketizer.PID_AUDIO).get(0);
+        assertEquals(0xC0, audioPes[3] & 0xFF);
+        // ADTS 헤더: 동기 워드, AAC-LC, 44100Hz(4), 모노, 프레임 길이 7 + 8
+        assertEquals(0xFF, audioPes[14] & 0xFF);
+        assertEquals(0xF1, audioPes[15] & 0xFF);
+        assertEquals((1 << 6) | (4 << 2), audioPes[16] & 0xFF);
+        assertEquals(15, ((audioPes[17] & 0x03) << 11) | ((audioPes[18] & 0xFF) << 3) | ((audioPes[19] & 0xFF) >> 5));
+    }
+
+    @Test
+    public void congestion_dropsNonReferenceFramesFirst() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        // 받는 쪽이 멈춘 소켓처럼 release 전까지 쓰기가 막힘
+        final OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                received.write(b, off, len);
+            }
+        };
+
+        final StreamingWriter writer = new StreamingWriter(stalled, TsPacketizer.PACKET_SIZE * 8);
+        final int video = writer.addTrack(videoFormat());
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        writeFrame(writer, video, info, 0x65, 0, EncoderBackend.BUFFER_FLAG_KEY_FRAME);
+        // PAT / PMT + 키 프레임으로 버퍼가 절반 넘게 참, 참조되지 않는 프레임(nal_ref_idc 0)만 버림
+        writeFrame(writer, video, info, 0x01, 40000, 0);
+        assertEquals(1, writer.getDroppedNonReferenceFrameCount());
+        writeFrame(writer, video, info, 0x41, 80000, 0);
+        writeFrame(writer, video, info, 0x41, 120000, 0);
+        assertEquals(1, writer.getDroppedFrameCount());
+
+        // 버퍼가 가득 차면 참조 프레임도 버리고 다음 키 프레임까지 영상을 버림
+        for (int i = 0; i < 4; i++) {
+            writeFrame(writer, video, info, 0x41, 160000 + i * 40000, 0);
+        }
+        assertTrue(writer.getDroppedFrameCount() > 1);
+        final long dropped = writer.getDroppedFrameCount();
+
+        release.countDown();
+        waitUntilSent(writer);
+
+        writeFrame(writer, video, info, 0x41, 400000, 0);
+        assertEquals(dropped + 1, writer.getDroppedFrameCount());
+        writeFrame(writer, video, info, 0x65, 440000, EncoderBackend.BUFFER_FLAG_KEY_FRAME);
+        assertEquals(dropped + 1, writer.getDroppedFrameCount());
+
+        writer.stop();
+        writer.release();
+
+        final byte[] ts = received.toByteArray();
+        assertEquals(0, ts.length % TsPacketizer.PACKET_SIZE);
+
+        // 버린 프레임이 있어도 연속성 카운터가 끊기지 않음
+        final List<byte[]> videoPes = demux(ts).get(TsPacketizer.PID_VIDEO);
+        assertEquals(0x65, videoPes.get(0)[14 + 6 + SPS.length + PPS.length + 4] & 0xFF);
+        assertEquals(0x65, videoPes.get(videoPes.size() - 1)[14 + 6 + SPS.length + PPS.length + 4] & 0xFF);
+    }
+
+    @Test(timeout = 5000)
+    public void stop_closesStalledStreamAfterTimeout() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        // 받는 쪽이 읽지 않는 소켓처럼 닫힐 때까지 쓰기가 막힘
+        final OutputStream blocked = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    closed.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                throw new IOException("stream closed");
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+
+        final StreamingWriter writer = new StreamingWriter(blocked);
+        writer.setStopTimeout(200);
+        final int video = writer.addTrack(videoFormat());
+        writer.start();
+
+        final SampleInfo info = new SampleInfo();
+        writeFrame(writer, video, info, 0x65, 0, EncoderBackend.BUFFER_FLAG_KEY_FRAME);
+
+        final long start = System.nanoTime();
+        writer.stop();
+        final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("stop took " + elapsedMs + "ms", elapsedMs >= 150 && elapsedMs < 2000);
+        assertEquals(0, closed.getCount());
+        assertNotNull(writer.getSendError());
+        assertEquals(0, writer.getSentBytes());
+
+        writer.release();
+    }
+
+    private static void waitUntilSent(StreamingWriter writer) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (writer.getBufferedBytes() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertEquals(0, writer.getBufferedBytes());
+    }
+
+    private static TrackFormat videoFormat() {
+        final TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIME_VIDEO_AVC, 640, 480);
+        format.setCsd0(ByteBuffer.wrap(SPS));
+        format.setCsd1(ByteBuffer.wrap(PPS));
+        return format;
+    }
+
+    private static TrackFormat audioFormat() {
+        final TrackFormat format = TrackFormat.createAudioFormat(TrackFormat.MIME_AUDIO_AAC, 44100, 1);
+        format.setCsd0(ByteBuffer.wrap(ASC));
+        return format;
+    }
+
+    /**
+     * 시작 코드 + 같은 바이트 4 개인 샘플, 영상은 nal 이 NAL 헤더
+     */
+    private static void writeFrame(StreamingWriter writer, int track, SampleInfo info, int nal, long timeUs, int flags) {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, (byte) nal, (byte) nal, (byte) nal, (byte) nal});
+        info.set(0, buffer.capacity(), timeUs, flags);
+        writer.writeSampleData(track, buffer, info);
+    }
+
+    /**
+     * PID 별로 payload_unit_start 부터 이어 붙여 PES / 섹션을 복원, 패킷 형식과 연속성 카운터도 확인
+     */
+    private static Map<Integer, List<byte[]>> demux(byte[] ts) {
+        final Map<Integer, List<byte[]>> units = new HashMap<>();
+        final Map<Integer, ByteArrayOutputStream> current = new HashMap<>();
+        final Map<Integer, Integer> continuity = new HashMap<>();
+
+        for (int offset = 0; offset < ts.length; offset += TsPacketizer.PACKET_SIZE) {
+            assertEquals(0x47, ts[offset] & 0xFF);
+
+            final boolean unitStart = (ts[offset + 1] & 0x40) != 0;
+            final int pid = ((ts[offset + 1] & 0x1F) << 8) | (ts[offset + 2] & 0xFF);
+            final int control = (ts[offset + 3] >> 4) & 0x03;
+            final int cc = ts[offset + 3] & 0x0F;
+
+            final Integer last = continuity.get(pid);
+            if (last != null) {
+                assertEquals("continuity pid " + pid, (last + 1) & 0x0F, cc);
+            }
+            continuity.put(pid, cc);
+
+            int payload = offset + 4;
+            if (control == 3) {
+                payload += 1 + (ts[offset + 4] & 0xFF);
+            }
+
+            if (unitStart) {
+                final ByteArrayOutputStream previous = current.get(pid);
+                if (previous != null) {
+                    add(units, pid, previous.toByteArray());
+                }
+                current.put(pid, new ByteArrayOutputStream());
+
+                if (pid == TsPacketizer.PID_PAT || pid == TsPacketizer.PID_PMT) {
+                    // pointer field 뒤의 섹션, CRC 확인
+                    final int section = payload + 1;
+                    final int length = ((ts[section + 1] & 0x0F) << 8) | (ts[section + 2] & 0xFF);
+                    final int crcAt = section + 3 + length - 4;
+                    final int crc = ((ts[crcAt] & 0xFF) << 24) | ((ts[crcAt + 1] & 0xFF) << 16) | ((ts[crcAt + 2] & 0xFF) << 8) | (ts[crcAt + 3] & 0xFF);
+                    assertEquals(TsPacketizer.crc32(ts, section, crcAt), crc);
+                }
+            }
+
+            current.get(pid).write(ts, payload, offset + TsPacketizer.PACKET_SIZE - payload);
+        }
+
+        for (Map.Entry<Integer, ByteArrayOutputStream> entry : current.entrySet()) {
+            add(units, entry.getKey(), entry.getValue().toByteArray());
+        }
+
+        return units;
+    }
+
+    private static void add(Map<Integer, List<byte[]>> units, int pid, byte[] unit) {
+        List<byte[]> list = units.get(pid);
+        if (list == null) {
+            list = new ArrayList<>();
+            units.put(pid, list);
+        }
+        list.add(unit);
+    }
+
+    private static long readPts(byte[] pes) {
+        return ((long) (pes[9] & 0x0E) << 29) | ((pes[10] & 0xFF) << 22) | ((pes[11] & 0xFE) << 14) | ((pes[12] & 0xFF) << 7) | ((pes[13] & 0xFE) >> 1);
+    }
+
+    private static byte[] slice(byte[] data, int from, int to) {
+        final byte[] result = new byte[to - from];
+        System.arraycopy(data, from, result, 0, result.length);
+        return result;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Receiver extends Thread {
+        private final ServerSocket server;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Receiver(ServerSocket server) {
+            this.server = server;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Socket socket = server.accept();
+                final InputStream in = socket.getInputStream();
+                final byte[] buffer = new byte[4096];
+                int read;
+
+                while ((read = in.read(buffer)) > 0) {
+                    received.write(buffer, 0, read);
+                }
+
+                socket.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            finally {
+                done.countDown();
+            }
+        }
+
+        byte[] await() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            return received.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ThroughputMonitorTest {
+
+    private static final long MS = 1000000L;
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void fastStorage_raisesNothing() {
+        final ThroughputMonitor monitor = new ThroughputMonitor(1000 * MS);
+        final List<long[]> events = listen(monitor);
+
+        // 초당 1MB, 기록은 10ms 씩
+        for (int i = 0; i < 4; i++) {
+            monitor.onIncoming(MB / 2, i * 500 * MS);
+            monitor.onWrite(MB / 2, 10 * MS, i * 500 * MS + 10 * MS);
+        }
+
+        assertTrue(events.isEmpty());
+        assertEquals(50 * MB, monitor.getBytesPerSec());
+        assertEquals(0, monitor.getSlowCount());
+    }
+
+    @Test
+    public void slowWrites_raiseEventWithMeasuredRates() {
+        final ThroughputMonitor monitor = new ThroughputMonitor(1000 * MS);
+        final List<long[]> events = listen(monitor);
+
+        // 1.6 초 동안 3MB 가 들어왔는데 1MB 에 800ms 씩 걸려서 2MB 만 기록
+        monitor.onIncoming(MB, 0);
+        monitor.onWrite(MB, 800 * MS, 800 * MS);
+        monitor.onIncoming(MB, 500 * MS);
+        monitor.onIncoming(MB, 1000 * MS);
+        assertTrue(events.isEmpty());
+
+        monitor.onWrite(MB, 800 * MS, 1600 * MS);
+
+        assertEquals(1, events.size());
+        assertEquals(MB * 1000 / 800, events.get(0)[0]);
+        assertEquals(3 * MB * 1000 / 1600, events.get(0)[1]);
+        assertEquals(800000, events.get(0)[2]);
+        assertEquals(0, events.get(0)[3]);
+        assertEquals(1, monitor.getSlowCount());
+    }
+
+    @Test
+    public void stall_raisesEventEvenWhenWritesAreFast() {
+        final ThroughputMonitor monitor = new ThroughputMonitor(1000 * MS);
+        final List<long[]> events = listen(monitor);
+
+        monitor.onIncoming(MB, 0);
+        monitor.onWrite(MB, MS, MS);
+        monitor.onStall(5 * MS, 600 * MS);
+        monitor.onWrite(MB, MS, 1200 * MS);
+
+        assertEquals(1, events.size());
+        assertEquals(5000, events.get(0)[3]);
+
+        // 다음 window 는 새로 셈
+        monitor.onWrite(MB, MS, 2400 * MS);
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void configuredRate_isRequiredEvenWithLittleIncoming() {
+        final ThroughputMonitor monitor = new ThroughputMonitor(1000 * MS);
+        final List<long[]> events = listen(monitor);
+        monitor.setRequiredBytesPerSec(4 * MB);
+
+        // 녹화 설정은 초당 4MB 인데 장치는 초당 2MB 밖에 쓰지 못함
+        monitor.onIncoming(MB / 4, 0);
+        monitor.onWrite(MB / 4, 125 * MS, 1000 * MS);
+
+        assertEquals(1, events.size());
+        assertEquals(2 * MB, events.get(0)[0]);
+        assertEquals(4 * MB, events.get(0)[1]);
+    }
+
+    @Test
+    public void slowSync_countsAsWriteLatency() {
+        final ThroughputMonitor monitor = new ThroughputMonitor(1000 * MS);
+        final List<long[]> events = listen(monitor);
+        monitor.setRequiredBytesPerSec(4 * MB);
+
+        // 기록만 보면 초당 100MB 지만 fsync 한 번이 900ms 동안 막힘
+        monitor.onIncoming(MB, 0);
+        monitor.onWrite(MB, 10 * MS, 10 * MS);
+        monitor.onIncoming(MB, 500 * MS);
+        monitor.onWrite(MB, 10 * MS, 510 * MS);
+        assertTrue(events.isEmpty());
+
+        monitor.onSync(900 * MS, 1410 * MS);
+
+        assertEquals(1, events.size());
+        assertEquals(2 * MB * 1000 / 920, events.get(0)[0]);
+        assertEquals(900000, events.get(0)[2]);
+    }
+
+    private static List<long[]> listen(ThroughputMonitor monitor) {
+        final List<long[]> events = new ArrayList<>();
+        monitor.setOnStorageSlowListener(new ThroughputMonitor.OnStorageSlowListener() {
+            @Override
+            public void onStorageSlow(long bytesPerSec, long requiredBytesPerSec, long maxLatencyUs, long stallUs) {
+                events.add(new long[]{bytesPerSec, requiredBytesPerSec, maxLatencyUs, stallUs});
+            }
+        });
+        return events;
+    }
+}
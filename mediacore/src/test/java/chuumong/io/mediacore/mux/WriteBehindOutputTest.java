@@ -0,0 +1,139 @@
+package chuumong.io.mediacore.mux;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindOutputTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("writebehind", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void appendsAndPatchesInOrder_andTruncatesPreallocation() throws IOException {
+        final WriteBehindOutput output = new WriteBehindOutput(file, 64, 4);
+        output.setPreallocateBytes(1000);
+
+        // 버퍼 세 개를 한 번에 넘기고, 반환 뒤에 같은 버퍼를 다시 씀
+        final ByteBuffer[] buffers = {ByteBuffer.allocateDirect(37), ByteBuffer.allocate(5), ByteBuffer.allocate(90)};
+        int total = 0;
+
+        for (int i = 0; i < 20; i++) {
+            for (ByteBuffer buffer : buffers) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    buffer.put(pattern(total++));
+                }
+                buffer.flip();
+            }
+
+            output.append(buffers, 0, buffers.length);
+
+            for (ByteBuffer buffer : buffers) {
+                assertFalse(buffer.hasRemaining());
+            }
+        }
+
+        output.sync();
+        assertEquals(total, output.getWrittenBytes());
+        // 파일은 미리 늘려 둠
+        assertEquals(3000, file.length());
+
+        final ByteBuffer patch = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        output.writeAt(patch, 10);
+        output.close();
+
+        final byte[] data = readFile();
+        assertEquals(total, data.length);
+
+        for (int i = 0; i < total; i++) {
+            final byte expected = i >= 10 && i < 14 ? (byte) (i - 9) : pattern(i);
+            assertEquals("at " + i, expected, data[i]);
+        }
+    }
+
+    @Test
+    public void syncsOnlyOnIntervalOrRequest() throws IOException {
+        final WriteBehindOutput output = new WriteBehindOutput(file, 1024, 8);
+        output.setSyncInterval(60000);
+
+        final ByteBuffer[] buffers = {ByteBuffer.allocate(300)};
+        for (int i = 0; i < 100; i++) {
+            buffers[0].clear();
+            output.append(buffers, 0, 1);
+        }
+
+        assertEquals(0, output.getSyncCount());
+
+        output.sync();
+        assertEquals(30000, output.getWrittenBytes());
+        assertEquals(1, output.getSyncCount());
+        assertTrue(output.getWriteCount() <= 100);
+
+        output.close();
+        assertEquals(2, output.getSyncCount());
+        assertEquals(30000, file.length());
+    }
+
+    @Test
+    public void smallPool_blocksAppendUntilWritten() throws IOException {
+        final WriteBehindOutput output = new WriteBehindOutput(file, 16, 2);
+        output.setPreallocateBytes(0);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(10000);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(pattern(i));
+        }
+        buffer.flip();
+
+        output.append(new ByteBuffer[]{buffer}, 0, 1);
+        output.close();
+
+        final byte[] data = readFile();
+        assertEquals(10000, data.length);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(pattern(i), data[i]);
+        }
+
+        try {
+            output.append(new ByteBuffer[]{ByteBuffer.allocate(1)}, 0, 1);
+            fail("closed output accepted data");
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    private static byte pattern(int index) {
+        return (byte) (index * 7 + index / 251);
+    }
+
+    private byte[] readFile() throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+
+        try {
+            final byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package chuumong.io.mediacore.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void record_countsPowerOfTwoBuckets() {
+        final Histogram histogram = new Histogram(8);
+
+        histogram.record(-5);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        histogram.record(1000);
+
+        assertEquals(2, histogram.getCount(0));
+        assertEquals(2, histogram.getCount(1));
+        // 128 이상은 마지막 구간
+        assertEquals(1, histogram.getCount(7));
+        assertEquals(Long.MAX_VALUE, histogram.getBucketUpperBound(7));
+        assertEquals(5, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(201.2, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void percentile_returnsBucketUpperBound() {
+        final Histogram histogram = new Histogram();
+
+        for (int i = 0; i < 99; i++) {
+            histogram.record(40000);
+        }
+        histogram.record(90000);
+
+        assertEquals(65536, histogram.getPercentile(50));
+        assertEquals(65536, histogram.getPercentile(99));
+        assertEquals(90000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getPercentile(50));
+    }
+}
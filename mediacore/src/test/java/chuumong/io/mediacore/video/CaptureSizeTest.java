@@ -0,0 +1,82 @@
+package chuumong.io.mediacore.video;
+
+import org.junit.Test;
+
+import chuumong.io.mediacore.codec.CodecCapabilityCache;
+
+import static org.junit.Assert.*;
+
+public class CaptureSizeTest {
+
+    @Test
+    public void scale_keepsAspectWithoutLetterbox() {
+        final CaptureSize size = CaptureSize.compute(1440, 2560, 0, 0, 0.5f, null);
+
+        assertEquals(720, size.width);
+        assertEquals(1280, size.height);
+        assertFalse(size.isLetterboxed());
+        assertEquals(320, size.scaleDensity(640));
+    }
+
+    @Test
+    public void requestSize_followsSourceOrientation() {
+        // 세로 화면에 1280x720 을 요청하면 720x1280 으로 녹화
+        final CaptureSize size = CaptureSize.compute(1080, 1920, 1280, 720, 1f, null);
+
+        assertEquals(720, size.width);
+        assertEquals(1280, size.height);
+        assertFalse(size.isLetterboxed());
+    }
+
+    @Test
+    public void requestSize_letterboxesDifferentAspect() {
+        // 18.5:9 화면을 16:9 로 녹화하면 위 / 아래가 남음
+        final CaptureSize size = CaptureSize.compute(2960, 1440, 1280, 720, 1f, null);
+
+        assertEquals(1280, size.width);
+        assertEquals(720, size.height);
+        assertTrue(size.isLetterboxed());
+        assertEquals(1280, size.contentWidth);
+        assertEquals(622, size.contentHeight);
+        assertEquals(0, size.contentX);
+        assertEquals(49, size.contentY);
+    }
+
+    @Test
+    public void requestSize_neverUpscalesContent() {
+        final CaptureSize size = CaptureSize.compute(640, 360, 1280, 720, 1f, null);
+
+        assertEquals(1280, size.width);
+        assertEquals(640, size.contentWidth);
+        assertEquals(360, size.contentHeight);
+        assertEquals(320, size.contentX);
+        assertEquals(180, size.contentY);
+    }
+
+    @Test
+    public void codec_limitsAndAlignsSize() {
+        final CodecCapabilityCache.Entry codec = new CodecCapabilityCache.Entry("video/avc", "OMX.vendor.avc.encoder")
+                .setSizeRange(64, 1920, 64, 1088)
+                .setAlignment(16, 16);
+
+        // 긴 변 2560 이 1920 으로 줄고, 짧은 변 1080 은 16 단위로 내림
+        final CaptureSize size = CaptureSize.compute(1440, 2560, 0, 0, 1f, codec);
+
+        assertEquals(1072, size.width);
+        assertEquals(1920, size.height);
+        assertEquals(0, size.width % 16);
+        assertEquals(1072, size.contentWidth);
+        assertEquals(1906, size.contentHeight);
+        assertEquals(7, size.contentY);
+    }
+
+    @Test
+    public void oddSource_isRoundedToEven() {
+        final CaptureSize size = CaptureSize.compute(1081, 2341, 0, 0, 1f, null);
+
+        assertEquals(1080, size.width);
+        assertEquals(2340, size.height);
+        assertEquals(0, size.contentWidth % 2);
+        assertEquals(0, size.contentHeight % 2);
+    }
+}
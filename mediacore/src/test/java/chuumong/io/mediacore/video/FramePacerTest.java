@@ -0,0 +1,69 @@
+package chuumong.io.mediacore.video;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FramePacerTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void wakeupJitter_doesNotDriftFrameRate() {
+        final FramePacer pacer = new FramePacer(30);
+        final Random random = new Random(1);
+
+        long now = 0;
+        pacer.resync(now);
+
+        // 슬롯보다 0 ~ 5ms 늦게 깨어나는 루프를 10초 동안 실행
+        while (now < 10000 * MS) {
+            now += pacer.getWaitNs(now) + random.nextInt(5) * MS;
+
+            assertTrue(pacer.isDue(now));
+            pacer.onFrameEmitted(pacer.onSlot(now), false);
+        }
+
+        // 매번 깨어난 시각 + 간격으로 기다렸다면 300 프레임보다 한참 적음
+        assertEquals(301, pacer.getFrameCount(), 1);
+        assertEquals(0, pacer.getMissedSlotCount());
+        assertEquals(30f, pacer.getActualFrameRate(), 0.5f);
+        // 타임스탬프는 슬롯 시각이므로 간격이 일정
+        assertTrue(pacer.getJitterHistogram().getMax() <= 1);
+        assertTrue(pacer.getLatenessHistogram().getMax() >= 3000);
+    }
+
+    @Test
+    public void overrun_skipsMissedSlots() {
+        final FramePacer pacer = new FramePacer(25);
+        pacer.resync(0);
+
+        assertEquals(0, pacer.onSlot(0));
+
+        // 100ms 늦게 깨어나면 지나간 슬롯 40, 80 중 80 만 처리하고 40 은 건너뜀
+        assertEquals(80 * MS, pacer.onSlot(100 * MS));
+        assertEquals(1, pacer.getMissedSlotCount());
+        assertEquals(20 * MS, pacer.getWaitNs(100 * MS));
+        assertFalse(pacer.isDue(110 * MS));
+        assertEquals(120 * MS, pacer.onSlot(120 * MS));
+    }
+
+    @Test
+    public void resync_ignoresIdleGap() {
+        final FramePacer pacer = new FramePacer(25);
+        pacer.resync(0);
+        pacer.onFrameEmitted(pacer.onSlot(0), false);
+        pacer.onFrameEmitted(pacer.onSlot(40 * MS), true);
+
+        // 유휴 상태로 1초를 쉬고 돌아온 경우
+        pacer.resync(1040 * MS);
+        pacer.onFrameEmitted(pacer.onSlot(1040 * MS), false);
+
+        assertEquals(0, pacer.getMissedSlotCount());
+        assertEquals(1, pacer.getIntervalHistogram().getCount());
+        assertEquals(3, pacer.getFrameCount());
+        assertEquals(1, pacer.getDuplicatedFrameCount());
+    }
+}
@@ -0,0 +1,54 @@
+package chuumong.io.mediacore.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IdleFrameFilterTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void staticScreen_emitsOnlyKeepAliveFrames() {
+        final IdleFrameFilter filter = new IdleFrameFilter(25, 1000, 0);
+
+        assertTrue(filter.onTick(0, false));
+
+        // 40ms 마다 깨어나도 화면이 그대로면 1초에 한 번만 내보냄
+        int emitted = 0;
+        for (long t = 40 * MS; t <= 3000 * MS; t += 40 * MS) {
+            if (filter.onTick(t, false)) {
+                emitted++;
+            }
+        }
+
+        assertEquals(3, emitted);
+        assertEquals(3, filter.getKeepAliveFrames());
+        assertEquals(4, filter.getEmittedFrames());
+        // 3초 동안 25fps 면 75 프레임, 그 중 3 프레임만 인코딩
+        assertEquals(72, filter.getSkippedFrames());
+    }
+
+    @Test
+    public void changedFrames_areAlwaysEmitted() {
+        final IdleFrameFilter filter = new IdleFrameFilter(25, 1000, 0);
+
+        for (long t = 0; t < 1000 * MS; t += 40 * MS) {
+            assertTrue(filter.onTick(t, true));
+        }
+
+        assertEquals(0, filter.getSkippedFrames());
+        assertEquals(0, filter.getKeepAliveFrames());
+    }
+
+    @Test
+    public void minFrameRate_shortensKeepAlive() {
+        final IdleFrameFilter filter = new IdleFrameFilter(30, 1000, 5);
+
+        assertEquals(200 * MS, filter.getMaxIdleNs());
+        assertTrue(filter.onTick(0, false));
+        assertEquals(150 * MS, filter.getIdleTimeoutNs(50 * MS));
+        assertFalse(filter.onTick(199 * MS, false));
+        assertTrue(filter.onTick(200 * MS, false));
+    }
+}
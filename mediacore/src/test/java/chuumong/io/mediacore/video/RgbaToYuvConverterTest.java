@@ -0,0 +1,207 @@
+package chuumong.io.mediacore.video;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class RgbaToYuvConverterTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    @Test
+    public void convert_knownColors() {
+        // 왼쪽 2x2 는 흰색, 오른쪽 2x2 는 빨간색, 행마다 8 바이트 패딩
+        final int rowStride = WIDTH * 4 + 8;
+        final ByteBuffer src = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int i = y * rowStride + x * 4;
+                final boolean white = x < 2;
+                src.put(i, (byte) 255);
+                src.put(i + 1, (byte) (white ? 255 : 0));
+                src.put(i + 2, (byte) (white ? 255 : 0));
+                src.put(i + 3, (byte) 255);
+            }
+            // 패딩은 변환 결과에 영향이 없어야 함
+            for (int i = WIDTH * 4; i < rowStride; i++) {
+                src.put(y * rowStride + i, (byte) 0x55);
+            }
+        }
+
+        final RgbaToYuvConverter converter = new RgbaToYuvConverter(WIDTH, HEIGHT, RgbaToYuvConverter.Layout.I420);
+        final ByteBuffer dst = ByteBuffer.allocate(converter.getFrameSize());
+        converter.convert(src, rowStride, dst);
+
+        assertEquals(0, src.position());
+        assertEquals(12, dst.limit());
+
+        final byte[] yuv = new byte[12];
+        dst.get(yuv);
+
+        // Y: 흰색 235, 빨간색 82
+        assertArrayEquals(new int[]{235, 235, 82, 82, 235, 235, 82, 82, 128, 90, 128, 240}, toUnsigned(yuv));
+    }
+
+    @Test
+    public void nv12_interleavesChroma() {
+        final ByteBuffer src = ByteBuffer.allocate(WIDTH * 4 * HEIGHT);
+
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            // 파란색
+            src.put(i * 4 + 2, (byte) 255);
+            src.put(i * 4 + 3, (byte) 255);
+        }
+
+        final RgbaToYuvConverter converter = new RgbaToYuvConverter(WIDTH, HEIGHT, RgbaToYuvConverter.Layout.NV12);
+        final ByteBuffer dst = ByteBuffer.allocateDirect(converter.getFrameSize());
+        converter.convert(src, WIDTH * 4, dst);
+
+        final byte[] yuv = new byte[12];
+        dst.get(yuv);
+
+        assertArrayEquals(new int[]{41, 41, 41, 41, 41, 41, 41, 41, 240, 110, 240, 110}, toUnsigned(yuv));
+    }
+
+    @Test
+    public void matrixAndRange_changeCoefficients() {
+        // 회색 (128, 128, 128) 과 초록색 (0, 255, 0) 2x2 블록
+        final byte[] src = new byte[WIDTH * 4 * HEIGHT];
+
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            final boolean gray = (i % WIDTH) < 2;
+            src[i * 4] = (byte) (gray ? 128 : 0);
+            src[i * 4 + 1] = (byte) (gray ? 128 : 255);
+            src[i * 4 + 2] = (byte) (gray ? 128 : 0);
+        }
+
+        final byte[] full601 = convert(src, RgbaToYuvConverter.Matrix.BT601, RgbaToYuvConverter.Range.FULL);
+        final byte[] limited709 = convert(src, RgbaToYuvConverter.Matrix.BT709, RgbaToYuvConverter.Range.LIMITED);
+
+        // 실수로 계산한 값과 고정소수점 오차 1 이내, 회색은 행렬과 관계없이 U / V 가 정확히 128
+        assertWithinOne(new int[]{128, 128, 150, 150, 128, 128, 150, 150, 128, 44, 128, 21}, toUnsigned(full601));
+        assertWithinOne(new int[]{126, 126, 173, 173, 126, 126, 173, 173, 128, 42, 128, 26}, toUnsigned(limited709));
+        assertEquals(128, full601[8] & 0xFF);
+        assertEquals(128, limited709[10] & 0xFF);
+    }
+
+    @Test
+    public void saturatedColors_doNotWrapChroma() {
+        // 빨간색 (255, 0, 0) 과 파란색 (0, 0, 255) 2x2 블록
+        final byte[] src = new byte[WIDTH * 4 * HEIGHT];
+
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            final boolean red = (i % WIDTH) < 2;
+            src[i * 4] = (byte) (red ? 255 : 0);
+            src[i * 4 + 2] = (byte) (red ? 0 : 255);
+        }
+
+        final byte[] full = convert(src, RgbaToYuvConverter.Matrix.BT601, RgbaToYuvConverter.Range.FULL);
+        final byte[] limited = convert(src, RgbaToYuvConverter.Matrix.BT601, RgbaToYuvConverter.Range.LIMITED);
+
+        // 빨간색의 V 와 파란색의 U 가 최대값, 넘쳐서 반대 색이 되지 않음
+        assertWithinOne(new int[]{76, 76, 29, 29, 76, 76, 29, 29, 85, 255, 255, 107}, toUnsigned(full));
+        assertWithinOne(new int[]{82, 82, 41, 41, 82, 82, 41, 41, 90, 240, 240, 110}, toUnsigned(limited));
+        assertEquals(255, full[9] & 0xFF);
+        assertEquals(255, full[10] & 0xFF);
+    }
+
+    @Test
+    public void parallelStripes_matchSingleThread() {
+        final int width = 64;
+        final int height = 38;
+        final int rowStride = width * 4 + 16;
+        final ByteBuffer src = ByteBuffer.allocateDirect(rowStride * height).order(ByteOrder.LITTLE_ENDIAN);
+        final Random random = new Random(3);
+
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) random.nextInt(256));
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (RgbaToYuvConverter.Layout layout : RgbaToYuvConverter.Layout.values()) {
+                final RgbaToYuvConverter single = new RgbaToYuvConverter(width, height, layout);
+                final RgbaToYuvConverter parallel = new RgbaToYuvConverter(width, height, layout, RgbaToYuvConverter.Matrix.BT601,
+                        RgbaToYuvConverter.Range.LIMITED, pool);
+                assertEquals(4, parallel.getStripeCount());
+
+                final byte[] srcArray = new byte[src.capacity() + 5];
+                for (int i = 0; i < src.capacity(); i++) {
+                    srcArray[5 + i] = src.get(i);
+                }
+
+                final byte[] expected = new byte[single.getFrameSize()];
+                single.convert(srcArray, 5, rowStride, expected, 0);
+
+                final ByteBuffer dst = ByteBuffer.allocateDirect(parallel.getFrameSize());
+                parallel.convert(src, rowStride, dst);
+
+                final byte[] actual = new byte[dst.remaining()];
+                dst.get(actual);
+
+                assertArrayEquals(layout.name(), expected, actual);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddSize_isRejected() {
+        new RgbaToYuvConverter(3, 2, RgbaToYuvConverter.Layout.I420);
+    }
+
+    @Test
+    public void framePool_dropsWhenAllBuffersAreInUse() throws Exception {
+        final YuvFramePool pool = new YuvFramePool(12, 2);
+
+        final YuvFramePool.Frame first = pool.obtain();
+        final YuvFramePool.Frame second = pool.obtain();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(pool.obtain());
+        assertEquals(1, pool.getDroppedFrames());
+
+        first.presentationTimeUs = 1000;
+        pool.submit(first);
+        assertSame(first, pool.take(0));
+        assertNull(pool.take(0));
+
+        pool.recycle(first);
+        assertSame(first, pool.obtain());
+    }
+
+    private static byte[] convert(byte[] src, RgbaToYuvConverter.Matrix matrix, RgbaToYuvConverter.Range range) {
+        final RgbaToYuvConverter converter = new RgbaToYuvConverter(WIDTH, HEIGHT, RgbaToYuvConverter.Layout.I420, matrix, range, null);
+        final byte[] dst = new byte[converter.getFrameSize()];
+        converter.convert(src, 0, WIDTH * 4, dst, 0);
+        return dst;
+    }
+
+    private static void assertWithinOne(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("index " + i, expected[i], actual[i], 1);
+        }
+    }
+
+    private static int[] toUnsigned(byte[] bytes) {
+        final int[] values = new int[bytes.length];
+
+        for (int i = 0; i < bytes.length; i++) {
+            values[i] = bytes[i] & 0xFF;
+        }
+
+        return values;
+    }
+}
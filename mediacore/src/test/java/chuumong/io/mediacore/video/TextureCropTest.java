@@ -0,0 +1,65 @@
+package chuumong.io.mediacore.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TextureCropTest {
+
+    private static final float[] IDENTITY = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1};
+
+    // SurfaceTexture 가 흔히 돌려주는 위 / 아래 뒤집기 행렬
+    private static final float[] FLIP_Y = {
+            1, 0, 0, 0,
+            0, -1, 0, 0,
+            0, 0, 1, 0,
+            0, 1, 0, 1};
+
+    @Test
+    public void apply_mapsQuadToCropRect() {
+        // 1000x2000 화면의 오른쪽 위 200x500 영역
+        final TextureCrop crop = new TextureCrop(1000, 2000, 800, 0, 200, 500);
+        final float[] m = new float[16];
+        crop.apply(IDENTITY, m);
+
+        assertPoint(0.8f, 0.75f, m, 0, 0);
+        assertPoint(1f, 1f, m, 1, 1);
+    }
+
+    @Test
+    public void apply_cropsBeforeSurfaceTextureTransform() {
+        // 왼쪽 위 1/4 은 뒤집힌 버퍼에서 v 가 0 ~ 0.5
+        final TextureCrop crop = new TextureCrop(100, 100, 0, 0, 50, 50);
+        final float[] m = new float[16];
+        crop.apply(FLIP_Y, m);
+
+        assertPoint(0f, 0.5f, m, 0, 0);
+        assertPoint(0.5f, 0f, m, 1, 1);
+    }
+
+    @Test
+    public void outOfBounds_isClampedToEvenSize() {
+        final TextureCrop crop = new TextureCrop(1080, 1920, -10, 1800, 501, 500);
+
+        assertEquals(0, crop.x);
+        assertEquals(1800, crop.y);
+        assertEquals(490, crop.width);
+        assertEquals(120, crop.height);
+        assertFalse(crop.isFullFrame());
+        assertTrue(new TextureCrop(1080, 1920, 0, 0, 1080, 1920).isFullFrame());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRect_isRejected() {
+        new TextureCrop(1080, 1920, 1080, 0, 100, 100);
+    }
+
+    private static void assertPoint(float expectedU, float expectedV, float[] m, float u, float v) {
+        assertEquals(expectedU, m[0] * u + m[4] * v + m[12], 1e-6f);
+        assertEquals(expectedV, m[1] * u + m[5] * v + m[13], 1e-6f);
+    }
+}